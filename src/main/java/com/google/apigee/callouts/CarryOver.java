@@ -0,0 +1,132 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.OperationCache;
+import graphql.validation.ValidationError;
+import org.javatuples.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the cached operations of a schema over to the schema that replaced it, on a background thread.
+ * <p>
+ * Operations whose field coordinates the new schema did not change are moved to it as they are (see
+ * {@link OperationCache#carryOver}). The others are validated again against the new schema, and cached again
+ * if they are still valid, so that live traffic finds a warm cache after a schema rollout.
+ */
+class CarryOver implements Runnable {
+    private final GraphQLCallout callout;
+    private final OperationCache operations;
+    private final CompiledSchema oldSchema;
+    private final Pair<CompiledSchema, List<ValidationError>> newSchema;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile int carried;
+    private volatile int revalidated;
+    private volatile int dropped;
+
+    CarryOver(GraphQLCallout callout, OperationCache operations, CompiledSchema oldSchema, CompiledSchema newSchema) {
+        this.callout = callout;
+        this.operations = operations;
+        this.oldSchema = oldSchema;
+        this.newSchema = new Pair<>(newSchema, null);
+    }
+
+    /**
+     * Starts the carry-over on a low priority daemon thread.
+     *
+     * @return false if the thread could not be started
+     */
+    boolean start() {
+        try {
+            Thread thread = new Thread(this, "graphql-carry-over");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            return true;
+        } catch (SecurityException ex) {
+            done.countDown();
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<OperationCache.Entry> affected = new ArrayList<>();
+            carried = operations.carryOver(oldSchema, newSchema.getValue0(), affected);
+
+            GraphQLProcessor gql = new GraphQLProcessor();
+            for (OperationCache.Entry operation : affected) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                boolean valid;
+                try {
+                    valid = callout.revalidate(gql, operation, newSchema);
+                } catch (RuntimeException ex) {
+                    //carry-over is best effort, the request is validated again when it comes back
+                    valid = false;
+                }
+                if (valid) {
+                    revalidated++;
+                } else {
+                    operations.remove(operation);
+                    dropped++;
+                }
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    boolean isComplete() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return true if the carry-over completed within the given time
+     */
+    boolean await(long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return operations moved to the new schema without being validated again
+     */
+    int getCarried() {
+        return carried;
+    }
+
+    /**
+     * @return operations validated again, and still valid under the new schema
+     */
+    int getRevalidated() {
+        return revalidated;
+    }
+
+    /**
+     * @return operations no longer valid under the new schema, removed from the cache
+     */
+    int getDropped() {
+        return dropped;
+    }
+}
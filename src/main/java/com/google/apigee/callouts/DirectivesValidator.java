@@ -14,68 +14,221 @@
 
 package com.google.apigee.callouts;
 
+import com.google.apigee.callouts.graphql.CompiledDirectiveValidator;
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.GraphQLContextVisitor;
 import com.google.apigee.callouts.graphql.GraphQLDirectiveValidator;
 import com.google.apigee.callouts.graphql.GraphQLValidationException;
-import com.google.apigee.callouts.graphql.GraphQLVisitor;
-import graphql.ExecutionInput;
+import com.google.apigee.callouts.graphql.GraphQLVisitorContext;
 import graphql.language.Argument;
 import graphql.language.Field;
 import graphql.language.ObjectField;
 import graphql.schema.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class DirectivesValidator implements GraphQLVisitor {
-    Map<String, GraphQLDirectiveValidator> validators = new HashMap<>();
+/**
+ * Dispatches each output field, argument and input field to the validators of the directives applied to its
+ * definition (and, for arguments and input fields, to the input object type they take). Input fields set through
+ * a variable are dispatched with their coerced value.
+ * <p>
+ * The validators that apply to a definition, and the compiled form of their directives
+ * (see {@link CompiledDirectiveValidator}), are resolved once per definition. A pipeline built with
+ * {@link #compile(Collection, CompiledSchema)} resolves every definition of the schema up front, cannot be
+ * modified, and is safe to share between threads as long as its validators are.
+ */
+public class DirectivesValidator implements GraphQLContextVisitor {
+    private static final Binding[] NO_BINDINGS = new Binding[0];
 
+    final Map<String, GraphQLDirectiveValidator> validators;
+
+    //validators of each field, argument and input field definition
+    private final Map<GraphQLDirectiveContainer, Binding[]> bindings = new ConcurrentHashMap<>();
+    //for compiled pipelines, whether any definition of the schema has a validator
+    private boolean bound = true;
+
+    public DirectivesValidator() {
+        this.validators = new HashMap<>();
+    }
+
+    private DirectivesValidator(Map<String, GraphQLDirectiveValidator> validators) {
+        this.validators = Collections.unmodifiableMap(validators);
+    }
+
+    /**
+     * @param validators the validators, a later validator replaces an earlier one with the same name
+     * @return an immutable pipeline, with the directives of every definition of the schema already compiled
+     */
+    public static DirectivesValidator compile(Collection<? extends GraphQLDirectiveValidator> validators, CompiledSchema compiledSchema) {
+        Map<String, GraphQLDirectiveValidator> byName = new LinkedHashMap<>();
+        for (GraphQLDirectiveValidator validator : validators) {
+            byName.put(validator.getName(), validator);
+        }
+        DirectivesValidator pipeline = new DirectivesValidator(byName);
+
+        for (CompiledSchema.CompositeTypeInfo typeInfo : compiledSchema.getCompositeTypes()) {
+            for (CompiledSchema.FieldInfo fieldInfo : typeInfo.getFields()) {
+                pipeline.getBindings(fieldInfo.getDefinition(), fieldInfo.getDefinitions());
+                for (GraphQLArgument argument : fieldInfo.getDefinition().getArguments()) {
+                    pipeline.getBindings(argument, null);
+                }
+            }
+        }
+        for (GraphQLNamedType type : compiledSchema.getSchema().getAllTypesAsList()) {
+            if (type instanceof GraphQLInputObjectType) {
+                for (GraphQLInputObjectField field : ((GraphQLInputObjectType) type).getFieldDefinitions()) {
+                    pipeline.getBindings(field, null);
+                }
+            }
+        }
+
+        boolean bound = false;
+        for (Binding[] definitionBindings : pipeline.bindings.values()) {
+            bound |= definitionBindings.length > 0;
+        }
+        pipeline.bound = bound;
+        return pipeline;
+    }
+
+    /**
+     * @return true if a directive of the schema has a validator, which may reject or rewrite requests. Always true
+     * for pipelines that are not compiled.
+     */
+    public boolean hasBoundValidators() {
+        return bound;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if this is a compiled pipeline
+     */
     public void addValidator(GraphQLDirectiveValidator validator) {
         this.validators.put(validator.getName(), validator);
+        this.bindings.clear();
     }
 
     @Override
-    public Field visitOutputField(Field field, GraphQLFieldDefinition definition, ExecutionInput input) throws GraphQLValidationException {
-        List<GraphQLDirective> directives = definition.getDirectives();
-        for (GraphQLDirective directive : directives) {
-            String directiveName = directive.getName();
-            if (validators.containsKey(directiveName)) {
-                field = validators.get(directiveName).validateOutputField(field, directive, input);
-                if (field == null) {
-                    break;
-                }
+    public Field enterOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        //for interface fields, directives may be on the implementing object types
+        Binding[] fieldBindings = getBindings(definition, ctx.getFieldDefinitions());
+        for (int i = 0; i < fieldBindings.length; i++) {
+            Binding binding = fieldBindings[i];
+            field = binding.compiled != null
+                    ? binding.compiled.checkOutputField(field, binding.constraint, ctx)
+                    : binding.validator.validateOutputField(field, binding.directive, ctx);
+            if (field == null) {
+                return null;
             }
         }
         return field;
     }
 
     @Override
-    public Argument visitArgument(Argument argument, GraphQLArgument definition, ExecutionInput input) {
-        List<GraphQLDirective> directives = definition.getDirectives();
-        for (GraphQLDirective directive : directives) {
-            String directiveName = directive.getName();
-            if (validators.containsKey(directiveName)) {
-                argument = validators.get(directiveName).validateArgument(argument, directive, input);
-                if (argument == null) {
-                    break;
-                }
+    public Argument enterArgument(Argument argument, GraphQLArgument definition, GraphQLVisitorContext ctx) {
+        Binding[] argumentBindings = getBindings(definition, null);
+        for (int i = 0; i < argumentBindings.length; i++) {
+            Binding binding = argumentBindings[i];
+            argument = binding.compiled != null
+                    ? binding.compiled.checkArgument(argument, binding.constraint, ctx)
+                    : binding.validator.validateArgument(argument, binding.directive, ctx);
+            if (argument == null) {
+                break;
             }
         }
         return argument;
     }
 
     @Override
-    public ObjectField visitInputField(ObjectField field, GraphQLInputObjectField definition, ExecutionInput input) {
-        List<GraphQLDirective> directives = definition.getDirectives();
-        for (GraphQLDirective directive : directives) {
-            String directiveName = directive.getName();
-            if (validators.containsKey(directiveName)) {
-                field = validators.get(directiveName).validateInputField(field, directive, input);
-                if (field == null) {
-                    break;
-                }
+    public ObjectField enterInputField(ObjectField field, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+        Binding[] fieldBindings = getBindings(definition, null);
+        for (int i = 0; i < fieldBindings.length; i++) {
+            Binding binding = fieldBindings[i];
+            field = binding.compiled != null
+                    ? binding.compiled.checkInputField(field, binding.constraint, ctx)
+                    : binding.validator.validateInputField(field, binding.directive, ctx);
+            if (field == null) {
+                break;
             }
         }
         return field;
     }
+
+    @Override
+    public void enterInputFieldValue(String name, Object value, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+        Binding[] fieldBindings = getBindings(definition, null);
+        for (int i = 0; i < fieldBindings.length; i++) {
+            Binding binding = fieldBindings[i];
+            if (binding.compiled != null) {
+                binding.compiled.checkInputFieldValue(name, value, binding.constraint, ctx);
+            } else {
+                binding.validator.validateInputFieldValue(name, value, binding.directive, ctx);
+            }
+        }
+    }
+
+    /**
+     * @param fieldDefinitions for output fields, the definitions whose directives apply (see {@link GraphQLVisitorContext#getFieldDefinitions()})
+     */
+    private Binding[] getBindings(GraphQLDirectiveContainer definition, GraphQLFieldDefinition[] fieldDefinitions) {
+        Binding[] definitionBindings = bindings.get(definition);
+        if (definitionBindings != null) {
+            return definitionBindings;
+        }
+
+        List<Binding> found = new ArrayList<>();
+        if (fieldDefinitions != null) {
+            for (GraphQLFieldDefinition fieldDefinition : fieldDefinitions) {
+                bind(fieldDefinition.getDirectives(), found);
+            }
+        } else {
+            GraphQLInputType type;
+            if (definition instanceof GraphQLArgument) {
+                bind(((GraphQLArgument) definition).getDirectives(), found);
+                type = ((GraphQLArgument) definition).getType();
+            } else {
+                bind(((GraphQLInputObjectField) definition).getDirectives(), found);
+                type = ((GraphQLInputObjectField) definition).getType();
+            }
+            GraphQLUnmodifiedType unwrapped = GraphQLTypeUtil.unwrapAll(type);
+            if (unwrapped instanceof GraphQLInputObjectType) {
+                bind(((GraphQLInputObjectType) unwrapped).getDirectives(), found);
+            }
+        }
+
+        definitionBindings = found.isEmpty() ? NO_BINDINGS : found.toArray(NO_BINDINGS);
+        bindings.put(definition, definitionBindings);
+        return definitionBindings;
+    }
+
+    private void bind(List<GraphQLDirective> directives, List<Binding> found) {
+        for (int i = 0; i < directives.size(); i++) {
+            GraphQLDirective directive = directives.get(i);
+            GraphQLDirectiveValidator validator = validators.get(directive.getName());
+            if (validator != null) {
+                found.add(new Binding(validator, directive));
+            }
+        }
+    }
+
+    private static final class Binding {
+        final GraphQLDirectiveValidator validator;
+        final GraphQLDirective directive;
+        //the validator, if it compiles its constraint, typed to take the constraint it compiled back
+        final CompiledDirectiveValidator<Object> compiled;
+        final Object constraint;
+
+        @SuppressWarnings("unchecked")
+        Binding(GraphQLDirectiveValidator validator, GraphQLDirective directive) {
+            this.validator = validator;
+            this.directive = directive;
+            this.compiled = validator instanceof CompiledDirectiveValidator ? (CompiledDirectiveValidator<Object>) validator : null;
+            this.constraint = compiled != null ? compiled.compile(directive) : null;
+        }
+    }
 }
@@ -14,35 +14,120 @@
 
 package com.google.apigee.callouts;
 
+import com.apigee.flow.execution.Action;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.graphql.BackendRouter;
+import com.google.apigee.callouts.graphql.CachePolicy;
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.FieldUsage;
+import com.google.apigee.callouts.graphql.GraphQLDirectiveValidator;
+import com.google.apigee.callouts.graphql.GraphQLErrorResponse;
 import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.OperationCache;
+import com.google.apigee.callouts.graphql.OperationCost;
+import com.google.apigee.callouts.graphql.QueryMinimizer;
+import com.google.apigee.callouts.graphql.SchemaRegistry;
+import com.google.apigee.callouts.graphql.SourcePatch;
+import com.google.apigee.callouts.graphql.ValidationBudget;
+import com.google.apigee.callouts.graphql.ValidationOptions;
+import com.google.apigee.callouts.graphql.ValidationRules;
+import com.google.apigee.callouts.util.CompiledProperties;
+import com.google.apigee.callouts.util.BoundedCache;
 import com.google.apigee.callouts.util.Debug;
+import com.google.apigee.callouts.util.HeavyHitters;
+import com.google.apigee.callouts.util.LoadShedder;
 import com.google.apigee.callouts.util.Logger;
+import com.google.apigee.callouts.util.PropertyTemplate;
+import com.google.apigee.callouts.util.RejectionCache;
 import com.google.apigee.callouts.util.VarResolver;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import graphql.ParseAndValidateResult;
 import graphql.language.*;
 import graphql.validation.ValidationError;
+import org.javatuples.Pair;
 import org.javatuples.Triplet;
 
 
 import java.io.*;
+import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GraphQLCallout implements Execution {
     public static final String CALLOUT_VAR_PREFIX = "graphql";
     public static final String PROP_SCHEMA_BASE64_REF = "schema-base64-ref";
+    public static final String PROP_SCHEMA_RESOURCE = "schema-resource";
+    public static final String PROP_SCHEMA_NAME = "schema-name";
     public static final String PROP_MESSAGE_REF = "message-ref";
+    public static final String PROP_OUTPUT_MODE = "output-mode";
+    public static final String OUTPUT_MODE_PRINT = "print";
+    public static final String OUTPUT_MODE_PATCH = "patch";
+    public static final String OUTPUT_MODE_MINIMIZE = "minimize";
+    public static final String PROP_ERROR_RESPONSE = "error-response";
+    public static final String ERROR_RESPONSE_VAR = CALLOUT_VAR_PREFIX + ".error.response";
+    public static final String PROP_USAGE_SNAPSHOT = "usage-snapshot";
+    public static final String PROP_USAGE_SNAPSHOT_INTERVAL = "usage-snapshot-interval";
+    public static final String USAGE_SNAPSHOT_VAR = CALLOUT_VAR_PREFIX + ".usage.snapshot";
+    public static final String SCHEMAS_SNAPSHOT_VAR = CALLOUT_VAR_PREFIX + ".schemas.snapshot";
+    public static final String PROP_VALIDATION_TIMEOUT = "validation-timeout";
+    public static final String PROP_VALIDATION_MAX_NODES = "validation-max-nodes";
+    public static final String PROP_VALIDATION_BUDGET_ACTION = "validation-budget-action";
+    public static final String BUDGET_ACTION_REJECT = "reject";
+    public static final String BUDGET_ACTION_CONTINUE = "continue";
+    public static final String BUDGET_EXCEEDED_VAR = CALLOUT_VAR_PREFIX + ".budget.exceeded";
+    public static final String PROP_WARM_UP = "warm-up";
+    public static final String PROP_WARM_UP_CORPUS = "warm-up-corpus";
+    public static final String PROP_WARM_UP_ITERATIONS = "warm-up-iterations";
+    public static final String WARM_UP_COMPLETE_VAR = CALLOUT_VAR_PREFIX + ".warmup.complete";
+    public static final String WARM_UP_ITERATIONS_VAR = CALLOUT_VAR_PREFIX + ".warmup.iterations";
+    public static final long DEFAULT_WARM_UP_ITERATIONS = 20000;
+    public static final String CACHE_MAX_AGE_VAR = CALLOUT_VAR_PREFIX + ".cache.maxAge";
+    public static final String CACHE_SCOPE_VAR = CALLOUT_VAR_PREFIX + ".cache.scope";
+    public static final String CACHE_KEY_VAR = CALLOUT_VAR_PREFIX + ".cache.key";
+    public static final String PROP_OPERATION_STATS = "operation-stats";
+    public static final String PROP_OPERATION_STATS_SIZE = "operation-stats-size";
+    public static final String PROP_OPERATION_STATS_SNAPSHOT = "operation-stats-snapshot";
+    public static final String PROP_OPERATION_STATS_SNAPSHOT_INTERVAL = "operation-stats-snapshot-interval";
+    public static final String OPERATION_STATS_VAR = CALLOUT_VAR_PREFIX + ".operations.snapshot";
+    public static final String REJECTED_OPERATION_SIGNATURE = "(rejected)";
+    public static final String PROP_BACKEND_ROUTING = "backend-routing";
+    public static final String BACKEND_ROUTING_REJECT = "reject";
+    public static final String BACKEND_ROUTING_SPLIT = "split";
+    public static final String BACKEND_VAR = CALLOUT_VAR_PREFIX + ".backend";
+    public static final String BACKEND_COUNT_VAR = CALLOUT_VAR_PREFIX + ".backend.count";
+    public static final String PROP_DIRECTIVE_VALIDATORS = "directive-validators";
+    public static final String PROP_REJECTION_CACHE = "rejection-cache";
+    public static final String PROP_REJECTION_CACHE_SIZE = "rejection-cache-size";
+    public static final String PROP_REJECTION_CACHE_TTL = "rejection-cache-ttl";
+    public static final String REJECTION_CACHED_VAR = CALLOUT_VAR_PREFIX + ".rejection.cached";
+    public static final String REJECTION_KEY_VAR = CALLOUT_VAR_PREFIX + ".rejection.key";
+    public static final String REJECTION_COUNT_VAR = CALLOUT_VAR_PREFIX + ".rejection.count";
+    public static final String PROP_LOAD_SHEDDING = "load-shedding";
+    public static final String PROP_LOAD_SHEDDING_MAX_IN_FLIGHT = "load-shedding-max-in-flight";
+    public static final String PROP_LOAD_SHEDDING_MAX_LATENCY = "load-shedding-max-latency";
+    public static final String PROP_LOAD_SHEDDING_MIN_COST = "load-shedding-min-cost";
+    public static final String LOAD_SHED_VAR = CALLOUT_VAR_PREFIX + ".load.shed";
+    public static final String COST_FIELDS_VAR = CALLOUT_VAR_PREFIX + ".cost.fields";
+    public static final String COST_DEPTH_VAR = CALLOUT_VAR_PREFIX + ".cost.depth";
+    public static final String PROP_OPERATION_CACHE = "operation-cache";
+    public static final String PROP_OPERATION_CACHE_SIZE = "operation-cache-size";
+    public static final String OPERATION_CACHED_VAR = CALLOUT_VAR_PREFIX + ".operation.cached";
+    public static final String PROP_VALIDATION_RULES = "validation-rules";
     public static final String MUTATION_FIELD = "mutation";
     public static final String QUERY_FIELD = "query";
     public static final String VARIABLES_FIELD = "variables";
+    public static final String OPERATION_NAME_FIELD = "operationName";
 
     private static Gson gson = new Gson();
+    private static final Type JSON_OBJECT_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
 
 
     private enum OperationType {
@@ -52,10 +137,285 @@ public class GraphQLCallout implements Execution {
     }
 
 
-    private final Map properties;
+    private final CompiledProperties properties;
+
+    //schemas packaged as resources, compiled when the callout is loaded
+    private final Map<String, Pair<CompiledSchema, List<ValidationError>>> resourceSchemas = new HashMap<>();
+
+    private static final int OPERATION_STATS_WIDTH = 2048;
+    private static final int DEFAULT_OPERATION_STATS_SIZE = 20;
+    private static final int DEFAULT_REJECTION_CACHE_SIZE = 1024;
+    private static final long DEFAULT_REJECTION_CACHE_TTL = 60;
+    private static final long DEFAULT_LOAD_SHEDDING_MIN_COST = 10;
+    private static final int DEFAULT_OPERATION_CACHE_SIZE = 1024;
+    private static final String LOAD_SHED_RETRY_AFTER = "1";
+
+    //top operations by request count, when the operation-stats property is true
+    private final HeavyHitters operationStats;
+    private final BoundedCache<String, String> operationSignatures = new BoundedCache<>(1024);
+
+    //recently rejected request bodies, when the rejection-cache property is true
+    private final RejectionCache rejections;
+
+    //sheds the most expensive operations under overload, when the load-shedding property is true
+    private final LoadShedder loadShedder;
+
+    //recently validated operations, when the operation-cache property is true
+    private final OperationCache operations;
+
+    //latest compiled schema seen for each schema name, to carry the cached operations over when it changes
+    private final Map<String, CompiledSchema> currentSchemas = new ConcurrentHashMap<>();
+    private volatile CarryOver carryOver;
+
+    //the GraphQL spec validation rules run on every request
+    private final ValidationRules validationRules;
+
+    //directive validators, discovered once, and compiled into a pipeline once per schema
+    private final List<GraphQLDirectiveValidator> directiveValidators;
+    //the schema extension holding the pipeline, shared by the callouts that load the same validator classes
+    private final String pipelineKey;
+
+    //operations spanning several backends are split into one document per backend, instead of being rejected
+    private final boolean splitBackends;
+
+    //started with the first available schema when the warm-up property is true
+    private final AtomicBoolean warmUpStarted = new AtomicBoolean();
+    private volatile WarmUp warmUp;
+
+    public GraphQLCallout(Map<?, ?> properties) throws UnsupportedEncodingException {
+        this.properties = CompiledProperties.compile(properties);
+        this.directiveValidators = loadDirectiveValidators(getConstantProperty(PROP_DIRECTIVE_VALIDATORS));
+        this.pipelineKey = pipelineKey(directiveValidators);
+        loadResourceSchemas();
+
+        String statsSize = getConstantProperty(PROP_OPERATION_STATS_SIZE);
+        this.operationStats = Boolean.parseBoolean(getConstantProperty(PROP_OPERATION_STATS))
+                ? new HeavyHitters(OPERATION_STATS_WIDTH, statsSize == null ? DEFAULT_OPERATION_STATS_SIZE : Integer.parseInt(statsSize.trim()))
+                : null;
+        String rejectionCacheSize = getConstantProperty(PROP_REJECTION_CACHE_SIZE);
+        String rejectionCacheTtl = getConstantProperty(PROP_REJECTION_CACHE_TTL);
+        this.rejections = Boolean.parseBoolean(getConstantProperty(PROP_REJECTION_CACHE))
+                ? new RejectionCache(rejectionCacheSize == null ? DEFAULT_REJECTION_CACHE_SIZE : Integer.parseInt(rejectionCacheSize.trim()),
+                        (rejectionCacheTtl == null ? DEFAULT_REJECTION_CACHE_TTL : Long.parseLong(rejectionCacheTtl.trim())) * 1000)
+                : null;
+        String maxInFlight = getConstantProperty(PROP_LOAD_SHEDDING_MAX_IN_FLIGHT);
+        String maxLatency = getConstantProperty(PROP_LOAD_SHEDDING_MAX_LATENCY);
+        String minCost = getConstantProperty(PROP_LOAD_SHEDDING_MIN_COST);
+        this.loadShedder = Boolean.parseBoolean(getConstantProperty(PROP_LOAD_SHEDDING))
+                ? new LoadShedder(maxInFlight == null ? 0 : Integer.parseInt(maxInFlight.trim()),
+                        maxLatency == null ? 0 : Long.parseLong(maxLatency.trim()),
+                        minCost == null ? DEFAULT_LOAD_SHEDDING_MIN_COST : Long.parseLong(minCost.trim()))
+                : null;
+        String operationCacheSize = getConstantProperty(PROP_OPERATION_CACHE_SIZE);
+        this.operations = Boolean.parseBoolean(getConstantProperty(PROP_OPERATION_CACHE))
+                ? new OperationCache(operationCacheSize == null ? DEFAULT_OPERATION_CACHE_SIZE : Integer.parseInt(operationCacheSize.trim()))
+                : null;
+        this.validationRules = ValidationRules.parse(getConstantProperty(PROP_VALIDATION_RULES));
+        this.splitBackends = BACKEND_ROUTING_SPLIT.equalsIgnoreCase(getConstantProperty(PROP_BACKEND_ROUTING));
+
+        Pair<CompiledSchema, List<ValidationError>> schema = resourceSchemas.get(SchemaRegistry.DEFAULT_SCHEMA_NAME);
+        if (schema == null && !resourceSchemas.isEmpty()) {
+            schema = resourceSchemas.values().iterator().next();
+        }
+        if (schema != null && schema.getValue0() != null) {
+            startWarmUp(schema.getValue0());
+        }
+    }
+
+    /**
+     * Finds the directive validators: the built-in ones, then those registered with {@link ServiceLoader}, then those
+     * named by the directive-validators property (comma separated class names). A validator replaces an earlier one
+     * for the same directive. Validators are shared by all requests, so they must be thread-safe.
+     */
+    static List<GraphQLDirectiveValidator> loadDirectiveValidators(String classNames) {
+        List<GraphQLDirectiveValidator> validators = new ArrayList<>(Arrays.asList(
+                new VisibilityValidator(),
+                new PatternValidator(),
+                new ListSizeValidator(),
+                new LengthValidator(),
+                new RangeValidator(),
+                new MaxItemsValidator(),
+                new OneOfValidator()));
+
+        ClassLoader classLoader = GraphQLCallout.class.getClassLoader();
+        try {
+            for (GraphQLDirectiveValidator validator : ServiceLoader.load(GraphQLDirectiveValidator.class, classLoader)) {
+                validators.add(validator);
+            }
+        } catch (ServiceConfigurationError ex) {
+            throw new IllegalStateException("could not load directive validators: " + ex.getMessage(), ex);
+        }
+
+        if (classNames != null) {
+            for (String className : classNames.split(",")) {
+                className = className.trim();
+                if (className.isEmpty()) {
+                    continue;
+                }
+                try {
+                    validators.add((GraphQLDirectiveValidator) Class.forName(className, true, classLoader).getDeclaredConstructor().newInstance());
+                } catch (ReflectiveOperationException | ClassCastException ex) {
+                    throw new IllegalArgumentException("could not load directive validator " + className, ex);
+                }
+            }
+        }
+        return Collections.unmodifiableList(validators);
+    }
+
+    /**
+     * @return a key naming the validator classes in order, equal for every callout that loads the same validators
+     */
+    private static String pipelineKey(List<GraphQLDirectiveValidator> validators) {
+        StringBuilder key = new StringBuilder(DirectivesValidator.class.getName());
+        for (GraphQLDirectiveValidator validator : validators) {
+            key.append(',').append(validator.getClass().getName());
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the validator pipeline compiled for the schema, shared with the other callouts using the same validators
+     */
+    DirectivesValidator getDirectivesValidator(CompiledSchema compiledSchema) {
+        return compiledSchema.getExtension(pipelineKey, schema -> DirectivesValidator.compile(directiveValidators, schema));
+    }
+
+    /**
+     * Starts replaying the warm-up corpus (or synthetic queries for the schema) in the background, once per
+     * callout instance. Schemas given as resources are warmed up at construction, otherwise on the first request.
+     */
+    private void startWarmUp(CompiledSchema compiledSchema) {
+        if (!Boolean.parseBoolean(getConstantProperty(PROP_WARM_UP)) || !warmUpStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        List<String> corpus = null;
+        String corpusResource = getConstantProperty(PROP_WARM_UP_CORPUS);
+        if (corpusResource != null) {
+            try {
+                corpus = new ArrayList<>();
+                for (String line : new GraphQLProcessor().loadResourceAsString(corpusResource).split("\n")) {
+                    if (!line.trim().isEmpty()) {
+                        corpus.add(line.trim());
+                    }
+                }
+            } catch (IOException ex) {
+                //fall back to synthetic queries
+                corpus = null;
+            }
+        }
+
+        String iterations = getConstantProperty(PROP_WARM_UP_ITERATIONS);
+        WarmUp newWarmUp = new WarmUp(this, compiledSchema, corpus, iterations == null ? DEFAULT_WARM_UP_ITERATIONS : Long.parseLong(iterations.trim()));
+        newWarmUp.start();
+        warmUp = newWarmUp;
+    }
+
+    /**
+     * Remembers the compiled schema of a schema name, and when it replaces another one, carries the cached
+     * operations over to it in the background.
+     */
+    private void trackSchema(String schemaName, CompiledSchema compiledSchema) {
+        CompiledSchema previous = currentSchemas.get(schemaName);
+        if (previous == compiledSchema) {
+            return;
+        }
+        if (previous == null) {
+            currentSchemas.putIfAbsent(schemaName, compiledSchema);
+            return;
+        }
+        if (currentSchemas.replace(schemaName, previous, compiledSchema)) {
+            CarryOver newCarryOver = new CarryOver(this, operations, previous, compiledSchema);
+            newCarryOver.start();
+            carryOver = newCarryOver;
+        }
+    }
+
+    /**
+     * @return the latest carry-over of cached operations to a new schema, or null if there was none
+     */
+    CarryOver getCarryOver() {
+        return carryOver;
+    }
+
+    private String getConstantProperty(String propertyName) {
+        PropertyTemplate template = properties.get(propertyName);
+        return template != null && template.isConstant() ? String.valueOf(template.getConstant()) : null;
+    }
+
+    /**
+     * Compiles every schema given as a resource (schema-resource, and schema-resource.{name}), so that the first
+     * request using each schema does not pay for its compilation.
+     */
+    private void loadResourceSchemas() {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        for (Map.Entry<String, PropertyTemplate> entry : properties.asMap().entrySet()) {
+            String schemaName = getSchemaName(entry.getKey(), PROP_SCHEMA_RESOURCE);
+            if (schemaName == null || !entry.getValue().isConstant()) {
+                continue;
+            }
+
+            String resourcePath = String.valueOf(entry.getValue().getConstant());
+            try {
+                resourceSchemas.put(schemaName, gql.compileSchema(schemaName, gql.loadResourceAsString(resourcePath)));
+            } catch (IOException ex) {
+                List<ValidationError> errors = Collections.singletonList(ValidationError.newValidationError()
+                        .description("could not load schema " + schemaName + ": " + ex.getMessage())
+                        .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_INTERNAL_SERVER_ERROR))
+                        .build());
+                resourceSchemas.put(schemaName, new Pair<>(null, errors));
+            }
+        }
+    }
+
+    /**
+     * @return the schema name of a schema property, e.g. "partner" for "schema-resource.partner", the default name
+     * for the property itself, or null if it is not a schema property
+     */
+    private static String getSchemaName(String propertyName, String schemaProperty) {
+        if (propertyName.equals(schemaProperty)) {
+            return SchemaRegistry.DEFAULT_SCHEMA_NAME;
+        }
+        if (propertyName.length() > schemaProperty.length() + 1 && propertyName.startsWith(schemaProperty)
+                && propertyName.charAt(schemaProperty.length()) == '.') {
+            return propertyName.substring(schemaProperty.length() + 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the schema to use for the request, selected by the schema-name property. Unknown names fall
+     * back to the default schema
+     */
+    private String selectSchemaName(VarResolver vars) {
+        String schemaName = vars.getProp(PROP_SCHEMA_NAME);
+        if (schemaName != null && !schemaName.isEmpty() && hasSchema(schemaName)) {
+            return schemaName;
+        }
+        return SchemaRegistry.DEFAULT_SCHEMA_NAME;
+    }
 
-    public GraphQLCallout(Map properties) throws UnsupportedEncodingException {
-        this.properties = properties;
+    private boolean hasSchema(String schemaName) {
+        return resourceSchemas.containsKey(schemaName) || properties.contains(PROP_SCHEMA_BASE64_REF + "." + schemaName);
+    }
+
+    private Pair<CompiledSchema, List<ValidationError>> loadSchema(VarResolver vars, GraphQLProcessor gql, String schemaName) {
+        Pair<CompiledSchema, List<ValidationError>> schema = resourceSchemas.get(schemaName);
+        if (schema != null) {
+            SchemaRegistry.getDefault().countLookup(schemaName);
+            return schema;
+        }
+
+        String refProperty = SchemaRegistry.DEFAULT_SCHEMA_NAME.equals(schemaName) ? PROP_SCHEMA_BASE64_REF : PROP_SCHEMA_BASE64_REF + "." + schemaName;
+        String schemaTextBase64 = vars.getVar(vars.getProp(refProperty));
+        if (schemaTextBase64 == null || schemaTextBase64.isEmpty()) {
+            List<ValidationError> errors = Collections.singletonList(ValidationError.newValidationError()
+                    .description("schema " + schemaName + " not found")
+                    .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_INTERNAL_SERVER_ERROR))
+                    .build());
+            return new Pair<>(null, errors);
+        }
+        return gql.compileSchemaBase64(schemaName, schemaTextBase64);
     }
 
     private void saveOutputs(MessageContext msgCtx, Logger logger) {
@@ -70,18 +430,43 @@ public class GraphQLCallout implements Execution {
             VarResolver vars = new VarResolver(messageContext, properties);
             Debug dbg = new Debug(messageContext, CALLOUT_VAR_PREFIX);
 
-            String schemaTextBase64 = vars.getVar(vars.getProp(PROP_SCHEMA_BASE64_REF));
-            String schemaText = new String(Base64.getDecoder().decode(schemaTextBase64));
             String messageVariable = vars.getProp(PROP_MESSAGE_REF);
             Message msg = (Message) messageContext.getVariable(messageVariable);
+            String outputMode = vars.getProp(PROP_OUTPUT_MODE);
+            boolean errorResponse = vars.getProp(PROP_ERROR_RESPONSE, Boolean.class, false);
+            ValidationBudget budget = ValidationBudget.of(vars.getProp(PROP_VALIDATION_TIMEOUT, Long.class, 0L), vars.getProp(PROP_VALIDATION_MAX_NODES, Long.class, 0L));
+            boolean budgetFailOpen = BUDGET_ACTION_CONTINUE.equalsIgnoreCase(vars.getProp(PROP_VALIDATION_BUDGET_ACTION));
 
             GraphQLProcessor gql = new GraphQLProcessor(logger);
 
-            Triplet<ExecutionResult, Map<String, Object>, String> result = validateGraphQLMessage(gql, msg.getContent(), schemaText);
+            String schemaName = selectSchemaName(vars);
+            Pair<CompiledSchema, List<ValidationError>> schema = loadSchema(vars, gql, schemaName);
+            messageContext.setVariable(CALLOUT_VAR_PREFIX + ".schema.name", schemaName);
+
+            if (schema.getValue0() != null) {
+                startWarmUp(schema.getValue0());
+                if (operations != null) {
+                    trackSchema(schemaName, schema.getValue0());
+                }
+            }
+            WarmUp currentWarmUp = warmUp;
+            if (currentWarmUp != null) {
+                messageContext.setVariable(WARM_UP_COMPLETE_VAR, currentWarmUp.isComplete());
+                messageContext.setVariable(WARM_UP_ITERATIONS_VAR, currentWarmUp.getIterations());
+            }
+
+            Triplet<ExecutionResult, Map<String, Object>, String> result = validateGraphQLMessage(gql, msg.getContent(), schema, outputMode, errorResponse, budget, budgetFailOpen);
 
             setFlowVars(messageContext, result.getValue1());
             setContent(msg, result.getValue2());
 
+            if (schema.getValue0() != null) {
+                exportUsage(vars, messageContext, logger, schemaName, schema.getValue0().getUsage());
+            }
+            if (operationStats != null) {
+                exportOperationStats(vars, messageContext, logger);
+            }
+
             return result.getValue0();
         } catch (Error | Exception e) {
             e.printStackTrace(logger.stderr);
@@ -91,6 +476,72 @@ public class GraphQLCallout implements Execution {
         }
     }
 
+    /**
+     * Exports the field usage counted since the previous snapshot, either on demand, or once per interval
+     * (by whichever request first finds the interval elapsed).
+     */
+    private void exportUsage(VarResolver vars, MessageContext messageContext, Logger logger, String schemaName, FieldUsage usage) {
+        boolean onDemand = vars.getProp(PROP_USAGE_SNAPSHOT, Boolean.class, false);
+        long intervalSeconds = vars.getProp(PROP_USAGE_SNAPSHOT_INTERVAL, Long.class, 0L);
+        if (!onDemand && (intervalSeconds <= 0 || !usage.claimSnapshot(intervalSeconds * 1000))) {
+            return;
+        }
+
+        String snapshot = usage.snapshot().toJson(schemaName);
+        messageContext.setVariable(USAGE_SNAPSHOT_VAR, snapshot);
+        logger.stdout.printf("usage snapshot %s\n", snapshot);
+
+        String schemas = SchemaRegistry.getDefault().toJson();
+        messageContext.setVariable(SCHEMAS_SNAPSHOT_VAR, schemas);
+        logger.stdout.printf("schemas snapshot %s\n", schemas);
+    }
+
+    /**
+     * Exports the top operations, either on demand, or once per interval (by whichever request first finds the
+     * interval elapsed).
+     */
+    private void exportOperationStats(VarResolver vars, MessageContext messageContext, Logger logger) {
+        boolean onDemand = vars.getProp(PROP_OPERATION_STATS_SNAPSHOT, Boolean.class, false);
+        long intervalSeconds = vars.getProp(PROP_OPERATION_STATS_SNAPSHOT_INTERVAL, Long.class, 0L);
+        if (!onDemand && (intervalSeconds <= 0 || !operationStats.claimSnapshot(intervalSeconds * 1000))) {
+            return;
+        }
+
+        String operations = operationStats.snapshot().toJson();
+        messageContext.setVariable(OPERATION_STATS_VAR, operations);
+        logger.stdout.printf("operations snapshot %s\n", operations);
+    }
+
+    /**
+     * @return the top operations tracked by this policy, or null if the operation-stats property is not true
+     */
+    public HeavyHitters getOperationStats() {
+        return operationStats;
+    }
+
+    /**
+     * @return the operation signature of a request (the operation with literals, aliases and formatting removed,
+     * see {@link AstSignature}), or {@link #REJECTED_OPERATION_SIGNATURE} if it has no valid document
+     */
+    private String operationSignature(String inputText, String operationName, Document document) {
+        if (document == null) {
+            return REJECTED_OPERATION_SIGNATURE;
+        }
+        return operationSignatures.get(operationName + "\n" + inputText,
+                key -> AstPrinter.printAstCompact(new AstSignature().signatureQuery(document, operationName)));
+    }
+
+    /**
+     * Counts a request against its operation signature, with its validation time in microseconds and body size in characters.
+     *
+     * @return the signature counted
+     */
+    private String recordOperation(String inputText, String operationName, Document document, long startNanos, int contentLength) {
+        String signature = operationSignature(inputText, operationName, document);
+        operationStats.record(signature, (System.nanoTime() - startNanos) / 1000, contentLength);
+        return signature;
+    }
+
     private void setContent(Message msg, String content) {
         if (content != null) {
             msg.setContent(content);
@@ -103,21 +554,156 @@ public class GraphQLCallout implements Execution {
     }
 
     public Triplet<ExecutionResult, Map<String, Object>, String> validateGraphQLMessage(GraphQLProcessor gql, String content, String schemaText) {
+        return validateGraphQLMessage(gql, content, schemaText, OUTPUT_MODE_PRINT);
+    }
+
+    public Triplet<ExecutionResult, Map<String, Object>, String> validateGraphQLMessage(GraphQLProcessor gql, String content, String schemaText, String outputMode) {
+        return validateGraphQLMessage(gql, content, schemaText, outputMode, false);
+    }
+
+    /**
+     * @param errorResponse if true, a rejected request aborts the flow with a GraphQL error response as the fault body,
+     *                      instead of continuing with the error flow variables only
+     */
+    public Triplet<ExecutionResult, Map<String, Object>, String> validateGraphQLMessage(GraphQLProcessor gql, String content, String schemaText, String outputMode, boolean errorResponse) {
+        return validateGraphQLMessage(gql, content, gql.compileSchema(schemaText), outputMode, errorResponse);
+    }
 
+    /**
+     * @param schema the compiled schema, or the errors found while compiling it
+     */
+    public Triplet<ExecutionResult, Map<String, Object>, String> validateGraphQLMessage(GraphQLProcessor gql, String content, Pair<CompiledSchema, List<ValidationError>> schema, String outputMode, boolean errorResponse) {
+        return validateGraphQLMessage(gql, content, schema, outputMode, errorResponse, ValidationBudget.UNLIMITED, false);
+    }
+
+    /**
+     * @param budget         bounds the time and work spent validating the request
+     * @param budgetFailOpen if true, a request that runs out of budget is forwarded unchanged (flagged with the
+     *                       graphql.budget.exceeded flow variable) instead of being rejected
+     */
+    public Triplet<ExecutionResult, Map<String, Object>, String> validateGraphQLMessage(GraphQLProcessor gql, String content, Pair<CompiledSchema, List<ValidationError>> schema, String outputMode, boolean errorResponse, ValidationBudget budget, boolean budgetFailOpen) {
+        if (loadShedder == null) {
+            return validateOrReplay(gql, content, schema, outputMode, errorResponse, budget, budgetFailOpen);
+        }
 
+        long startNanos = System.nanoTime();
+        loadShedder.enter();
+        try {
+            return validateOrReplay(gql, content, schema, outputMode, errorResponse, budget, budgetFailOpen);
+        } finally {
+            loadShedder.exit(startNanos);
+        }
+    }
+
+    /**
+     * @return the load shedder of this policy, or null if the load-shedding property is not true
+     */
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    private Triplet<ExecutionResult, Map<String, Object>, String> validateOrReplay(GraphQLProcessor gql, String content, Pair<CompiledSchema, List<ValidationError>> schema, String outputMode, boolean errorResponse, ValidationBudget budget, boolean budgetFailOpen) {
+        if (operations != null && content != null && schema.getValue0() != null) {
+            OperationCache.Entry operation = operations.get(content, outputMode, schema.getValue0());
+            if (operation != null) {
+                return replay(operation, errorResponse);
+            }
+        }
+
+        if (rejections == null || content == null) {
+            return validate(gql, content, schema, outputMode, errorResponse, budget, budgetFailOpen, true, true);
+        }
+
+        //a body rejected recently against the same schema is rejected again without being parsed
+        long startNanos = System.nanoTime();
+        Object scope = schema.getValue0() != null ? schema.getValue0() : schema;
+        RejectionCache.Rejection rejection = rejections.get(content, scope);
+        if (rejection != null && (rejection.getErrorResponse() != null) == errorResponse) {
+            if (operationStats != null) {
+                operationStats.record(REJECTED_OPERATION_SIGNATURE, (System.nanoTime() - startNanos) / 1000, content.length());
+            }
+            Map<String, Object> outFlowVars = new HashMap<>(rejection.getFlowVars());
+            outFlowVars.put(REJECTION_CACHED_VAR, true);
+            outFlowVars.put(REJECTION_KEY_VAR, rejection.getKey());
+            outFlowVars.put(REJECTION_COUNT_VAR, rejection.getCount());
+            return new Triplet<>(rejection.getErrorResponse() != null ? errorResult(rejection.getErrorResponse()) : ExecutionResult.SUCCESS, outFlowVars, null);
+        }
+
+        Triplet<ExecutionResult, Map<String, Object>, String> result = validate(gql, content, schema, outputMode, errorResponse, budget, budgetFailOpen, true, true);
+        Map<String, Object> outFlowVars = result.getValue1();
+
+        //running out of time or being shed depends on the load, not only on the request
+        boolean timedOut = outFlowVars.containsKey(BUDGET_EXCEEDED_VAR) && budget != null && budget.getTimeoutMillis() > 0;
+        if (Boolean.TRUE.equals(outFlowVars.get(CALLOUT_VAR_PREFIX + ".failed")) && !timedOut && !outFlowVars.containsKey(LOAD_SHED_VAR)) {
+            rejection = rejections.put(content, scope, outFlowVars, (String) outFlowVars.get(ERROR_RESPONSE_VAR));
+            outFlowVars.put(REJECTION_CACHED_VAR, false);
+            outFlowVars.put(REJECTION_KEY_VAR, rejection.getKey());
+            outFlowVars.put(REJECTION_COUNT_VAR, rejection.getCount());
+        }
+        return result;
+    }
+
+    /**
+     * Forwards a cached operation as it was validated, counting it like a validated one.
+     */
+    private Triplet<ExecutionResult, Map<String, Object>, String> replay(OperationCache.Entry operation, boolean errorResponse) {
+        long startNanos = System.nanoTime();
+        if (loadShedder != null && !loadShedder.admit(operation.getCost())) {
+            Map<String, Object> outFlowVars = new HashMap<>();
+            outFlowVars.put(COST_FIELDS_VAR, operation.getFlowVars().get(COST_FIELDS_VAR));
+            outFlowVars.put(COST_DEPTH_VAR, operation.getFlowVars().get(COST_DEPTH_VAR));
+            return shed(outFlowVars, errorResponse);
+        }
+        if (operationStats != null) {
+            operationStats.record(operation.getSignature(), (System.nanoTime() - startNanos) / 1000, operation.getContent().length());
+        }
+
+        Map<String, Object> outFlowVars = new HashMap<>(operation.getFlowVars());
+        outFlowVars.put(OPERATION_CACHED_VAR, true);
+        return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, operation.getOutput());
+    }
+
+    /**
+     * Validates a cached operation again, against the schema that replaced the one it was validated against.
+     *
+     * @return true if the operation is still valid, and was cached again
+     */
+    boolean revalidate(GraphQLProcessor gql, OperationCache.Entry operation, Pair<CompiledSchema, List<ValidationError>> schema) {
+        Triplet<ExecutionResult, Map<String, Object>, String> result = validate(gql, operation.getContent(), schema, operation.getOutputMode(),
+                false, ValidationBudget.UNLIMITED, false, true, false);
+        return Boolean.FALSE.equals(result.getValue1().get(CALLOUT_VAR_PREFIX + ".failed"));
+    }
+
+    /**
+     * Validates a request, without any of the per-policy state that depends on traffic (load shedding, rejection cache).
+     *
+     * @param cacheOperation if true and the operation-cache property is true, a valid operation is cached
+     * @param traffic        if false, the request is not client traffic (warm-up, revalidation): it is not counted in
+     *                       the operation stats, the field usage or the load shedder
+     */
+    Triplet<ExecutionResult, Map<String, Object>, String> validate(GraphQLProcessor gql, String content, Pair<CompiledSchema, List<ValidationError>> schema, String outputMode, boolean errorResponse, ValidationBudget budget, boolean budgetFailOpen, boolean cacheOperation, boolean traffic) {
         Map<String, Object> outFlowVars = new HashMap<>();
 
+        long startNanos = System.nanoTime();
         if (content == null) {
-            outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", true);
-            outFlowVars.put(CALLOUT_VAR_PREFIX + ".error.0.message",  "message body missing");
-            return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, null);
+            return failure(outFlowVars, badRequest("message body missing"), errorResponse);
         }
 
-        Map<String, Object> json = gson.fromJson(content, Map.class);
+        Map<String, Object> json;
+        try {
+            json = gson.fromJson(content, JSON_OBJECT_TYPE);
+        } catch (JsonParseException ex) {
+            //malformed, or not an object (e.g. an array or a string)
+            json = null;
+        }
+        if (json == null) {
+            return failure(outFlowVars, badRequest("message body is not a JSON object"), errorResponse);
+        }
 
         Object mutationObj = json.get(MUTATION_FIELD);
         Object queryObj = json.get(QUERY_FIELD);
-        Object variables = json.get(VARIABLES_FIELD);
+        Object variablesObj = json.get(VARIABLES_FIELD);
+        Object operationNameObj = json.get(OPERATION_NAME_FIELD);
 
         OperationType operationType = OperationType.Unknown;
         String inputText = "";
@@ -129,42 +715,243 @@ public class GraphQLCallout implements Execution {
             inputText = (String) mutationObj;
         }
 
-        if (variables == null || !(variables instanceof Map)) {
-            variables = new HashMap<String, Object>();
+        Map<String, Object> variables = jsonObject(variablesObj);
+
+        String operationName = null;
+        if (operationNameObj instanceof String && !((String) operationNameObj).isEmpty()) {
+            operationName = (String) operationNameObj;
         }
 
         if (operationType.equals(OperationType.Unknown)) {
-            outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", true);
-            outFlowVars.put(CALLOUT_VAR_PREFIX + ".error.0.message", "unknown operation type (expected query or mutation");
-            return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, null);
+            return failure(outFlowVars, badRequest("unknown operation type (expected query or mutation"), errorResponse);
         }
 
-        DirectivesValidator validator = new DirectivesValidator();
-        validator.addValidator(new VisibilityValidator());
-        validator.addValidator(new PatternValidator());
+        SourcePatch patch = OUTPUT_MODE_PATCH.equalsIgnoreCase(outputMode) ? SourcePatch.get() : null;
 
-        ParseAndValidateResult result = gql.validateInputWithSchema(inputText, (Map<String, Object>) variables, schemaText, validator);
+        if (schema.getValue1() != null) {
+            return failure(outFlowVars, schema.getValue1(), errorResponse);
+        }
 
-        if (result.isFailure()) {
-            List<ValidationError> validationErrors = result.getValidationErrors();
-            outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", true);
+        DirectivesValidator validator = getDirectivesValidator(schema.getValue0());
+
+        CachePolicy cachePolicy = new CachePolicy();
+        OperationCost cost = new OperationCost();
+        ParseAndValidateResult result = gql.parseAndValidate(inputText, operationName, variables, schema.getValue0(), validator,
+                ValidationOptions.newOptions().patch(patch).budget(budget).cachePolicy(cachePolicy).cost(cost).rules(validationRules)
+                        .countUsage(traffic).admission(traffic && loadShedder != null ? loadShedder::admit : null).build());
 
-            for (int i = 0; i < validationErrors.size(); i++) {
-                outFlowVars.put(CALLOUT_VAR_PREFIX + ".error." + i + ".message", validationErrors.get(i).getMessage());
+        //shed on the estimated cost, before the work of validating the operation is spent
+        if (result.isFailure() && isShed(result.getValidationErrors())) {
+            if (operationStats != null) {
+                recordOperation(inputText, operationName, null, startNanos, content.length());
             }
-            return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, null);
+            outFlowVars.put(COST_FIELDS_VAR, cost.getFields());
+            outFlowVars.put(COST_DEPTH_VAR, cost.getDepth());
+            return shed(outFlowVars, errorResponse);
+        }
+
+        if (result.isFailure() && isBudgetExceeded(result.getValidationErrors())) {
+            outFlowVars.put(BUDGET_EXCEEDED_VAR, true);
+            //forwarding the request unchanged would skip the directive validators, and any client could opt out of them
+            if (budgetFailOpen && !validator.hasBoundValidators()) {
+                outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", false);
+                return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, null);
+            }
+        }
+
+        if (result.isFailure()) {
+            if (traffic && operationStats != null) {
+                recordOperation(inputText, operationName, null, startNanos, content.length());
+            }
+            return failure(outFlowVars, result.getValidationErrors(), errorResponse);
         }
 
+        outFlowVars.put(COST_FIELDS_VAR, cost.getFields());
+        outFlowVars.put(COST_DEPTH_VAR, cost.getDepth());
 
-        String outputText = AstPrinter.printAst(result.getDocument());
+        Map<String, Document> backends = schema.getValue0().hasBackends() ? BackendRouter.split(result.getDocument(), schema.getValue0()) : null;
+        if (backends != null && backends.size() > 1 && (!splitBackends || isMutation(result.getDocument()))) {
+            if (traffic && operationStats != null) {
+                recordOperation(inputText, operationName, null, startNanos, content.length());
+            }
+            String backendNames = String.join(", ", backends.keySet());
+            if (isMutation(result.getDocument())) {
+                //split mutations would lose the serial execution of their root fields, and could commit partially
+                return failure(outFlowVars, Collections.singletonList(ValidationError.newValidationError()
+                        .description("mutation spans multiple backends: " + backendNames + ", its root fields must all belong to one backend")
+                        .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_VALIDATION_FAILED))
+                        .build()), errorResponse);
+            }
+            return failure(outFlowVars, badRequest("operation spans multiple backends: " + backendNames), errorResponse);
+        }
+
+        //patch the client's query text when possible, otherwise re-print the whole document
+        String outputText = patch != null ? patch.apply() : null;
+        if (OUTPUT_MODE_MINIMIZE.equalsIgnoreCase(outputMode)) {
+            Document minimized = QueryMinimizer.minimize(result.getDocument(), schema.getValue0());
+            outputText = AstPrinter.printAstCompact(minimized);
+            removeUnusedVariables(json, minimized);
+        } else if (outputText == null) {
+            outputText = AstPrinter.printAst(result.getDocument());
+        }
         if (operationType.equals(OperationType.Mutation)) {
             json.put(MUTATION_FIELD, outputText);
         } else if (operationType.equals(OperationType.Query)) {
             json.put(QUERY_FIELD, outputText);
         }
 
+        if (backends != null) {
+            exportBackends(outFlowVars, backends, json, operationType, outputMode, schema.getValue0());
+        }
+
+        outFlowVars.put(CACHE_MAX_AGE_VAR, cachePolicy.getMaxAge());
+        outFlowVars.put(CACHE_SCOPE_VAR, cachePolicy.getScope());
+        if (cachePolicy.isCacheable()) {
+            outFlowVars.put(CACHE_KEY_VAR, CachePolicy.cacheKey(result.getDocument(), variables));
+        }
+
+        String signature = null;
+        if (traffic && operationStats != null) {
+            signature = recordOperation(inputText, operationName, result.getDocument(), startNanos, content.length());
+        } else if (operationStats != null) {
+            signature = operationSignature(inputText, operationName, result.getDocument());
+        }
+
         outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", false);
-        return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, gson.toJson(json));
+        String output = gson.toJson(json);
+        if (cacheOperation && operations != null) {
+            operations.put(content, outputMode, schema.getValue0(), outFlowVars, output, cost, signature);
+            outFlowVars.put(OPERATION_CACHED_VAR, false);
+        }
+        return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, output);
+    }
+
+    /**
+     * Sets the backend of the operation for the RouteRule, and when it spans several backends, the request body
+     * to send to each of them (graphql.backend.N.name and graphql.backend.N.content), printed the same way as
+     * the message content.
+     */
+    private static void exportBackends(Map<String, Object> outFlowVars, Map<String, Document> backends, Map<String, Object> json,
+                                       OperationType operationType, String outputMode, CompiledSchema compiledSchema) {
+        outFlowVars.put(BACKEND_COUNT_VAR, backends.size());
+        if (backends.size() == 1) {
+            outFlowVars.put(BACKEND_VAR, backends.keySet().iterator().next());
+            return;
+        }
+
+        int index = 0;
+        for (Map.Entry<String, Document> backend : backends.entrySet()) {
+            Map<String, Object> backendJson = new LinkedHashMap<>(json);
+            Object variables = json.get(VARIABLES_FIELD);
+            if (variables instanceof Map) {
+                backendJson.put(VARIABLES_FIELD, new LinkedHashMap<>(jsonObject(variables)));
+            }
+
+            Document document = backend.getValue();
+            String text;
+            if (OUTPUT_MODE_MINIMIZE.equalsIgnoreCase(outputMode)) {
+                document = QueryMinimizer.minimize(document, compiledSchema);
+                text = AstPrinter.printAstCompact(document);
+            } else {
+                text = AstPrinter.printAst(document);
+            }
+            backendJson.put(operationType.equals(OperationType.Mutation) ? MUTATION_FIELD : QUERY_FIELD, text);
+            removeUnusedVariables(backendJson, document);
+
+            outFlowVars.put(BACKEND_VAR + "." + index + ".name", backend.getKey());
+            outFlowVars.put(BACKEND_VAR + "." + index + ".content", gson.toJson(backendJson));
+            index++;
+        }
+    }
+
+    /**
+     * Rejects a valid request to relieve an overloaded policy. The error is retryable: the error response
+     * carries a Retry-After header, and the graphql.load.shed flow variable is set.
+     */
+    private Triplet<ExecutionResult, Map<String, Object>, String> shed(Map<String, Object> outFlowVars, boolean errorResponse) {
+        outFlowVars.put(LOAD_SHED_VAR, true);
+        List<ValidationError> errors = Collections.singletonList(ValidationError.newValidationError()
+                .description("service overloaded, retry later")
+                .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_OVERLOADED))
+                .build());
+        Triplet<ExecutionResult, Map<String, Object>, String> result = failure(outFlowVars, errors, errorResponse);
+        if (errorResponse) {
+            result.getValue0().addErrorResponseHeader("Retry-After", LOAD_SHED_RETRY_AFTER);
+        }
+        return result;
+    }
+
+    private static boolean isMutation(Document document) {
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            if (operation.getOperation() == OperationDefinition.Operation.MUTATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isShed(List<ValidationError> validationErrors) {
+        return validationErrors.size() == 1 && GraphQLErrorResponse.CODE_OVERLOADED.equals(GraphQLErrorResponse.getCode(validationErrors.get(0)));
+    }
+
+    private static boolean isBudgetExceeded(List<ValidationError> validationErrors) {
+        return validationErrors.size() == 1 && GraphQLErrorResponse.CODE_BUDGET_EXCEEDED.equals(GraphQLErrorResponse.getCode(validationErrors.get(0)));
+    }
+
+    /**
+     * @return the given JSON value if it is an object, else a new empty map
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> jsonObject(Object value) {
+        //JSON object keys are always strings
+        return value instanceof Map ? (Map<String, Object>) value : new HashMap<>();
+    }
+
+    /**
+     * Removes the values of variables no longer defined by the minimized operation.
+     */
+    private static void removeUnusedVariables(Map<String, Object> json, Document document) {
+        Object variables = json.get(VARIABLES_FIELD);
+        if (!(variables instanceof Map) || ((Map<?, ?>) variables).isEmpty()) {
+            return;
+        }
+
+        Set<String> defined = new HashSet<>();
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            for (VariableDefinition variableDefinition : operation.getVariableDefinitions()) {
+                defined.add(variableDefinition.getName());
+            }
+        }
+        ((Map<?, ?>) variables).keySet().retainAll(defined);
+    }
+
+    private Triplet<ExecutionResult, Map<String, Object>, String> failure(Map<String, Object> outFlowVars, List<ValidationError> validationErrors, boolean errorResponse) {
+        outFlowVars.put(CALLOUT_VAR_PREFIX + ".failed", true);
+        for (int i = 0; i < validationErrors.size(); i++) {
+            outFlowVars.put(CALLOUT_VAR_PREFIX + ".error." + i + ".message", validationErrors.get(i).getMessage());
+        }
+
+        if (!errorResponse) {
+            return new Triplet<>(ExecutionResult.SUCCESS, outFlowVars, null);
+        }
+
+        String body = GraphQLErrorResponse.toJson(validationErrors);
+        outFlowVars.put(ERROR_RESPONSE_VAR, body);
+        return new Triplet<>(errorResult(body), outFlowVars, null);
+    }
+
+    private static ExecutionResult errorResult(String body) {
+        ExecutionResult executionResult = new ExecutionResult(false, Action.ABORT);
+        executionResult.setErrorResponse(body);
+        executionResult.addErrorResponseHeader("Content-Type", GraphQLErrorResponse.CONTENT_TYPE);
+        return executionResult;
+    }
+
+    private static List<ValidationError> badRequest(String message) {
+        return Collections.singletonList(ValidationError.newValidationError()
+                .description(message)
+                .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_BAD_REQUEST))
+                .build());
     }
 
 
@@ -0,0 +1,76 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLDirective;
+
+import java.util.List;
+
+/**
+ * Bounds the number of characters of String arguments and input fields annotated with @length(min, max).
+ * Each element of a list is checked.
+ */
+public class LengthValidator extends ValueConstraintValidator<LengthValidator.Length> {
+
+    static final class Length {
+        final int min;
+        final int max;
+
+        Length(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    @Override
+    public Length compile(GraphQLDirective directive) {
+        GraphQLAppliedDirective applied = directive.toAppliedDirective();
+        Integer min = GraphQLUtil.getIntArgument(applied, "min");
+        Integer max = GraphQLUtil.getIntArgument(applied, "max");
+        return new Length(min == null ? 0 : min, max == null ? Integer.MAX_VALUE : max);
+    }
+
+    @Override
+    String validate(Object value, Length length) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                String error = element == null ? null : validate(element, length);
+                if (error != null) {
+                    return error;
+                }
+            }
+            return null;
+        }
+        if (!(value instanceof String)) {
+            return null;
+        }
+
+        String string = (String) value;
+        int characters = string.codePointCount(0, string.length());
+        if (characters < length.min) {
+            return "is shorter than " + length.min + " characters";
+        }
+        if (characters > length.max) {
+            return "is longer than " + length.max + " characters";
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "length";
+    }
+}
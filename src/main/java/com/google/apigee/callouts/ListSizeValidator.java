@@ -0,0 +1,140 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.GraphQLDirectiveValidator;
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import com.google.apigee.callouts.graphql.GraphQLVisitorContext;
+import graphql.language.*;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLDirective;
+import graphql.schema.GraphQLFieldDefinition;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounds the size of list fields annotated with the @listSize directive.
+ * <p>
+ * A slicing argument (e.g. first, limit) above the maximum is either rejected, or replaced with the maximum
+ * when clamp is true, whether it is a literal or a variable. When the request has none of the slicing arguments, the first one declared by the field
+ * is added with the default size, so the backend never returns the whole collection. A slicing variable that is null
+ * (or not set, without a default value) counts as a missing argument, and is replaced with the default size.
+ */
+public class ListSizeValidator implements GraphQLDirectiveValidator {
+
+    @Override
+    public Field validateOutputField(Field field, GraphQLDirective directive, GraphQLVisitorContext ctx) {
+        GraphQLAppliedDirective applied = directive.toAppliedDirective();
+        Integer max = GraphQLUtil.getIntArgument(applied, "max");
+        Integer defaultSize = GraphQLUtil.getIntArgument(applied, "default");
+        List<String> slicingArguments = GraphQLUtil.getStringListArgument(applied, "slicingArguments");
+        boolean clamp = GraphQLUtil.getBooleanArgument(applied, "clamp");
+
+        List<Argument> arguments = field.getArguments();
+        List<Argument> newArguments = null;
+        boolean sliced = false;
+        for (int i = 0; i < arguments.size(); i++) {
+            Argument argument = arguments.get(i);
+            if (!slicingArguments.contains(argument.getName())) {
+                continue;
+            }
+
+            Value<?> value = argument.getValue();
+            Object size;
+            boolean overMax;
+            if (value instanceof VariableReference) {
+                size = ctx.getVariable(((VariableReference) value).getName());
+                if (!(size instanceof Number)) {
+                    continue;
+                }
+                overMax = max != null && ((Number) size).doubleValue() > max;
+            } else if (value instanceof IntValue) {
+                size = ((IntValue) value).getValue();
+                overMax = max != null && ((BigInteger) size).compareTo(BigInteger.valueOf(max)) > 0;
+            } else {
+                continue;
+            }
+            sliced = true;
+
+            if (!overMax) {
+                continue;
+            }
+
+            if (!clamp) {
+                ctx.addError(error(field, argument, size, max));
+                continue;
+            }
+
+            if (value instanceof VariableReference) {
+                //the variable may not be used anywhere else
+                ctx.replacedVariable();
+            }
+            if (newArguments == null) {
+                newArguments = new ArrayList<>(arguments);
+            }
+            newArguments.set(i, argument.transform(builder -> builder.value(IntValue.of(max))));
+        }
+
+        if (!sliced && defaultSize != null) {
+            newArguments = withDefaultSize(new ArrayList<>(arguments), slicingArguments, defaultSize, ctx);
+        }
+
+        if (newArguments == null) {
+            return field;
+        }
+
+        List<Argument> forwardedArguments = newArguments;
+        return field.transform(builder -> builder.arguments(forwardedArguments));
+    }
+
+    /**
+     * Sets the first slicing argument declared by the field definition to the default size.
+     *
+     * @return the new arguments, or null if the field does not declare any of the slicing arguments
+     */
+    private static List<Argument> withDefaultSize(List<Argument> arguments, List<String> slicingArguments, int defaultSize, GraphQLVisitorContext ctx) {
+        GraphQLFieldDefinition definition = ctx.getFieldDefinitions()[0];
+        for (String name : slicingArguments) {
+            if (definition.getArgument(name) == null) {
+                continue;
+            }
+
+            Argument argument = new Argument(name, IntValue.of(defaultSize));
+            for (int i = 0; i < arguments.size(); i++) {
+                if (arguments.get(i).getName().equals(name)) {
+                    if (arguments.get(i).getValue() instanceof VariableReference) {
+                        //the null variable may not be used anywhere else
+                        ctx.replacedVariable();
+                    }
+                    arguments.set(i, argument);
+                    return arguments;
+                }
+            }
+            arguments.add(argument);
+            return arguments;
+        }
+        return null;
+    }
+
+    private static String error(Field field, Argument argument, Object size, int max) {
+        return "argument \"" + argument.getName() + "\" of field \"" + field.getName() + "\" with value " + size + " exceeds the maximum list size of " + max;
+    }
+
+    public String getName() {
+        return "listSize";
+    }
+}
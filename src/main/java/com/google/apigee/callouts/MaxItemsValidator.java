@@ -0,0 +1,54 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import graphql.schema.GraphQLDirective;
+
+import java.util.List;
+
+/**
+ * Bounds the number of items of list arguments and input fields annotated with @maxItems(max).
+ */
+public class MaxItemsValidator extends ValueConstraintValidator<MaxItemsValidator.MaxItems> {
+
+    static final class MaxItems {
+        final int max;
+
+        MaxItems(int max) {
+            this.max = max;
+        }
+    }
+
+    @Override
+    public MaxItems compile(GraphQLDirective directive) {
+        Integer max = GraphQLUtil.getIntArgument(directive.toAppliedDirective(), "max");
+        return new MaxItems(max == null ? Integer.MAX_VALUE : max);
+    }
+
+    @Override
+    String validate(Object value, MaxItems maxItems) {
+        //a single value is coerced into a list of one item
+        int items = value instanceof List ? ((List<?>) value).size() : 1;
+        if (items > maxItems.max) {
+            return "has " + items + " items, more than the maximum of " + maxItems.max;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "maxItems";
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import graphql.Directives;
+import graphql.schema.GraphQLDirective;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that values of input object types annotated with @oneOf set exactly one field to a non-null value.
+ * <p>
+ * graphql-java only enforces @oneOf when it coerces values for execution, so the standard validation done by
+ * this policy lets literal values through. Values given as a whole through a variable are already checked when
+ * the variables are coerced, and values nested in a variable are checked against its coerced value.
+ */
+public class OneOfValidator extends ValueConstraintValidator<Boolean> {
+
+    @Override
+    public Boolean compile(GraphQLDirective directive) {
+        return Boolean.TRUE;
+    }
+
+    @Override
+    String validate(Object value, Boolean constraint) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                String error = element == null ? null : validate(element, constraint);
+                if (error != null) {
+                    return error;
+                }
+            }
+            return null;
+        }
+        if (!(value instanceof Map)) {
+            return null;
+        }
+
+        int set = 0;
+        for (Object fieldValue : ((Map<?, ?>) value).values()) {
+            if (fieldValue != null) {
+                set++;
+            }
+        }
+        if (set != 1) {
+            return "must set exactly one field, but sets " + set;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return Directives.OneOfDirective.getName();
+    }
+}
@@ -17,30 +17,111 @@ package com.google.apigee.callouts;
 import com.google.apigee.callouts.graphql.GraphQLDirectiveValidator;
 import com.google.apigee.callouts.graphql.GraphQLUtil;
 import com.google.apigee.callouts.graphql.GraphQLValidationException;
+import com.google.apigee.callouts.graphql.GraphQLVisitorContext;
 import graphql.ExecutionInput;
 import graphql.language.ObjectField;
 import graphql.schema.GraphQLDirective;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
 public class PatternValidator implements GraphQLDirectiveValidator {
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
 
     @Override
     public ObjectField validateInputField(ObjectField field, GraphQLDirective directive, ExecutionInput input) throws GraphQLValidationException {
+        String error = validate(field, directive);
+        if (error != null) {
+            throw new GraphQLValidationException(error);
+        }
+        return field;
+    }
+
+    @Override
+    public ObjectField validateInputField(ObjectField field, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        String error = validate(field, directive, ctx);
+        if (error != null) {
+            ctx.addError(error);
+        }
+        return field;
+    }
+
+    @Override
+    public void validateInputFieldValue(String name, Object value, GraphQLDirective directive, GraphQLVisitorContext ctx) {
+        String error = validate(name, value instanceof String ? (String) value : null, directive, ctx);
+        if (error != null) {
+            ctx.addError(error);
+        }
+    }
+
+    private String validate(ObjectField field, GraphQLDirective directive) {
+        return validate(field, directive, null);
+    }
+
+    private String validate(ObjectField field, GraphQLDirective directive, GraphQLVisitorContext ctx) {
+        return validate(field.getName(), GraphQLUtil.getStringValue(field), directive, ctx);
+    }
+
+    private String validate(String name, String value, GraphQLDirective directive, GraphQLVisitorContext ctx) {
         String regexp = GraphQLUtil.getStringArgument(directive, "regexp");
-        String value = GraphQLUtil.getStringValue(field);
 
         if (value == null) {
-            throw new GraphQLValidationException("field " + field.getName() + " is required");
+            return "field " + name + " is required";
         }
 
-        if (!value.matches(regexp)) {
-            throw new GraphQLValidationException("field \"" + field.getName() + "\" with value \"" + value + "\" does not match pattern " + regexp);
+        Pattern pattern = patterns.computeIfAbsent(regexp, Pattern::compile);
+        //a backtracking pattern can take very long on some inputs, check the budget while matching
+        CharSequence input = ctx != null && ctx.getBudget().getTimeoutMillis() > 0 ? new BudgetedCharSequence(value, ctx) : value;
+        if (!pattern.matcher(input).matches()) {
+            return "field \"" + name + "\" with value \"" + value + "\" does not match pattern " + regexp;
         }
 
-        return field;
+        return null;
     }
 
 
     public String getName() {
         return "pattern";
     }
+
+    /**
+     * Checks the request's validation budget every few thousand characters read by the matcher.
+     */
+    private static final class BudgetedCharSequence implements CharSequence {
+        private static final int CHECK_INTERVAL = 4096;
+
+        private final String value;
+        private final GraphQLVisitorContext ctx;
+        private int reads;
+
+        BudgetedCharSequence(String value, GraphQLVisitorContext ctx) {
+            this.value = value;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public int length() {
+            return value.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads == CHECK_INTERVAL) {
+                reads = 0;
+                ctx.checkBudget();
+            }
+            return value.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return value.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLDirective;
+
+import java.util.List;
+
+/**
+ * Bounds numeric arguments and input fields annotated with @range(min, max), both inclusive.
+ * Each element of a list is checked.
+ */
+public class RangeValidator extends ValueConstraintValidator<RangeValidator.Range> {
+
+    static final class Range {
+        final double min;
+        final double max;
+
+        Range(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    @Override
+    public Range compile(GraphQLDirective directive) {
+        GraphQLAppliedDirective applied = directive.toAppliedDirective();
+        Double min = GraphQLUtil.getNumberArgument(applied, "min");
+        Double max = GraphQLUtil.getNumberArgument(applied, "max");
+        return new Range(min == null ? Double.NEGATIVE_INFINITY : min, max == null ? Double.POSITIVE_INFINITY : max);
+    }
+
+    @Override
+    String validate(Object value, Range range) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                String error = element == null ? null : validate(element, range);
+                if (error != null) {
+                    return error;
+                }
+            }
+            return null;
+        }
+        if (!(value instanceof Number)) {
+            return null;
+        }
+
+        double number = ((Number) value).doubleValue();
+        if (number < range.min) {
+            return "with value " + value + " is less than the minimum of " + format(range.min);
+        }
+        if (number > range.max) {
+            return "with value " + value + " is greater than the maximum of " + format(range.max);
+        }
+        return null;
+    }
+
+    private static String format(double bound) {
+        return bound == Math.rint(bound) ? String.valueOf((long) bound) : String.valueOf(bound);
+    }
+
+    public String getName() {
+        return "range";
+    }
+}
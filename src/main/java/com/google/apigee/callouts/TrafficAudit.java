@@ -0,0 +1,321 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.ValidationBudget;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import graphql.validation.ValidationError;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a JSONL log of request bodies through {@link GraphQLCallout#validateGraphQLMessage} offline, to see
+ * what the policy would do to real traffic before deploying a schema or configuration change.
+ * <p>
+ * A line is either the request body itself (e.g. {"query": "..."}) or an object with a "body" string holding
+ * the request body. The log is read through memory-mapped regions, and batches of lines are validated in
+ * parallel on all cores. The summary reports how many requests pass and fail, the error codes of the rejected
+ * requests, how many accepted requests are rewritten, and the throughput. A request the policy throws on is counted
+ * as failed with {@link #INTERNAL_ERROR}, and the audit goes on with the next one.
+ * <p>
+ * Usage: TrafficAudit --schema file.graphql [--output-mode print|patch|minimize] [--threads N] [--property name=value ...] requests.jsonl
+ */
+public class TrafficAudit {
+    public static final String INVALID_JSON = "INVALID_JSON";
+    public static final String UNKNOWN_ERROR = "UNKNOWN";
+    public static final String INTERNAL_ERROR = "INTERNAL_ERROR";
+
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+    private static final int BATCH_SIZE = 256;
+
+    public static class Config {
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public String outputMode = GraphQLCallout.OUTPUT_MODE_PATCH;
+        public Map<String, String> properties = new HashMap<>();
+    }
+
+    public static class Report {
+        public int threads;
+        public long bytes;
+        public long elapsedNanos;
+        public final LongAdder requests = new LongAdder();
+        public final LongAdder passed = new LongAdder();
+        public final LongAdder failed = new LongAdder();
+        public final LongAdder changed = new LongAdder();
+        public final Map<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+
+        public double throughput() {
+            return requests.sum() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return the number of rejected requests per error code, a request counts once per distinct code
+         */
+        public Map<String, Long> getErrorCodes() {
+            Map<String, Long> counts = new TreeMap<>();
+            errorCodes.forEach((code, count) -> counts.put(code, count.sum()));
+            return counts;
+        }
+
+        void addErrorCode(String code) {
+            errorCodes.computeIfAbsent(code, c -> new LongAdder()).increment();
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("threads:           %d%n", threads));
+            sb.append(String.format("requests:          %d%n", requests.sum()));
+            sb.append(String.format("passed:            %d%n", passed.sum()));
+            sb.append(String.format("failed:            %d%n", failed.sum()));
+            for (Map.Entry<String, Long> code : getErrorCodes().entrySet()) {
+                sb.append(String.format("  %-31s %d%n", code.getKey(), code.getValue()));
+            }
+            sb.append(String.format("rewritten:         %d%n", changed.sum()));
+            sb.append(String.format("elapsed:           %.1f ms%n", elapsedNanos / 1e6));
+            sb.append(String.format("throughput:        %.1f req/s, %.1f MB/s%n", throughput(), bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9)));
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        String schemaPath = null;
+        String logPath = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--schema":
+                    schemaPath = args[++i];
+                    break;
+                case "--output-mode":
+                    config.outputMode = args[++i];
+                    break;
+                case "--threads":
+                    config.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--property":
+                    String[] property = args[++i].split("=", 2);
+                    config.properties.put(property[0], property.length > 1 ? property[1] : "");
+                    break;
+                default:
+                    logPath = args[i];
+            }
+        }
+
+        if (schemaPath == null || logPath == null) {
+            System.err.println("usage: TrafficAudit --schema file.graphql [--output-mode print|patch|minimize] [--threads N] [--property name=value ...] requests.jsonl");
+            System.exit(2);
+        }
+
+        String schemaText = new String(Files.readAllBytes(Paths.get(schemaPath)), StandardCharsets.UTF_8);
+        Report report = run(config, Paths.get(logPath), schemaText);
+        System.out.print(report.format());
+    }
+
+    public static Report run(Config config, Path log, String schemaText) throws IOException, InterruptedException {
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>(config.properties));
+        Pair<CompiledSchema, List<ValidationError>> schema = new GraphQLProcessor().compileSchema(schemaText);
+
+        Report report = new Report();
+        report.threads = config.threads;
+
+        //a bounded queue, with the reader running batches itself when it is full, keeps memory flat for large logs
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.threads, config.threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long begin = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            long size = channel.size();
+            report.bytes = size;
+
+            long position = 0;
+            int regionSize = REGION_SIZE;
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            while (position < size) {
+                long length = Math.min(regionSize, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+
+                //only complete lines are taken from a region, the remainder starts the next region
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (region.get(i) == '\n') {
+                        addLine(region, lineStart, i, batch);
+                        lineStart = i + 1;
+                        if (batch.size() == BATCH_SIZE) {
+                            submit(executor, callout, schema, config, batch, report);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+                if (last) {
+                    addLine(region, lineStart, (int) length, batch);
+                    lineStart = (int) length;
+                } else if (lineStart == 0) {
+                    //a single line longer than the region, map a larger one
+                    regionSize = (int) Math.min(Integer.MAX_VALUE, regionSize * 2L);
+                    continue;
+                }
+                position += lineStart;
+            }
+            if (!batch.isEmpty()) {
+                submit(executor, callout, schema, config, batch, report);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        report.elapsedNanos = System.nanoTime() - begin;
+        return report;
+    }
+
+    private static void addLine(MappedByteBuffer region, int start, int end, List<String> batch) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = region.get(start + i);
+        }
+        String line = new String(bytes, StandardCharsets.UTF_8).trim();
+        if (!line.isEmpty()) {
+            batch.add(line);
+        }
+    }
+
+    private static void submit(ThreadPoolExecutor executor, GraphQLCallout callout, Pair<CompiledSchema, List<ValidationError>> schema,
+                               Config config, List<String> batch, Report report) {
+        executor.execute(() -> {
+            for (String line : batch) {
+                audit(callout, schema, config, line, report);
+            }
+        });
+    }
+
+    static void audit(GraphQLCallout callout, Pair<CompiledSchema, List<ValidationError>> schema, Config config, String line, Report report) {
+        report.requests.increment();
+
+        JsonObject request;
+        try {
+            request = requestBody(JsonParser.parseString(line));
+        } catch (JsonParseException ex) {
+            request = null;
+        }
+        if (request == null) {
+            report.failed.increment();
+            report.addErrorCode(INVALID_JSON);
+            return;
+        }
+
+        Triplet<ExecutionResult, Map<String, Object>, String> result;
+        boolean rewritten;
+        try {
+            result = callout.validateGraphQLMessage(new GraphQLProcessor(), request.toString(), schema, config.outputMode, true,
+                    ValidationBudget.UNLIMITED, false);
+            rewritten = result.getValue2() != null && isRewritten(request, JsonParser.parseString(result.getValue2()).getAsJsonObject());
+        } catch (RuntimeException ex) {
+            //a bug the request triggers in the policy (or a custom validator) must not end the audit
+            report.failed.increment();
+            report.addErrorCode(INTERNAL_ERROR);
+            return;
+        }
+
+        if (Boolean.TRUE.equals(result.getValue1().get(GraphQLCallout.CALLOUT_VAR_PREFIX + ".failed"))) {
+            report.failed.increment();
+            for (String code : errorCodes(result.getValue1().get(GraphQLCallout.ERROR_RESPONSE_VAR))) {
+                report.addErrorCode(code);
+            }
+            return;
+        }
+
+        report.passed.increment();
+        if (rewritten) {
+            report.changed.increment();
+        }
+    }
+
+    /**
+     * @return the request body held by the log line, or null if the line is not a JSON object
+     */
+    static JsonObject requestBody(JsonElement element) {
+        if (!element.isJsonObject()) {
+            return null;
+        }
+        JsonObject object = element.getAsJsonObject();
+        JsonElement body = object.get("body");
+        if (body != null && body.isJsonPrimitive() && body.getAsJsonPrimitive().isString()
+                && !object.has(GraphQLCallout.QUERY_FIELD) && !object.has(GraphQLCallout.MUTATION_FIELD)) {
+            return requestBody(JsonParser.parseString(body.getAsString()));
+        }
+        return object;
+    }
+
+    private static List<String> errorCodes(Object errorResponse) {
+        List<String> codes = new ArrayList<>();
+        if (!(errorResponse instanceof String)) {
+            codes.add(UNKNOWN_ERROR);
+            return codes;
+        }
+        JsonArray errors = JsonParser.parseString((String) errorResponse).getAsJsonObject().getAsJsonArray("errors");
+        for (JsonElement error : errors) {
+            JsonObject extensions = error.getAsJsonObject().getAsJsonObject("extensions");
+            String code = extensions != null && extensions.has("code") ? extensions.get("code").getAsString() : UNKNOWN_ERROR;
+            if (!codes.contains(code)) {
+                codes.add(code);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @return true if the policy changed the operation text, or dropped variables (numbers are not compared,
+     * since they do not keep their exact form through the policy's JSON round trip)
+     */
+    private static boolean isRewritten(JsonObject request, JsonObject output) {
+        for (String field : new String[]{GraphQLCallout.QUERY_FIELD, GraphQLCallout.MUTATION_FIELD}) {
+            JsonElement before = request.get(field);
+            if (before != null && before.isJsonPrimitive() && !before.equals(output.get(field))) {
+                return true;
+            }
+        }
+
+        JsonElement before = request.get(GraphQLCallout.VARIABLES_FIELD);
+        JsonElement after = output.get(GraphQLCallout.VARIABLES_FIELD);
+        return before != null && before.isJsonObject() && after != null && after.isJsonObject()
+                && !before.getAsJsonObject().keySet().equals(after.getAsJsonObject().keySet());
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.CompiledDirectiveValidator;
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import com.google.apigee.callouts.graphql.GraphQLVisitorContext;
+import graphql.language.Argument;
+import graphql.language.ObjectField;
+import graphql.language.Value;
+
+/**
+ * Checks the value of an argument or input field against the compiled constraint of a directive.
+ * Variable references are checked against the coerced values of the request's variables, and so are the fields
+ * of input objects given through a variable. Null or missing values are not checked, requiring a value is up to
+ * the type system.
+ */
+abstract class ValueConstraintValidator<T> implements CompiledDirectiveValidator<T> {
+
+    @Override
+    public Argument checkArgument(Argument argument, T constraint, GraphQLVisitorContext ctx) {
+        check("argument", argument.getName(), argument.getValue(), constraint, ctx);
+        return argument;
+    }
+
+    @Override
+    public ObjectField checkInputField(ObjectField field, T constraint, GraphQLVisitorContext ctx) {
+        check("field", field.getName(), field.getValue(), constraint, ctx);
+        return field;
+    }
+
+    @Override
+    public void checkInputFieldValue(String name, Object value, T constraint, GraphQLVisitorContext ctx) {
+        check("field", name, value, constraint, ctx);
+    }
+
+    private void check(String kind, String name, Value<?> value, T constraint, GraphQLVisitorContext ctx) {
+        check(kind, name, GraphQLUtil.getValue(value, ctx.getVariables()), constraint, ctx);
+    }
+
+    private void check(String kind, String name, Object javaValue, T constraint, GraphQLVisitorContext ctx) {
+        if (javaValue == null) {
+            return;
+        }
+
+        String error = validate(javaValue, constraint);
+        if (error != null) {
+            ctx.addError(kind + " \"" + name + "\" " + error);
+        }
+    }
+
+    /**
+     * @param value String, BigDecimal, Boolean, List or Map, or for variables, their value coerced to their type
+     *              (e.g. Integer or Double)
+     * @return what is wrong with the value (to follow the argument or field name), or null if it is valid
+     */
+    abstract String validate(Object value, T constraint);
+}
@@ -0,0 +1,138 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.SyntheticQueries;
+import com.google.apigee.callouts.graphql.ValidationBudget;
+import com.google.gson.Gson;
+import graphql.validation.ValidationError;
+import org.javatuples.Pair;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a corpus of requests through {@link GraphQLCallout#validate} on a background thread,
+ * so that the hot methods are JIT-compiled before live traffic depends on them. The policy's caches and
+ * load shedding are bypassed, so every replay does the full validation and none is counted as traffic.
+ * <p>
+ * Requests are replayed in rounds, until a round completes without the JIT compiler doing any more work
+ * (when the JVM reports compilation time), or the maximum number of iterations is reached. Warm-up requests
+ * run against a private copy of the compiled schema, so they are not counted in the field usage.
+ */
+class WarmUp implements Runnable {
+    static final int SYNTHETIC_QUERY_DEPTH = 3;
+
+    private static final int ROUND_SIZE = 250;
+    private static final int QUIET_ROUNDS = 2;
+    private static final String[] OUTPUT_MODES = {GraphQLCallout.OUTPUT_MODE_PRINT, GraphQLCallout.OUTPUT_MODE_PATCH, GraphQLCallout.OUTPUT_MODE_MINIMIZE};
+
+    private static final Gson gson = new Gson();
+
+    private final GraphQLCallout callout;
+    private final Pair<CompiledSchema, List<ValidationError>> schema;
+    private final List<String> corpus;
+    private final long maxIterations;
+
+    private volatile boolean complete;
+    private volatile long iterations;
+
+    WarmUp(GraphQLCallout callout, CompiledSchema compiledSchema, List<String> corpus, long maxIterations) {
+        this.callout = callout;
+        this.schema = new Pair<>(CompiledSchema.compile(compiledSchema.getSchema()), null);
+        this.corpus = corpus != null && !corpus.isEmpty() ? corpus : syntheticCorpus(compiledSchema);
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @return one request body per root field of the schema
+     */
+    static List<String> syntheticCorpus(CompiledSchema compiledSchema) {
+        List<String> operations = SyntheticQueries.generate(compiledSchema, SYNTHETIC_QUERY_DEPTH);
+        for (int i = 0; i < operations.size(); i++) {
+            String operation = operations.get(i);
+            String field = operation.startsWith("mutation") ? GraphQLCallout.MUTATION_FIELD : GraphQLCallout.QUERY_FIELD;
+            operations.set(i, gson.toJson(Collections.singletonMap(field, operation)));
+        }
+        return operations;
+    }
+
+    /**
+     * Starts the warm-up on a low priority daemon thread.
+     *
+     * @return false if the thread could not be started
+     */
+    boolean start() {
+        try {
+            Thread thread = new Thread(this, "graphql-warm-up");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+            return true;
+        } catch (SecurityException ex) {
+            complete = true;
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (corpus.isEmpty()) {
+                return;
+            }
+
+            CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+            boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+            long compilationMillis = monitored ? compiler.getTotalCompilationTime() : 0;
+            int quietRounds = 0;
+
+            long count = 0;
+            while (count < maxIterations && !Thread.currentThread().isInterrupted()) {
+                for (int i = 0; i < ROUND_SIZE && count < maxIterations; i++, count++) {
+                    String content = corpus.get((int) (count % corpus.size()));
+                    String outputMode = OUTPUT_MODES[(int) ((count / corpus.size()) % OUTPUT_MODES.length)];
+                    callout.validate(new GraphQLProcessor(), content, schema, outputMode, false, ValidationBudget.UNLIMITED, false, false, false);
+                }
+                iterations = count;
+
+                if (monitored) {
+                    long newCompilationMillis = compiler.getTotalCompilationTime();
+                    quietRounds = newCompilationMillis == compilationMillis ? quietRounds + 1 : 0;
+                    compilationMillis = newCompilationMillis;
+                    if (quietRounds >= QUIET_ROUNDS) {
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            //warm-up is best effort, live requests report their own errors
+        } finally {
+            complete = true;
+        }
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    long getIterations() {
+        return iterations;
+    }
+}
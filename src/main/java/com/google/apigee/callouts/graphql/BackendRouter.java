@@ -0,0 +1,191 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.graphql.CompiledSchema.*;
+import graphql.language.*;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLDirectiveContainer;
+import graphql.schema.GraphQLFieldDefinition;
+
+import java.util.*;
+
+/**
+ * Maps the root fields of an operation to the backends that serve them, using the @backend(name: "...")
+ * directive of the root fields, or of the root type for the fields without one.
+ * <p>
+ * An operation whose root fields belong to several backends is split into one document per backend, each
+ * with the root fields it owns, the fragments they spread and the variables they use. Root fragments that
+ * span several backends are split as well (spreads are inlined for that purpose). Meta fields (e.g. __typename)
+ * do not belong to any backend and go along with the first one.
+ * <p>
+ * Root fields without any @backend are routed to {@link #DEFAULT_BACKEND}, the proxy's default target.
+ * <p>
+ * Only queries should be forwarded split: the root fields of a mutation run one after the other, and a mutation
+ * split between backends would run them concurrently, and could commit on one backend and fail on another.
+ */
+public class BackendRouter {
+    public static final String BACKEND_DIRECTIVE = "backend";
+    public static final String DEFAULT_BACKEND = "";
+
+    private final CompositeTypeInfo rootType;
+    private final Map<String, FragmentDefinition> fragments;
+
+    private BackendRouter(CompositeTypeInfo rootType, Map<String, FragmentDefinition> fragments) {
+        this.rootType = rootType;
+        this.fragments = fragments;
+    }
+
+    /**
+     * @return the backend named by the @backend directive of the root field, or of its root type, or null
+     */
+    static String resolveBackend(FieldInfo field) {
+        for (GraphQLFieldDefinition definition : field.getDefinitions()) {
+            String backend = getBackendName(definition.getAppliedDirective(BACKEND_DIRECTIVE));
+            if (backend != null) {
+                return backend;
+            }
+        }
+        return getBackendName(((GraphQLDirectiveContainer) field.getParent().getType()).getAppliedDirective(BACKEND_DIRECTIVE));
+    }
+
+    private static String getBackendName(GraphQLAppliedDirective directive) {
+        return directive == null ? null : GraphQLUtil.getStringArgument(directive, "name");
+    }
+
+    /**
+     * @param document the document as forwarded, with a single operation, as returned by {@link GraphQLProcessor#parseAndValidate}
+     * @return one document per backend, in the order the backends are first selected. A document whose
+     * root fields all belong to one backend is returned as-is
+     */
+    public static Map<String, Document> split(Document document, CompiledSchema compiledSchema) {
+        List<OperationDefinition> operations = document.getDefinitionsOfType(OperationDefinition.class);
+        CompositeTypeInfo rootType = operations.size() == 1 ? compiledSchema.getRootType(operations.get(0).getOperation()) : null;
+        if (rootType == null) {
+            return Collections.singletonMap(DEFAULT_BACKEND, document);
+        }
+
+        OperationDefinition operation = operations.get(0);
+        BackendRouter router = new BackendRouter(rootType, GraphQLUtil.getFragments(document));
+        Map<String, List<Selection<?>>> partitions = router.partition(operation.getSelectionSet());
+
+        //meta fields go along with the first backend
+        List<Selection<?>> unrouted = partitions.remove(null);
+        if (partitions.isEmpty()) {
+            return Collections.singletonMap(DEFAULT_BACKEND, document);
+        }
+        if (partitions.size() == 1) {
+            return Collections.singletonMap(partitions.keySet().iterator().next(), document);
+        }
+        if (unrouted != null) {
+            partitions.values().iterator().next().addAll(unrouted);
+        }
+
+        Map<String, Document> documents = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Selection<?>>> partition : partitions.entrySet()) {
+            documents.put(partition.getKey(), router.toDocument(document, operation, partition.getValue()));
+        }
+        return documents;
+    }
+
+    /**
+     * @return the selections of the root selection set grouped by backend, with the meta fields under null
+     */
+    private Map<String, List<Selection<?>>> partition(SelectionSet selectionSet) {
+        Map<String, List<Selection<?>>> partitions = new LinkedHashMap<>();
+        for (Selection<?> selection : selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                String name = ((Field) selection).getName();
+                FieldInfo fieldInfo = name.startsWith("__") ? null : rootType.getField(name);
+                String backend = fieldInfo == null ? null : fieldInfo.getBackend();
+                add(partitions, fieldInfo == null || backend != null ? backend : DEFAULT_BACKEND, selection);
+            } else if (selection instanceof InlineFragment) {
+                InlineFragment inlineFragment = (InlineFragment) selection;
+                splitFragment(partitions, inlineFragment, inlineFragment.getSelectionSet());
+            } else if (selection instanceof FragmentSpread) {
+                FragmentSpread spread = (FragmentSpread) selection;
+                FragmentDefinition fragment = fragments.get(spread.getName());
+                if (fragment == null) {
+                    add(partitions, null, selection);
+                    continue;
+                }
+                splitFragment(partitions, spread, fragment.getSelectionSet());
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Adds a root fragment as a whole if it belongs to one backend, otherwise one inline fragment per backend.
+     */
+    private void splitFragment(Map<String, List<Selection<?>>> partitions, Selection<?> fragment, SelectionSet selectionSet) {
+        Map<String, List<Selection<?>>> fragmentPartitions = partition(selectionSet);
+        if (fragmentPartitions.size() <= 1) {
+            add(partitions, fragmentPartitions.isEmpty() ? null : fragmentPartitions.keySet().iterator().next(), fragment);
+            return;
+        }
+
+        for (Map.Entry<String, List<Selection<?>>> fragmentPartition : fragmentPartitions.entrySet()) {
+            SelectionSet partitionSelectionSet = SelectionSet.newSelectionSet(GraphQLUtil.nodes(fragmentPartition.getValue())).build();
+            InlineFragment part;
+            if (fragment instanceof InlineFragment) {
+                part = ((InlineFragment) fragment).transform(builder -> builder.selectionSet(partitionSelectionSet));
+            } else {
+                FragmentDefinition definition = fragments.get(((FragmentSpread) fragment).getName());
+                part = InlineFragment.newInlineFragment()
+                        .typeCondition(definition.getTypeCondition())
+                        .directives(((FragmentSpread) fragment).getDirectives())
+                        .selectionSet(partitionSelectionSet)
+                        .build();
+            }
+            add(partitions, fragmentPartition.getKey(), part);
+        }
+    }
+
+    private static void add(Map<String, List<Selection<?>>> partitions, String backend, Selection<?> selection) {
+        partitions.computeIfAbsent(backend, key -> new ArrayList<>()).add(selection);
+    }
+
+    /**
+     * @return the document holding the given root selections, with the fragments and variables they use
+     */
+    private Document toDocument(Document document, OperationDefinition operation, List<Selection<?>> selections) {
+        SelectionSet selectionSet = SelectionSet.newSelectionSet(GraphQLUtil.nodes(selections)).build();
+        OperationDefinition partOperation = operation.transform(builder -> builder.selectionSet(selectionSet));
+
+        Set<String> usedFragments = GraphQLUtil.getUsedFragmentNames(document, partOperation);
+        List<Node<?>> usedNodes = new ArrayList<>();
+        usedNodes.add(selectionSet);
+        usedNodes.addAll(partOperation.getDirectives());
+        List<Definition<?>> definitions = new ArrayList<>();
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (definition instanceof FragmentDefinition && usedFragments.contains(((FragmentDefinition) definition).getName())) {
+                definitions.add(definition);
+                usedNodes.add(definition);
+            }
+        }
+
+        Set<String> usedVariables = QueryMinimizer.getVariableNames(usedNodes);
+        List<VariableDefinition> variableDefinitions = new ArrayList<>();
+        for (VariableDefinition variableDefinition : operation.getVariableDefinitions()) {
+            if (usedVariables.contains(variableDefinition.getName())) {
+                variableDefinitions.add(variableDefinition);
+            }
+        }
+
+        definitions.add(0, partOperation.transform(builder -> builder.variableDefinitions(variableDefinitions)));
+        return document.transform(builder -> builder.definitions(GraphQLUtil.nodes(definitions)));
+    }
+}
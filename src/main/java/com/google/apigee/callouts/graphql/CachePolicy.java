@@ -0,0 +1,194 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.gson.Gson;
+import graphql.language.AstPrinter;
+import graphql.language.Document;
+import graphql.language.EnumValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Value;
+import graphql.language.VariableDefinition;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLDirectiveContainer;
+import graphql.schema.GraphQLFieldDefinition;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Cache policy of an operation, computed from the @cacheControl hints of the fields it selects.
+ * <p>
+ * The operation's max age is the minimum max age of its fields, and its scope is PRIVATE if any field is.
+ * Following the usual @cacheControl semantics, a field with no hint of its own gets the hint of the
+ * type it returns; root fields and fields returning objects, interfaces or unions without any hint
+ * are not cacheable (max age 0), unless they set inheritMaxAge. Leaf fields without a hint do not restrict
+ * the policy. Mutations are never cacheable.
+ * <p>
+ * Hints are resolved once per field when the schema is compiled ({@link CompiledSchema.FieldInfo#getCacheMaxAge()}),
+ * so the traversal only takes a minimum per field.
+ */
+public class CachePolicy {
+    public static final String CACHE_CONTROL_DIRECTIVE = "cacheControl";
+    public static final String SCOPE_PUBLIC = "PUBLIC";
+    public static final String SCOPE_PRIVATE = "PRIVATE";
+
+    //max age of a field that does not restrict the policy
+    static final int NO_MAX_AGE = -1;
+
+    private static final Gson gson = new Gson();
+
+    private int maxAge;
+    private boolean privateScope;
+
+    public CachePolicy() {
+        reset();
+    }
+
+    void reset() {
+        this.maxAge = Integer.MAX_VALUE;
+        this.privateScope = false;
+    }
+
+    void restrict(int fieldMaxAge, boolean fieldPrivateScope) {
+        if (fieldMaxAge != NO_MAX_AGE && fieldMaxAge < maxAge) {
+            maxAge = fieldMaxAge;
+        }
+        privateScope |= fieldPrivateScope;
+    }
+
+    void copyFrom(CachePolicy other) {
+        this.maxAge = other.maxAge;
+        this.privateScope = other.privateScope;
+    }
+
+    void setUncacheable() {
+        this.maxAge = 0;
+    }
+
+    /**
+     * @return the max age in seconds, 0 if the operation must not be cached
+     */
+    public int getMaxAge() {
+        return maxAge == Integer.MAX_VALUE ? 0 : maxAge;
+    }
+
+    public String getScope() {
+        return privateScope ? SCOPE_PRIVATE : SCOPE_PUBLIC;
+    }
+
+    /**
+     * @return whether the response can be stored in a cache shared by all callers: PRIVATE responses never are
+     */
+    public boolean isCacheable() {
+        return getMaxAge() > 0 && !privateScope;
+    }
+
+    /**
+     * Resolves the hints of a field (and, for interface fields, of its implementations) into its max age and scope.
+     */
+    static void resolveHints(CompiledSchema.FieldInfo field, boolean rootField) {
+        int maxAge = NO_MAX_AGE;
+        boolean privateScope = false;
+
+        for (GraphQLFieldDefinition definition : field.getDefinitions()) {
+            GraphQLAppliedDirective fieldHint = definition.getAppliedDirective(CACHE_CONTROL_DIRECTIVE);
+            int definitionMaxAge = getMaxAge(fieldHint);
+            privateScope |= isPrivate(fieldHint);
+
+            boolean inherit = GraphQLUtil.getBooleanArgument(fieldHint, "inheritMaxAge");
+            if (definitionMaxAge == NO_MAX_AGE && !inherit && field.getCompositeType() != null) {
+                GraphQLAppliedDirective typeHint = ((GraphQLDirectiveContainer) field.getCompositeType().getType()).getAppliedDirective(CACHE_CONTROL_DIRECTIVE);
+                definitionMaxAge = getMaxAge(typeHint);
+                privateScope |= isPrivate(typeHint);
+            }
+            if (definitionMaxAge == NO_MAX_AGE && !inherit && (rootField || field.getCompositeType() != null)) {
+                definitionMaxAge = 0;
+            }
+
+            if (definitionMaxAge != NO_MAX_AGE && (maxAge == NO_MAX_AGE || definitionMaxAge < maxAge)) {
+                maxAge = definitionMaxAge;
+            }
+        }
+
+        field.cacheMaxAge = maxAge;
+        field.cachePrivate = privateScope;
+    }
+
+    private static int getMaxAge(GraphQLAppliedDirective hint) {
+        Integer maxAge = hint == null ? null : GraphQLUtil.getIntArgument(hint, "maxAge");
+        return maxAge == null ? NO_MAX_AGE : Math.max(maxAge, 0);
+    }
+
+    private static boolean isPrivate(GraphQLAppliedDirective hint) {
+        Value<?> scope = hint == null ? null : GraphQLUtil.getArgumentLiteral(hint, "scope");
+        return scope instanceof EnumValue && SCOPE_PRIVATE.equals(((EnumValue) scope).getName());
+    }
+
+    /**
+     * @param document  the document as forwarded, after validation
+     * @param variables the values of the variables defined by the operation, others are ignored
+     * @return a hex SHA-256 digest of the compactly printed document and its variables (with sorted keys),
+     * identical for requests that only differ in formatting, ignored content, or the order of their variables
+     */
+    public static String cacheKey(Document document, Map<String, Object> variables) {
+        Set<String> defined = new HashSet<>();
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            for (VariableDefinition variableDefinition : operation.getVariableDefinitions()) {
+                defined.add(variableDefinition.getName());
+            }
+        }
+        SortedMap<String, Object> keyVariables = new TreeMap<>();
+        if (variables != null) {
+            for (Map.Entry<String, Object> variable : variables.entrySet()) {
+                if (defined.contains(variable.getKey())) {
+                    keyVariables.put(variable.getKey(), sorted(GraphQLUtil.normalizeNumbers(variable.getValue())));
+                }
+            }
+        }
+
+        String text = AstPrinter.printAstCompact(document) + "\n" + gson.toJson(keyVariables);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Object sorted(Object value) {
+        if (value instanceof Map) {
+            SortedMap<String, Object> sortedMap = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sortedMap.put(String.valueOf(entry.getKey()), sorted(entry.getValue()));
+            }
+            return sortedMap;
+        }
+        if (value instanceof List) {
+            List<Object> sortedList = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                sortedList.add(sorted(element));
+            }
+            return sortedList;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.Argument;
+import graphql.language.Field;
+import graphql.language.ObjectField;
+import graphql.schema.GraphQLDirective;
+
+/**
+ * A directive validator whose directive arguments are compiled once per schema, when the validator pipeline is
+ * built, so requests only evaluate the compiled form.
+ * <p>
+ * Used outside a pipeline (e.g. added to a {@link com.google.apigee.callouts.DirectivesValidator} directly),
+ * the directive is compiled on every call.
+ *
+ * @param <T> the compiled form of the directive's arguments
+ */
+public interface CompiledDirectiveValidator<T> extends GraphQLDirectiveValidator {
+
+    T compile(GraphQLDirective directive);
+
+    default Field checkOutputField(Field field, T constraint, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return field;
+    }
+
+    default Argument checkArgument(Argument argument, T constraint, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return argument;
+    }
+
+    default ObjectField checkInputField(ObjectField field, T constraint, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return field;
+    }
+
+    default void checkInputFieldValue(String name, Object value, T constraint, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+    }
+
+    @Override
+    default Field validateOutputField(Field field, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return checkOutputField(field, compile(directive), ctx);
+    }
+
+    @Override
+    default Argument validateArgument(Argument argument, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return checkArgument(argument, compile(directive), ctx);
+    }
+
+    @Override
+    default ObjectField validateInputField(ObjectField field, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return checkInputField(field, compile(directive), ctx);
+    }
+
+    @Override
+    default void validateInputFieldValue(String name, Object value, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        checkInputFieldValue(name, value, compile(directive), ctx);
+    }
+}
@@ -0,0 +1,479 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.OperationDefinition;
+import graphql.schema.*;
+
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A {@link GraphQLSchema} together with lookup tables computed once per schema.
+ * <p>
+ * Every output field knows its unwrapped (no NonNull / List) result type, and every
+ * argument / input field knows its unwrapped input type, so the traversal does not need
+ * to inspect type wrappers or search definitions for each node of a request.
+ * <p>
+ * Every field of an object or interface type also gets a coordinate index, which addresses
+ * its usage counter in {@link #getUsage()}.
+ */
+public class CompiledSchema {
+    //schemas compiled by of(), weak keys (GraphQLSchema uses identity equality) so that dropped schemas are
+    //released, soft values since the compiled schema refers to its key
+    private static final Map<GraphQLSchema, SoftReference<CompiledSchema>> compiledSchemas = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final GraphQLSchema schema;
+    private final Map<String, CompositeTypeInfo> compositeTypes = new HashMap<>();
+    private final Map<String, InputObjectInfo> inputObjects = new HashMap<>();
+    private FieldUsage usage;
+    private boolean hasBackends;
+    private final Map<Object, Object> extensions = new ConcurrentHashMap<>();
+
+    private CompiledSchema(GraphQLSchema schema) {
+        this.schema = schema;
+    }
+
+    public static CompiledSchema compile(GraphQLSchema schema) {
+        CompiledSchema compiled = new CompiledSchema(schema);
+        compiled.build();
+        return compiled;
+    }
+
+    /**
+     * @return the schema compiled once per {@link GraphQLSchema} instance, for callers that only hold the schema
+     */
+    public static CompiledSchema of(GraphQLSchema schema) {
+        SoftReference<CompiledSchema> reference = compiledSchemas.get(schema);
+        CompiledSchema compiled = reference == null ? null : reference.get();
+        if (compiled == null) {
+            //concurrent callers may both compile, either result is fine
+            compiled = compile(schema);
+            compiledSchemas.put(schema, new SoftReference<>(compiled));
+        }
+        return compiled;
+    }
+
+    public GraphQLSchema getSchema() {
+        return schema;
+    }
+
+    public CompositeTypeInfo getCompositeType(String typeName) {
+        return compositeTypes.get(typeName);
+    }
+
+    public InputObjectInfo getInputObject(String typeName) {
+        return inputObjects.get(typeName);
+    }
+
+    public Collection<CompositeTypeInfo> getCompositeTypes() {
+        return compositeTypes.values();
+    }
+
+    /**
+     * @return the usage counters of every field coordinate of the schema
+     */
+    public FieldUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return true if any root field is routed to a backend with @backend, see {@link BackendRouter}
+     */
+    public boolean hasBackends() {
+        return hasBackends;
+    }
+
+    /**
+     * @return the value built once per schema for the given key (e.g. a validator pipeline compiled for this schema)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getExtension(Object key, Function<CompiledSchema, T> factory) {
+        Object value = extensions.get(key);
+        if (value == null) {
+            value = extensions.computeIfAbsent(key, k -> factory.apply(this));
+        }
+        return (T) value;
+    }
+
+    public CompositeTypeInfo getRootType(OperationDefinition.Operation operation) {
+        GraphQLObjectType rootType;
+        switch (operation) {
+            case MUTATION:
+                rootType = schema.getMutationType();
+                break;
+            case SUBSCRIPTION:
+                rootType = schema.getSubscriptionType();
+                break;
+            case QUERY:
+            default:
+                rootType = schema.getQueryType();
+        }
+
+        if (rootType == null) {
+            return null;
+        }
+
+        return compositeTypes.get(rootType.getName());
+    }
+
+    private void build() {
+        List<GraphQLNamedType> allTypes = schema.getAllTypesAsList();
+
+        //first pass, create the type entries so that fields can refer to them
+        for (GraphQLNamedType type : allTypes) {
+            if (type instanceof GraphQLCompositeType) {
+                compositeTypes.put(type.getName(), new CompositeTypeInfo((GraphQLCompositeType) type));
+            } else if (type instanceof GraphQLInputObjectType) {
+                inputObjects.put(type.getName(), new InputObjectInfo((GraphQLInputObjectType) type));
+            }
+        }
+
+        //second pass, resolve possible types, fields and arguments
+        for (CompositeTypeInfo typeInfo : compositeTypes.values()) {
+            GraphQLCompositeType type = typeInfo.type;
+            if (type instanceof GraphQLObjectType) {
+                typeInfo.possibleTypes.add(type.getName());
+            } else if (type instanceof GraphQLInterfaceType) {
+                for (GraphQLObjectType implementation : schema.getImplementations((GraphQLInterfaceType) type)) {
+                    typeInfo.possibleTypes.add(implementation.getName());
+                }
+            } else if (type instanceof GraphQLUnionType) {
+                for (GraphQLNamedOutputType member : ((GraphQLUnionType) type).getTypes()) {
+                    typeInfo.possibleTypes.add(member.getName());
+                }
+            }
+
+            if (!(type instanceof GraphQLFieldsContainer)) {
+                continue;
+            }
+
+            for (GraphQLFieldDefinition definition : ((GraphQLFieldsContainer) type).getFieldDefinitions()) {
+                typeInfo.fields.put(definition.getName(), buildField(typeInfo, definition));
+            }
+        }
+
+        for (InputObjectInfo inputInfo : inputObjects.values()) {
+            for (GraphQLInputObjectField definition : inputInfo.type.getFieldDefinitions()) {
+                inputInfo.fields.put(definition.getName(), new InputFieldInfo(definition, buildInputType(definition.getType())));
+            }
+        }
+
+        //third pass, number the field coordinates in schema order
+        List<String> coordinates = new ArrayList<>();
+        for (GraphQLNamedType type : allTypes) {
+            if (!(type instanceof GraphQLFieldsContainer)) {
+                continue;
+            }
+            CompositeTypeInfo typeInfo = compositeTypes.get(type.getName());
+            for (GraphQLFieldDefinition definition : ((GraphQLFieldsContainer) type).getFieldDefinitions()) {
+                typeInfo.fields.get(definition.getName()).index = coordinates.size();
+                coordinates.add(type.getName() + "." + definition.getName());
+            }
+        }
+        usage = new FieldUsage(coordinates.toArray(new String[0]));
+
+        //fourth pass, resolve the @cacheControl hints, root fields are not cacheable by default
+        Set<String> rootTypes = new HashSet<>();
+        for (GraphQLObjectType rootType : Arrays.asList(schema.getQueryType(), schema.getMutationType(), schema.getSubscriptionType())) {
+            if (rootType != null) {
+                rootTypes.add(rootType.getName());
+            }
+        }
+        for (CompositeTypeInfo typeInfo : compositeTypes.values()) {
+            for (FieldInfo fieldInfo : typeInfo.fields.values()) {
+                CachePolicy.resolveHints(fieldInfo, rootTypes.contains(typeInfo.getName()));
+            }
+        }
+
+        //fifth pass, resolve the @backend of the root fields
+        for (String rootTypeName : rootTypes) {
+            for (FieldInfo fieldInfo : compositeTypes.get(rootTypeName).fields.values()) {
+                fieldInfo.backend = BackendRouter.resolveBackend(fieldInfo);
+                hasBackends |= fieldInfo.backend != null;
+            }
+        }
+    }
+
+    private FieldInfo buildField(CompositeTypeInfo parent, GraphQLFieldDefinition definition) {
+        List<GraphQLFieldDefinition> definitions = new ArrayList<>();
+        definitions.add(definition);
+
+        //for abstract types, directives may live on the implementing object types
+        if (parent.type instanceof GraphQLInterfaceType) {
+            for (String typeName : parent.possibleTypes) {
+                GraphQLObjectType objectType = schema.getObjectType(typeName);
+                GraphQLFieldDefinition implementation = objectType == null ? null : objectType.getFieldDefinition(definition.getName());
+                if (implementation != null && !definitions.contains(implementation)) {
+                    definitions.add(implementation);
+                }
+            }
+        }
+
+        Map<String, ArgumentInfo> arguments = new HashMap<>();
+        for (GraphQLArgument argument : definition.getArguments()) {
+            arguments.put(argument.getName(), new ArgumentInfo(argument, buildInputType(argument.getType())));
+        }
+
+        GraphQLUnmodifiedType unwrapped = GraphQLTypeUtil.unwrapAll(definition.getType());
+        CompositeTypeInfo fieldType = compositeTypes.get(unwrapped.getName());
+
+        return new FieldInfo(parent, definition, definitions.toArray(new GraphQLFieldDefinition[0]), arguments, unwrapped, fieldType);
+    }
+
+    private InputTypeInfo buildInputType(GraphQLInputType type) {
+        GraphQLType unwrapped = GraphQLTypeUtil.unwrapNonNull(type);
+        if (unwrapped instanceof GraphQLList) {
+            return new InputTypeInfo(InputTypeInfo.LIST, type, unwrapped, buildInputType((GraphQLInputType) ((GraphQLList) unwrapped).getWrappedType()), null);
+        }
+
+        if (unwrapped instanceof GraphQLInputObjectType) {
+            return new InputTypeInfo(InputTypeInfo.INPUT_OBJECT, type, unwrapped, null, inputObjects.get(((GraphQLInputObjectType) unwrapped).getName()));
+        }
+
+        //Scalar, Enum
+        return new InputTypeInfo(InputTypeInfo.LEAF, type, unwrapped, null, null);
+    }
+
+    /**
+     * Object, interface or union type.
+     */
+    public static class CompositeTypeInfo {
+        private final GraphQLCompositeType type;
+        private final Map<String, FieldInfo> fields = new HashMap<>();
+        private final Set<String> possibleTypes = new LinkedHashSet<>();
+
+        CompositeTypeInfo(GraphQLCompositeType type) {
+            this.type = type;
+        }
+
+        public GraphQLCompositeType getType() {
+            return type;
+        }
+
+        public String getName() {
+            return type.getName();
+        }
+
+        public FieldInfo getField(String fieldName) {
+            return fields.get(fieldName);
+        }
+
+        public Collection<FieldInfo> getFields() {
+            return fields.values();
+        }
+
+        /**
+         * @return names of the object types a value of this type can be at runtime
+         */
+        public Set<String> getPossibleTypes() {
+            return possibleTypes;
+        }
+
+        public boolean isAbstract() {
+            return !(type instanceof GraphQLObjectType);
+        }
+    }
+
+    public static class FieldInfo {
+        private final CompositeTypeInfo parent;
+        private final GraphQLFieldDefinition definition;
+        private final GraphQLFieldDefinition[] definitions;
+        private final Map<String, ArgumentInfo> arguments;
+        private final GraphQLUnmodifiedType unwrappedType;
+        private final CompositeTypeInfo compositeType;
+        private int index;
+        int cacheMaxAge = CachePolicy.NO_MAX_AGE;
+        boolean cachePrivate;
+        String backend;
+
+        FieldInfo(CompositeTypeInfo parent, GraphQLFieldDefinition definition, GraphQLFieldDefinition[] definitions, Map<String, ArgumentInfo> arguments, GraphQLUnmodifiedType unwrappedType, CompositeTypeInfo compositeType) {
+            this.parent = parent;
+            this.definition = definition;
+            this.definitions = definitions;
+            this.arguments = arguments;
+            this.unwrappedType = unwrappedType;
+            this.compositeType = compositeType;
+        }
+
+        public CompositeTypeInfo getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the coordinate index of the field, unique within the schema
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public GraphQLFieldDefinition getDefinition() {
+            return definition;
+        }
+
+        /**
+         * @return the max age in seconds given by the @cacheControl hints of the field, or -1 if the field
+         * does not restrict the cache policy of the operation
+         */
+        public int getCacheMaxAge() {
+            return cacheMaxAge;
+        }
+
+        public boolean isCachePrivate() {
+            return cachePrivate;
+        }
+
+        /**
+         * @return the backend given by the @backend directive of a root field, or null
+         */
+        public String getBackend() {
+            return backend;
+        }
+
+        /**
+         * @return the field definition, followed by the matching field definitions of every
+         * possible object type when the parent type is an interface
+         */
+        public GraphQLFieldDefinition[] getDefinitions() {
+            return definitions;
+        }
+
+        public ArgumentInfo getArgument(String argumentName) {
+            return arguments.get(argumentName);
+        }
+
+        public GraphQLUnmodifiedType getUnwrappedType() {
+            return unwrappedType;
+        }
+
+        /**
+         * @return the unwrapped result type if it is an object, interface or union, null for leaf fields
+         */
+        public CompositeTypeInfo getCompositeType() {
+            return compositeType;
+        }
+    }
+
+    public static class ArgumentInfo {
+        private final GraphQLArgument definition;
+        private final InputTypeInfo type;
+
+        ArgumentInfo(GraphQLArgument definition, InputTypeInfo type) {
+            this.definition = definition;
+            this.type = type;
+        }
+
+        public GraphQLArgument getDefinition() {
+            return definition;
+        }
+
+        public InputTypeInfo getType() {
+            return type;
+        }
+    }
+
+    public static class InputObjectInfo {
+        private final GraphQLInputObjectType type;
+        private final Map<String, InputFieldInfo> fields = new HashMap<>();
+
+        InputObjectInfo(GraphQLInputObjectType type) {
+            this.type = type;
+        }
+
+        public GraphQLInputObjectType getType() {
+            return type;
+        }
+
+        public String getName() {
+            return type.getName();
+        }
+
+        public InputFieldInfo getField(String fieldName) {
+            return fields.get(fieldName);
+        }
+    }
+
+    public static class InputFieldInfo {
+        private final GraphQLInputObjectField definition;
+        private final InputTypeInfo type;
+
+        InputFieldInfo(GraphQLInputObjectField definition, InputTypeInfo type) {
+            this.definition = definition;
+            this.type = type;
+        }
+
+        public GraphQLInputObjectField getDefinition() {
+            return definition;
+        }
+
+        public InputTypeInfo getType() {
+            return type;
+        }
+    }
+
+    /**
+     * An input type with NonNull wrappers removed.
+     */
+    public static class InputTypeInfo {
+        public static final int LEAF = 0;
+        public static final int INPUT_OBJECT = 1;
+        public static final int LIST = 2;
+
+        private final int kind;
+        private final GraphQLInputType type;
+        private final GraphQLType unwrappedType;
+        private final InputTypeInfo elementType;
+        private final InputObjectInfo inputObject;
+
+        InputTypeInfo(int kind, GraphQLInputType type, GraphQLType unwrappedType, InputTypeInfo elementType, InputObjectInfo inputObject) {
+            this.kind = kind;
+            this.type = type;
+            this.unwrappedType = unwrappedType;
+            this.elementType = elementType;
+            this.inputObject = inputObject;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the declared type, including wrappers
+         */
+        public GraphQLInputType getType() {
+            return type;
+        }
+
+        public GraphQLType getUnwrappedType() {
+            return unwrappedType;
+        }
+
+        /**
+         * @return the type of the list elements, for LIST types
+         */
+        public InputTypeInfo getElementType() {
+            return elementType;
+        }
+
+        /**
+         * @return the input object fields, for INPUT_OBJECT types
+         */
+        public InputObjectInfo getInputObject() {
+            return inputObject;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many times each field coordinate (e.g. "Resort.name") of a schema is requested.
+ * <p>
+ * There is one striped, lock-free counter per coordinate, preallocated when the schema is compiled and
+ * addressed by the coordinate index of {@link CompiledSchema.FieldInfo}, so counting a field on the request
+ * path is a single {@link LongAdder#increment()}. Counters are never reset, snapshots report the totals and
+ * the increments since the previous snapshot.
+ */
+public class FieldUsage {
+    private final String[] coordinates;
+    private final LongAdder[] counters;
+
+    //totals at the time of the previous snapshot, guarded by this
+    private final long[] reported;
+    private long reportedMillis;
+
+    private final AtomicLong lastClaimMillis;
+
+    FieldUsage(String[] coordinates) {
+        this.coordinates = coordinates;
+        this.counters = new LongAdder[coordinates.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        this.reported = new long[coordinates.length];
+        this.reportedMillis = System.currentTimeMillis();
+        this.lastClaimMillis = new AtomicLong(reportedMillis);
+    }
+
+    void increment(int index) {
+        counters[index].increment();
+    }
+
+    public int size() {
+        return coordinates.length;
+    }
+
+    public String getCoordinate(int index) {
+        return coordinates[index];
+    }
+
+    public long getCount(int index) {
+        return counters[index].sum();
+    }
+
+    /**
+     * Lets exactly one of the concurrent callers take a periodic snapshot.
+     *
+     * @return true if at least intervalMillis elapsed since the previous claim, and the caller won the claim
+     */
+    public boolean claimSnapshot(long intervalMillis) {
+        long now = System.currentTimeMillis();
+        long last = lastClaimMillis.get();
+        return now - last >= intervalMillis && lastClaimMillis.compareAndSet(last, now);
+    }
+
+    /**
+     * @return the counts of every coordinate requested since the previous snapshot
+     */
+    public synchronized Snapshot snapshot() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < counters.length; i++) {
+            long total = counters[i].sum();
+            if (total != reported[i]) {
+                counts.put(coordinates[i], total - reported[i]);
+                reported[i] = total;
+            }
+        }
+
+        Snapshot snapshot = new Snapshot(reportedMillis, now, Collections.unmodifiableMap(counts));
+        reportedMillis = now;
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        private final long fromMillis;
+        private final long toMillis;
+        private final Map<String, Long> counts;
+
+        Snapshot(long fromMillis, long toMillis, Map<String, Long> counts) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.counts = counts;
+        }
+
+        public long getFromMillis() {
+            return fromMillis;
+        }
+
+        public long getToMillis() {
+            return toMillis;
+        }
+
+        /**
+         * @return requests per coordinate, only for coordinates requested within the snapshot interval
+         */
+        public Map<String, Long> getCounts() {
+            return counts;
+        }
+
+        /**
+         * @return {"schema": "...", "from": millis, "to": millis, "counts": {"Type.field": count, ...}}
+         */
+        public String toJson(String schemaName) {
+            StringWriter out = new StringWriter();
+            try (JsonWriter writer = new JsonWriter(out)) {
+                writer.beginObject();
+                writer.name("schema").value(schemaName);
+                writer.name("from").value(fromMillis);
+                writer.name("to").value(toMillis);
+                writer.name("counts").beginObject();
+                for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                    writer.name(entry.getKey()).value(entry.getValue());
+                }
+                writer.endObject();
+                writer.endObject();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return out.toString();
+        }
+    }
+}
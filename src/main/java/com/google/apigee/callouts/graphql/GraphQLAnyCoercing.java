@@ -24,43 +24,22 @@ import graphql.schema.CoercingParseValueException;
 import graphql.schema.CoercingSerializeException;
 
 import java.util.Locale;
-import java.util.Map;
 
 public class GraphQLAnyCoercing implements Coercing<Object, Object> {
-    public Object serialize(Object dataFetcherResult) throws CoercingSerializeException {
-        return dataFetcherResult;
-    }
-
     public Object serialize(Object dataFetcherResult, GraphQLContext graphQLContext, Locale locale) throws CoercingSerializeException {
-        return this.serialize(dataFetcherResult);
-    }
-
-    public Object parseValue(Object input) throws CoercingParseValueException {
-        return input;
+        return dataFetcherResult;
     }
 
     public Object parseValue(Object input, GraphQLContext graphQLContext, Locale locale) throws CoercingParseValueException {
-        return this.parseValue(input);
-    }
-
-    public Object parseLiteral(Object input) throws CoercingParseLiteralException {
         return input;
     }
 
-    public Object parseLiteral(Object input, Map<String, Object> variables) throws CoercingParseLiteralException {
-        return this.parseLiteral(input);
-    }
-
     public Object parseLiteral(Value<?> input, CoercedVariables variables, GraphQLContext graphQLContext, Locale locale) throws CoercingParseLiteralException {
-        return this.parseLiteral(input, variables.toMap());
-    }
-
-    public Value valueToLiteral(Object input) {
-        return (Value) input;
+        return input;
     }
 
     public Value<?> valueToLiteral(Object input, GraphQLContext graphQLContext, Locale locale) {
-        return this.valueToLiteral(input);
+        return (Value<?>) input;
     }
 
 }
@@ -0,0 +1,95 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.Argument;
+import graphql.language.Field;
+import graphql.language.ObjectField;
+import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLInputObjectField;
+
+/**
+ * Second generation of {@link GraphQLVisitor}.
+ * <p>
+ * Each node gets an enter callback, before its children are visited, and a leave callback, after
+ * its children are visited. Enter callbacks may return a replacement node, or null to remove the node
+ * (in which case neither its children nor its leave callback are visited). Leave callbacks receive the
+ * node as it will be forwarded.
+ * <p>
+ * All callbacks receive the same {@link GraphQLVisitorContext} for the duration of a request.
+ */
+public interface GraphQLContextVisitor {
+    default Field enterOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) {
+        return field;
+    }
+
+    default void leaveOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) {
+    }
+
+    default Argument enterArgument(Argument argument, GraphQLArgument definition, GraphQLVisitorContext ctx) {
+        return argument;
+    }
+
+    default void leaveArgument(Argument argument, GraphQLArgument definition, GraphQLVisitorContext ctx) {
+    }
+
+    default ObjectField enterInputField(ObjectField field, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+        return field;
+    }
+
+    default void leaveInputField(ObjectField field, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+    }
+
+    /**
+     * Called for each field set in an input object given through a variable, which has no node in the document,
+     * with the coerced value of the field. The value is forwarded as the client sent it and cannot be replaced.
+     */
+    default void enterInputFieldValue(String name, Object value, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+    }
+
+    /**
+     * Adapts a first generation visitor. For interface fields, the legacy visitor is called once
+     * for each of {@link GraphQLVisitorContext#getFieldDefinitions()}.
+     */
+    static GraphQLContextVisitor of(GraphQLVisitor visitor) {
+        if (visitor == null) {
+            return null;
+        }
+
+        return new GraphQLContextVisitor() {
+            @Override
+            public Field enterOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) {
+                for (GraphQLFieldDefinition fieldDefinition : ctx.getFieldDefinitions()) {
+                    field = visitor.visitOutputField(field, fieldDefinition, ctx.getExecutionInput());
+                    if (field == null) {
+                        return null;
+                    }
+                }
+                return field;
+            }
+
+            @Override
+            public Argument enterArgument(Argument argument, GraphQLArgument definition, GraphQLVisitorContext ctx) {
+                return visitor.visitArgument(argument, definition, ctx.getExecutionInput());
+            }
+
+            @Override
+            public ObjectField enterInputField(ObjectField field, GraphQLInputObjectField definition, GraphQLVisitorContext ctx) {
+                return visitor.visitInputField(field, definition, ctx.getExecutionInput());
+            }
+        };
+    }
+}
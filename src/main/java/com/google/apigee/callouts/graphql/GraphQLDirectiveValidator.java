@@ -33,6 +33,26 @@ public interface GraphQLDirectiveValidator {
         return field;
     }
 
+    default Field validateOutputField(Field field, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return validateOutputField(field, directive, ctx.getExecutionInput());
+    }
+
+    default Argument validateArgument(Argument argument, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return validateArgument(argument, directive, ctx.getExecutionInput());
+    }
+
+    default ObjectField validateInputField(ObjectField field, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+        return validateInputField(field, directive, ctx.getExecutionInput());
+    }
+
+    /**
+     * Validates an input field set through a variable, see {@link GraphQLContextVisitor#enterInputFieldValue}.
+     *
+     * @param value the coerced value of the field
+     */
+    default void validateInputFieldValue(String name, Object value, GraphQLDirective directive, GraphQLVisitorContext ctx) throws GraphQLValidationException {
+    }
+
 
     String getName();
 }
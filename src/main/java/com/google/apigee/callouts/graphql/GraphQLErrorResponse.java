@@ -0,0 +1,174 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.util.BoundedCache;
+import com.google.gson.stream.JsonWriter;
+import graphql.language.SourceLocation;
+import graphql.validation.ValidationError;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the body of a GraphQL response for a rejected request, as described in the GraphQL specification
+ * <pre>
+ * {"errors": [{"message": "...", "locations": [{"line": 1, "column": 2}], "path": ["..."], "extensions": {"code": "..."}}]}
+ * </pre>
+ * Bodies are written with a streaming writer and cached per distinct set of errors, so clients repeating the
+ * same bad operation get the cached body.
+ */
+public class GraphQLErrorResponse {
+    public static final String CONTENT_TYPE = "application/json";
+
+    public static final String CODE_PARSE_FAILED = "GRAPHQL_PARSE_FAILED";
+    public static final String CODE_VALIDATION_FAILED = "GRAPHQL_VALIDATION_FAILED";
+    public static final String CODE_BAD_USER_INPUT = "BAD_USER_INPUT";
+    public static final String CODE_BAD_REQUEST = "BAD_REQUEST";
+    public static final String CODE_INTERNAL_SERVER_ERROR = "INTERNAL_SERVER_ERROR";
+    public static final String CODE_BUDGET_EXCEEDED = "VALIDATION_BUDGET_EXCEEDED";
+    public static final String CODE_OVERLOADED = "SERVICE_OVERLOADED";
+
+    private static final String CODE_EXTENSION = "code";
+    private static final int MAX_CACHED_RESPONSES = 1024;
+
+    private static final BoundedCache<String, String> responses = new BoundedCache<>(MAX_CACHED_RESPONSES);
+
+    /**
+     * @return extensions carrying the given error code, for {@link ValidationError.Builder#extensions(Map)}
+     */
+    public static Map<String, Object> code(String code) {
+        return Collections.singletonMap(CODE_EXTENSION, code);
+    }
+
+    /**
+     * @return the code of the error, either from its extensions, or derived from its type
+     */
+    public static String getCode(ValidationError error) {
+        Map<String, Object> extensions = error.getExtensions();
+        if (extensions != null) {
+            Object code = extensions.get(CODE_EXTENSION);
+            if (code instanceof String) {
+                return (String) code;
+            }
+        }
+
+        //errors found by graphql-java have a type, errors found by the visitors do not
+        return error.getValidationErrorType() != null ? CODE_VALIDATION_FAILED : CODE_BAD_USER_INPUT;
+    }
+
+    public static String toJson(List<ValidationError> errors) {
+        return responses.get(cacheKey(errors), key -> write(errors));
+    }
+
+    static BoundedCache<String, String> getCache() {
+        return responses;
+    }
+
+    private static String cacheKey(List<ValidationError> errors) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < errors.size(); i++) {
+            ValidationError error = errors.get(i);
+            key.append(getCode(error)).append('\u0000').append(error.getMessage()).append('\u0000');
+            List<SourceLocation> locations = error.getLocations();
+            if (locations != null) {
+                for (int j = 0; j < locations.size(); j++) {
+                    SourceLocation location = locations.get(j);
+                    key.append(location.getLine()).append(':').append(location.getColumn()).append(' ');
+                }
+            }
+            key.append('\u0000');
+            List<String> path = error.getQueryPath();
+            if (path != null) {
+                for (int j = 0; j < path.size(); j++) {
+                    key.append(path.get(j)).append('/');
+                }
+            }
+            key.append('\u0001');
+        }
+        return key.toString();
+    }
+
+    private static String write(List<ValidationError> errors) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("errors").beginArray();
+            for (int i = 0; i < errors.size(); i++) {
+                writeError(writer, errors.get(i));
+            }
+            writer.endArray();
+            writer.endObject();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    private static void writeError(JsonWriter writer, ValidationError error) throws IOException {
+        writer.beginObject();
+        writer.name("message").value(error.getMessage());
+
+        List<SourceLocation> locations = error.getLocations();
+        if (locations != null && !locations.isEmpty()) {
+            writer.name("locations").beginArray();
+            for (int i = 0; i < locations.size(); i++) {
+                SourceLocation location = locations.get(i);
+                writer.beginObject();
+                writer.name("line").value(location.getLine());
+                writer.name("column").value(location.getColumn());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+
+        List<String> path = error.getQueryPath();
+        if (path != null && !path.isEmpty()) {
+            writer.name("path").beginArray();
+            for (int i = 0; i < path.size(); i++) {
+                String segment = path.get(i);
+                //list indices are numbers, names can never start with a digit
+                if (isIndex(segment)) {
+                    writer.value(Integer.parseInt(segment));
+                } else {
+                    writer.value(segment);
+                }
+            }
+            writer.endArray();
+        }
+
+        writer.name("extensions").beginObject();
+        writer.name(CODE_EXTENSION).value(getCode(error));
+        writer.endObject();
+
+        writer.endObject();
+    }
+
+    private static boolean isIndex(String segment) {
+        if (segment.isEmpty() || segment.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.GraphQLContext;
+import graphql.execution.CoercedVariables;
+import graphql.language.*;
+import graphql.schema.Coercing;
+import graphql.schema.CoercingParseLiteralException;
+import graphql.schema.CoercingParseValueException;
+import graphql.schema.CoercingSerializeException;
+
+import java.util.Locale;
+
+/**
+ * Coercing for custom scalars with a {@link ScalarFormat}. Like {@link GraphQLAnyCoercing}, values are
+ * passed through unchanged, but literals and variables that do not match the format are rejected.
+ */
+public class GraphQLFormatCoercing implements Coercing<Object, Object> {
+    private final String scalarName;
+    private final ScalarFormat format;
+
+    public GraphQLFormatCoercing(String scalarName, ScalarFormat format) {
+        this.scalarName = scalarName;
+        this.format = format;
+    }
+
+    public ScalarFormat getFormat() {
+        return format;
+    }
+
+    public Object serialize(Object dataFetcherResult, GraphQLContext graphQLContext, Locale locale) throws CoercingSerializeException {
+        return dataFetcherResult;
+    }
+
+    public Object parseValue(Object input, GraphQLContext graphQLContext, Locale locale) throws CoercingParseValueException {
+        if (!format.isValid(input)) {
+            throw new CoercingParseValueException(message(input));
+        }
+        return input;
+    }
+
+    public Object parseLiteral(Value<?> input, CoercedVariables variables, GraphQLContext graphQLContext, Locale locale) throws CoercingParseLiteralException {
+        if (input instanceof VariableReference) {
+            //variables are checked by parseValue
+            return input;
+        }
+
+        Object value = input;
+        if (input instanceof StringValue) {
+            value = ((StringValue) input).getValue();
+        } else if (input instanceof IntValue) {
+            value = ((IntValue) input).getValue();
+        } else if (input instanceof FloatValue) {
+            value = ((FloatValue) input).getValue();
+        } else if (input instanceof BooleanValue) {
+            value = ((BooleanValue) input).isValue();
+        }
+
+        if (!format.isValid(value)) {
+            throw new CoercingParseLiteralException(message(value));
+        }
+        return input;
+    }
+
+    public Value<?> valueToLiteral(Object input, GraphQLContext graphQLContext, Locale locale) {
+        return (Value<?>) input;
+    }
+
+    private String message(Object value) {
+        String text = value instanceof Node ? AstPrinter.printAstCompact((Node<?>) value) : String.valueOf(value);
+        return "Expected a value of scalar '" + scalarName + "' in format '" + format.getName() + "' but was '" + text + "'.";
+    }
+}
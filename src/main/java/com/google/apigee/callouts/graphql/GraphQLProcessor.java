@@ -15,23 +15,27 @@
 package com.google.apigee.callouts.graphql;
 
 import com.google.apigee.callouts.GraphQLCallout;
+import com.google.apigee.callouts.graphql.CompiledSchema.*;
 import com.google.apigee.callouts.util.Logger;
 import graphql.*;
 import graphql.language.*;
 import graphql.parser.InvalidSyntaxException;
+import graphql.scalars.ExtendedScalars;
 import graphql.schema.*;
 import graphql.schema.idl.RuntimeWiring;
 import graphql.schema.idl.SchemaGenerator;
 import graphql.schema.idl.SchemaParser;
 import graphql.schema.idl.TypeDefinitionRegistry;
+import graphql.schema.idl.TypeRuntimeWiring;
 import graphql.schema.idl.errors.SchemaProblem;
 import graphql.validation.ValidationError;
 import org.javatuples.Pair;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static graphql.schema.idl.RuntimeWiring.newRuntimeWiring;
@@ -39,6 +43,11 @@ import static graphql.schema.idl.RuntimeWiring.newRuntimeWiring;
 public class GraphQLProcessor {
 
     public static final String SCHEMA_INTROSPECTION = "__schema";
+    public static final String TYPENAME_FIELD = "__typename";
+    public static final String SPECIFIED_BY_DIRECTIVE = "specifiedBy";
+
+    //graphql-java-extended-scalars, by scalar name (e.g. DateTime, PositiveInt, UUID)
+    private static final Map<String, GraphQLScalarType> EXTENDED_SCALARS = loadExtendedScalars();
     public Logger logger;
 
     public GraphQLProcessor(Logger logger) {
@@ -49,362 +58,430 @@ public class GraphQLProcessor {
         this.logger = new Logger();
     }
 
-    private static Map<Integer, GraphQLSchema> parsedSchemas = new HashMap<>();
-
     public ParseAndValidateResult parseAndValidate(String query, Map<String, Object> variables, GraphQLSchema schemaDoc, GraphQLVisitor visitor) {
+        return parseAndValidate(query, null, variables, schemaDoc, visitor);
+    }
+
+    public ParseAndValidateResult parseAndValidate(String query, String operationName, Map<String, Object> variables, GraphQLSchema schemaDoc, GraphQLVisitor visitor) {
+        return parseAndValidate(query, operationName, variables, CompiledSchema.of(schemaDoc), GraphQLContextVisitor.of(visitor));
+    }
+
+    public ParseAndValidateResult parseAndValidate(String query, String operationName, Map<String, Object> variables, CompiledSchema compiledSchema, GraphQLContextVisitor visitor) {
+        return parseAndValidate(query, operationName, variables, compiledSchema, visitor, ValidationOptions.DEFAULT);
+    }
+
+    /**
+     * @param options the patch, budget, rules and outputs of the validation, see {@link ValidationOptions}
+     */
+    public ParseAndValidateResult parseAndValidate(String query, String operationName, Map<String, Object> variables, CompiledSchema compiledSchema, GraphQLContextVisitor visitor, ValidationOptions options) {
+        SourcePatch patch = options.getPatch();
+        ValidationRules rules = options.getRules();
+        long startNanos = System.nanoTime();
+        GraphQLSchema schemaDoc = compiledSchema.getSchema();
 
         ExecutionInput queryInput = new ExecutionInput.Builder()
                 .variables(variables)
+                .operationName(operationName)
                 .query(query)
                 .build();
 
-        ParseAndValidateResult stage1 = ParseAndValidate.parseAndValidate(schemaDoc, queryInput);
+        //parsing, the spec rules and the overlapping fields check count against the deadline too
+        GraphQLTraverser traverser = GraphQLTraverser.get();
+        traverser.begin(compiledSchema, visitor, queryInput, patch, options.isCountUsage());
+        traverser.getContext().startBudget(options.getBudget(), startNanos);
+        try {
+            ParseAndValidateResult stage1 = ParseAndValidate.parse(queryInput);
+            traverser.getContext().checkBudget();
 
-        if (stage1.isFailure()) {
-            InvalidSyntaxException syntaxException = stage1.getSyntaxException();
-            List<ValidationError> errors =  new ArrayList<>();
-            if (syntaxException != null) {
-                errors.add(ValidationError.newValidationError().description(syntaxException.getMessage()).build());
+            if (!stage1.isFailure() && options.getAdmission() != null) {
+                ParseAndValidateResult shed = admit(stage1.getDocument(), operationName, options);
+                if (shed != null) {
+                    return shed;
+                }
             }
-            errors.addAll(stage1.getValidationErrors());
-            return ParseAndValidateResult.newResult().validationErrors(errors).build();
-        }
 
-        Document queryDoc = stage1.getDocument();
+            if (!stage1.isFailure()) {
+                //graphql-java runs the spec rules in a single pass, the deadline is checked once they are done
+                List<ValidationError> validationErrors = ParseAndValidate.validate(schemaDoc, stage1.getDocument(), rules.getPredicate());
+                traverser.getContext().checkBudget();
+                //the overlapping fields check assumes the fields and fragments of the document are valid
+                if (validationErrors.isEmpty() && rules.checksOverlappingFields()) {
+                    validationErrors = OverlappingFieldsCheck.check(stage1.getDocument(), compiledSchema, traverser.getContext());
+                }
+                if (!validationErrors.isEmpty()) {
+                    stage1 = ParseAndValidateResult.newResult().document(stage1.getDocument()).validationErrors(validationErrors).build();
+                }
+            }
 
-        try {
-            Document newQueryDoc = queryDoc.transform((builder -> {
-                List<Definition> definitions = queryDoc.getDefinitions();
-                List<Definition> newDefinitions = new ArrayList<>();
-                for (Definition definition : definitions) {
-                    if (definition instanceof OperationDefinition) {
-                        newDefinitions.add(processOperation((OperationDefinition) definition, schemaDoc, visitor, queryInput));
-                    } else {
-                        //Fragments ...
-                        newDefinitions.add(definition);
+            if (stage1.isFailure()) {
+                InvalidSyntaxException syntaxException = stage1.getSyntaxException();
+                List<ValidationError> errors =  new ArrayList<>();
+                if (syntaxException != null) {
+                    ValidationError.Builder builder = ValidationError.newValidationError()
+                            .description(syntaxException.getMessage())
+                            .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_PARSE_FAILED));
+                    if (syntaxException.getLocation() != null) {
+                        builder.sourceLocation(syntaxException.getLocation());
                     }
+                    errors.add(builder.build());
+                }
+                errors.addAll(stage1.getValidationErrors());
+                return ParseAndValidateResult.newResult().validationErrors(errors).build();
+            }
+
+            Document queryDoc = stage1.getDocument();
+
+            if (patch != null) {
+                patch.begin(query);
+            }
+
+            OperationDefinition operation = GraphQLUtil.getOperation(queryDoc, operationName);
+
+            Map<String, Object> coercedVariables;
+            try {
+                coercedVariables = coerceVariables(schemaDoc, operation, variables);
+            } catch (GraphQLException ex) {
+                return ParseAndValidateResult.newResult().validationErrors(Collections.singletonList(variablesError(ex))).build();
+            }
+            //validators see the values the server will execute the operation with, including default values
+            traverser.getContext().setVariables(coercedVariables);
+
+            //selections excluded by @skip or @include are pruned, along with the fragments only they use
+            Map<String, Object> conditionVariables = GraphQLUtil.getConditionVariables(operation, coercedVariables);
+            traverser.setConditionVariables(conditionVariables);
+            Set<String> usedFragments = GraphQLUtil.getUsedFragmentNames(queryDoc, operation, conditionVariables);
+
+            List<Definition<?>> definitions = GraphQLUtil.nodes(queryDoc.getDefinitions());
+            List<Definition<?>> newDefinitions = new ArrayList<>();
+            int operationIndex = -1;
+            for (int i = 0; i < definitions.size(); i++) {
+                Definition<?> definition = definitions.get(i);
+                if (definition == operation) {
+                    operationIndex = newDefinitions.size();
+                    newDefinitions.add(processOperation(operation, compiledSchema, traverser));
+                } else if (definition instanceof FragmentDefinition && usedFragments.contains(((FragmentDefinition) definition).getName())) {
+                    newDefinitions.add(processFragment((FragmentDefinition) definition, compiledSchema, traverser));
+                } else if (patch != null) {
+                    //anything else (other operations, unused fragments) is not forwarded
+                    patch.remove(definition, i + 1 < definitions.size() ? definitions.get(i + 1) : null);
+                }
+            }
+
+            GraphQLVisitorContext ctx = traverser.getContext();
+            if (ctx.hasErrors()) {
+                return ParseAndValidateResult.newResult().validationErrors(new ArrayList<>(ctx.getErrors())).build();
+            }
+
+            if (traverser.getExcludedSelections() > 0 || ctx.hasReplacedVariables() || !rules.checksUnusedVariables()) {
+                removeUnusedVariableDefinitions(newDefinitions, operationIndex, patch);
+            }
+
+            CachePolicy cachePolicy = options.getCachePolicy();
+            if (cachePolicy != null) {
+                cachePolicy.copyFrom(ctx.getCachePolicy());
+                if (operation.getOperation() != OperationDefinition.Operation.QUERY) {
+                    cachePolicy.setUncacheable();
                 }
-                builder.definitions(newDefinitions);
-                builder.build();
-            }));
+            }
+            if (options.getCost() != null) {
+                options.getCost().copyFrom(ctx.getCost());
+            }
 
+            Document newQueryDoc = queryDoc.transform(builder -> builder.definitions(GraphQLUtil.nodes(newDefinitions)));
             return ParseAndValidateResult.newResult().document(newQueryDoc).build();
-        } catch(GraphQLValidationException ex) {
+        } catch (GraphQLBudgetExceededException ex) {
             List<ValidationError> errors = new ArrayList<>();
-            errors.add(ValidationError.newValidationError().description(ex.getMessage()).build());
+            errors.add(ValidationError.newValidationError()
+                    .description(ex.getMessage())
+                    .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_BUDGET_EXCEEDED))
+                    .build());
+            return ParseAndValidateResult.newResult().validationErrors(errors).build();
+        } catch(GraphQLValidationException ex) {
+            GraphQLVisitorContext ctx = traverser.getContext();
+            List<ValidationError> errors = new ArrayList<>(ctx.getErrors());
+            errors.add(ctx.newError(ex.getMessage()));
             return ParseAndValidateResult.newResult().validationErrors(errors).build();
         } catch (GraphQLException ex) {
+            //the traversal found the request invalid, e.g. a field unknown to the schema
             List<ValidationError> errors = new ArrayList<>();
-            errors.add(ValidationError.newValidationError().description(ex.getMessage()).build());
+            errors.add(ValidationError.newValidationError()
+                    .description(ex.getMessage())
+                    .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_VALIDATION_FAILED))
+                    .build());
             return ParseAndValidateResult.newResult().validationErrors(errors).build();
+        } finally {
+            traverser.end();
         }
     }
 
-    private OperationDefinition processOperation(OperationDefinition operationDefinition, GraphQLSchema schemaDoc, GraphQLVisitor visitor, ExecutionInput input) {
-        String operationName = operationDefinition.getOperation().name();
-        if (operationName.equals("QUERY") || operationName.equals("MUTATION")) {
-            operationName = operationName.substring(0, 1).toUpperCase() + operationName.substring(1).toLowerCase();
+    /**
+     * Estimates the cost of the operation, and asks the admission of the options whether to validate it.
+     *
+     * @return the result of a shed operation, or null if it is admitted
+     */
+    private static ParseAndValidateResult admit(Document document, String operationName, ValidationOptions options) {
+        OperationDefinition operation;
+        try {
+            operation = GraphQLUtil.getOperation(document, operationName);
+        } catch (GraphQLValidationException ex) {
+            //reported by the validation
+            return null;
         }
-        GraphQLObjectType objectType = schemaDoc.getObjectType(operationName);
 
-        if (objectType == null) {
-            throw new GraphQLException("Could not find type for operation " + operationName);
+        OperationCost estimate = new OperationCost();
+        estimate.estimate(document, operation);
+        if (options.getAdmission().test(estimate.getCost())) {
+            return null;
         }
 
-        return operationDefinition.transform(builder -> {
-            SelectionSet newSelectionSet = processSelectionSet(operationDefinition.getSelectionSet(), objectType, visitor, input);
-            builder.selectionSet(newSelectionSet);
-            builder.build();
-        });
-    }
-
-    private Field processListField(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLList outputType, GraphQLVisitor visitor, ExecutionInput input) {
-        GraphQLType wrappedType = outputType.getWrappedType();
-        if (wrappedType instanceof GraphQLObjectType) {
-            GraphQLObjectType objectType = (GraphQLObjectType) wrappedType;
-            return processObjectField(field, fieldDefinition, objectType, visitor, input);
+        if (options.getCost() != null) {
+            options.getCost().copyFrom(estimate);
         }
-
-        return field;
+        return ParseAndValidateResult.newResult().validationErrors(Collections.singletonList(ValidationError.newValidationError()
+                .description("service overloaded, retry later")
+                .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_OVERLOADED))
+                .build())).build();
     }
 
-    private SelectionSet processSelectionSet(SelectionSet selectionSet, GraphQLObjectType parentObjectType, GraphQLVisitor visitor, ExecutionInput input) {
-        return selectionSet.transform(builder -> {
-            List<Selection> selections = selectionSet.getSelections();
-            List<Selection> newSelections = new ArrayList<>();
-            for (Selection selection : selections) {
-                Selection newSelection = processSelection(selection, parentObjectType, visitor, input);
-                if (newSelection == null) {
-                    continue;
-                }
-                newSelections.add(newSelection);
-            }
-
-            builder.selections(newSelections);
-            builder.build();
-        });
-    }
+    /**
+     * Coerces the variables of the operation the same way a GraphQL server would before executing it,
+     * which checks their types, including the formats of custom scalars, and applies their default values.
+     *
+     * @return the coerced values, without the variables the request does not set and that have no default value
+     * @throws GraphQLException if a variable is invalid
+     */
+    private static Map<String, Object> coerceVariables(GraphQLSchema schemaDoc, OperationDefinition operation, Map<String, Object> variables) {
+        List<VariableDefinition> variableDefinitions = operation.getVariableDefinitions();
+        if (variableDefinitions.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-    private Field processObjectField(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLObjectType objectType, GraphQLVisitor visitor, ExecutionInput input) {
-        return field.transform(builder -> {
-            List<Argument> newArguments = processArguments(field, fieldDefinition, visitor, input);
-            SelectionSet newSelectionSet = processSelectionSet(field.getSelectionSet(), objectType, visitor, input);
-            builder.arguments(newArguments);
-            builder.selectionSet(newSelectionSet);
-            builder.build();
-        });
+        Map<String, Object> rawVariables = variables == null ? Collections.emptyMap() : GraphQLUtil.normalizeNumbers(variables);
+        return VariableCoercion.coerce(schemaDoc, variableDefinitions, rawVariables);
     }
 
-    private List<Argument> processArguments(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLVisitor visitor, ExecutionInput input) {
-        List<Argument> arguments = field.getArguments();
-        List<Argument> newArguments = new ArrayList<>();
-        for (Argument argument : arguments) {
-            Argument newArgument = processArgument(argument, fieldDefinition, visitor, input);
-            if (newArgument == null) {
-                continue;
-            }
-            newArguments.add(newArgument);
+    private static ValidationError variablesError(GraphQLException ex) {
+        ValidationError.Builder builder = ValidationError.newValidationError()
+                .description(ex.getMessage())
+                .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_BAD_USER_INPUT));
+        if (ex instanceof GraphQLError && ((GraphQLError) ex).getLocations() != null) {
+            builder.sourceLocations(((GraphQLError) ex).getLocations());
         }
-
-        return newArguments;
+        return builder.build();
     }
 
-    private Argument processArgument(Argument argument, GraphQLFieldDefinition parentFieldDefinition, GraphQLVisitor visitor, ExecutionInput input) {
-
-        GraphQLArgument argumentDefinition = parentFieldDefinition.getArgument(argument.getName());
-        if (argumentDefinition == null) {
-            throw new GraphQLException("could not find argument type for " + argument.getName());
+    /**
+     * Removes the definitions of variables that were only used by pruned selections,
+     * since servers reject operations with unused variables.
+     */
+    private static void removeUnusedVariableDefinitions(List<Definition<?>> definitions, int operationIndex, SourcePatch patch) {
+        OperationDefinition operation = (OperationDefinition) definitions.get(operationIndex);
+        List<VariableDefinition> variableDefinitions = operation.getVariableDefinitions();
+        if (variableDefinitions.isEmpty()) {
+            return;
         }
 
-        if (visitor != null) {
-            argument = visitor.visitArgument(argument, argumentDefinition, input);
-            if (argument == null) {
-                return null;
+        Set<String> used = QueryMinimizer.getVariableNames(definitions);
+        List<VariableDefinition> kept = new ArrayList<>();
+        for (VariableDefinition variableDefinition : variableDefinitions) {
+            if (used.contains(variableDefinition.getName())) {
+                kept.add(variableDefinition);
             }
         }
+        if (kept.size() == variableDefinitions.size()) {
+            return;
+        }
 
-        GraphQLInputType type = argumentDefinition.getType();
-        if (type instanceof  GraphQLInputObjectType) {
-            return processArgumentObject(argument, argumentDefinition, visitor, input);
-        } else if(type instanceof  GraphQLList) {
-            return processArgumentList(argument, argumentDefinition, visitor, input);
-        }else {
-            //Lists, Scalar, NonNull, Enum
-            return argument;
+        if (patch != null) {
+            if (kept.isEmpty()) {
+                patch.removeList(variableDefinitions.get(0));
+            } else {
+                for (int i = 0; i < variableDefinitions.size(); i++) {
+                    if (!used.contains(variableDefinitions.get(i).getName())) {
+                        patch.remove(variableDefinitions.get(i), i + 1 < variableDefinitions.size() ? variableDefinitions.get(i + 1) : null);
+                    }
+                }
+            }
         }
+        definitions.set(operationIndex, operation.transform(builder -> builder.variableDefinitions(kept)));
     }
 
-
-    private Value processArgumentValue(Value value, GraphQLType valueType, InputValueDefinition definition, GraphQLVisitor visitor, ExecutionInput input) {
-        if (value instanceof VariableReference) {
-            //TODO: handle variable references
-            return value;
+    private FragmentDefinition processFragment(FragmentDefinition fragmentDefinition, CompiledSchema compiledSchema, GraphQLTraverser traverser) {
+        String typeName = fragmentDefinition.getTypeCondition().getName();
+        if (typeName.startsWith("__")) {
+            //ignore introspection fragments
+            return fragmentDefinition;
         }
 
-        if (valueType instanceof GraphQLInputObjectType) {
-            if (!(value instanceof ObjectValue)) {
-                throw new GraphQLValidationException("expected " +ObjectValue.class.getSimpleName()+ ", but found " + value.getClass().getSimpleName() + " for input field " + definition.getName());
-            }
-            return processArgumentObjectValue((ObjectValue) value, (GraphQLInputObjectType) valueType, definition,  visitor, input);
-        } else if (valueType instanceof  GraphQLList) {
-            if (!(value instanceof ArrayValue)) {
-                throw new GraphQLValidationException("expected " + ArrayValue.class.getSimpleName() + ", but found " + value.getClass().getSimpleName() + " for input field " + definition.getName());
-            }
-            return processArgumentArrayValue((ArrayValue) value, (GraphQLList) valueType, definition,  visitor, input);
-        } else {
-            //Scalar, Enum
-            return value;
+        CompositeTypeInfo typeInfo = compiledSchema.getCompositeType(typeName);
+        if (typeInfo == null) {
+            throw new GraphQLException("Could not find type for fragment " + fragmentDefinition.getName());
         }
-    }
 
-    private Argument processArgumentList(Argument argument, GraphQLArgument argumentDefinition, GraphQLVisitor visitor, ExecutionInput input) {
-        GraphQLInputType argType = argumentDefinition.getType();
-        InputValueDefinition definition = argumentDefinition.getDefinition();
+        SelectionSet selectionSet = fragmentDefinition.getSelectionSet();
+        traverser.getContext().getCost().enterFragment(fragmentDefinition.getName());
+        SelectionSet newSelectionSet = traverser.traverse(selectionSet, typeInfo, "..." + fragmentDefinition.getName());
+        if (newSelectionSet == selectionSet) {
+            return fragmentDefinition;
+        }
 
-        return argument.transform(builder -> {
-            Value value = argument.getValue();
-            builder.value(processArgumentValue(value, argType, definition, visitor, input));
-            builder.build();
-        });
+        return fragmentDefinition.transform(builder -> builder.selectionSet(newSelectionSet));
     }
 
-    private Argument processArgumentObject(Argument argument, GraphQLArgument argumentDefinition, GraphQLVisitor visitor, ExecutionInput input) {
-        GraphQLInputType argType = argumentDefinition.getType();
-        InputValueDefinition definition = argumentDefinition.getDefinition();
-
-        return argument.transform((builder) -> {
-            Value value = argument.getValue();
-            builder.value(processArgumentValue(value, argType, definition, visitor, input));
-
-            builder.build();
-        });
-    }
+    private OperationDefinition processOperation(OperationDefinition operationDefinition, CompiledSchema compiledSchema, GraphQLTraverser traverser) {
+        CompositeTypeInfo rootType = compiledSchema.getRootType(operationDefinition.getOperation());
 
-    private ObjectValue processArgumentObjectValue(ObjectValue value, GraphQLInputObjectType argumentType,  InputValueDefinition definition, GraphQLVisitor visitor, ExecutionInput input) {
-        return value.transform(builder -> {
-            List<ObjectField> objectFields = value.getObjectFields();
-            List<ObjectField> newObjectFields = new ArrayList<>();
-            for (ObjectField field : objectFields) {
-                ObjectField newField = processArgumentObjectField(field, argumentType, visitor, input);
-                if (newField != null) {
-                    newObjectFields.add(newField);
-                }
-            }
+        if (rootType == null) {
+            throw new GraphQLException("Could not find type for operation " + operationDefinition.getOperation().name());
+        }
 
-            builder.objectFields(newObjectFields);
-            builder.build();
-        });
+        SelectionSet selectionSet = operationDefinition.getSelectionSet();
+        traverser.getContext().getCost().enterOperation();
+        SelectionSet newSelectionSet = traverser.traverse(selectionSet, rootType, null);
+        if (newSelectionSet == selectionSet) {
+            return operationDefinition;
+        }
 
+        return operationDefinition.transform(builder -> builder.selectionSet(newSelectionSet));
     }
 
-    private Value processArgumentArrayValue(ArrayValue value, GraphQLList valueType, InputValueDefinition definition, GraphQLVisitor visitor, ExecutionInput input) {
-
-        return value.transform(builder -> {
-            List<Value> values = value.getValues();
-            List<Value> newValues = new ArrayList<>();
-            for (Value curValue : values) {
-                Value newCurValue = processArgumentValue(curValue, valueType.getWrappedType(), definition, visitor, input);
-                if (newCurValue == null) {
-                    continue;
-                }
-                newValues.add(newCurValue);
+    public String loadResourceAsString(String resourcePath) throws IOException {
+        //resources are read as streams, they are not files when packaged inside the jar
+        try (InputStream in = GraphQLCallout.class.getResourceAsStream(resourcePath)) {
+            if (in == null) {
+                throw new FileNotFoundException("resource " + resourcePath + " not found");
             }
-            builder.values(newValues);
-        });
-
-    }
-
-
-    private ObjectField processArgumentObjectField(ObjectField field, GraphQLInputObjectType parentType, GraphQLVisitor visitor, ExecutionInput input) {
-
-        GraphQLInputObjectField fieldDefinition = parentType.getField(field.getName());
-        if (fieldDefinition == null) {
-            throw new GraphQLException("field " + field.getName() + " not found in type " + parentType.getName());
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
         }
+    }
 
-        if (visitor != null) {
-            field = visitor.visitInputField(field, fieldDefinition, input);
-            if (field == null) {
-                return null;
-            }
+    public Pair<GraphQLSchema, List<ValidationError>> parseGraphQLSchema(String text) {
+        Pair<CompiledSchema, List<ValidationError>> result = compileSchema(text);
+        if (result.getValue1() != null) {
+            return new Pair<>(null, result.getValue1());
         }
-
-        ObjectField finalField = field;
-        ;
-        return field.transform(builder -> {
-            Value newValue = processArgumentValue(finalField.getValue(),fieldDefinition.getType(), fieldDefinition.getDefinition(), visitor, input);
-            if (newValue != null) {
-                builder.value(newValue);
-            }
-            builder.build();
-        });
+        return new Pair<>(result.getValue0().getSchema(), null);
     }
 
-    private Selection processSelection(Selection selection, GraphQLObjectType parentObjectType, GraphQLVisitor visitor, ExecutionInput input) {
-        if (selection instanceof Field) {
-            Field field = (Field) selection;
-            return processField(field, parentObjectType, visitor, input);
-        }
-        return selection;
+    public Pair<CompiledSchema, List<ValidationError>> compileSchema(String text) {
+        return compileSchema(SchemaRegistry.DEFAULT_SCHEMA_NAME, text);
     }
 
-    private Field processField(Field field, GraphQLObjectType parentObjectType, GraphQLVisitor visitor, ExecutionInput input) {
-        String fieldName = field.getName();
-        if (fieldName.equals(SCHEMA_INTROSPECTION)) {
-            //ignore introspection queries
-            return field;
-        }
+    /**
+     * Compiles a schema, or re-uses the already compiled schema with the same text.
+     *
+     * @param name name of the schema, for statistics
+     */
+    public Pair<CompiledSchema, List<ValidationError>> compileSchema(String name, String text) {
+        return SchemaRegistry.getDefault().get(name, text, this::buildSchema);
+    }
 
-        GraphQLFieldDefinition fieldDefinition = parentObjectType.getFieldDefinition(fieldName);
-        if (fieldDefinition == null) {
-            throw new GraphQLException("Could not find type for field " + fieldName);
-        }
+    /**
+     * Same as {@link #compileSchema(String, String)}, for a schema encoded as base64.
+     */
+    public Pair<CompiledSchema, List<ValidationError>> compileSchemaBase64(String name, String textBase64) {
+        return SchemaRegistry.getDefault().getBase64(name, textBase64, this::buildSchema);
+    }
 
-        if (visitor != null) {
-            field = visitor.visitOutputField(field, fieldDefinition, input);
-            if (field == null) {
-                return null;
-            }
-        }
+    /**
+     * Compiles a schema without going through {@link SchemaRegistry}.
+     */
+    public CompiledSchema buildSchema(String text) {
+        logger.stdout.printf("%s\n", "parsing schema");
 
+        SchemaParser schemaParser = new SchemaParser();
+        SchemaGenerator schemaGenerator = new SchemaGenerator();
+        TypeDefinitionRegistry typeRegistry = new TypeDefinitionRegistry();
+        typeRegistry.merge(schemaParser.parse(text));
 
-        GraphQLOutputType outputType = fieldDefinition.getType();
-        if (outputType instanceof GraphQLList) {
-            return processListField(field, fieldDefinition, (GraphQLList) outputType, visitor, input);
-        } else if (outputType instanceof GraphQLObjectType) {
-            return processObjectField(field, fieldDefinition, (GraphQLObjectType) outputType, visitor, input);
-        } else if (outputType instanceof GraphQLScalarType) {
-            return processScalarField(field, fieldDefinition, (GraphQLScalarType) outputType, visitor, input);
-        } else if (outputType instanceof GraphQLUnionType) {
-            return processUnionField(field, fieldDefinition, (GraphQLUnionType) outputType, visitor, input);
-        } else {
-            return processOtherField(field, fieldDefinition, outputType, visitor, input);
-        }
+        GraphQLSchema graphQLSchema = schemaGenerator.makeExecutableSchema(typeRegistry, buildRuntimeWiring(typeRegistry));
+        return CompiledSchema.compile(graphQLSchema);
     }
 
+    /**
+     * Drops every cached schema, the next request for each schema compiles it again.
+     */
+    public static void clearSchemaCache() {
+        SchemaRegistry.getDefault().clear();
+    }
 
-    private Field processOtherField(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLOutputType outputType, GraphQLVisitor visitor, ExecutionInput input) {
-        return field;
+    public ParseAndValidateResult validateInputWithSchema(String inputText, Map<String, Object> variables, String schemaText, GraphQLVisitor visitor) {
+        return validateInputWithSchema(inputText, null, variables, schemaText, GraphQLContextVisitor.of(visitor));
     }
 
-    private Field processUnionField(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLUnionType outputType, GraphQLVisitor visitor, ExecutionInput input) {
-        return field;
+    public ParseAndValidateResult validateInputWithSchema(String inputText, String operationName, Map<String, Object> variables, String schemaText, GraphQLVisitor visitor) {
+        return validateInputWithSchema(inputText, operationName, variables, schemaText, GraphQLContextVisitor.of(visitor));
     }
 
-    private Field processScalarField(Field field, GraphQLFieldDefinition fieldDefinition, GraphQLScalarType outputType, GraphQLVisitor visitor, ExecutionInput input) {
-        return field;
+    public ParseAndValidateResult validateInputWithSchema(String inputText, Map<String, Object> variables, String schemaText, GraphQLContextVisitor visitor) {
+        return validateInputWithSchema(inputText, null, variables, schemaText, visitor);
     }
 
+    public ParseAndValidateResult validateInputWithSchema(String inputText, String operationName, Map<String, Object> variables, String schemaText, GraphQLContextVisitor visitor) {
+        return validateInputWithSchema(inputText, operationName, variables, schemaText, visitor, null);
+    }
 
+    public ParseAndValidateResult validateInputWithSchema(String inputText, String operationName, Map<String, Object> variables, String schemaText, GraphQLContextVisitor visitor, SourcePatch patch) {
+        Pair<CompiledSchema, List<ValidationError>> result = compileSchema(schemaText);
+        CompiledSchema compiledSchema = result.getValue0();
+        List<ValidationError> errors = result.getValue1();
+        if (errors != null) {
+            return ParseAndValidateResult.newResult()
+                    .validationErrors(errors)
+                    .build();
+        }
 
-    public String loadResourceAsString(String resourcePath) throws IOException {
-        URL url = GraphQLCallout.class.getResource(resourcePath);
-        String data = new String(Files.readAllBytes(Paths.get(url.getPath())));
-        return data;
+        return parseAndValidate(inputText, operationName, variables, compiledSchema, visitor, ValidationOptions.newOptions().patch(patch).build());
     }
 
-    public Pair<GraphQLSchema, List<ValidationError>> parseGraphQLSchema(String text) {
-        Integer hash = text.hashCode();
-        //if schema already parsed, re-use it
-        if (parsedSchemas.containsKey(hash)) {
-            logger.stdout.printf("%s\n", "re-using parsed schema");
-            return new Pair<>(parsedSchemas.get(hash), null);
+    /**
+     * Picks the coercing of a custom scalar: the format named by its @scalar directive (either a {@link ScalarFormat},
+     * or one of the graphql-java-extended-scalars), the format of its well-known @specifiedBy URL, or else
+     * a coercing that accepts anything.
+     */
+    private Coercing<?, ?> buildCoercing(ScalarTypeDefinition scalar) {
+        String formatName = GraphQLUtil.getStringArgument(scalar.getDirectives(), ScalarFormat.SCALAR_DIRECTIVE, ScalarFormat.FORMAT_ARGUMENT);
+        if (formatName != null) {
+            ScalarFormat format = ScalarFormat.forName(formatName);
+            if (format != null) {
+                return new GraphQLFormatCoercing(scalar.getName(), format);
+            }
+
+            GraphQLScalarType extendedScalar = EXTENDED_SCALARS.get(formatName);
+            if (extendedScalar != null) {
+                return extendedScalar.getCoercing();
+            }
+
+            throw new SchemaProblem(Collections.singletonList(GraphqlErrorBuilder.newError()
+                    .message("unknown format '%s' for scalar '%s'", formatName, scalar.getName())
+                    .location(scalar.getSourceLocation())
+                    .build()));
         }
 
-        try {
-            logger.stdout.printf("%s\n", "parsing schema");
-
-            SchemaParser schemaParser = new SchemaParser();
-            SchemaGenerator schemaGenerator = new SchemaGenerator();
-            TypeDefinitionRegistry typeRegistry = new TypeDefinitionRegistry();
-            typeRegistry.merge(schemaParser.parse(text));
-
-            GraphQLSchema graphQLSchema = schemaGenerator.makeExecutableSchema(typeRegistry, buildRuntimeWiring(typeRegistry));
-
-            parsedSchemas.put(hash, graphQLSchema);
-            return new Pair<>(graphQLSchema, null);
-        }catch (SchemaProblem ex) {
-            List<ValidationError> errors =  new ArrayList<>();
-            for (GraphQLError error : ex.getErrors()) {
-                errors.add(ValidationError.newValidationError()
-                        .description(error.getMessage())
-                        .build());
+        String specifiedByUrl = GraphQLUtil.getStringArgument(scalar.getDirectives(), SPECIFIED_BY_DIRECTIVE, "url");
+        if (specifiedByUrl != null) {
+            ScalarFormat format = ScalarFormat.forSpecifiedByUrl(specifiedByUrl);
+            if (format != null) {
+                return new GraphQLFormatCoercing(scalar.getName(), format);
             }
-            return new Pair<>(null, errors);
         }
+
+        return new GraphQLAnyCoercing();
     }
 
-    public ParseAndValidateResult validateInputWithSchema(String inputText, Map<String, Object> variables, String schemaText, GraphQLVisitor visitor) {
-        Pair<GraphQLSchema, List<ValidationError>> result = parseGraphQLSchema(schemaText);
-        GraphQLSchema graphQLSchema = result.getValue0();
-        List<ValidationError> errors = result.getValue1();
-        if (errors != null) {
-            return ParseAndValidateResult.newResult()
-                    .validationErrors(errors)
-                    .build();
+    private static Map<String, GraphQLScalarType> loadExtendedScalars() {
+        Map<String, GraphQLScalarType> scalars = new HashMap<>();
+        for (java.lang.reflect.Field field : ExtendedScalars.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == GraphQLScalarType.class) {
+                try {
+                    GraphQLScalarType scalar = (GraphQLScalarType) field.get(null);
+                    scalars.put(scalar.getName(), scalar);
+                } catch (IllegalAccessException ex) {
+                    //not a scalar we can use
+                }
+            }
         }
-
-        return parseAndValidate(inputText, variables, graphQLSchema, visitor);
+        return Collections.unmodifiableMap(scalars);
     }
 
     private RuntimeWiring buildRuntimeWiring(TypeDefinitionRegistry typeRegistry) {
@@ -425,7 +502,15 @@ public class GraphQLProcessor {
             if (nativeScalars.contains(scalarName)) {
                 continue;
             }
-            builder.scalar(GraphQLScalarType.newScalar().name(scalarName).coercing(new GraphQLAnyCoercing()).build());
+            builder.scalar(GraphQLScalarType.newScalar().name(scalarName).coercing(buildCoercing(scalar)).build());
+        }
+
+        //queries are never executed, abstract types only need a placeholder type resolver
+        List<TypeDefinition<?>> abstractTypes = new ArrayList<>();
+        abstractTypes.addAll(typeRegistry.getTypes(InterfaceTypeDefinition.class));
+        abstractTypes.addAll(typeRegistry.getTypes(UnionTypeDefinition.class));
+        for (TypeDefinition<?> abstractType : abstractTypes) {
+            builder.type(TypeRuntimeWiring.newTypeWiring(abstractType.getName()).typeResolver(env -> null));
         }
 
         return builder.build();
@@ -0,0 +1,747 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.graphql.CompiledSchema.*;
+import graphql.ExecutionInput;
+import graphql.GraphQLException;
+import graphql.language.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks a selection set and its arguments using an explicit work stack instead of recursion.
+ * <p>
+ * The stack depth of the calling thread stays constant regardless of how deeply the query is nested.
+ * Frames are reused across requests (one traverser per thread), and AST nodes are only rebuilt
+ * when something below them changed, so untouched subtrees are returned as-is.
+ * <p>
+ * Enter callbacks are invoked in the same pre-order as the recursive processing they replace:
+ * output field, then its arguments (and their input fields), then its sub-selections. Leave callbacks
+ * are invoked once all the children of a node have been processed.
+ * <p>
+ * When a {@link SourcePatch} is given, every removal or replacement is also recorded against the
+ * source text, so the output can be produced without re-printing the document.
+ * <p>
+ * Every step of the loop is counted against the request's {@link ValidationBudget}.
+ * <p>
+ * Selections excluded by @skip or @include are removed without being visited, so the visitor does no work
+ * on subtrees the backend would not execute.
+ */
+class GraphQLTraverser {
+    private static final ThreadLocal<GraphQLTraverser> TRAVERSERS = ThreadLocal.withInitial(GraphQLTraverser::new);
+
+    static final int SELECTION_SET = 0;
+    static final int FIELD = 1;
+    static final int INLINE_FRAGMENT = 2;
+    static final int ARGUMENT = 3;
+    static final int OBJECT_VALUE = 4;
+    static final int OBJECT_FIELD = 5;
+    static final int ARRAY_VALUE = 6;
+
+    private Frame[] stack = new Frame[32];
+    private int top = -1;
+    private boolean active;
+
+    private final GraphQLVisitorContext ctx = new GraphQLVisitorContext();
+    private CompiledSchema compiledSchema;
+    private FieldUsage usage;
+    private GraphQLContextVisitor visitor;
+    private SourcePatch patch;
+    private Map<String, Object> conditionVariables;
+    private int excludedSelections;
+
+    //number of FIELD frames on the stack, i.e. the nesting of the current selection set
+    private int fieldFrames;
+
+    //number of frames on the stack whose node was replaced by the visitor
+    private int replacedFrames;
+
+    /**
+     * @return the traverser of the current thread, or a new one if it is already in use
+     */
+    static GraphQLTraverser get() {
+        GraphQLTraverser traverser = TRAVERSERS.get();
+        return traverser.active ? new GraphQLTraverser() : traverser;
+    }
+
+    /**
+     * Starts a request, resetting the visitor context.
+     *
+     * @param patch      where to record edits, or null
+     * @param countUsage whether the fields visited are counted in the usage of the schema
+     */
+    void begin(CompiledSchema compiledSchema, GraphQLContextVisitor visitor, ExecutionInput input, SourcePatch patch, boolean countUsage) {
+        this.compiledSchema = compiledSchema;
+        this.usage = countUsage ? compiledSchema.getUsage() : null;
+        this.visitor = visitor;
+        this.patch = patch;
+        this.replacedFrames = 0;
+        this.conditionVariables = null;
+        this.excludedSelections = 0;
+        this.fieldFrames = 0;
+        this.active = true;
+        ctx.reset(compiledSchema, input);
+    }
+
+    /**
+     * Ends a request, releasing every reference to it.
+     */
+    void end() {
+        this.compiledSchema = null;
+        this.usage = null;
+        this.visitor = null;
+        this.patch = null;
+        this.conditionVariables = null;
+        this.active = false;
+        ctx.reset(null, null);
+    }
+
+    GraphQLVisitorContext getContext() {
+        return ctx;
+    }
+
+    /**
+     * @param conditionVariables values for evaluating @skip and @include, see {@link GraphQLUtil#getConditionVariables}
+     */
+    void setConditionVariables(Map<String, Object> conditionVariables) {
+        this.conditionVariables = conditionVariables;
+    }
+
+    /**
+     * @return the number of selections removed because of @skip or @include since the request started
+     */
+    int getExcludedSelections() {
+        return excludedSelections;
+    }
+
+    /**
+     * Processes one operation or fragment selection set.
+     *
+     * @param rootPathSegment first segment of the path reported to visitors, or null
+     */
+    SelectionSet traverse(SelectionSet selectionSet, CompositeTypeInfo parentType, Object rootPathSegment) {
+        while (ctx.getDepth() > 0) {
+            ctx.popPath();
+        }
+        if (rootPathSegment != null) {
+            ctx.pushPath(rootPathSegment);
+        }
+
+        try {
+            Frame root = push(SELECTION_SET, selectionSet, selectionSet);
+            root.children = selectionSet.getSelections();
+            root.compositeType = parentType;
+
+            while (true) {
+                ctx.visitNode();
+                Frame frame = stack[top];
+                if (step(frame)) {
+                    continue;
+                }
+
+                Node<?> source = frame.source;
+                boolean replaced = frame.node != source;
+                Node<?> result = finish(frame);
+                if (frame.pathPushed) {
+                    ctx.popPath();
+                }
+                pop();
+                if (top < 0) {
+                    return (SelectionSet) result;
+                }
+                if (replaced) {
+                    replaced(stack[top], source, result);
+                }
+                accept(stack[top], source, result);
+            }
+        } finally {
+            while (top >= 0) {
+                pop();
+            }
+        }
+    }
+
+    /**
+     * Processes the next child of the given frame, either directly or by pushing a new frame.
+     *
+     * @return false if the frame has no more children
+     */
+    private boolean step(Frame frame) {
+        switch (frame.kind) {
+            case SELECTION_SET:
+                if (frame.index >= frame.children.size()) {
+                    return false;
+                }
+                enterSelection(frame, (Selection<?>) frame.children.get(frame.index));
+                return true;
+            case FIELD:
+                if (frame.phase == 0) {
+                    if (frame.index < frame.children.size()) {
+                        enterArgument(frame, (Argument) frame.children.get(frame.index));
+                        return true;
+                    }
+                    frame.phase = 1;
+                    SelectionSet selectionSet = ((Field) frame.node).getSelectionSet();
+                    CompositeTypeInfo fieldType = frame.fieldInfo.getCompositeType();
+                    if (fieldType != null && selectionSet != null) {
+                        Frame child = push(SELECTION_SET, selectionSet, selectionSet);
+                        child.children = selectionSet.getSelections();
+                        child.compositeType = fieldType;
+                        return true;
+                    }
+                }
+                return false;
+            case INLINE_FRAGMENT:
+                if (frame.phase == 0) {
+                    frame.phase = 1;
+                    SelectionSet selectionSet = ((InlineFragment) frame.node).getSelectionSet();
+                    Frame child = push(SELECTION_SET, selectionSet, selectionSet);
+                    child.children = selectionSet.getSelections();
+                    child.compositeType = frame.compositeType;
+                    return true;
+                }
+                return false;
+            case ARGUMENT:
+                if (frame.phase == 0) {
+                    enterValue(frame, ((Argument) frame.node).getValue(), frame.inputType, frame.inputName, null);
+                    return true;
+                }
+                return false;
+            case OBJECT_FIELD:
+                if (frame.phase == 0) {
+                    enterValue(frame, ((ObjectField) frame.node).getValue(), frame.inputType, frame.inputName, null);
+                    return true;
+                }
+                return false;
+            case OBJECT_VALUE:
+                if (frame.index >= frame.children.size()) {
+                    return false;
+                }
+                enterObjectField(frame, (ObjectField) frame.children.get(frame.index));
+                return true;
+            case ARRAY_VALUE:
+                if (frame.index >= frame.children.size()) {
+                    return false;
+                }
+                enterValue(frame, (Value<?>) frame.children.get(frame.index), frame.inputType, frame.inputName, frame.index);
+                return true;
+            default:
+                throw new IllegalStateException("unknown frame kind " + frame.kind);
+        }
+    }
+
+    private void enterSelection(Frame parent, Selection<?> selection) {
+        if (conditionVariables != null && GraphQLUtil.isExcluded(((DirectivesContainer<?>) selection).getDirectives(), conditionVariables)) {
+            excludedSelections++;
+            accept(parent, selection, null);
+            return;
+        }
+
+        if (selection instanceof Field) {
+            enterField(parent, (Field) selection);
+        } else if (selection instanceof InlineFragment) {
+            enterInlineFragment(parent, (InlineFragment) selection);
+        } else {
+            //Fragment spreads are processed along with their fragment definition
+            if (selection instanceof FragmentSpread) {
+                ctx.getCost().spread(((FragmentSpread) selection).getName(), fieldFrames);
+            }
+            accept(parent, selection, selection);
+        }
+    }
+
+    private void enterField(Frame parent, Field field) {
+        String fieldName = field.getName();
+        if (fieldName.startsWith("__")) {
+            //ignore introspection and meta fields (__schema, __type, __typename)
+            accept(parent, field, field);
+            return;
+        }
+
+        FieldInfo fieldInfo = parent.compositeType.getField(fieldName);
+        if (fieldInfo == null) {
+            throw new GraphQLException("Could not find type for field " + fieldName);
+        }
+        if (usage != null) {
+            usage.increment(fieldInfo.getIndex());
+        }
+        ctx.getCost().touch(fieldInfo.getIndex());
+
+        ctx.pushPath(field.getResultKey());
+        ctx.setCurrent(field, parent.compositeType.getType(), fieldInfo);
+
+        Field visited = field;
+        if (visitor != null) {
+            visited = visitor.enterOutputField(field, fieldInfo.getDefinition(), ctx);
+            if (visited == null) {
+                ctx.popPath();
+                accept(parent, field, null);
+                return;
+            }
+        }
+        ctx.getCachePolicy().restrict(fieldInfo.getCacheMaxAge(), fieldInfo.isCachePrivate());
+        ctx.getCost().field(fieldFrames + 1);
+
+        List<Argument> arguments = visited.getArguments();
+        if (arguments.isEmpty() && (fieldInfo.getCompositeType() == null || visited.getSelectionSet() == null)) {
+            if (visitor != null) {
+                ctx.setCurrent(visited, parent.compositeType.getType(), fieldInfo);
+                visitor.leaveOutputField(visited, fieldInfo.getDefinition(), ctx);
+            }
+            ctx.popPath();
+            if (visited != field) {
+                replaced(parent, field, visited);
+            }
+            accept(parent, field, visited);
+            return;
+        }
+
+        Frame frame = push(FIELD, field, visited);
+        frame.children = arguments;
+        frame.fieldInfo = fieldInfo;
+        frame.pathPushed = true;
+    }
+
+    private void enterInlineFragment(Frame parent, InlineFragment inlineFragment) {
+        CompositeTypeInfo fragmentType = parent.compositeType;
+        TypeName typeCondition = inlineFragment.getTypeCondition();
+        if (typeCondition != null) {
+            fragmentType = compiledSchema.getCompositeType(typeCondition.getName());
+            if (fragmentType == null) {
+                throw new GraphQLException("Could not find type for inline fragment on " + typeCondition.getName());
+            }
+        }
+
+        Frame frame = push(INLINE_FRAGMENT, inlineFragment, inlineFragment);
+        frame.compositeType = fragmentType;
+    }
+
+    private void enterArgument(Frame parent, Argument argument) {
+        ArgumentInfo argumentInfo = parent.fieldInfo.getArgument(argument.getName());
+        if (argumentInfo == null) {
+            throw new GraphQLException("could not find argument type for " + argument.getName());
+        }
+
+        ctx.pushPath(argument.getName());
+        ctx.setCurrent(argument, parent.fieldInfo.getParent().getType(), parent.fieldInfo);
+
+        Argument visited = argument;
+        if (visitor != null) {
+            visited = visitor.enterArgument(argument, argumentInfo.getDefinition(), ctx);
+            if (visited == null) {
+                ctx.popPath();
+                accept(parent, argument, null);
+                return;
+            }
+        }
+
+        if (argumentInfo.getType().getKind() == InputTypeInfo.LEAF) {
+            //Scalar, Enum
+            if (visitor != null) {
+                ctx.setCurrent(visited, parent.fieldInfo.getParent().getType(), parent.fieldInfo);
+                visitor.leaveArgument(visited, argumentInfo.getDefinition(), ctx);
+            }
+            ctx.popPath();
+            if (visited != argument) {
+                replaced(parent, argument, visited);
+            }
+            accept(parent, argument, visited);
+            return;
+        }
+
+        Frame frame = push(ARGUMENT, argument, visited);
+        frame.inputType = argumentInfo.getType();
+        frame.inputName = argumentInfo.getDefinition().getName();
+        frame.argumentInfo = argumentInfo;
+        frame.fieldInfo = parent.fieldInfo;
+        frame.pathPushed = true;
+    }
+
+    private void enterObjectField(Frame parent, ObjectField field) {
+        InputFieldInfo fieldInfo = parent.inputObject.getField(field.getName());
+        if (fieldInfo == null) {
+            throw new GraphQLException("field " + field.getName() + " not found in type " + parent.inputObject.getName());
+        }
+
+        ctx.pushPath(field.getName());
+        ctx.setCurrent(field, parent.inputObject.getType(), null);
+
+        ObjectField visited = field;
+        if (visitor != null) {
+            visited = visitor.enterInputField(field, fieldInfo.getDefinition(), ctx);
+            if (visited == null) {
+                ctx.popPath();
+                accept(parent, field, null);
+                return;
+            }
+        }
+
+        Frame frame = push(OBJECT_FIELD, field, visited);
+        frame.inputType = fieldInfo.getType();
+        frame.inputName = fieldInfo.getDefinition().getName();
+        frame.inputFieldInfo = fieldInfo;
+        frame.inputObject = parent.inputObject;
+        frame.pathPushed = true;
+    }
+
+    private void enterValue(Frame parent, Value<?> value, InputTypeInfo valueType, String inputName, Object pathSegment) {
+        if (pathSegment != null) {
+            ctx.pushPath(pathSegment);
+        }
+
+        Frame frame = enterValue(parent, value, valueType, inputName);
+
+        if (pathSegment != null) {
+            if (frame != null) {
+                frame.pathPushed = true;
+            } else {
+                ctx.popPath();
+            }
+        }
+    }
+
+    /**
+     * @return the frame pushed for the value, or null if the value was accepted directly
+     */
+    private Frame enterValue(Frame parent, Value<?> value, InputTypeInfo valueType, String inputName) {
+        if (value instanceof VariableReference || value instanceof NullValue) {
+            if (value instanceof VariableReference && visitor != null && valueType.getKind() != InputTypeInfo.LEAF) {
+                //the value is forwarded as a reference, but its input fields are checked against the coerced value
+                ctx.setCurrent(value, null, null);
+                VariableReference reference = (VariableReference) value;
+                enterVariableValue(reference, ctx.getVariable(reference.getName()), valueType);
+            }
+            accept(parent, value, value);
+            return null;
+        }
+
+        switch (valueType.getKind()) {
+            case InputTypeInfo.INPUT_OBJECT:
+                if (!(value instanceof ObjectValue)) {
+                    throw new GraphQLValidationException("expected " + ObjectValue.class.getSimpleName() + ", but found " + value.getClass().getSimpleName() + " for input field " + inputName);
+                }
+                Frame objectFrame = push(OBJECT_VALUE, value, value);
+                objectFrame.children = ((ObjectValue) value).getObjectFields();
+                objectFrame.inputObject = valueType.getInputObject();
+                return objectFrame;
+            case InputTypeInfo.LIST:
+                if (!(value instanceof ArrayValue)) {
+                    //a single value is coerced into a list of one element
+                    return enterValue(parent, value, valueType.getElementType(), inputName);
+                }
+                Frame arrayFrame = push(ARRAY_VALUE, value, value);
+                arrayFrame.children = ((ArrayValue) value).getValues();
+                arrayFrame.inputType = valueType.getElementType();
+                arrayFrame.inputName = inputName;
+                return arrayFrame;
+            default:
+                //Scalar, Enum
+                accept(parent, value, value);
+                return null;
+        }
+    }
+
+    /**
+     * Visits the input fields of a coerced variable value (Maps for input objects, Lists for lists). Unlike the
+     * document, the value is walked recursively: its depth is bounded by the nesting of the input types, and
+     * graphql-java already walked it recursively to coerce it.
+     *
+     * @param reference the variable reference, the current node while its value is visited
+     */
+    private void enterVariableValue(VariableReference reference, Object value, InputTypeInfo valueType) {
+        if (value == null) {
+            return;
+        }
+        ctx.visitNode();
+
+        switch (valueType.getKind()) {
+            case InputTypeInfo.INPUT_OBJECT:
+                if (!(value instanceof Map)) {
+                    return;
+                }
+                InputObjectInfo inputObject = valueType.getInputObject();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    String name = String.valueOf(entry.getKey());
+                    InputFieldInfo fieldInfo = inputObject.getField(name);
+                    if (fieldInfo == null) {
+                        continue;
+                    }
+                    ctx.pushPath(name);
+                    ctx.setCurrent(reference, inputObject.getType(), null);
+                    visitor.enterInputFieldValue(name, entry.getValue(), fieldInfo.getDefinition(), ctx);
+                    enterVariableValue(reference, entry.getValue(), fieldInfo.getType());
+                    ctx.popPath();
+                }
+                return;
+            case InputTypeInfo.LIST:
+                if (!(value instanceof List)) {
+                    enterVariableValue(reference, value, valueType.getElementType());
+                    return;
+                }
+                List<?> elements = (List<?>) value;
+                for (int i = 0; i < elements.size(); i++) {
+                    ctx.pushPath(i);
+                    enterVariableValue(reference, elements.get(i), valueType.getElementType());
+                    ctx.popPath();
+                }
+                return;
+            default:
+                //Scalar, Enum
+                break;
+        }
+    }
+
+    /**
+     * Records the result of processing one child of the given frame.
+     * A null result removes the child.
+     */
+    private void accept(Frame parent, Node<?> source, Node<?> result) {
+        boolean multiChild = parent.kind == SELECTION_SET || parent.kind == OBJECT_VALUE || parent.kind == ARRAY_VALUE
+                || (parent.kind == FIELD && parent.phase == 0);
+
+        if (!multiChild) {
+            parent.single = result;
+            parent.singleChanged = result != source;
+            parent.phase = 1;
+            return;
+        }
+
+        if (parent.out == null && result != source) {
+            parent.out = new ArrayList<>(parent.children.size());
+            for (int i = 0; i < parent.index; i++) {
+                parent.out.add((Node<?>) parent.children.get(i));
+            }
+        }
+
+        if (parent.out != null && result != null) {
+            parent.out.add(result);
+        }
+        if (result == null && patch != null && replacedFrames == 0) {
+            patch.remove(source, nextSibling(parent));
+        }
+        parent.index++;
+    }
+
+    /**
+     * Records that the current child of the given frame was replaced by the visitor.
+     */
+    private void replaced(Frame parent, Node<?> source, Node<?> result) {
+        if (patch != null && replacedFrames == 0) {
+            patch.replace(source, nextSibling(parent), result);
+        }
+    }
+
+    /**
+     * @return the child following the current child of the given frame, or null
+     */
+    private static Node<?> nextSibling(Frame parent) {
+        int next = parent.index + 1;
+        return next < parent.children.size() ? (Node<?>) parent.children.get(next) : null;
+    }
+
+    /**
+     * @return the node for a frame whose children have all been processed
+     */
+    private Node<?> finish(Frame frame) {
+        Node<?> result = build(frame);
+
+        if (visitor == null) {
+            return result;
+        }
+
+        switch (frame.kind) {
+            case FIELD:
+                ctx.setCurrent(result, frame.fieldInfo.getParent().getType(), frame.fieldInfo);
+                visitor.leaveOutputField((Field) result, frame.fieldInfo.getDefinition(), ctx);
+                break;
+            case ARGUMENT:
+                ctx.setCurrent(result, frame.fieldInfo.getParent().getType(), frame.fieldInfo);
+                visitor.leaveArgument((Argument) result, frame.argumentInfo.getDefinition(), ctx);
+                break;
+            case OBJECT_FIELD:
+                ctx.setCurrent(result, frame.inputObject.getType(), null);
+                visitor.leaveInputField((ObjectField) result, frame.inputFieldInfo.getDefinition(), ctx);
+                break;
+            default:
+                break;
+        }
+
+        return result;
+    }
+
+    private Node<?> build(Frame frame) {
+        Node<?> node = frame.node;
+        List<Node<?>> out = frame.out;
+        Node<?> single = frame.single;
+
+        switch (frame.kind) {
+            case SELECTION_SET:
+                if (out == null) {
+                    return node;
+                }
+                if (out.isEmpty() && !frame.children.isEmpty()) {
+                    //every selection was removed, keep the selection set valid
+                    out.add(new Field(GraphQLProcessor.TYPENAME_FIELD));
+                    SelectionSet placeholder = ((SelectionSet) node).transform(builder -> builder.selections(children(out)));
+                    if (patch != null && replacedFrames == 0) {
+                        patch.replaceBlock(frame.source, placeholder);
+                    }
+                    return placeholder;
+                }
+                return ((SelectionSet) node).transform(builder -> builder.selections(children(out)));
+            case FIELD:
+                if (out == null && !frame.singleChanged) {
+                    return node;
+                }
+                boolean selectionSetChanged = frame.singleChanged;
+                Field field = ((Field) node).transform(builder -> {
+                    if (out != null) {
+                        builder.arguments(children(out));
+                    }
+                    if (selectionSetChanged) {
+                        builder.selectionSet((SelectionSet) single);
+                    }
+                });
+                if (out != null && out.isEmpty() && patch != null && replacedFrames == 0) {
+                    //every argument was removed, empty parentheses are not valid
+                    patch.replace(frame.source, nextSibling(stack[top - 1]), field);
+                }
+                return field;
+            case INLINE_FRAGMENT:
+                if (!frame.singleChanged) {
+                    return node;
+                }
+                return ((InlineFragment) node).transform(builder -> builder.selectionSet((SelectionSet) single));
+            case ARGUMENT:
+                if (!frame.singleChanged) {
+                    return node;
+                }
+                return ((Argument) node).transform(builder -> builder.value((Value<?>) single));
+            case OBJECT_FIELD:
+                if (!frame.singleChanged) {
+                    return node;
+                }
+                return ((ObjectField) node).transform(builder -> builder.value((Value<?>) single));
+            case OBJECT_VALUE:
+                if (out == null) {
+                    return node;
+                }
+                return ((ObjectValue) node).transform(builder -> builder.objectFields(children(out)));
+            case ARRAY_VALUE:
+                if (out == null) {
+                    return node;
+                }
+                return ((ArrayValue) node).transform(builder -> builder.values(children(out)));
+            default:
+                throw new IllegalStateException("unknown frame kind " + frame.kind);
+        }
+    }
+
+    /**
+     * @return the processed children of a frame, as the list type its node's builder takes
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> children(List<Node<?>> out) {
+        return (List<T>) (List<?>) out;
+    }
+
+    private Frame push(int kind, Node<?> source, Node<?> node) {
+        top++;
+        if (top == stack.length) {
+            Frame[] newStack = new Frame[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+
+        Frame frame = stack[top];
+        if (frame == null) {
+            frame = new Frame();
+            stack[top] = frame;
+        }
+
+        if (kind == FIELD) {
+            fieldFrames++;
+        }
+        frame.kind = kind;
+        frame.source = source;
+        frame.node = node;
+        if (node != source) {
+            replacedFrames++;
+        }
+        return frame;
+    }
+
+    private void pop() {
+        Frame frame = stack[top];
+        if (frame.node != frame.source) {
+            replacedFrames--;
+        }
+        if (frame.kind == FIELD) {
+            fieldFrames--;
+        }
+        frame.reset();
+        top--;
+    }
+
+    /**
+     * Traversal state of one AST node.
+     */
+    private static final class Frame {
+        int kind;
+        int phase;
+        int index;
+
+        //the node as found in the parent, and the node as returned by the visitor
+        Node<?> source;
+        Node<?> node;
+
+        List<?> children;
+        List<Node<?>> out;
+
+        Node<?> single;
+        boolean singleChanged;
+
+        CompositeTypeInfo compositeType;
+        FieldInfo fieldInfo;
+        InputTypeInfo inputType;
+        InputObjectInfo inputObject;
+        String inputName;
+        ArgumentInfo argumentInfo;
+        InputFieldInfo inputFieldInfo;
+        boolean pathPushed;
+
+        void reset() {
+            phase = 0;
+            index = 0;
+            source = null;
+            node = null;
+            children = null;
+            out = null;
+            single = null;
+            singleChanged = false;
+            compositeType = null;
+            fieldInfo = null;
+            inputType = null;
+            inputObject = null;
+            inputName = null;
+            argumentInfo = null;
+            inputFieldInfo = null;
+            pathPushed = false;
+        }
+    }
+}
@@ -14,16 +14,21 @@
 
 package com.google.apigee.callouts.graphql;
 
-import graphql.language.ObjectField;
-import graphql.language.StringValue;
-import graphql.language.Value;
+import graphql.language.*;
 import graphql.scalar.*;
-import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLAppliedDirective;
+import graphql.schema.GraphQLAppliedDirectiveArgument;
 import graphql.schema.GraphQLDirective;
 import graphql.schema.GraphQLScalarType;
 import graphql.schema.InputValueWithState;
 
+import java.math.BigDecimal;
+import java.util.*;
+
 public class GraphQLUtil {
+    public static final String SKIP_DIRECTIVE = "skip";
+    public static final String INCLUDE_DIRECTIVE = "include";
+    private static final String CONDITION_ARGUMENT = "if";
 
     public static GraphQLScalarType newScalar(String name, String type) {
 
@@ -47,7 +52,7 @@ public class GraphQLUtil {
             return null;
         }
 
-        Value value = field.getValue();
+        Value<?> value = field.getValue();
         if (value == null || !(value instanceof StringValue)) {
             return null;
         }
@@ -59,39 +64,311 @@ public class GraphQLUtil {
     }
 
     public static String getStringArgument(GraphQLDirective directive, String argumentName) {
-        if (directive == null) {
+        return getStringArgument(directive == null ? null : directive.toAppliedDirective(), argumentName);
+    }
+
+    public static String getStringArgument(GraphQLAppliedDirective directive, String argumentName) {
+        Value<?> value = getArgumentLiteral(directive, argumentName);
+        if (value == null || !(value instanceof StringValue)) {
             return "";
         }
 
-        GraphQLArgument arg = directive.getArgument(argumentName);
+        String strValue = ((StringValue) value).getValue();
+        if (strValue == null) {
+            return  "";
+        }
+
+        return strValue;
+    }
+
+    /**
+     * @return the literal value of a directive argument, or its default value, or null if neither is set
+     */
+    public static Value<?> getArgumentLiteral(GraphQLAppliedDirective directive, String argumentName) {
+        GraphQLAppliedDirectiveArgument arg = directive == null ? null : directive.getArgument(argumentName);
         if (arg == null) {
-            return "";
+            return null;
         }
 
-        InputValueWithState argumentValue;
+        //applied arguments hold the default value when the schema does not set one
+        InputValueWithState argumentValue = arg.getArgumentValue();
+        if (argumentValue == null || !argumentValue.isLiteral()) {
+            return null;
+        }
+        return (Value<?>) argumentValue.getValue();
+    }
 
-        if (arg.hasSetValue()) {
-            argumentValue = arg.getArgumentValue();
-        } else if (arg.hasSetDefaultValue()) {
-            argumentValue = arg.getArgumentDefaultValue();
-        } else {
-            return "";
+    public static Integer getIntArgument(GraphQLAppliedDirective directive, String argumentName) {
+        Value<?> value = getArgumentLiteral(directive, argumentName);
+        return value instanceof IntValue ? ((IntValue) value).getValue().intValue() : null;
+    }
+
+    /**
+     * @return the value of an Int or Float argument, or null if it is not set
+     */
+    public static Double getNumberArgument(GraphQLAppliedDirective directive, String argumentName) {
+        Value<?> value = getArgumentLiteral(directive, argumentName);
+        if (value instanceof IntValue) {
+            return ((IntValue) value).getValue().doubleValue();
         }
+        return value instanceof FloatValue ? ((FloatValue) value).getValue().doubleValue() : null;
+    }
 
-        if (argumentValue == null) {
-            return "";
+    /**
+     * Converts a literal to the value a server would receive, with variable references replaced by their values:
+     * String, BigDecimal, Boolean, enum name, List, Map or null.
+     */
+    public static Object getValue(Value<?> value, Map<String, Object> variables) {
+        if (value instanceof VariableReference) {
+            return variables == null ? null : variables.get(((VariableReference) value).getName());
+        } else if (value instanceof StringValue) {
+            return ((StringValue) value).getValue();
+        } else if (value instanceof IntValue) {
+            return new BigDecimal(((IntValue) value).getValue());
+        } else if (value instanceof FloatValue) {
+            return ((FloatValue) value).getValue();
+        } else if (value instanceof BooleanValue) {
+            return ((BooleanValue) value).isValue();
+        } else if (value instanceof EnumValue) {
+            return ((EnumValue) value).getName();
+        } else if (value instanceof ArrayValue) {
+            ArrayValue array = (ArrayValue) value;
+            List<Object> list = new ArrayList<>(array.getValues().size());
+            for (Value<?> element : array.getValues()) {
+                list.add(getValue(element, variables));
+            }
+            return list;
+        } else if (value instanceof ObjectValue) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (ObjectField field : ((ObjectValue) value).getObjectFields()) {
+                map.put(field.getName(), getValue(field.getValue(), variables));
+            }
+            return map;
         }
+        return null;
+    }
 
-        Object value = argumentValue.getValue();
-        if (value == null || !(value instanceof StringValue)) {
-            return "";
+    public static boolean getBooleanArgument(GraphQLAppliedDirective directive, String argumentName) {
+        Value<?> value = getArgumentLiteral(directive, argumentName);
+        return value instanceof BooleanValue && ((BooleanValue) value).isValue();
+    }
+
+    /**
+     * @return the values of a [String] argument, a single string is read as a list of one
+     */
+    public static List<String> getStringListArgument(GraphQLAppliedDirective directive, String argumentName) {
+        Value<?> value = getArgumentLiteral(directive, argumentName);
+        List<?> values = value instanceof ArrayValue ? ((ArrayValue) value).getValues()
+                : value == null ? Collections.emptyList() : Collections.singletonList(value);
+
+        List<String> strings = new ArrayList<>(values.size());
+        for (Object element : values) {
+            if (element instanceof StringValue) {
+                strings.add(((StringValue) element).getValue());
+            }
         }
+        return strings;
+    }
 
-        String strValue = ((StringValue) value).getValue();
-        if (strValue == null) {
-            return  "";
+    /**
+     * @return the value of a string argument of a directive applied in the SDL, or null if either is missing
+     */
+    public static String getStringArgument(List<Directive> directives, String directiveName, String argumentName) {
+        for (int i = 0; i < directives.size(); i++) {
+            Directive directive = directives.get(i);
+            if (!directive.getName().equals(directiveName)) {
+                continue;
+            }
+
+            Argument argument = directive.getArgument(argumentName);
+            if (argument != null && argument.getValue() instanceof StringValue) {
+                return ((StringValue) argument.getValue()).getValue();
+            }
         }
+        return null;
+    }
 
-        return strValue;
+    /**
+     * JSON parsers read every number as a double, graphql-java only accepts whole numbers as Integer / Long
+     * for some types (e.g. ID). Copies the given variables with whole doubles converted to longs.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T normalizeNumbers(T value) {
+        if (value instanceof Double) {
+            double doubleValue = (Double) value;
+            if (doubleValue == Math.rint(doubleValue) && Math.abs(doubleValue) < 0x1p53) {
+                return (T) Long.valueOf((long) doubleValue);
+            }
+            return value;
+        }
+
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), normalizeNumbers(entry.getValue()));
+            }
+            return (T) copy;
+        }
+
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(normalizeNumbers(element));
+            }
+            return (T) copy;
+        }
+
+        return value;
+    }
+
+    /**
+     * Selects the operation that will be executed for the given operationName,
+     * following the same rules as the GraphQL spec "GetOperation" algorithm.
+     */
+    public static OperationDefinition getOperation(Document document, String operationName) throws GraphQLValidationException {
+        OperationDefinition selected = null;
+        int count = 0;
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (!(definition instanceof OperationDefinition)) {
+                continue;
+            }
+            OperationDefinition operation = (OperationDefinition) definition;
+            count++;
+            if (operationName == null) {
+                selected = operation;
+            } else if (operationName.equals(operation.getName())) {
+                return operation;
+            }
+        }
+
+        if (operationName != null) {
+            throw new GraphQLValidationException("Unknown operation named '" + operationName + "'.");
+        }
+
+        if (count == 0) {
+            throw new GraphQLValidationException("Document does not contain any operations.");
+        }
+
+        if (count > 1) {
+            throw new GraphQLValidationException("Must provide operation name if query contains multiple operations.");
+        }
+
+        return selected;
+    }
+
+    public static Map<String, FragmentDefinition> getFragments(Document document) {
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (definition instanceof FragmentDefinition) {
+                FragmentDefinition fragment = (FragmentDefinition) definition;
+                fragments.put(fragment.getName(), fragment);
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * Collects the names of all fragments transitively referenced by the given operation.
+     */
+    public static Set<String> getUsedFragmentNames(Document document, OperationDefinition operation) {
+        return getUsedFragmentNames(document, operation, null);
+    }
+
+    /**
+     * @param conditionVariables if not null, selections excluded by @skip or @include are not followed,
+     *                           see {@link #isExcluded(List, Map)}
+     */
+    public static Set<String> getUsedFragmentNames(Document document, OperationDefinition operation, Map<String, Object> conditionVariables) {
+        Map<String, FragmentDefinition> fragments = getFragments(document);
+        Set<String> used = new HashSet<>();
+        if (fragments.isEmpty()) {
+            return used;
+        }
+
+        Deque<SelectionSet> pending = new ArrayDeque<>();
+        pending.push(operation.getSelectionSet());
+        while (!pending.isEmpty()) {
+            SelectionSet selectionSet = pending.pop();
+            for (Selection<?> selection : selectionSet.getSelections()) {
+                if (conditionVariables != null && isExcluded(((DirectivesContainer<?>) selection).getDirectives(), conditionVariables)) {
+                    continue;
+                }
+                if (selection instanceof Field) {
+                    SelectionSet fieldSelectionSet = ((Field) selection).getSelectionSet();
+                    if (fieldSelectionSet != null) {
+                        pending.push(fieldSelectionSet);
+                    }
+                } else if (selection instanceof InlineFragment) {
+                    pending.push(((InlineFragment) selection).getSelectionSet());
+                } else if (selection instanceof FragmentSpread) {
+                    String name = ((FragmentSpread) selection).getName();
+                    FragmentDefinition fragment = fragments.get(name);
+                    if (fragment != null && used.add(name)) {
+                        pending.push(fragment.getSelectionSet());
+                    }
+                }
+            }
+        }
+
+        return used;
+    }
+
+    /**
+     * @return the variables of the request, plus the default value of every variable defined by the operation
+     * but not given by the request, for evaluating @skip and @include conditions
+     */
+    public static Map<String, Object> getConditionVariables(OperationDefinition operation, Map<String, Object> variables) {
+        Map<String, Object> conditionVariables = variables == null ? new HashMap<>() : new HashMap<>(variables);
+        for (VariableDefinition variableDefinition : operation.getVariableDefinitions()) {
+            Value<?> defaultValue = variableDefinition.getDefaultValue();
+            if (defaultValue instanceof BooleanValue && !conditionVariables.containsKey(variableDefinition.getName())) {
+                conditionVariables.put(variableDefinition.getName(), ((BooleanValue) defaultValue).isValue());
+            }
+        }
+        return conditionVariables;
+    }
+
+    /**
+     * Evaluates the @skip and @include directives of a selection.
+     * Conditions whose value is not known (e.g. a variable missing from the request) do not exclude the selection.
+     *
+     * @return true if the selection would not be executed
+     */
+    public static boolean isExcluded(List<Directive> directives, Map<String, Object> conditionVariables) {
+        for (int i = 0; i < directives.size(); i++) {
+            Directive directive = directives.get(i);
+            String name = directive.getName();
+            boolean skip = SKIP_DIRECTIVE.equals(name);
+            if (!skip && !INCLUDE_DIRECTIVE.equals(name)) {
+                continue;
+            }
+
+            Argument argument = directive.getArgument(CONDITION_ARGUMENT);
+            Boolean condition = argument == null ? null : getCondition(argument.getValue(), conditionVariables);
+            if (condition != null && condition == skip) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Boolean getCondition(Value<?> value, Map<String, Object> conditionVariables) {
+        if (value instanceof BooleanValue) {
+            return ((BooleanValue) value).isValue();
+        }
+        if (value instanceof VariableReference) {
+            Object variable = conditionVariables.get(((VariableReference) value).getName());
+            return variable instanceof Boolean ? (Boolean) variable : null;
+        }
+        return null;
+    }
+
+    /**
+     * graphql-java builds and compares AST nodes through lists of raw {@link Node}s, {@link Selection}s and
+     * {@link Definition}s. Returns the given list of nodes with the element type the call expects.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> nodes(List<?> nodes) {
+        return (List<T>) nodes;
     }
 }
@@ -15,6 +15,8 @@
 package com.google.apigee.callouts.graphql;
 
 public class GraphQLValidationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public GraphQLValidationException() {
         super();
     }
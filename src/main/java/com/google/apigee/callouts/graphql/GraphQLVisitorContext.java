@@ -0,0 +1,316 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.graphql.CompiledSchema.FieldInfo;
+import graphql.ExecutionInput;
+import graphql.language.Node;
+import graphql.language.ObjectField;
+import graphql.language.SourceLocation;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLType;
+import graphql.validation.ValidationError;
+
+import java.util.*;
+
+/**
+ * Per-request state handed to every {@link GraphQLContextVisitor} callback.
+ * <p>
+ * One instance is kept per thread and reset at the start of each request, so visitors can read
+ * the current path, parent type and variables, share computed values through the scratch storage,
+ * and report errors without allocating anything on their own.
+ */
+public class GraphQLVisitorContext {
+    private static final GraphQLFieldDefinition[] NO_FIELD_DEFINITIONS = new GraphQLFieldDefinition[0];
+
+    private Object[] path = new Object[32];
+    private int pathSize;
+
+    private CompiledSchema compiledSchema;
+    private ExecutionInput input;
+    private Map<String, Object> variables;
+    private boolean replacedVariables;
+    private Node<?> currentNode;
+    private GraphQLType parentType;
+    private FieldInfo fieldInfo;
+
+    private Map<Object, Object> scratch;
+    private List<ValidationError> errors;
+
+    private final CachePolicy cachePolicy = new CachePolicy();
+    private final OperationCost cost = new OperationCost();
+
+    private ValidationBudget budget = ValidationBudget.UNLIMITED;
+    private long deadlineNanos = Long.MAX_VALUE;
+    private long maxNodes = Long.MAX_VALUE;
+    private long visitedNodes;
+
+    void reset(CompiledSchema compiledSchema, ExecutionInput input) {
+        Arrays.fill(path, 0, pathSize, null);
+        this.pathSize = 0;
+        this.compiledSchema = compiledSchema;
+        this.input = input;
+        this.variables = input == null ? null : input.getVariables();
+        this.replacedVariables = false;
+        this.currentNode = null;
+        this.parentType = null;
+        this.fieldInfo = null;
+        if (scratch != null) {
+            scratch.clear();
+        }
+        this.errors = null;
+        cachePolicy.reset();
+        cost.reset();
+        startBudget(ValidationBudget.UNLIMITED, 0);
+    }
+
+    /**
+     * Starts counting the given budget, from a validation that started at the given System.nanoTime().
+     */
+    void startBudget(ValidationBudget budget, long startNanos) {
+        this.budget = budget;
+        this.deadlineNanos = budget.deadlineNanos(startNanos);
+        this.maxNodes = budget.getMaxNodes() == 0 ? Long.MAX_VALUE : budget.getMaxNodes();
+        this.visitedNodes = 0;
+    }
+
+    /**
+     * Counts one node visited by the traversal against the budget.
+     */
+    void visitNode() {
+        if (++visitedNodes > maxNodes) {
+            throw new GraphQLBudgetExceededException("validation budget exceeded: more than " + maxNodes + " nodes visited");
+        }
+        if ((visitedNodes & (ValidationBudget.CLOCK_CHECK_INTERVAL - 1)) == 0) {
+            checkBudget();
+        }
+    }
+
+    /**
+     * Checks the deadline of the request's validation budget. Visitors doing expensive work of their own
+     * (e.g. over large input values) should call this periodically.
+     *
+     * @throws GraphQLBudgetExceededException if the deadline has passed
+     */
+    public void checkBudget() {
+        if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos > 0) {
+            throw new GraphQLBudgetExceededException("validation budget exceeded: took longer than " + budget.getTimeoutMillis() + " ms");
+        }
+    }
+
+    /**
+     * @return the cache policy of the fields forwarded so far
+     */
+    CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    /**
+     * @return the fields counted so far, with fragment spreads not yet resolved
+     */
+    OperationCost getCost() {
+        return cost;
+    }
+
+    public ValidationBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of nodes visited so far by the traversal
+     */
+    public long getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    void pushPath(Object segment) {
+        if (pathSize == path.length) {
+            path = Arrays.copyOf(path, pathSize * 2);
+        }
+        path[pathSize++] = segment;
+    }
+
+    void popPath() {
+        path[--pathSize] = null;
+    }
+
+    void setCurrent(Node<?> node, GraphQLType parentType, FieldInfo fieldInfo) {
+        this.currentNode = node;
+        this.parentType = parentType;
+        this.fieldInfo = fieldInfo;
+    }
+
+    public CompiledSchema getCompiledSchema() {
+        return compiledSchema;
+    }
+
+    public ExecutionInput getExecutionInput() {
+        return input;
+    }
+
+    /**
+     * @return the variables of the operation, coerced to the types of their definitions, with their default values
+     */
+    public Map<String, Object> getVariables() {
+        return variables;
+    }
+
+    public Object getVariable(String name) {
+        return variables.get(name);
+    }
+
+    void setVariables(Map<String, Object> variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * Records that a visitor replaced a variable reference with a literal, so that the definitions of the variables
+     * the forwarded operation no longer uses are removed.
+     */
+    public void replacedVariable() {
+        this.replacedVariables = true;
+    }
+
+    boolean hasReplacedVariables() {
+        return replacedVariables;
+    }
+
+    /**
+     * @return the node being visited
+     */
+    public Node<?> getCurrentNode() {
+        return currentNode;
+    }
+
+    /**
+     * @return the object, interface or union type that declares the current output field or argument,
+     * or the input object type that declares the current input field
+     */
+    public GraphQLType getParentType() {
+        return parentType;
+    }
+
+    /**
+     * @return the definitions of the current output field (for interface fields, including the field
+     * definitions of every implementing object type), or an empty array outside an output field
+     */
+    public GraphQLFieldDefinition[] getFieldDefinitions() {
+        if (fieldInfo == null) {
+            return NO_FIELD_DEFINITIONS;
+        }
+        return fieldInfo.getDefinitions();
+    }
+
+    public int getDepth() {
+        return pathSize;
+    }
+
+    /**
+     * @return the path segment at the given depth: a response key, argument name or input field name (String)
+     * or a list index (Integer)
+     */
+    public Object getPathSegment(int index) {
+        return path[index];
+    }
+
+    /**
+     * @return a copy of the current path
+     */
+    public List<String> getPath() {
+        List<String> result = new ArrayList<>(pathSize);
+        for (int i = 0; i < pathSize; i++) {
+            result.add(String.valueOf(path[i]));
+        }
+        return result;
+    }
+
+    public String getPathString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pathSize; i++) {
+            if (path[i] instanceof Integer) {
+                sb.append('[').append(path[i]).append(']');
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(path[i]);
+        }
+        return sb.toString();
+    }
+
+    public SourceLocation getSourceLocation() {
+        if (currentNode == null) {
+            return null;
+        }
+
+        SourceLocation location = currentNode.getSourceLocation();
+        if (location == null && currentNode instanceof ObjectField) {
+            //the parser does not record locations for object fields, use the location of the value instead
+            location = ((ObjectField) currentNode).getValue().getSourceLocation();
+        }
+        return location;
+    }
+
+    /**
+     * Scratch storage shared by all visitors during one request, cleared between requests.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getScratch(Object key) {
+        return scratch == null ? null : (T) scratch.get(key);
+    }
+
+    public void putScratch(Object key, Object value) {
+        if (scratch == null) {
+            scratch = new HashMap<>();
+        }
+        scratch.put(key, value);
+    }
+
+    /**
+     * Records a validation error at the current path and location. Traversal continues, and the
+     * request fails once the traversal is complete.
+     */
+    public void addError(String message) {
+        addError(newError(message));
+    }
+
+    public void addError(ValidationError error) {
+        if (errors == null) {
+            errors = new ArrayList<>();
+        }
+        errors.add(error);
+    }
+
+    ValidationError newError(String message) {
+        ValidationError.Builder builder = ValidationError.newValidationError()
+                .description(message)
+                .queryPath(getPath());
+
+        SourceLocation location = getSourceLocation();
+        if (location != null) {
+            builder.sourceLocation(location);
+        }
+        return builder.build();
+    }
+
+    public boolean hasErrors() {
+        return errors != null && !errors.isEmpty();
+    }
+
+    public List<ValidationError> getErrors() {
+        return errors == null ? Collections.emptyList() : errors;
+    }
+}
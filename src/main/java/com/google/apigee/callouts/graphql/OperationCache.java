@@ -0,0 +1,176 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.util.BoundedCache;
+
+import java.util.*;
+
+/**
+ * Remembers the output of recently validated operations, so that a repeated request body is forwarded
+ * without being parsed and validated again.
+ * <p>
+ * Entries are keyed by the request body and output mode, and belong to the compiled schema they were validated
+ * against. When a schema is replaced, {@link #carryOver} moves the entries whose field coordinates are unchanged
+ * (see {@link SchemaDiff}) to the new schema, so a schema rollout does not empty the cache, and returns the others
+ * to be validated again against the new schema.
+ */
+public class OperationCache {
+    private final BoundedCache<String, Entry> entries;
+
+    public OperationCache(int maxSize) {
+        this.entries = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * @return the operation validated from the same body and output mode against the given schema, or null
+     */
+    public Entry get(String content, String outputMode, CompiledSchema schema) {
+        Entry entry = entries.get(key(content, outputMode));
+        if (entry == null || entry.schema != schema) {
+            return null;
+        }
+        //count the fields as if the operation had been traversed again
+        for (int coordinate : entry.coordinates) {
+            schema.getUsage().increment(coordinate);
+        }
+        return entry;
+    }
+
+    /**
+     * @param flowVars    the flow variables set for the operation
+     * @param output      the message content forwarded
+     * @param cost        the cost of the operation, whose coordinates are recorded
+     * @param signature   the signature of the operation in the operation statistics, or null
+     */
+    public void put(String content, String outputMode, CompiledSchema schema, Map<String, Object> flowVars, String output, OperationCost cost, String signature) {
+        entries.put(key(content, outputMode), new Entry(content, outputMode, schema, Collections.unmodifiableMap(new HashMap<>(flowVars)),
+                output, cost.getCoordinateIndexes(), cost.getCost(), signature));
+    }
+
+    /**
+     * Moves the entries of the old schema whose coordinates the new schema did not change to the new schema.
+     *
+     * @param affected receives the entries of the old schema that must be validated again against the new schema
+     * @return the number of entries moved
+     */
+    public int carryOver(CompiledSchema oldSchema, CompiledSchema newSchema, List<Entry> affected) {
+        Set<String> changed = SchemaDiff.changedCoordinates(oldSchema, newSchema);
+        int carried = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.schema != oldSchema) {
+                continue;
+            }
+
+            int[] coordinates = new int[entry.coordinates.length];
+            boolean unchanged = true;
+            for (int i = 0; i < coordinates.length && unchanged; i++) {
+                String coordinate = oldSchema.getUsage().getCoordinate(entry.coordinates[i]);
+                coordinates[i] = changed.contains(coordinate) ? -1 : indexOf(newSchema, coordinate);
+                unchanged = coordinates[i] >= 0;
+            }
+
+            if (!unchanged) {
+                affected.add(entry);
+            } else {
+                entries.put(key(entry.content, entry.outputMode), new Entry(entry.content, entry.outputMode, newSchema,
+                        entry.flowVars, entry.output, coordinates, entry.cost, entry.signature));
+                carried++;
+            }
+        }
+        return carried;
+    }
+
+    /**
+     * Removes an entry, unless it was replaced in the meantime.
+     */
+    public void remove(Entry entry) {
+        String key = key(entry.content, entry.outputMode);
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+    }
+
+    private static int indexOf(CompiledSchema schema, String coordinate) {
+        int dot = coordinate.indexOf('.');
+        CompiledSchema.CompositeTypeInfo type = schema.getCompositeType(coordinate.substring(0, dot));
+        CompiledSchema.FieldInfo field = type == null ? null : type.getField(coordinate.substring(dot + 1));
+        return field == null ? -1 : field.getIndex();
+    }
+
+    private static String key(String content, String outputMode) {
+        return outputMode + "\n" + content;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A validated operation, with what the policy produced for it.
+     */
+    public static final class Entry {
+        private final String content;
+        private final String outputMode;
+        private final CompiledSchema schema;
+        private final Map<String, Object> flowVars;
+        private final String output;
+        private final int[] coordinates;
+        private final long cost;
+        private final String signature;
+
+        Entry(String content, String outputMode, CompiledSchema schema, Map<String, Object> flowVars, String output, int[] coordinates, long cost, String signature) {
+            this.content = content;
+            this.outputMode = outputMode;
+            this.schema = schema;
+            this.flowVars = flowVars;
+            this.output = output;
+            this.coordinates = coordinates;
+            this.cost = cost;
+            this.signature = signature;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public String getOutputMode() {
+            return outputMode;
+        }
+
+        public CompiledSchema getSchema() {
+            return schema;
+        }
+
+        public Map<String, Object> getFlowVars() {
+            return flowVars;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return the field count times the depth of the operation, see {@link OperationCost#getCost()}
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+    }
+}
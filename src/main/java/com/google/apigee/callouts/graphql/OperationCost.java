@@ -0,0 +1,225 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.*;
+
+import java.util.*;
+
+/**
+ * Size of an operation as forwarded: the number of output fields it selects and how deeply they are nested.
+ * <p>
+ * Both are counted by the traversal that validates the operation, so they cost nothing extra. The operation and
+ * each fragment are counted once, then fragment spreads are resolved: a fragment spread twice counts its fields
+ * twice, and its depth starts at the depth of the spread. Selections removed by @skip/@include or by a visitor
+ * are not counted, nor are introspection fields.
+ * <p>
+ * The coordinates of the fields visited are recorded too, once per visit, the same way they are counted in the
+ * schema's {@link FieldUsage}.
+ * <p>
+ * Before validation, {@link #estimate(Document, OperationDefinition)} counts the same way from the parsed document
+ * alone, so that an operation can be shed before the work of validating it is spent.
+ */
+public class OperationCost {
+    private final Part operation = new Part();
+    private final Map<String, Part> fragments = new HashMap<>();
+    private Part current = operation;
+
+    private long fields;
+    private int depth;
+
+    private int[] coordinates = new int[16];
+    private int coordinateCount;
+
+    void reset() {
+        operation.reset();
+        fragments.clear();
+        current = operation;
+        fields = 0;
+        depth = 0;
+        coordinateCount = 0;
+    }
+
+    void enterOperation() {
+        current = operation;
+    }
+
+    void enterFragment(String name) {
+        current = fragments.computeIfAbsent(name, key -> new Part());
+    }
+
+    /**
+     * Counts an output field, nested in the given number of fields (1 for a root field).
+     */
+    void field(int fieldDepth) {
+        current.fields++;
+        current.depth = Math.max(current.depth, fieldDepth);
+    }
+
+    /**
+     * Records the coordinate index of a field visited, see {@link CompiledSchema.FieldInfo#getIndex()}.
+     */
+    void touch(int coordinate) {
+        if (coordinateCount == coordinates.length) {
+            coordinates = Arrays.copyOf(coordinates, coordinateCount * 2);
+        }
+        coordinates[coordinateCount++] = coordinate;
+    }
+
+    /**
+     * Counts a fragment spread, nested in the given number of fields.
+     */
+    void spread(String name, int fieldDepth) {
+        current.spreadNames.add(name);
+        current.spreadDepths.add(fieldDepth);
+    }
+
+    /**
+     * Estimates the cost of an operation from its document, before it is validated: fields removed by @skip/@include
+     * or by visitors are counted too, fragment cycles count nothing.
+     *
+     * @param operation the operation of the document that is executed
+     */
+    public void estimate(Document document, OperationDefinition operation) {
+        reset();
+        Deque<Object[]> pending = new ArrayDeque<>();
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (definition == operation) {
+                enterOperation();
+                count(operation.getSelectionSet(), pending);
+            } else if (definition instanceof FragmentDefinition) {
+                enterFragment(((FragmentDefinition) definition).getName());
+                count(((FragmentDefinition) definition).getSelectionSet(), pending);
+            }
+        }
+
+        long[] total = resolve(this.operation, new HashMap<>());
+        fields = total[0];
+        depth = (int) total[1];
+    }
+
+    /**
+     * Counts the fields of a selection set into the current part, with an explicit stack as the nesting is
+     * up to the client.
+     */
+    private void count(SelectionSet selectionSet, Deque<Object[]> pending) {
+        pending.push(new Object[]{selectionSet, 0});
+        while (!pending.isEmpty()) {
+            Object[] entry = pending.pop();
+            SelectionSet selections = (SelectionSet) entry[0];
+            int fieldDepth = (Integer) entry[1];
+            if (selections == null) {
+                continue;
+            }
+            for (Selection<?> selection : selections.getSelections()) {
+                if (selection instanceof Field) {
+                    if (((Field) selection).getName().startsWith("__")) {
+                        continue;
+                    }
+                    field(fieldDepth + 1);
+                    pending.push(new Object[]{((Field) selection).getSelectionSet(), fieldDepth + 1});
+                } else if (selection instanceof InlineFragment) {
+                    pending.push(new Object[]{((InlineFragment) selection).getSelectionSet(), fieldDepth});
+                } else if (selection instanceof FragmentSpread) {
+                    spread(((FragmentSpread) selection).getName(), fieldDepth);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the fragment spreads of the other cost into this one.
+     */
+    void copyFrom(OperationCost other) {
+        Map<String, long[]> resolved = new HashMap<>();
+        long[] total = other.resolve(other.operation, resolved);
+        this.fields = total[0];
+        this.depth = (int) total[1];
+        this.coordinates = Arrays.copyOf(other.coordinates, other.coordinateCount);
+        this.coordinateCount = other.coordinateCount;
+    }
+
+    private long[] resolve(Part part, Map<String, long[]> resolved) {
+        long partFields = part.fields;
+        long partDepth = part.depth;
+        for (int i = 0; i < part.spreadNames.size(); i++) {
+            String name = part.spreadNames.get(i);
+            long[] fragment = resolved.get(name);
+            if (fragment == null) {
+                //fragment cycles are rejected by the standard validation, a spread within its own cycle counts nothing
+                resolved.put(name, new long[2]);
+                Part fragmentPart = fragments.get(name);
+                fragment = fragmentPart == null ? new long[2] : resolve(fragmentPart, resolved);
+                resolved.put(name, fragment);
+            }
+            partFields = saturatedAdd(partFields, fragment[0]);
+            if (fragment[0] > 0) {
+                partDepth = Math.max(partDepth, part.spreadDepths.get(i) + fragment[1]);
+            }
+        }
+        return new long[]{partFields, partDepth};
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * @return the number of output fields selected, counting fragments once per spread
+     */
+    public long getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the maximum nesting of output fields, 1 for an operation that only selects root fields
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the coordinate indexes of the fields visited, once per visit
+     */
+    public int[] getCoordinateIndexes() {
+        return Arrays.copyOf(coordinates, coordinateCount);
+    }
+
+    /**
+     * @return the field count times the depth, so that of two operations selecting as many fields,
+     * the one with more nested (and usually more expensive to resolve) fields costs more
+     */
+    public long getCost() {
+        return fields > Long.MAX_VALUE / Math.max(depth, 1) ? Long.MAX_VALUE : fields * depth;
+    }
+
+    /**
+     * Fields of the operation or of one fragment, before its spreads are resolved.
+     */
+    private static final class Part {
+        long fields;
+        int depth;
+        final List<String> spreadNames = new ArrayList<>();
+        final List<Integer> spreadDepths = new ArrayList<>();
+
+        void reset() {
+            fields = 0;
+            depth = 0;
+            spreadNames.clear();
+            spreadDepths.clear();
+        }
+    }
+}
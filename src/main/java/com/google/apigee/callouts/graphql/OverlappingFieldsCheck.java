@@ -0,0 +1,337 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.introspection.Introspection;
+import graphql.language.*;
+import graphql.schema.*;
+import graphql.validation.ValidationError;
+import graphql.validation.ValidationErrorType;
+import graphql.validation.Validator;
+
+import java.util.*;
+
+/**
+ * Checks that the fields of an operation with the same response name can be merged, as the OverlappingFieldsCanBeMerged
+ * rule of the GraphQL spec requires, in time close to linear in the size of the operation.
+ * <p>
+ * The algorithm of the spec compares every pair of fields with the same response name, and the sub-selections of
+ * every pair again. Instead, the two conditions of the rule are checked separately, each against one representative
+ * field per group:
+ * <ul>
+ * <li>all the fields with the same response name must have the same response shape (nullability, lists and leaf
+ * type). Same shape is transitive, so each field is compared with the first one only, and the sub-selections of
+ * the whole group are merged and checked together.</li>
+ * <li>fields with the same response name whose parent types may be the same object at runtime must have the same
+ * name and arguments. Fields are grouped by parent object type, fields of abstract parent types joining every group,
+ * then each group is compared with its first field, and its merged sub-selections are checked together.</li>
+ * </ul>
+ * Fragments are expanded where they are spread. The check assumes the other spec rules passed, e.g. fields it cannot
+ * resolve are ignored.
+ */
+public final class OverlappingFieldsCheck {
+    private final CompiledSchema schema;
+    private final Map<String, FragmentDefinition> fragments = new HashMap<>();
+    private final List<ValidationError> errors = new ArrayList<>();
+    //path and response name of the conflicts found, the second condition does not report them again
+    private final Set<String> conflicts = new HashSet<>();
+    //context whose validation budget is checked as fields are collected and compared, or null if unlimited
+    private final GraphQLVisitorContext budget;
+    private long steps;
+
+    private OverlappingFieldsCheck(CompiledSchema schema, Document document, GraphQLVisitorContext budget) {
+        this.schema = schema;
+        this.budget = budget;
+        for (FragmentDefinition fragment : document.getDefinitionsOfType(FragmentDefinition.class)) {
+            fragments.putIfAbsent(fragment.getName(), fragment);
+        }
+    }
+
+    /**
+     * @return the conflicts found in every operation of the document, at most one per response name and path
+     */
+    public static List<ValidationError> check(Document document, CompiledSchema schema) {
+        return check(document, schema, null);
+    }
+
+    /**
+     * @param budget the context of the request, whose deadline is checked periodically, or null if unlimited
+     * @return the conflicts found in every operation of the document, at most one per response name and path
+     * @throws GraphQLBudgetExceededException if the deadline passes during the check
+     */
+    public static List<ValidationError> check(Document document, CompiledSchema schema, GraphQLVisitorContext budget) {
+        OverlappingFieldsCheck check = new OverlappingFieldsCheck(schema, document, budget);
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            CompiledSchema.CompositeTypeInfo rootType = schema.getRootType(operation.getOperation());
+            if (rootType == null) {
+                continue;
+            }
+            List<FieldAndType> fields = new ArrayList<>();
+            check.collect(operation.getSelectionSet(), rootType.getType(), fields, null);
+            check.sameResponseShape(fields, "");
+            check.sameForCommonParents(fields, "");
+        }
+        return check.errors;
+    }
+
+    private void sameResponseShape(List<FieldAndType> fields, String path) {
+        for (Map.Entry<String, List<FieldAndType>> group : groupByResponseName(fields).entrySet()) {
+            List<FieldAndType> sameName = group.getValue();
+            FieldAndType first = null;
+            boolean conflict = false;
+            for (FieldAndType field : sameName) {
+                if (field.definition == null) {
+                    continue;
+                }
+                if (first == null) {
+                    first = field;
+                } else if (!conflict) {
+                    String reason = shapeConflict(first.definition.getType(), field.definition.getType());
+                    if (reason != null) {
+                        addError(path, group.getKey(), reason, first, field);
+                        conflict = true;
+                    }
+                }
+            }
+            if (!conflict) {
+                sameResponseShape(subSelections(sameName), child(path, group.getKey()));
+            }
+        }
+    }
+
+    private void sameForCommonParents(List<FieldAndType> fields, String path) {
+        for (Map.Entry<String, List<FieldAndType>> group : groupByResponseName(fields).entrySet()) {
+            String childPath = child(path, group.getKey());
+            if (conflicts.contains(childPath)) {
+                continue;
+            }
+            for (List<FieldAndType> commonParents : groupByCommonParents(group.getValue())) {
+                FieldAndType first = commonParents.get(0);
+                String reason = null;
+                FieldAndType other = null;
+                for (int i = 1; i < commonParents.size() && reason == null; i++) {
+                    step();
+                    other = commonParents.get(i);
+                    if (!first.field.getName().equals(other.field.getName())) {
+                        reason = String.format("'%s' and '%s' are different fields", first.field.getName(), other.field.getName());
+                    } else if (!sameArguments(first.field.getArguments(), other.field.getArguments())) {
+                        reason = "fields have different arguments";
+                    }
+                }
+                if (reason != null) {
+                    addError(path, group.getKey(), reason, first, other);
+                    break;
+                }
+                sameForCommonParents(subSelections(commonParents), childPath);
+            }
+        }
+    }
+
+    /**
+     * @return the fields that may be selected on the same object at runtime: one group per object parent type, with
+     * the fields of abstract parent types in every group (or alone, if all the parent types are abstract)
+     */
+    private static Collection<List<FieldAndType>> groupByCommonParents(List<FieldAndType> fields) {
+        Map<String, List<FieldAndType>> objectParents = new LinkedHashMap<>();
+        for (FieldAndType field : fields) {
+            if (field.parent instanceof GraphQLObjectType) {
+                objectParents.putIfAbsent(field.parent.getName(), new ArrayList<>());
+            }
+        }
+        if (objectParents.isEmpty()) {
+            return Collections.singletonList(fields);
+        }
+        //in document order, so that conflicts are reported on the same fields as the spec rule
+        for (FieldAndType field : fields) {
+            if (field.parent instanceof GraphQLObjectType) {
+                objectParents.get(field.parent.getName()).add(field);
+            } else {
+                for (List<FieldAndType> group : objectParents.values()) {
+                    group.add(field);
+                }
+            }
+        }
+        return objectParents.values();
+    }
+
+    private static Map<String, List<FieldAndType>> groupByResponseName(List<FieldAndType> fields) {
+        Map<String, List<FieldAndType>> groups = new LinkedHashMap<>();
+        for (FieldAndType field : fields) {
+            groups.computeIfAbsent(field.field.getResultKey(), key -> new ArrayList<>(1)).add(field);
+        }
+        return groups;
+    }
+
+    /**
+     * @return the fields selected below every field of the group, together
+     */
+    private List<FieldAndType> subSelections(List<FieldAndType> group) {
+        List<FieldAndType> fields = new ArrayList<>();
+        for (FieldAndType field : group) {
+            if (field.definition == null || field.field.getSelectionSet() == null) {
+                continue;
+            }
+            GraphQLUnmodifiedType type = GraphQLTypeUtil.unwrapAll(field.definition.getType());
+            if (type instanceof GraphQLCompositeType) {
+                collect(field.field.getSelectionSet(), (GraphQLCompositeType) type, fields, null);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Collects the fields of a selection set, expanding fragments.
+     *
+     * @param spread the fragments already expanded in this selection set, each is collected once, or null if none
+     * @return the fragments expanded in this selection set
+     */
+    private Set<String> collect(SelectionSet selectionSet, GraphQLCompositeType parent, List<FieldAndType> fields, Set<String> spread) {
+        for (Selection<?> selection : selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                Field field = (Field) selection;
+                step();
+                fields.add(new FieldAndType(field, parent, getDefinition(parent, field.getName())));
+            } else if (selection instanceof InlineFragment) {
+                InlineFragment inlineFragment = (InlineFragment) selection;
+                spread = collect(inlineFragment.getSelectionSet(), typeCondition(inlineFragment.getTypeCondition(), parent), fields, spread);
+            } else if (selection instanceof FragmentSpread) {
+                FragmentDefinition fragment = fragments.get(((FragmentSpread) selection).getName());
+                if (fragment == null) {
+                    continue;
+                }
+                if (spread == null) {
+                    spread = new HashSet<>();
+                }
+                if (spread.add(fragment.getName())) {
+                    spread = collect(fragment.getSelectionSet(), typeCondition(fragment.getTypeCondition(), parent), fields, spread);
+                }
+            }
+        }
+        return spread;
+    }
+
+    /**
+     * Counts one field collected or compared, checking the deadline every few.
+     */
+    private void step() {
+        if (budget != null && (++steps & (ValidationBudget.CLOCK_CHECK_INTERVAL - 1)) == 0) {
+            budget.checkBudget();
+        }
+    }
+
+    private GraphQLCompositeType typeCondition(TypeName typeCondition, GraphQLCompositeType parent) {
+        if (typeCondition == null) {
+            return parent;
+        }
+        CompiledSchema.CompositeTypeInfo type = schema.getCompositeType(typeCondition.getName());
+        return type == null ? parent : type.getType();
+    }
+
+    private GraphQLFieldDefinition getDefinition(GraphQLCompositeType parent, String fieldName) {
+        if (fieldName.equals(Introspection.TypeNameMetaFieldDef.getName())) {
+            return Introspection.TypeNameMetaFieldDef;
+        }
+        if (fieldName.equals(Introspection.SchemaMetaFieldDef.getName())) {
+            return Introspection.SchemaMetaFieldDef;
+        }
+        if (fieldName.equals(Introspection.TypeMetaFieldDef.getName())) {
+            return Introspection.TypeMetaFieldDef;
+        }
+        CompiledSchema.CompositeTypeInfo type = schema.getCompositeType(parent.getName());
+        CompiledSchema.FieldInfo field = type == null ? null : type.getField(fieldName);
+        return field == null ? null : field.getDefinition();
+    }
+
+    /**
+     * @return why two output types do not have the same response shape, or null if they do
+     */
+    private static String shapeConflict(GraphQLOutputType a, GraphQLOutputType b) {
+        GraphQLType typeA = a;
+        GraphQLType typeB = b;
+        while (true) {
+            if (GraphQLTypeUtil.isNonNull(typeA) || GraphQLTypeUtil.isNonNull(typeB)) {
+                if (!GraphQLTypeUtil.isNonNull(typeA) || !GraphQLTypeUtil.isNonNull(typeB)) {
+                    return "fields have different nullability shapes";
+                }
+            } else if (GraphQLTypeUtil.isList(typeA) || GraphQLTypeUtil.isList(typeB)) {
+                if (!GraphQLTypeUtil.isList(typeA) || !GraphQLTypeUtil.isList(typeB)) {
+                    return "fields have different list shapes";
+                }
+            } else {
+                break;
+            }
+            typeA = GraphQLTypeUtil.unwrapOne(typeA);
+            typeB = GraphQLTypeUtil.unwrapOne(typeB);
+        }
+
+        if ((GraphQLTypeUtil.isLeaf(typeA) || GraphQLTypeUtil.isLeaf(typeB))
+                && !((GraphQLNamedType) typeA).getName().equals(((GraphQLNamedType) typeB).getName())) {
+            return String.format("returns different types '%s' and '%s'", GraphQLTypeUtil.simplePrint(typeA), GraphQLTypeUtil.simplePrint(typeB));
+        }
+        return null;
+    }
+
+    private void addError(String path, String responseName, String reason, FieldAndType a, FieldAndType b) {
+        if (errors.size() >= Validator.getMaxValidationErrors() || !conflicts.add(child(path, responseName))) {
+            return;
+        }
+        List<SourceLocation> locations = new ArrayList<>(2);
+        for (FieldAndType field : Arrays.asList(a, b)) {
+            if (field.field.getSourceLocation() != null) {
+                locations.add(field.field.getSourceLocation());
+            }
+        }
+        errors.add(ValidationError.newValidationError()
+                .validationErrorType(ValidationErrorType.FieldsConflict)
+                .sourceLocations(locations)
+                .description(String.format("Validation error (FieldsConflict@[%s]) : '%s' : %s", path, responseName, reason))
+                .build());
+    }
+
+    private static boolean sameArguments(List<Argument> a, List<Argument> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Argument argumentA : a) {
+            Argument argumentB = null;
+            for (Argument argument : b) {
+                if (argument.getName().equals(argumentA.getName())) {
+                    argumentB = argument;
+                    break;
+                }
+            }
+            if (argumentB == null || !AstComparator.sameValue(argumentA.getValue(), argumentB.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String child(String path, String responseName) {
+        return path.isEmpty() ? responseName : path + "/" + responseName;
+    }
+
+    private static final class FieldAndType {
+        final Field field;
+        final GraphQLCompositeType parent;
+        final GraphQLFieldDefinition definition;
+
+        FieldAndType(Field field, GraphQLCompositeType parent, GraphQLFieldDefinition definition) {
+            this.field = field;
+            this.parent = parent;
+            this.definition = definition;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.*;
+import graphql.util.TraversalControl;
+import graphql.util.TraverserContext;
+
+import java.util.*;
+
+/**
+ * Rewrites a validated document into the smallest equivalent document for the backend to parse.
+ * <p>
+ * The rewrite merges identical selections (same response key, arguments and directives), drops aliases that
+ * are equal to the field name, inlines fragments spread only once, splices inline fragments on the enclosing
+ * type, and removes unused fragments and variable definitions. Print the result with
+ * {@link AstPrinter#printAstCompact(Node)} to also drop the whitespace.
+ * <p>
+ * The document must contain a single operation, as returned by {@link GraphQLProcessor#parseAndValidate}.
+ */
+public class QueryMinimizer {
+    private final CompiledSchema compiledSchema;
+    private final Map<String, FragmentDefinition> fragments;
+    private final Map<String, Integer> spreadCounts = new HashMap<>();
+
+    private QueryMinimizer(CompiledSchema compiledSchema, Map<String, FragmentDefinition> fragments) {
+        this.compiledSchema = compiledSchema;
+        this.fragments = fragments;
+    }
+
+    /**
+     * @param compiledSchema the schema the document was validated against, used to tell when a fragment's type
+     *                       condition is the enclosing type. May be null, inline fragments are then kept
+     */
+    public static Document minimize(Document document, CompiledSchema compiledSchema) {
+        OperationDefinition operation = null;
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (definition instanceof OperationDefinition) {
+                if (operation != null) {
+                    return document;
+                }
+                operation = (OperationDefinition) definition;
+            }
+        }
+        if (operation == null) {
+            return document;
+        }
+
+        QueryMinimizer minimizer = new QueryMinimizer(compiledSchema, GraphQLUtil.getFragments(document));
+        minimizer.countSpreads(operation.getSelectionSet());
+
+        CompiledSchema.CompositeTypeInfo rootType = compiledSchema == null ? null : compiledSchema.getRootType(operation.getOperation());
+        SelectionSet selectionSet = minimizer.minimize(operation.getSelectionSet(), rootType);
+        OperationDefinition newOperation = operation.transform(builder -> builder.selectionSet(selectionSet));
+
+        List<Definition<?>> newDefinitions = new ArrayList<>();
+        newDefinitions.add(newOperation);
+        for (Definition<?> definition : document.getDefinitions()) {
+            if (definition instanceof FragmentDefinition && minimizer.spreadCounts.containsKey(((FragmentDefinition) definition).getName())) {
+                FragmentDefinition fragment = (FragmentDefinition) definition;
+                SelectionSet fragmentSelectionSet = minimizer.minimize(fragment.getSelectionSet(), minimizer.compositeType(fragment.getTypeCondition(), null));
+                newDefinitions.add(fragment.transform(builder -> builder.selectionSet(fragmentSelectionSet)));
+            }
+        }
+
+        //keep only the fragments still spread after the rewrite
+        Set<String> usedFragments = GraphQLUtil.getUsedFragmentNames(document.transform(builder -> builder.definitions(GraphQLUtil.nodes(newDefinitions))), newOperation);
+        newDefinitions.removeIf(definition -> definition instanceof FragmentDefinition && !usedFragments.contains(((FragmentDefinition) definition).getName()));
+
+        //drop variable definitions no longer referenced
+        Set<String> usedVariables = getVariableNames(newDefinitions);
+        List<VariableDefinition> variableDefinitions = new ArrayList<>();
+        for (VariableDefinition variableDefinition : operation.getVariableDefinitions()) {
+            if (usedVariables.contains(variableDefinition.getName())) {
+                variableDefinitions.add(variableDefinition);
+            }
+        }
+        if (variableDefinitions.size() != operation.getVariableDefinitions().size()) {
+            newDefinitions.set(0, newOperation.transform(builder -> builder.variableDefinitions(variableDefinitions)));
+        }
+
+        return document.transform(builder -> builder.definitions(GraphQLUtil.nodes(newDefinitions)));
+    }
+
+    /**
+     * @return the names of the variables referenced by the given nodes
+     */
+    public static Set<String> getVariableNames(Collection<? extends Node<?>> nodes) {
+        Set<String> names = new HashSet<>();
+        new NodeTraverser().preOrder(new NodeVisitorStub() {
+            @Override
+            @SuppressWarnings("rawtypes")
+            public TraversalControl visitVariableReference(VariableReference node, TraverserContext<Node> context) {
+                names.add(node.getName());
+                return TraversalControl.CONTINUE;
+            }
+
+            @Override
+            @SuppressWarnings("rawtypes")
+            public TraversalControl visitVariableDefinition(VariableDefinition node, TraverserContext<Node> context) {
+                //default values cannot reference variables
+                return TraversalControl.ABORT;
+            }
+        }, nodes);
+        return names;
+    }
+
+    private void countSpreads(SelectionSet selectionSet) {
+        if (selectionSet == null) {
+            return;
+        }
+        for (Selection<?> selection : selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                countSpreads(((Field) selection).getSelectionSet());
+            } else if (selection instanceof InlineFragment) {
+                countSpreads(((InlineFragment) selection).getSelectionSet());
+            } else if (selection instanceof FragmentSpread) {
+                String name = ((FragmentSpread) selection).getName();
+                FragmentDefinition fragment = fragments.get(name);
+                if (fragment != null && spreadCounts.merge(name, 1, Integer::sum) == 1) {
+                    countSpreads(fragment.getSelectionSet());
+                }
+            }
+        }
+    }
+
+    private SelectionSet minimize(SelectionSet selectionSet, CompiledSchema.CompositeTypeInfo parentType) {
+        if (selectionSet == null) {
+            return null;
+        }
+        List<Selection<?>> selections = new ArrayList<>();
+        flatten(selectionSet, parentType, selections);
+        return selectionSet.transform(builder -> builder.selections(GraphQLUtil.nodes(merge(selections))));
+    }
+
+    /**
+     * Adds the minimized selections to the given list, inlining fragments spread once, and splicing the
+     * selections of inline fragments that do not narrow the enclosing type.
+     */
+    private void flatten(SelectionSet selectionSet, CompiledSchema.CompositeTypeInfo parentType, List<Selection<?>> selections) {
+        for (Selection<?> selection : selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                Field field = (Field) selection;
+                CompiledSchema.CompositeTypeInfo fieldType = null;
+                if (parentType != null && parentType.getField(field.getName()) != null) {
+                    fieldType = parentType.getField(field.getName()).getCompositeType();
+                }
+                SelectionSet fieldSelectionSet = minimize(field.getSelectionSet(), fieldType);
+                String alias = field.getName().equals(field.getAlias()) ? null : field.getAlias();
+                selections.add(field.transform(builder -> builder.alias(alias).selectionSet(fieldSelectionSet)));
+                continue;
+            }
+
+            InlineFragment inlineFragment;
+            if (selection instanceof FragmentSpread) {
+                FragmentSpread spread = (FragmentSpread) selection;
+                FragmentDefinition fragment = fragments.get(spread.getName());
+                if (fragment == null || spreadCounts.getOrDefault(spread.getName(), 0) != 1 || !fragment.getDirectives().isEmpty()) {
+                    selections.add(spread);
+                    continue;
+                }
+                inlineFragment = InlineFragment.newInlineFragment()
+                        .typeCondition(fragment.getTypeCondition())
+                        .directives(spread.getDirectives())
+                        .selectionSet(fragment.getSelectionSet())
+                        .build();
+            } else {
+                inlineFragment = (InlineFragment) selection;
+            }
+
+            TypeName typeCondition = inlineFragment.getTypeCondition();
+            if (inlineFragment.getDirectives().isEmpty() && (typeCondition == null
+                    || (parentType != null && parentType.getName().equals(typeCondition.getName())))) {
+                flatten(inlineFragment.getSelectionSet(), parentType, selections);
+                continue;
+            }
+
+            SelectionSet fragmentSelectionSet = minimize(inlineFragment.getSelectionSet(), compositeType(typeCondition, parentType));
+            selections.add(inlineFragment.transform(builder -> builder.selectionSet(fragmentSelectionSet)));
+        }
+    }
+
+    /**
+     * Merges fields with the same response key, arguments and directives, inline fragments with the same type
+     * condition and directives, and drops repeated fragment spreads. The first occurrence keeps its position.
+     */
+    private List<Selection<?>> merge(List<Selection<?>> selections) {
+        List<Selection<?>> merged = new ArrayList<>(selections.size());
+        Map<String, Integer> firstIndex = new HashMap<>();
+        for (Selection<?> selection : selections) {
+            String key = mergeKey(selection);
+            Integer index = firstIndex.get(key);
+            if (index == null) {
+                firstIndex.put(key, merged.size());
+                merged.add(selection);
+                continue;
+            }
+
+            Selection<?> existing = merged.get(index);
+            Selection<?> combined = combine(existing, selection);
+            if (combined == null) {
+                merged.add(selection);
+            } else {
+                merged.set(index, combined);
+            }
+        }
+        return merged;
+    }
+
+    private static String mergeKey(Selection<?> selection) {
+        if (selection instanceof Field) {
+            Field field = (Field) selection;
+            return field.getAlias() != null ? field.getAlias() : field.getName();
+        } else if (selection instanceof InlineFragment) {
+            TypeName typeCondition = ((InlineFragment) selection).getTypeCondition();
+            return "... on " + (typeCondition == null ? "" : typeCondition.getName());
+        }
+        return "..." + ((FragmentSpread) selection).getName();
+    }
+
+    /**
+     * @return the merged selection, or null if the two selections cannot be merged
+     */
+    private Selection<?> combine(Selection<?> existing, Selection<?> selection) {
+        if (!sameDirectives((DirectivesContainer<?>) existing, (DirectivesContainer<?>) selection)) {
+            return null;
+        }
+
+        if (existing instanceof FragmentSpread) {
+            return existing;
+        }
+
+        if (existing instanceof InlineFragment) {
+            InlineFragment inlineFragment = (InlineFragment) existing;
+            SelectionSet selectionSet = combine(inlineFragment.getSelectionSet(), ((InlineFragment) selection).getSelectionSet());
+            return inlineFragment.transform(builder -> builder.selectionSet(selectionSet));
+        }
+
+        Field field = (Field) existing;
+        Field other = (Field) selection;
+        if (!field.getName().equals(other.getName()) || !AstComparator.isEqual(GraphQLUtil.nodes(field.getArguments()), GraphQLUtil.nodes(other.getArguments()))) {
+            return null;
+        }
+        if (field.getSelectionSet() == null || other.getSelectionSet() == null) {
+            return field.getSelectionSet() == null && other.getSelectionSet() == null ? field : null;
+        }
+        SelectionSet selectionSet = combine(field.getSelectionSet(), other.getSelectionSet());
+        return field.transform(builder -> builder.selectionSet(selectionSet));
+    }
+
+    private SelectionSet combine(SelectionSet selectionSet, SelectionSet other) {
+        List<Selection<?>> selections = new ArrayList<>(GraphQLUtil.nodes(selectionSet.getSelections()));
+        selections.addAll(GraphQLUtil.nodes(other.getSelections()));
+        return selectionSet.transform(builder -> builder.selections(GraphQLUtil.nodes(merge(selections))));
+    }
+
+    private static boolean sameDirectives(DirectivesContainer<?> existing, DirectivesContainer<?> selection) {
+        return AstComparator.isEqual(GraphQLUtil.nodes(existing.getDirectives()), GraphQLUtil.nodes(selection.getDirectives()));
+    }
+
+    private CompiledSchema.CompositeTypeInfo compositeType(TypeName typeCondition, CompiledSchema.CompositeTypeInfo parentType) {
+        if (typeCondition == null) {
+            return parentType;
+        }
+        return compiledSchema == null ? null : compiledSchema.getCompositeType(typeCondition.getName());
+    }
+}
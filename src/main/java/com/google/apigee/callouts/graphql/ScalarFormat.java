@@ -0,0 +1,326 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.util.BoundedCache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Validates the values of a custom scalar, for {@link GraphQLFormatCoercing}.
+ * <p>
+ * Values are the raw values of literals (String, BigInteger, BigDecimal, Boolean) or of variables
+ * (String, Number, Boolean). The built-in formats check their input in place, without parsing it into
+ * another object. A scalar picks its format with the {@code @scalar(format: "...")} directive, or through
+ * a well-known {@code @specifiedBy} URL.
+ */
+public abstract class ScalarFormat {
+    public static final String SCALAR_DIRECTIVE = "scalar";
+    public static final String FORMAT_ARGUMENT = "format";
+
+    private static final Map<String, ScalarFormat> formats = new ConcurrentHashMap<>();
+    private static final Map<String, String> specifiedByUrls = new ConcurrentHashMap<>();
+
+    private static final BigInteger MAX_INT = BigInteger.valueOf(Integer.MAX_VALUE);
+    private static final BigInteger MIN_INT = BigInteger.valueOf(Integer.MIN_VALUE);
+
+    //whether recent values of the regex format compile, clients tend to send the same few patterns
+    private static final BoundedCache<String, Boolean> regexValidity = new BoundedCache<>(1024);
+
+    static {
+        register(new ScalarFormat("string") {
+            public boolean isValid(Object value) {
+                return value instanceof String;
+            }
+        });
+        register(new ScalarFormat("date") {
+            public boolean isValid(Object value) {
+                return value instanceof String && isDate((String) value, 0) && ((String) value).length() == 10;
+            }
+        });
+        register(new ScalarFormat("time") {
+            public boolean isValid(Object value) {
+                return value instanceof String && isTime((String) value, 0);
+            }
+        });
+        register(new ScalarFormat("date-time") {
+            public boolean isValid(Object value) {
+                if (!(value instanceof String)) {
+                    return false;
+                }
+                String text = (String) value;
+                return text.length() > 11 && isDate(text, 0) && (text.charAt(10) == 'T' || text.charAt(10) == 't') && isTime(text, 11);
+            }
+        });
+        register(new ScalarFormat("uuid") {
+            public boolean isValid(Object value) {
+                return value instanceof String && isUUID((String) value);
+            }
+        });
+        register(new ScalarFormat("regex") {
+            public boolean isValid(Object value) {
+                return value instanceof String && regexValidity.get((String) value, ScalarFormat::isRegex);
+            }
+        });
+        register(new IntFormat("int", Integer.MIN_VALUE));
+        register(new IntFormat("non-negative-int", 0));
+        register(new IntFormat("positive-int", 1));
+        register(new FloatFormat("float", -1));
+        register(new FloatFormat("non-negative-float", 0));
+        register(new FloatFormat("positive-float", 1));
+
+        registerSpecifiedByUrl("https://tools.ietf.org/html/rfc3339", "date-time");
+        registerSpecifiedByUrl("https://www.rfc-editor.org/rfc/rfc3339", "date-time");
+        registerSpecifiedByUrl("https://scalars.graphql.org/andimarek/date-time", "date-time");
+        registerSpecifiedByUrl("https://scalars.graphql.org/andimarek/local-date", "date");
+        registerSpecifiedByUrl("https://tools.ietf.org/html/rfc4122", "uuid");
+        registerSpecifiedByUrl("https://www.rfc-editor.org/rfc/rfc4122", "uuid");
+    }
+
+    private final String name;
+
+    protected ScalarFormat(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the raw value of a literal or variable is valid for the format
+     */
+    public abstract boolean isValid(Object value);
+
+    /**
+     * Adds (or replaces) a format, so that schemas can refer to it by name.
+     */
+    public static void register(ScalarFormat format) {
+        formats.put(format.getName(), format);
+    }
+
+    /**
+     * Maps a {@code @specifiedBy} URL onto a format name.
+     */
+    public static void registerSpecifiedByUrl(String url, String formatName) {
+        specifiedByUrls.put(normalizeUrl(url), formatName);
+    }
+
+    public static ScalarFormat forName(String formatName) {
+        return formats.get(formatName);
+    }
+
+    /**
+     * @return the format of a well-known specification URL, or null
+     */
+    public static ScalarFormat forSpecifiedByUrl(String url) {
+        String formatName = specifiedByUrls.get(normalizeUrl(url));
+        return formatName == null ? null : formats.get(formatName);
+    }
+
+    private static String normalizeUrl(String url) {
+        String normalized = url.trim();
+        if (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.endsWith(".html")) {
+            normalized = normalized.substring(0, normalized.length() - 5);
+        }
+        return normalized;
+    }
+
+    /**
+     * RFC 3339 full-date (yyyy-MM-dd) at the given offset.
+     */
+    static boolean isDate(String text, int offset) {
+        if (text.length() < offset + 10 || text.charAt(offset + 4) != '-' || text.charAt(offset + 7) != '-') {
+            return false;
+        }
+
+        int year = digits(text, offset, 4);
+        int month = digits(text, offset + 5, 2);
+        int day = digits(text, offset + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1) {
+            return false;
+        }
+
+        int maxDay;
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                maxDay = leap ? 29 : 28;
+                break;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                maxDay = 30;
+                break;
+            default:
+                maxDay = 31;
+        }
+        return day <= maxDay;
+    }
+
+    /**
+     * RFC 3339 full-time (HH:mm:ss[.fraction] followed by Z or an offset) from the given offset to the end of the text.
+     */
+    static boolean isTime(String text, int offset) {
+        int length = text.length();
+        if (length < offset + 9 || text.charAt(offset + 2) != ':' || text.charAt(offset + 5) != ':') {
+            return false;
+        }
+
+        int hour = digits(text, offset, 2);
+        int minute = digits(text, offset + 3, 2);
+        int second = digits(text, offset + 6, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return false;
+        }
+
+        int i = offset + 8;
+        if (text.charAt(i) == '.') {
+            int fractionStart = ++i;
+            while (i < length && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == fractionStart || i == length) {
+                return false;
+            }
+        }
+
+        char zone = text.charAt(i);
+        if (zone == 'Z' || zone == 'z') {
+            return i + 1 == length;
+        }
+        if ((zone != '+' && zone != '-') || length != i + 6 || text.charAt(i + 3) != ':') {
+            return false;
+        }
+        int offsetHour = digits(text, i + 1, 2);
+        int offsetMinute = digits(text, i + 4, 2);
+        return offsetHour >= 0 && offsetHour <= 23 && offsetMinute >= 0 && offsetMinute <= 59;
+    }
+
+    static boolean isUUID(String text) {
+        if (text.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = text.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRegex(String text) {
+        try {
+            Pattern.compile(text);
+            return true;
+        } catch (PatternSyntaxException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the value of count decimal digits at the given offset, or -1
+     */
+    private static int digits(String text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * 32-bit integers, at least the given minimum.
+     */
+    private static class IntFormat extends ScalarFormat {
+        private final int min;
+
+        IntFormat(String name, int min) {
+            super(name);
+            this.min = min;
+        }
+
+        public boolean isValid(Object value) {
+            long longValue;
+            if (value instanceof BigInteger) {
+                BigInteger bigValue = (BigInteger) value;
+                if (bigValue.compareTo(MAX_INT) > 0 || bigValue.compareTo(MIN_INT) < 0) {
+                    return false;
+                }
+                longValue = bigValue.longValue();
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                longValue = ((Number) value).longValue();
+            } else if (value instanceof Double || value instanceof Float) {
+                //variables parsed from JSON are doubles
+                double doubleValue = ((Number) value).doubleValue();
+                if (doubleValue != Math.rint(doubleValue) || Double.isInfinite(doubleValue)) {
+                    return false;
+                }
+                longValue = (long) doubleValue;
+            } else {
+                return false;
+            }
+            return longValue >= min && longValue <= Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Finite numbers, with the given minimum sign (-1 any, 0 non-negative, 1 positive).
+     */
+    private static class FloatFormat extends ScalarFormat {
+        private final int minSign;
+
+        FloatFormat(String name, int minSign) {
+            super(name);
+            this.minSign = minSign;
+        }
+
+        public boolean isValid(Object value) {
+            int sign;
+            if (value instanceof BigDecimal) {
+                sign = ((BigDecimal) value).signum();
+            } else if (value instanceof BigInteger) {
+                sign = ((BigInteger) value).signum();
+            } else if (value instanceof Number) {
+                double doubleValue = ((Number) value).doubleValue();
+                if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                    return false;
+                }
+                sign = doubleValue > 0 ? 1 : doubleValue < 0 ? -1 : 0;
+            } else {
+                return false;
+            }
+            return sign >= minSign;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.AstPrinter;
+import graphql.language.Node;
+import graphql.schema.*;
+
+import java.util.*;
+
+/**
+ * Compares two compiled schemas by field coordinate ("Type.field"), to find which validated operations
+ * still hold under the new schema.
+ * <p>
+ * Each coordinate gets a fingerprint of everything validating a selection of it depends on: the field's type,
+ * its arguments with their defaults and directives, the field's directives (including those of interface
+ * implementations), its resolved cache hints and backend, the directives and possible types of the type it
+ * returns, and every input type reachable from its arguments. A coordinate is changed when the new schema
+ * removed it or its fingerprint differs. Changes every operation depends on (the root types, directive
+ * definitions) change every coordinate. Fingerprints are computed once per schema.
+ */
+public final class SchemaDiff {
+
+    private SchemaDiff() {
+    }
+
+    /**
+     * @return the coordinates of the old schema that the new schema removed or changed
+     */
+    public static Set<String> changedCoordinates(CompiledSchema oldSchema, CompiledSchema newSchema) {
+        Fingerprints oldPrints = oldSchema.getExtension(SchemaDiff.class, SchemaDiff::fingerprints);
+        Fingerprints newPrints = newSchema.getExtension(SchemaDiff.class, SchemaDiff::fingerprints);
+
+        boolean all = !oldPrints.global.equals(newPrints.global);
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> field : oldPrints.fields.entrySet()) {
+            if (all || !field.getValue().equals(newPrints.fields.get(field.getKey()))) {
+                changed.add(field.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private static Fingerprints fingerprints(CompiledSchema compiledSchema) {
+        GraphQLSchema schema = compiledSchema.getSchema();
+
+        StringBuilder global = new StringBuilder();
+        for (GraphQLObjectType rootType : Arrays.asList(schema.getQueryType(), schema.getMutationType(), schema.getSubscriptionType())) {
+            global.append(rootType == null ? "-" : rootType.getName()).append('\n');
+        }
+        List<GraphQLDirective> directives = new ArrayList<>(schema.getDirectives());
+        directives.sort(Comparator.comparing(GraphQLDirective::getName));
+        for (GraphQLDirective directive : directives) {
+            global.append('@').append(directive.getName()).append(new TreeSet<>(directive.validLocations()))
+                    .append(directive.isRepeatable() ? " repeatable" : "");
+            for (GraphQLArgument argument : directive.getArguments()) {
+                appendArgument(global, argument);
+            }
+            global.append('\n');
+        }
+
+        Map<String, String> typePrints = new HashMap<>();
+        Map<String, String> fields = new HashMap<>();
+        for (CompiledSchema.CompositeTypeInfo typeInfo : compiledSchema.getCompositeTypes()) {
+            for (CompiledSchema.FieldInfo fieldInfo : typeInfo.getFields()) {
+                fields.put(typeInfo.getName() + "." + fieldInfo.getDefinition().getName(), fingerprint(schema, fieldInfo, typePrints));
+            }
+        }
+        return new Fingerprints(global.toString(), fields);
+    }
+
+    private static String fingerprint(GraphQLSchema schema, CompiledSchema.FieldInfo fieldInfo, Map<String, String> typePrints) {
+        StringBuilder sb = new StringBuilder();
+        for (GraphQLFieldDefinition definition : fieldInfo.getDefinitions()) {
+            sb.append(GraphQLTypeUtil.simplePrint(definition.getType()));
+            for (GraphQLArgument argument : definition.getArguments()) {
+                appendArgument(sb, argument);
+            }
+            appendDirectives(sb, definition);
+            sb.append('\n');
+        }
+        sb.append("cache=").append(fieldInfo.getCacheMaxAge()).append(fieldInfo.isCachePrivate() ? " private" : "")
+                .append(" backend=").append(fieldInfo.getBackend()).append('\n');
+
+        //the type it returns, without its fields (they have coordinates of their own)
+        GraphQLUnmodifiedType returnType = GraphQLTypeUtil.unwrapAll(fieldInfo.getDefinition().getType());
+        sb.append(typePrint(returnType, typePrints)).append('\n');
+        if (fieldInfo.getCompositeType() != null) {
+            sb.append(fieldInfo.getCompositeType().getPossibleTypes()).append('\n');
+        }
+
+        //every input type its arguments can hold
+        Set<String> inputTypes = new TreeSet<>();
+        Deque<GraphQLType> pending = new ArrayDeque<>();
+        for (GraphQLArgument argument : fieldInfo.getDefinition().getArguments()) {
+            pending.add(argument.getType());
+        }
+        while (!pending.isEmpty()) {
+            GraphQLUnmodifiedType type = GraphQLTypeUtil.unwrapAll(pending.pop());
+            if (inputTypes.add(type.getName()) && type instanceof GraphQLInputObjectType) {
+                for (GraphQLInputObjectField field : ((GraphQLInputObjectType) type).getFieldDefinitions()) {
+                    pending.add(field.getType());
+                }
+            }
+        }
+        for (String typeName : inputTypes) {
+            sb.append(typePrint((GraphQLNamedType) schema.getType(typeName), typePrints)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the name and directives of a type, with the fields of input types and the values of enums
+     */
+    private static String typePrint(GraphQLNamedType type, Map<String, String> typePrints) {
+        String print = typePrints.get(type.getName());
+        if (print != null) {
+            return print;
+        }
+
+        StringBuilder sb = new StringBuilder(type.getName());
+        if (type instanceof GraphQLDirectiveContainer) {
+            appendDirectives(sb, (GraphQLDirectiveContainer) type);
+        }
+        if (type instanceof GraphQLInputObjectType) {
+            for (GraphQLInputObjectField field : ((GraphQLInputObjectType) type).getFieldDefinitions()) {
+                sb.append(' ').append(field.getName()).append(':').append(GraphQLTypeUtil.simplePrint(field.getType()))
+                        .append('=').append(print(field.getInputFieldDefaultValue().getValue()));
+                appendDirectives(sb, field);
+            }
+        } else if (type instanceof GraphQLEnumType) {
+            for (GraphQLEnumValueDefinition value : ((GraphQLEnumType) type).getValues()) {
+                sb.append(' ').append(value.getName());
+            }
+        }
+
+        print = sb.toString();
+        typePrints.put(type.getName(), print);
+        return print;
+    }
+
+    private static void appendArgument(StringBuilder sb, GraphQLArgument argument) {
+        sb.append(' ').append(argument.getName()).append(':').append(GraphQLTypeUtil.simplePrint(argument.getType()))
+                .append('=').append(print(argument.getArgumentDefaultValue().getValue()));
+        appendDirectives(sb, argument);
+    }
+
+    private static void appendDirectives(StringBuilder sb, GraphQLDirectiveContainer container) {
+        for (GraphQLAppliedDirective directive : container.getAppliedDirectives()) {
+            sb.append(" @").append(directive.getName()).append('(');
+            for (GraphQLAppliedDirectiveArgument argument : directive.getArguments()) {
+                sb.append(argument.getName()).append(':').append(print(argument.getArgumentValue().getValue())).append(' ');
+            }
+            sb.append(')');
+        }
+    }
+
+    private static String print(Object value) {
+        return value instanceof Node ? AstPrinter.printAstCompact((Node) value) : String.valueOf(value);
+    }
+
+    private static final class Fingerprints {
+        final String global;
+        final Map<String, String> fields;
+
+        Fingerprints(String global, Map<String, String> fields) {
+            this.global = global;
+            this.fields = fields;
+        }
+    }
+}
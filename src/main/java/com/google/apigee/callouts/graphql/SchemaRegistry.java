@@ -0,0 +1,287 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.util.BoundedCache;
+import com.google.gson.stream.JsonWriter;
+import graphql.GraphQLError;
+import graphql.schema.idl.errors.SchemaProblem;
+import graphql.validation.ValidationError;
+import org.javatuples.Pair;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Compiled schemas shared by every callout loaded from the same jar.
+ * <p>
+ * Schemas are keyed by their text, so each distinct schema is compiled exactly once no matter how many callouts
+ * (or names) refer to it, and concurrent requests for the same schema wait for a single compilation. Schemas that
+ * fail to compile are cached too, along with their errors. Statistics are kept per schema name.
+ * <p>
+ * At most a fixed number of schemas are kept. When a new schema does not fit, a schema no name currently resolves to
+ * (e.g. the previous version of a schema after a rollout) is evicted first.
+ */
+public class SchemaRegistry {
+    public static final String DEFAULT_SCHEMA_NAME = "default";
+
+    private static final int MAX_ENTRIES = 64;
+    private static final SchemaRegistry DEFAULT = new SchemaRegistry(MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final Map<String, Entry> schemas = new ConcurrentHashMap<>();
+    private final BoundedCache<String, Entry> schemasByBase64;
+    //the schema each name resolved to last, evicted only when every other schema is too
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final LongAdder evictions = new LongAdder();
+
+    public SchemaRegistry(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.schemasByBase64 = new BoundedCache<>(maxEntries);
+    }
+
+    public static SchemaRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param name     name the schema is known by, used for statistics only
+     * @param compiler compiles the schema text, throwing {@link SchemaProblem} if it is invalid
+     * @return the compiled schema, or the errors found while compiling it
+     */
+    public Pair<CompiledSchema, List<ValidationError>> get(String name, String schemaText, Function<String, CompiledSchema> compiler) {
+        return lookup(name, schemaText, compiler).result;
+    }
+
+    private Entry lookup(String name, String schemaText, Function<String, CompiledSchema> compiler) {
+        Stats schemaStats = getStats(name);
+        schemaStats.lookups.increment();
+
+        Entry entry = schemas.get(schemaText);
+        boolean added = entry == null;
+        if (added) {
+            entry = schemas.computeIfAbsent(schemaText, text -> compile(text, compiler, schemaStats));
+        }
+        if (current.get(schemaStats.getName()) != entry) {
+            current.put(schemaStats.getName(), entry);
+        }
+        if (added && schemas.size() > maxEntries) {
+            evict(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts schemas until the registry fits, those no name resolves to first.
+     *
+     * @param keep the schema just added
+     */
+    private synchronized void evict(Entry keep) {
+        while (schemas.size() > maxEntries) {
+            Set<Entry> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+            referenced.addAll(current.values());
+            Entry victim = null;
+            for (Entry entry : schemas.values()) {
+                if (entry != keep && (victim == null || !referenced.contains(entry))) {
+                    victim = entry;
+                    if (!referenced.contains(entry)) {
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            schemas.remove(victim.text, victim);
+            current.values().remove(victim);
+            schemasByBase64.removeValue(victim);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Same as {@link #get(String, String, Function)}, for a schema encoded as base64.
+     * Decoded schemas are remembered by their base64 text, so known schemas are not decoded again.
+     */
+    public Pair<CompiledSchema, List<ValidationError>> getBase64(String name, String schemaBase64, Function<String, CompiledSchema> compiler) {
+        Entry entry = schemasByBase64.get(schemaBase64);
+        if (entry != null) {
+            getStats(name).lookups.increment();
+            return entry.result;
+        }
+
+        String schemaText = new String(Base64.getDecoder().decode(schemaBase64), StandardCharsets.UTF_8);
+        entry = lookup(name, schemaText, compiler);
+        schemasByBase64.put(schemaBase64, entry);
+        return entry.result;
+    }
+
+    /**
+     * Counts a lookup of a schema the caller keeps a reference to.
+     */
+    public void countLookup(String name) {
+        getStats(name).lookups.increment();
+    }
+
+    public Stats getStats(String name) {
+        String key = name == null ? DEFAULT_SCHEMA_NAME : name;
+        Stats schemaStats = stats.get(key);
+        if (schemaStats == null) {
+            schemaStats = stats.computeIfAbsent(key, Stats::new);
+        }
+        return schemaStats;
+    }
+
+    /**
+     * @return statistics of every schema name seen so far
+     */
+    public Collection<Stats> getAllStats() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+    public int size() {
+        return schemas.size();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of schemas kept and the statistics of every schema name, as JSON
+     */
+    public String toJson() {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("size").value(size());
+            writer.name("evictions").value(getEvictions());
+            writer.name("schemas").beginArray();
+            for (Stats schemaStats : new TreeMap<>(stats).values()) {
+                writer.beginObject();
+                writer.name("name").value(schemaStats.getName());
+                writer.name("lookups").value(schemaStats.getLookups());
+                writer.name("hits").value(schemaStats.getHits());
+                writer.name("compilations").value(schemaStats.getCompilations());
+                writer.name("failures").value(schemaStats.getFailures());
+                writer.name("compileMillis").value(schemaStats.getCompileMillis());
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Drops every compiled schema and statistics, the next request for each schema compiles it again.
+     */
+    public void clear() {
+        schemas.clear();
+        schemasByBase64.clear();
+        current.clear();
+        stats.clear();
+    }
+
+    private static Entry compile(String schemaText, Function<String, CompiledSchema> compiler, Stats schemaStats) {
+        long start = System.nanoTime();
+        try {
+            return new Entry(schemaText, new Pair<>(compiler.apply(schemaText), null));
+        } catch (SchemaProblem ex) {
+            schemaStats.failures.increment();
+            List<ValidationError> errors = new ArrayList<>();
+            for (GraphQLError error : ex.getErrors()) {
+                errors.add(ValidationError.newValidationError()
+                        .description(error.getMessage())
+                        .extensions(GraphQLErrorResponse.code(GraphQLErrorResponse.CODE_INTERNAL_SERVER_ERROR))
+                        .build());
+            }
+            return new Entry(schemaText, new Pair<>(null, Collections.unmodifiableList(errors)));
+        } finally {
+            schemaStats.compilations.increment();
+            schemaStats.compileNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Entry {
+        final String text;
+        final Pair<CompiledSchema, List<ValidationError>> result;
+
+        Entry(String text, Pair<CompiledSchema, List<ValidationError>> result) {
+            this.text = text;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Cache statistics of one schema name.
+     */
+    public static final class Stats {
+        private final String name;
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder compilations = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder compileNanos = new LongAdder();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLookups() {
+            return lookups.sum();
+        }
+
+        /**
+         * @return lookups answered without compiling the schema
+         */
+        public long getHits() {
+            return Math.max(0, lookups.sum() - compilations.sum());
+        }
+
+        public long getCompilations() {
+            return compilations.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getCompileMillis() {
+            return compileNanos.sum() / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("schema=%s lookups=%d hits=%d compilations=%d failures=%d compileMillis=%d",
+                    name, getLookups(), getHits(), getCompilations(), getFailures(), getCompileMillis());
+        }
+    }
+}
@@ -0,0 +1,423 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.language.AstPrinter;
+import graphql.language.Node;
+import graphql.language.SourceLocation;
+
+/**
+ * Records the edits made to a query while it is traversed, and applies them to the original query text.
+ * <p>
+ * Instead of re-printing the whole document, the output is the client's own text with only the removed
+ * or replaced spans patched, so the cost of producing it depends on the number of edits rather than on
+ * the size of the document. Spans are located using the source locations recorded by the parser.
+ * A removed node takes its leading whitespace with it (up to the start of its line), so the rest of the
+ * document keeps its original layout.
+ * <p>
+ * If any edit cannot be located (e.g. a node created by a visitor has no source location), the patch
+ * becomes invalid and {@link #apply()} returns null, callers should then fall back to {@link AstPrinter}.
+ * <p>
+ * Instances are not thread-safe, use {@link #get()} to obtain the reusable instance of the current thread.
+ */
+public class SourcePatch {
+    private static final ThreadLocal<SourcePatch> PATCHES = ThreadLocal.withInitial(SourcePatch::new);
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private String text;
+    private boolean valid;
+
+    //start offset of every line, built on the first edit
+    private int[] lineStarts = new int[64];
+    private int lineCount = -1;
+    private boolean surrogates;
+
+    //edits, ordered by start offset
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private String[] replacements = new String[16];
+    private int count;
+
+    private StringBuilder buffer = new StringBuilder();
+
+    /**
+     * @return the reusable patch of the current thread
+     */
+    public static SourcePatch get() {
+        return PATCHES.get();
+    }
+
+    /**
+     * Starts recording edits against the given query text, discarding any previous edits.
+     */
+    void begin(String text) {
+        this.text = text;
+        this.valid = text != null;
+        this.lineCount = -1;
+        this.surrogates = false;
+        for (int i = 0; i < count; i++) {
+            replacements[i] = null;
+        }
+        this.count = 0;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public int getEditCount() {
+        return count;
+    }
+
+    /**
+     * Cuts a node out of the text.
+     *
+     * @param next the sibling following the node, or null if it is the last one within its enclosing brackets
+     */
+    void remove(Node<?> node, Node<?> next) {
+        int start = offset(node);
+        int end = next != null ? offset(next) : enclosingClose(start);
+        if (start < 0 || end < 0) {
+            valid = false;
+            return;
+        }
+
+        int trimmedStart = trimToLineStart(start);
+        if (next == null || trimmedStart == 0 || !isOpen(text.charAt(trimmedStart - 1))) {
+            start = trimmedStart;
+            end = trimToLineStart(end);
+        }
+        //otherwise it is the first of several children on the line of the opening bracket,
+        //cut up to the next sibling instead so that no separator is left behind
+
+        //keep the tokens on either side of the cut apart
+        String replacement = "";
+        if (start > 0 && end < text.length() && !isIgnored(text.charAt(start - 1)) && !isIgnored(text.charAt(end)) && !isClose(text.charAt(end))) {
+            replacement = " ";
+        }
+        add(start, end, replacement);
+    }
+
+    /**
+     * Replaces a node with the printed form of another node.
+     *
+     * @param next the sibling following the node, or null if it is the last one within its enclosing brackets
+     */
+    void replace(Node<?> node, Node<?> next, Node<?> replacement) {
+        int start = offset(node);
+        int end = next != null ? offset(next) : enclosingClose(start);
+        if (start < 0 || end < 0) {
+            valid = false;
+            return;
+        }
+
+        add(start, trimIgnored(start, end), AstPrinter.printAstCompact(replacement));
+    }
+
+    /**
+     * Replaces a node delimited by braces (e.g. a selection set) with the printed form of another node.
+     */
+    void replaceBlock(Node<?> node, Node<?> replacement) {
+        int start = offset(node);
+        if (start < 0 || text.charAt(start) != '{') {
+            valid = false;
+            return;
+        }
+
+        int end = enclosingClose(start + 1);
+        if (end < 0 || end == text.length()) {
+            valid = false;
+            return;
+        }
+        add(start, end + 1, AstPrinter.printAstCompact(replacement));
+    }
+
+    /**
+     * Cuts a parenthesized list (e.g. variable definitions) out of the text, parentheses included.
+     *
+     * @param first the first element of the list
+     */
+    void removeList(Node<?> first) {
+        int start = offset(first);
+        int end = enclosingClose(start);
+        if (start < 0 || end < 0 || end == text.length()) {
+            valid = false;
+            return;
+        }
+
+        int open = start;
+        while (open > 0 && isIgnored(text.charAt(open - 1))) {
+            open--;
+        }
+        if (open == 0 || text.charAt(open - 1) != '(') {
+            valid = false;
+            return;
+        }
+        add(open - 1, end + 1, "");
+    }
+
+    /**
+     * @return the patched text, the original text if there were no edits, or null if the patch is invalid
+     */
+    public String apply() {
+        if (!valid) {
+            return null;
+        }
+        if (count == 0) {
+            return text;
+        }
+
+        StringBuilder out = buffer;
+        out.setLength(0);
+        out.ensureCapacity(text.length());
+
+        int last = 0;
+        for (int i = 0; i < count; i++) {
+            out.append(text, last, starts[i]);
+            out.append(replacements[i]);
+            last = ends[i];
+        }
+        out.append(text, last, text.length());
+
+        String result = out.toString();
+        out.setLength(0);
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = new StringBuilder();
+        }
+        return result;
+    }
+
+    private void add(int start, int end, String replacement) {
+        if (!valid) {
+            return;
+        }
+
+        //edits are mostly recorded in document order, but an edit can precede edits recorded before it
+        int position = count;
+        while (position > 0 && starts[position - 1] >= start) {
+            position--;
+        }
+
+        //children are recorded before their parents, edits within the new span are superseded by it
+        int superseded = position;
+        while (superseded < count && ends[superseded] <= end && starts[superseded] < end) {
+            superseded++;
+        }
+        if ((position > 0 && ends[position - 1] > start) || (superseded < count && starts[superseded] < end)) {
+            valid = false;
+            return;
+        }
+        if (superseded > position) {
+            System.arraycopy(starts, superseded, starts, position, count - superseded);
+            System.arraycopy(ends, superseded, ends, position, count - superseded);
+            System.arraycopy(replacements, superseded, replacements, position, count - superseded);
+            for (int i = count - (superseded - position); i < count; i++) {
+                replacements[i] = null;
+            }
+            count -= superseded - position;
+        }
+
+        if (count == starts.length) {
+            int size = count * 2;
+            int[] newStarts = new int[size];
+            int[] newEnds = new int[size];
+            String[] newReplacements = new String[size];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(ends, 0, newEnds, 0, count);
+            System.arraycopy(replacements, 0, newReplacements, 0, count);
+            starts = newStarts;
+            ends = newEnds;
+            replacements = newReplacements;
+        }
+
+        System.arraycopy(starts, position, starts, position + 1, count - position);
+        System.arraycopy(ends, position, ends, position + 1, count - position);
+        System.arraycopy(replacements, position, replacements, position + 1, count - position);
+        starts[position] = start;
+        ends[position] = end;
+        replacements[position] = replacement;
+        count++;
+    }
+
+    /**
+     * @return the offset of the node within the text, or -1 if it is unknown
+     */
+    private int offset(Node<?> node) {
+        SourceLocation location = node.getSourceLocation();
+        if (!valid || location == null || location.getLine() < 1 || location.getColumn() < 1) {
+            return -1;
+        }
+
+        if (lineCount < 0) {
+            indexLines();
+        }
+        if (location.getLine() > lineCount) {
+            return -1;
+        }
+
+        int lineStart = lineStarts[location.getLine() - 1];
+        int offset;
+        if (!surrogates) {
+            offset = lineStart + location.getColumn() - 1;
+        } else {
+            //the parser counts columns in code points
+            try {
+                offset = text.offsetByCodePoints(lineStart, location.getColumn() - 1);
+            } catch (IndexOutOfBoundsException ex) {
+                return -1;
+            }
+        }
+        return offset < text.length() ? offset : -1;
+    }
+
+    private void indexLines() {
+        int lines = 0;
+        lineStarts[lines++] = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                if (lines == lineStarts.length) {
+                    int[] newLineStarts = new int[lines * 2];
+                    System.arraycopy(lineStarts, 0, newLineStarts, 0, lines);
+                    lineStarts = newLineStarts;
+                }
+                lineStarts[lines++] = i + 1;
+            } else if (Character.isSurrogate(c)) {
+                surrogates = true;
+            }
+        }
+        lineCount = lines;
+    }
+
+    /**
+     * Scans forward for the closing bracket that encloses the given offset, skipping nested brackets,
+     * strings and comments.
+     *
+     * @return the offset of the closing bracket, the length of the text for top-level offsets, or -1
+     */
+    private int enclosingClose(int offset) {
+        if (offset < 0) {
+            return -1;
+        }
+
+        int depth = 0;
+        int length = text.length();
+        int i = offset;
+        while (i < length) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '#':
+                    while (i < length && text.charAt(i) != '\n' && text.charAt(i) != '\r') {
+                        i++;
+                    }
+                    continue;
+                case '"':
+                    i = skipString(i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    continue;
+                case '{':
+                case '(':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ')':
+                case ']':
+                    if (depth == 0) {
+                        return i;
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+            i++;
+        }
+        return depth == 0 ? length : -1;
+    }
+
+    /**
+     * @return the offset just past the string or block string starting at the given offset, or -1
+     */
+    private int skipString(int offset) {
+        int length = text.length();
+        if (text.startsWith("\"\"\"", offset)) {
+            int i = offset + 3;
+            while (i < length) {
+                if (text.charAt(i) == '\\' && text.startsWith("\"\"\"", i + 1)) {
+                    i += 4;
+                } else if (text.startsWith("\"\"\"", i)) {
+                    return i + 3;
+                } else {
+                    i++;
+                }
+            }
+            return -1;
+        }
+
+        int i = offset + 1;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else if (c == '\n' || c == '\r') {
+                return -1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset moved back over blanks and commas, stopping at the start of a line
+     */
+    private int trimToLineStart(int offset) {
+        while (offset > 0) {
+            char c = text.charAt(offset - 1);
+            if (c != ' ' && c != '\t' && c != ',') {
+                break;
+            }
+            offset--;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the end offset moved back over every ignored character, but not before the start offset
+     */
+    private int trimIgnored(int start, int end) {
+        while (end > start && isIgnored(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isOpen(char c) {
+        return c == '{' || c == '(' || c == '[';
+    }
+
+    private static boolean isClose(char c) {
+        return c == '}' || c == ')' || c == ']';
+    }
+
+    private static boolean isIgnored(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == ',' || c == '\uFEFF';
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import com.google.apigee.callouts.graphql.CompiledSchema.CompositeTypeInfo;
+import com.google.apigee.callouts.graphql.CompiledSchema.FieldInfo;
+import graphql.Scalars;
+import graphql.language.OperationDefinition;
+import graphql.schema.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates one operation per root field of a schema, selecting every field reachable up to a given depth.
+ * <p>
+ * Required arguments and input fields get placeholder values of their type, which may not pass custom
+ * validation (e.g. @pattern); the operations are meant to exercise the validation code, not to be forwarded.
+ */
+public class SyntheticQueries {
+    private static final int MAX_INPUT_DEPTH = 4;
+
+    private final CompiledSchema compiledSchema;
+    private final int maxDepth;
+
+    private SyntheticQueries(CompiledSchema compiledSchema, int maxDepth) {
+        this.compiledSchema = compiledSchema;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @return the text of one query or mutation per root field
+     */
+    public static List<String> generate(CompiledSchema compiledSchema, int maxDepth) {
+        SyntheticQueries generator = new SyntheticQueries(compiledSchema, maxDepth);
+        List<String> operations = new ArrayList<>();
+        generator.addOperations(operations, OperationDefinition.Operation.QUERY, "query");
+        generator.addOperations(operations, OperationDefinition.Operation.MUTATION, "mutation");
+        return operations;
+    }
+
+    private void addOperations(List<String> operations, OperationDefinition.Operation operation, String keyword) {
+        CompositeTypeInfo rootType = compiledSchema.getRootType(operation);
+        if (rootType == null) {
+            return;
+        }
+        for (FieldInfo field : rootType.getFields()) {
+            StringBuilder out = new StringBuilder(keyword).append(" { ");
+            appendField(out, field, 1, null);
+            operations.add(out.append(" }").toString());
+        }
+    }
+
+    private void appendField(StringBuilder out, FieldInfo field, int depth, String aliasPrefix) {
+        GraphQLFieldDefinition definition = field.getDefinition();
+        if (aliasPrefix != null) {
+            out.append(aliasPrefix).append('_').append(definition.getName()).append(": ");
+        }
+        out.append(definition.getName());
+        appendArguments(out, definition.getArguments());
+
+        CompositeTypeInfo fieldType = field.getCompositeType();
+        if (fieldType != null) {
+            out.append(" { ");
+            appendSelections(out, fieldType, depth + 1, null);
+            out.append(" }");
+        }
+    }
+
+    /**
+     * @param aliasPrefix if not null, prefixes the response key of every field, so that fields of union members
+     *                    with the same name but different types do not conflict
+     */
+    private void appendSelections(StringBuilder out, CompositeTypeInfo type, int depth, String aliasPrefix) {
+        out.append("__typename");
+        for (FieldInfo field : type.getFields()) {
+            if (field.getCompositeType() != null && depth > maxDepth) {
+                continue;
+            }
+            out.append(' ');
+            appendField(out, field, depth, aliasPrefix);
+        }
+
+        if (type.getType() instanceof GraphQLUnionType) {
+            for (String possibleType : type.getPossibleTypes()) {
+                out.append(" ... on ").append(possibleType).append(" { ");
+                appendSelections(out, compiledSchema.getCompositeType(possibleType), depth, possibleType);
+                out.append(" }");
+            }
+        }
+    }
+
+    private void appendArguments(StringBuilder out, List<GraphQLArgument> arguments) {
+        boolean first = true;
+        for (GraphQLArgument argument : arguments) {
+            if (!GraphQLTypeUtil.isNonNull(argument.getType()) || argument.hasSetDefaultValue()) {
+                continue;
+            }
+            out.append(first ? "(" : ", ").append(argument.getName()).append(": ");
+            appendValue(out, argument.getType(), 0);
+            first = false;
+        }
+        if (!first) {
+            out.append(')');
+        }
+    }
+
+    private void appendValue(StringBuilder out, GraphQLInputType type, int depth) {
+        GraphQLType unwrapped = GraphQLTypeUtil.unwrapNonNull(type);
+        if (unwrapped instanceof GraphQLList) {
+            out.append('[');
+            appendValue(out, (GraphQLInputType) ((GraphQLList) unwrapped).getWrappedType(), depth);
+            out.append(']');
+        } else if (unwrapped instanceof GraphQLEnumType) {
+            out.append(((GraphQLEnumType) unwrapped).getValues().get(0).getName());
+        } else if (unwrapped instanceof GraphQLInputObjectType) {
+            out.append('{');
+            boolean first = true;
+            for (GraphQLInputObjectField field : ((GraphQLInputObjectType) unwrapped).getFieldDefinitions()) {
+                boolean required = GraphQLTypeUtil.isNonNull(field.getType()) && !field.hasSetDefaultValue();
+                if (!required && depth >= MAX_INPUT_DEPTH) {
+                    continue;
+                }
+                out.append(first ? "" : ", ").append(field.getName()).append(": ");
+                appendValue(out, field.getType(), depth + 1);
+                first = false;
+            }
+            out.append('}');
+        } else if (Scalars.GraphQLInt.equals(unwrapped) || Scalars.GraphQLFloat.equals(unwrapped)) {
+            out.append('1');
+        } else if (Scalars.GraphQLBoolean.equals(unwrapped)) {
+            out.append("true");
+        } else {
+            out.append("\"A1\"");
+        }
+    }
+}
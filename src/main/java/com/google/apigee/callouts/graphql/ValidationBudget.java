@@ -0,0 +1,75 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+/**
+ * Upper bound on the work done to validate one request: a wall-clock timeout, and a number of AST nodes
+ * visited by the traversal.
+ * <p>
+ * The budget is checked cooperatively, once per node visited by {@link GraphQLTraverser} (the clock only every
+ * {@link #CLOCK_CHECK_INTERVAL} nodes), and by visitors calling {@link GraphQLVisitorContext#checkBudget()} in
+ * their own loops. The timeout counts from the start of parsing: the deadline is also checked after parsing, after the
+ * spec rules, and periodically by {@link OverlappingFieldsCheck}. When it runs out, a
+ * {@link GraphQLBudgetExceededException} ends the validation.
+ */
+public final class ValidationBudget {
+    public static final ValidationBudget UNLIMITED = new ValidationBudget(0, 0);
+
+    //nodes visited between two reads of the clock, a power of 2
+    static final int CLOCK_CHECK_INTERVAL = 64;
+
+    private final long timeoutMillis;
+    private final long maxNodes;
+
+    private ValidationBudget(long timeoutMillis, long maxNodes) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * @param timeoutMillis wall-clock time allowed from the start of validation, 0 or less for no limit
+     * @param maxNodes      AST nodes the traversal may visit, 0 or less for no limit
+     */
+    public static ValidationBudget of(long timeoutMillis, long maxNodes) {
+        if (timeoutMillis <= 0 && maxNodes <= 0) {
+            return UNLIMITED;
+        }
+        return new ValidationBudget(Math.max(timeoutMillis, 0), Math.max(maxNodes, 0));
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMaxNodes() {
+        return maxNodes;
+    }
+
+    public boolean isUnlimited() {
+        return timeoutMillis == 0 && maxNodes == 0;
+    }
+
+    /**
+     * @return the System.nanoTime() deadline for a validation started at the given time
+     */
+    long deadlineNanos(long startNanos) {
+        return timeoutMillis == 0 ? Long.MAX_VALUE : startNanos + timeoutMillis * 1_000_000L;
+    }
+
+    @Override
+    public String toString() {
+        return "ValidationBudget{timeoutMillis=" + timeoutMillis + ", maxNodes=" + maxNodes + "}";
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import java.util.function.LongPredicate;
+
+/**
+ * Optional settings of {@link GraphQLProcessor#parseAndValidate(String, String, java.util.Map, CompiledSchema, GraphQLContextVisitor, ValidationOptions)}.
+ * Anything not set keeps its default: no patch, no budget, no cache policy or cost, every validation rule, and
+ * the fields of the request counted in the schema's {@link FieldUsage}.
+ */
+public final class ValidationOptions {
+    public static final ValidationOptions DEFAULT = newOptions().build();
+
+    private final SourcePatch patch;
+    private final ValidationBudget budget;
+    private final CachePolicy cachePolicy;
+    private final OperationCost cost;
+    private final ValidationRules rules;
+    private final boolean countUsage;
+    private final LongPredicate admission;
+
+    private ValidationOptions(Builder builder) {
+        this.patch = builder.patch;
+        this.budget = builder.budget;
+        this.cachePolicy = builder.cachePolicy;
+        this.cost = builder.cost;
+        this.rules = builder.rules;
+        this.countUsage = builder.countUsage;
+        this.admission = builder.admission;
+    }
+
+    public static Builder newOptions() {
+        return new Builder();
+    }
+
+    public SourcePatch getPatch() {
+        return patch;
+    }
+
+    public ValidationBudget getBudget() {
+        return budget;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public OperationCost getCost() {
+        return cost;
+    }
+
+    public ValidationRules getRules() {
+        return rules;
+    }
+
+    public boolean isCountUsage() {
+        return countUsage;
+    }
+
+    public LongPredicate getAdmission() {
+        return admission;
+    }
+
+    public static final class Builder {
+        private SourcePatch patch;
+        private ValidationBudget budget = ValidationBudget.UNLIMITED;
+        private CachePolicy cachePolicy;
+        private OperationCost cost;
+        private ValidationRules rules = ValidationRules.DEFAULT;
+        private boolean countUsage = true;
+        private LongPredicate admission;
+
+        private Builder() {
+        }
+
+        /**
+         * @param patch if not null, records the edits made to the query so that it can be patched instead of re-printed
+         */
+        public Builder patch(SourcePatch patch) {
+            this.patch = patch;
+            return this;
+        }
+
+        /**
+         * @param budget bounds the time and the number of nodes spent on the request. When it runs out, the result has
+         *               a single error with the {@link GraphQLErrorResponse#CODE_BUDGET_EXCEEDED} code
+         */
+        public Builder budget(ValidationBudget budget) {
+            this.budget = budget == null ? ValidationBudget.UNLIMITED : budget;
+            return this;
+        }
+
+        /**
+         * @param cachePolicy if not null, receives the cache policy of the forwarded operation when validation succeeds
+         */
+        public Builder cachePolicy(CachePolicy cachePolicy) {
+            this.cachePolicy = cachePolicy;
+            return this;
+        }
+
+        /**
+         * @param cost if not null, receives the number of fields and the depth of the forwarded operation when validation succeeds
+         */
+        public Builder cost(OperationCost cost) {
+            this.cost = cost;
+            return this;
+        }
+
+        /**
+         * @param rules the GraphQL spec validation rules to run before the traversal
+         */
+        public Builder rules(ValidationRules rules) {
+            this.rules = rules == null ? ValidationRules.DEFAULT : rules;
+            return this;
+        }
+
+        /**
+         * @param countUsage false for requests that are not client traffic (warm-up, revalidation), so that their
+         *                   fields are not counted in the schema's {@link FieldUsage}
+         */
+        public Builder countUsage(boolean countUsage) {
+            this.countUsage = countUsage;
+            return this;
+        }
+
+        /**
+         * @param admission if not null, called with the estimated cost of the operation (see
+         *                  {@link OperationCost#estimate}) once it is parsed, before it is validated. When it returns
+         *                  false, the result has a single error with the {@link GraphQLErrorResponse#CODE_OVERLOADED}
+         *                  code, and the cost receives the estimate
+         */
+        public Builder admission(LongPredicate admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        public ValidationOptions build() {
+            return new ValidationOptions(this);
+        }
+    }
+}
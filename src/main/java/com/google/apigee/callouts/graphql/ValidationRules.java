@@ -0,0 +1,143 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.validation.rules.NoFragmentCycles;
+import graphql.validation.rules.NoUnusedVariables;
+import graphql.validation.rules.OverlappingFieldsCanBeMerged;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The set of GraphQL spec validation rules run on every request, by the simple class name of their graphql-java
+ * implementation (e.g. "NoUnusedFragments").
+ * <p>
+ * A rule set is written as a comma separated list of rule names. A name prefixed with "-" removes the rule, and
+ * "all" stands for every rule, e.g. "all,-NoUnusedVariables". A list that starts with a removal starts from all the
+ * rules. OverlappingFieldsCanBeMerged is always checked by {@link OverlappingFieldsCheck} instead of the graphql-java
+ * rule, which compares every pair of fields with the same response name.
+ * <p>
+ * Only the {@link #OPTIONAL_RULES} can be removed, and every other rule always runs: the traversal of the callout
+ * does not check what they check (missing or mistyped arguments, selections on leaf fields, undefined variables...),
+ * so removing one of them would forward invalid operations. The optional rules are either expensive
+ * (OverlappingFieldsCanBeMerged) or report what is not forwarded: unused fragments are dropped from the forwarded
+ * document, and so are unused variable definitions when NoUnusedVariables does not run.
+ */
+public final class ValidationRules {
+    public static final String ALL = "all";
+    public static final String OVERLAPPING_FIELDS = OverlappingFieldsCanBeMerged.class.getSimpleName();
+    public static final String FRAGMENT_CYCLES = NoFragmentCycles.class.getSimpleName();
+    public static final String UNUSED_VARIABLES = NoUnusedVariables.class.getSimpleName();
+
+    //the rules of graphql.validation.Validator
+    static final Set<String> SPEC_RULES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            "ArgumentsOfCorrectType", "ExecutableDefinitions", "FieldsOnCorrectType", "FragmentsOnCompositeType",
+            "KnownArgumentNames", "KnownDirectives", "KnownFragmentNames", "KnownTypeNames", "LoneAnonymousOperation",
+            FRAGMENT_CYCLES, "NoUndefinedVariables", "NoUnusedFragments", "NoUnusedVariables", OVERLAPPING_FIELDS,
+            "PossibleFragmentSpreads", "ProvidedNonNullArguments", "ScalarLeaves", "SubscriptionUniqueRootField",
+            "UniqueArgumentNames", "UniqueDirectiveNamesPerLocation", "UniqueFragmentNames", "UniqueObjectFieldName",
+            "UniqueOperationNames", "UniqueVariableNames", "VariableDefaultValuesOfCorrectType", "VariablesAreInputTypes",
+            "VariableTypesMatch")));
+
+    //the rules that can be removed, see the class documentation
+    public static final Set<String> OPTIONAL_RULES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            OVERLAPPING_FIELDS, "NoUnusedFragments", UNUSED_VARIABLES)));
+
+    public static final ValidationRules DEFAULT = new ValidationRules(SPEC_RULES);
+
+    private final Set<String> rules;
+    private final Predicate<Class<?>> predicate;
+
+    private ValidationRules(Set<String> rules) {
+        this.rules = Collections.unmodifiableSet(new TreeSet<>(rules));
+        this.predicate = ruleClass -> {
+            String name = ruleClass.getSimpleName();
+            if (name.equals(OVERLAPPING_FIELDS)) {
+                return false;
+            }
+            //rules this class does not know about (added by a newer graphql-java) are not optional
+            return !SPEC_RULES.contains(name) || this.rules.contains(name);
+        };
+    }
+
+    /**
+     * @param ruleSet the rule set, see the class documentation, or null for every rule
+     * @throws IllegalArgumentException if a rule name is unknown, or a rule that is not optional is removed
+     */
+    public static ValidationRules parse(String ruleSet) {
+        if (ruleSet == null || ruleSet.trim().isEmpty()) {
+            return DEFAULT;
+        }
+
+        String[] names = ruleSet.split(",");
+        Set<String> rules = new HashSet<>(names[0].trim().startsWith("-") ? SPEC_RULES : Collections.emptySet());
+        for (String entry : names) {
+            String name = entry.trim();
+            boolean remove = name.startsWith("-");
+            if (remove) {
+                name = name.substring(1).trim();
+            }
+
+            if (name.equals(ALL)) {
+                rules = new HashSet<>(remove ? Collections.emptySet() : SPEC_RULES);
+            } else if (!SPEC_RULES.contains(name)) {
+                throw new IllegalArgumentException("unknown validation rule " + name);
+            } else if (remove && !OPTIONAL_RULES.contains(name)) {
+                throw new IllegalArgumentException("validation rule " + name + " cannot be removed, only " + String.join(", ", OPTIONAL_RULES) + " can");
+            } else if (remove) {
+                rules.remove(name);
+            } else {
+                rules.add(name);
+            }
+        }
+        for (String rule : SPEC_RULES) {
+            if (!OPTIONAL_RULES.contains(rule)) {
+                rules.add(rule);
+            }
+        }
+        return new ValidationRules(rules);
+    }
+
+    /**
+     * @return the graphql-java rules to run, see {@link graphql.ParseAndValidate#validate(graphql.schema.GraphQLSchema, graphql.language.Document, Predicate)}
+     */
+    public Predicate<Class<?>> getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return true if {@link OverlappingFieldsCheck} runs
+     */
+    public boolean checksOverlappingFields() {
+        return rules.contains(OVERLAPPING_FIELDS);
+    }
+
+    /**
+     * @return true if NoUnusedVariables runs, otherwise unused variable definitions are removed from the forwarded document
+     */
+    public boolean checksUnusedVariables() {
+        return rules.contains(UNUSED_VARIABLES);
+    }
+
+    public Set<String> getRules() {
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", rules);
+    }
+}
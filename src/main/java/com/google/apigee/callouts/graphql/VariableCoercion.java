@@ -0,0 +1,52 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.graphql;
+
+import graphql.GraphQLContext;
+import graphql.GraphQLException;
+import graphql.execution.RawVariables;
+import graphql.execution.ValuesResolver;
+import graphql.language.VariableDefinition;
+import graphql.schema.GraphQLSchema;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Coerces the variables of an operation the way graphql-java does before executing it.
+ * <p>
+ * graphql-java has no public API for this, {@link ValuesResolver} is marked internal and may change in any release.
+ * This class is its only caller, and the tests check that the graphql-java on the classpath is the
+ * {@link #VERIFIED_VERSION} it was verified against, so an upgrade has to revisit it.
+ */
+public final class VariableCoercion {
+    /**
+     * The graphql-java version whose {@link ValuesResolver} this class was verified against.
+     */
+    public static final String VERIFIED_VERSION = "21.4";
+
+    private VariableCoercion() {
+    }
+
+    /**
+     * @param variables the raw variables of the request, with JSON numbers normalized, see {@link GraphQLUtil#normalizeNumbers}
+     * @return the coerced values, without the variables the request does not set and that have no default value
+     * @throws GraphQLException if a variable is invalid
+     */
+    public static Map<String, Object> coerce(GraphQLSchema schema, List<VariableDefinition> variableDefinitions, Map<String, Object> variables) {
+        return ValuesResolver.coerceVariableValues(schema, variableDefinitions, RawVariables.of(variables), GraphQLContext.getDefault(), Locale.getDefault()).toMap();
+    }
+}
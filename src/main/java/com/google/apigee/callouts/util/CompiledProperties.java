@@ -0,0 +1,61 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of callout properties, each one compiled into a {@link PropertyTemplate}.
+ * Built once when the callout is constructed and shared by all requests.
+ */
+public final class CompiledProperties {
+    public static final CompiledProperties EMPTY = new CompiledProperties(Collections.emptyMap());
+
+    private final Map<String, PropertyTemplate> templates;
+
+    private CompiledProperties(Map<String, PropertyTemplate> templates) {
+        this.templates = templates;
+    }
+
+    public static CompiledProperties compile(Map<?, ?> properties) {
+        if (properties == null || properties.isEmpty()) {
+            return EMPTY;
+        }
+
+        Map<String, PropertyTemplate> templates = new HashMap<>();
+        for (Map.Entry<?, ?> e : properties.entrySet()) {
+            if (e.getKey() == null || e.getValue() == null) {
+                continue;
+            }
+            templates.put(e.getKey().toString(), PropertyTemplate.compile(e.getValue()));
+        }
+
+        return new CompiledProperties(Collections.unmodifiableMap(templates));
+    }
+
+    public PropertyTemplate get(String propertyName) {
+        return templates.get(propertyName);
+    }
+
+    public boolean contains(String propertyName) {
+        return templates.containsKey(propertyName);
+    }
+
+    public Map<String, PropertyTemplate> asMap() {
+        return templates;
+    }
+}
@@ -0,0 +1,332 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds the most frequent keys of a stream (e.g. operation signatures) in fixed memory, regardless of how many
+ * distinct keys there are.
+ * <p>
+ * Each key's count, cost (e.g. validation time) and size are estimated by a count-min sketch: {@link #DEPTH} rows of
+ * counters, each key adding to one counter per row, and the estimate being the smallest of its counters. Estimates
+ * never undercount, and overcount by at most a small fraction of the total. Updates are lock-free. The top keys by
+ * estimated count are kept in a min-heap of fixed capacity, which is only locked when a key it does not hold has an
+ * estimate above the smallest count in the heap. Keys already in the heap are counted by the sketch alone, so the heap
+ * refreshes their counts from it before evicting one.
+ */
+public class HeavyHitters {
+    static final int DEPTH = 4;
+
+    private final int width;
+    private final int mask;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray costs;
+    private final AtomicLongArray sizes;
+    private final LongAdder total = new LongAdder();
+
+    //min-heap of the top keys by estimated count, guarded by this
+    private final String[] heapKeys;
+    private final long[] heapCounts;
+    private int heapSize;
+    //the keys of the heap, read without locking
+    private final Set<String> heapMembers = ConcurrentHashMap.newKeySet();
+    //smallest count in the heap when it was last changed, 0 until it is full
+    private volatile long heapMin;
+
+    private final long createdMillis = System.currentTimeMillis();
+    private final AtomicLong lastClaimMillis = new AtomicLong(createdMillis);
+
+    /**
+     * @param width    counters per row, rounded up to a power of 2. The overcount is about total / width
+     * @param capacity number of top keys kept
+     */
+    public HeavyHitters(int width, int capacity) {
+        if (width < 1 || capacity < 1) {
+            throw new IllegalArgumentException("width and capacity must be positive");
+        }
+        this.width = width == 1 ? 1 : Integer.highestOneBit(width - 1) << 1;
+        this.mask = this.width - 1;
+        this.counts = new AtomicLongArray(DEPTH * this.width);
+        this.costs = new AtomicLongArray(DEPTH * this.width);
+        this.sizes = new AtomicLongArray(DEPTH * this.width);
+        this.heapKeys = new String[capacity];
+        this.heapCounts = new long[capacity];
+    }
+
+    /**
+     * Adds one occurrence of the given key.
+     *
+     * @param cost any additive cost of the occurrence, e.g. nanoseconds spent on it
+     * @param size any additive size of the occurrence, e.g. bytes
+     */
+    public void record(String key, long cost, long size) {
+        total.increment();
+
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * width + ((h1 + row * h2) & mask);
+            estimate = Math.min(estimate, counts.incrementAndGet(index));
+            costs.addAndGet(index, cost);
+            sizes.addAndGet(index, size);
+        }
+
+        if (estimate > heapMin && !heapMembers.contains(key)) {
+            offer(key, estimate);
+        }
+    }
+
+    /**
+     * Lets exactly one of the concurrent callers take a periodic snapshot.
+     *
+     * @return true if at least intervalMillis elapsed since the previous claim, and the caller won the claim
+     */
+    public boolean claimSnapshot(long intervalMillis) {
+        long now = System.currentTimeMillis();
+        long last = lastClaimMillis.get();
+        return now - last >= intervalMillis && lastClaimMillis.compareAndSet(last, now);
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public long estimateCount(String key) {
+        return estimate(counts, key);
+    }
+
+    public long estimateCost(String key) {
+        return estimate(costs, key);
+    }
+
+    public long estimateSize(String key) {
+        return estimate(sizes, key);
+    }
+
+    private long estimate(AtomicLongArray counters, String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(row * width + ((h1 + row * h2) & mask)));
+        }
+        return estimate;
+    }
+
+    private synchronized void offer(String key, long estimate) {
+        if (heapMembers.contains(key)) {
+            return;
+        }
+        if (heapSize < heapKeys.length) {
+            heapKeys[heapSize] = key;
+            heapCounts[heapSize] = estimate;
+            heapMembers.add(key);
+            siftUp(heapSize++);
+        } else {
+            //the counts of the keys in the heap grew without locking, the smallest may have changed
+            for (int i = 0; i < heapSize; i++) {
+                heapCounts[i] = estimateCount(heapKeys[i]);
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            if (estimate > heapCounts[0]) {
+                heapMembers.remove(heapKeys[0]);
+                heapKeys[0] = key;
+                heapCounts[0] = estimate;
+                heapMembers.add(key);
+                siftDown(0);
+            }
+        }
+        heapMin = heapSize < heapKeys.length ? 0 : heapCounts[0];
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heapCounts[parent] <= heapCounts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < heapSize && heapCounts[left] < heapCounts[smallest]) {
+                smallest = left;
+            }
+            if (right < heapSize && heapCounts[right] < heapCounts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = heapKeys[i];
+        heapKeys[i] = heapKeys[j];
+        heapKeys[j] = key;
+        long count = heapCounts[i];
+        heapCounts[i] = heapCounts[j];
+        heapCounts[j] = count;
+    }
+
+    /**
+     * @return the top keys, by decreasing estimated count, with their current estimates
+     */
+    public Snapshot snapshot() {
+        String[] keys;
+        synchronized (this) {
+            keys = Arrays.copyOf(heapKeys, heapSize);
+        }
+
+        List<Entry> entries = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            entries.add(new Entry(key, estimateCount(key), estimateCost(key), estimateSize(key)));
+        }
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return new Snapshot(createdMillis, System.currentTimeMillis(), getTotal(), Collections.unmodifiableList(entries));
+    }
+
+    /**
+     * FNV-1a over the characters, followed by a 64-bit finalizer so that both halves are well mixed.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static class Entry {
+        private final String key;
+        private final long count;
+        private final long cost;
+        private final long size;
+
+        Entry(String key, long count, long cost, long size) {
+            this.key = key;
+            this.count = count;
+            this.cost = cost;
+            this.size = size;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    public static class Snapshot {
+        private final long fromMillis;
+        private final long toMillis;
+        private final long total;
+        private final List<Entry> entries;
+
+        Snapshot(long fromMillis, long toMillis, long total, List<Entry> entries) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.total = total;
+            this.entries = entries;
+        }
+
+        public long getFromMillis() {
+            return fromMillis;
+        }
+
+        public long getToMillis() {
+            return toMillis;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return {"from": millis, "to": millis, "total": count, "top": [{"key": "...", "count": n, "cost": n, "size": n}, ...]}
+         */
+        public String toJson() {
+            StringWriter out = new StringWriter();
+            try (JsonWriter writer = new JsonWriter(out)) {
+                writer.beginObject();
+                writer.name("from").value(fromMillis);
+                writer.name("to").value(toMillis);
+                writer.name("total").value(total);
+                writer.name("top").beginArray();
+                for (Entry entry : entries) {
+                    writer.beginObject();
+                    writer.name("key").value(entry.key);
+                    writer.name("count").value(entry.count);
+                    writer.name("cost").value(entry.cost);
+                    writer.name("size").value(entry.size);
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return out.toString();
+        }
+    }
+}
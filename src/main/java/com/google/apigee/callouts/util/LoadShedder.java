@@ -0,0 +1,180 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects the most expensive requests first when the policy is overloaded, so cheap requests keep their latency.
+ * <p>
+ * The load is measured locally: the number of requests in flight, and a moving average of their latency. The
+ * overload is the largest of their ratios to the configured limits, and under overload (above 1) the most expensive
+ * requests are shed, making up the fraction {@code (overload - 1) / overload} of the recent cost: a third of it at
+ * 1.5 times a limit, half of it at twice, which brings the load back to the limit.
+ * <p>
+ * Which requests are the most expensive is decided against a histogram of recent costs, in power-of-2 buckets,
+ * halved every {@link #DECAY_INTERVAL} requests so that it follows the current traffic. Buckets are shed starting
+ * from the most expensive one; in the bucket where the fraction ends, requests are shed at random, in the
+ * proportion of the bucket that is left to shed. Requests costing no more than the minimum cost are never shed.
+ * Updates are lock-free.
+ */
+public class LoadShedder {
+    static final int BUCKETS = 64;
+    static final int DECAY_INTERVAL = 1024;
+
+    //weight of each new latency sample in the moving average
+    private static final double LATENCY_WEIGHT = 0.05;
+
+    private final int maxInFlight;
+    private final long maxLatencyMicros;
+    private final long minCost;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong latencyMicros = new AtomicLong();
+    private final AtomicLongArray costs = new AtomicLongArray(BUCKETS);
+    private final AtomicLong recorded = new AtomicLong();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param maxInFlight      requests in flight above which the policy is overloaded, or 0 for no limit
+     * @param maxLatencyMillis average latency above which the policy is overloaded, or 0 for no limit
+     * @param minCost          cost at or below which a request is never shed
+     */
+    public LoadShedder(int maxInFlight, long maxLatencyMillis, long minCost) {
+        if (maxInFlight < 0 || maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("limits must not be negative");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxLatencyMicros = maxLatencyMillis * 1000;
+        this.minCost = minCost;
+    }
+
+    /**
+     * Starts a request. Every call must be followed by {@link #exit(long)}.
+     */
+    public void enter() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Ends a request, counting its latency in the moving average.
+     *
+     * @param startNanos System.nanoTime() when the request started
+     */
+    public void exit(long startNanos) {
+        inFlight.decrementAndGet();
+        long sample = (System.nanoTime() - startNanos) / 1000;
+        long current;
+        long next;
+        do {
+            current = latencyMicros.get();
+            next = current + (long) ((sample - current) * LATENCY_WEIGHT);
+        } while (!latencyMicros.compareAndSet(current, next));
+    }
+
+    /**
+     * Counts the cost of a request in flight, and decides whether to serve it.
+     *
+     * @return false if the request should be shed
+     */
+    public boolean admit(long cost) {
+        int bucket = bucket(cost);
+        costs.incrementAndGet(bucket);
+        if (recorded.incrementAndGet() % DECAY_INTERVAL == 0) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count;
+                do {
+                    count = costs.get(i);
+                } while (!costs.compareAndSet(i, count, count / 2));
+            }
+        }
+
+        double overload = getOverload();
+        if (overload <= 1 || cost <= minCost) {
+            return true;
+        }
+
+        //the cost held by the more expensive buckets, and by the bucket of the request
+        double total = 0;
+        double expensive = 0;
+        double own = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            double mass = costs.get(i) * bucketCost(i);
+            total += mass;
+            if (i > bucket) {
+                expensive += mass;
+            } else if (i == bucket) {
+                own = mass;
+            }
+        }
+
+        double toShed = total * (overload - 1) / overload;
+        if (expensive >= toShed || own <= 0) {
+            return true;
+        }
+        if (expensive + own > toShed && ThreadLocalRandom.current().nextDouble() * own >= toShed - expensive) {
+            return true;
+        }
+        shed.increment();
+        return false;
+    }
+
+    private static int bucket(long cost) {
+        return cost <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(cost));
+    }
+
+    /**
+     * @return the smallest cost counted in the bucket
+     */
+    private static double bucketCost(int bucket) {
+        return bucket == 0 ? 0 : Math.scalb(1.0, bucket - 1);
+    }
+
+    /**
+     * @return the largest ratio of the current load to a limit, above 1 when the policy is overloaded
+     */
+    public double getOverload() {
+        double overload = 0;
+        if (maxInFlight > 0) {
+            overload = (double) inFlight.get() / maxInFlight;
+        }
+        if (maxLatencyMicros > 0) {
+            overload = Math.max(overload, (double) latencyMicros.get() / maxLatencyMicros);
+        }
+        return overload;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the moving average of the latency of recent requests, in microseconds
+     */
+    public long getLatencyMicros() {
+        return latencyMicros.get();
+    }
+
+    /**
+     * @return the number of requests shed so far
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A callout property value parsed once into literal segments and variable slots.
+ * <p>
+ * Rendering a template only fetches the referenced flow variables and concatenates them
+ * with the literal text, so no regular expressions are evaluated per request.
+ */
+public final class PropertyTemplate {
+    static final Pattern VAR_REF_PATTERN = Pattern.compile("(\\{[a-zA-Z0-9-.]+\\})");
+
+    private static final String[] NO_VARS = new String[0];
+
+    private final Object constant;
+    private final String wholeVarRef;
+    private final String[] literals;
+    private final String[] varNames;
+
+    private PropertyTemplate(Object constant, String wholeVarRef, String[] literals, String[] varNames) {
+        this.constant = constant;
+        this.wholeVarRef = wholeVarRef;
+        this.literals = literals;
+        this.varNames = varNames;
+    }
+
+    public static PropertyTemplate compile(Object propValue) {
+        if (!(propValue instanceof String)) {
+            return new PropertyTemplate(propValue, null, null, NO_VARS);
+        }
+
+        String text = (String) propValue;
+        if (VarResolver.isVarRef(text)) {
+            return new PropertyTemplate(null, VarResolver.trimFirstAndLast(text), null, NO_VARS);
+        }
+
+        List<String> literals = new ArrayList<>();
+        List<String> varNames = new ArrayList<>();
+        Matcher m = VAR_REF_PATTERN.matcher(text);
+        int last = 0;
+        while (m.find()) {
+            literals.add(text.substring(last, m.start()));
+            varNames.add(VarResolver.trimFirstAndLast(m.group(1)));
+            last = m.end();
+        }
+
+        if (varNames.isEmpty()) {
+            return new PropertyTemplate(text, null, null, NO_VARS);
+        }
+
+        literals.add(text.substring(last));
+        return new PropertyTemplate(null, null, literals.toArray(new String[0]), varNames.toArray(new String[0]));
+    }
+
+    /**
+     * @return true if the whole property value is a single {var} reference
+     */
+    public boolean isVarRef() {
+        return wholeVarRef != null;
+    }
+
+    public String getVarRef() {
+        return wholeVarRef;
+    }
+
+    /**
+     * @return true if the property value does not depend on any flow variable
+     */
+    public boolean isConstant() {
+        return wholeVarRef == null && varNames.length == 0;
+    }
+
+    public Object getConstant() {
+        return constant;
+    }
+
+    /**
+     * Resolves the template against the flow variables of the given message context.
+     * A whole {var} reference yields the raw variable value, templates with embedded
+     * references yield a String, and anything else yields the property value as configured.
+     */
+    public Object resolve(MessageContext msgCtx) {
+        if (wholeVarRef != null) {
+            return msgCtx.getVariable(wholeVarRef);
+        }
+
+        if (varNames.length == 0) {
+            return constant;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < varNames.length; i++) {
+            sb.append(literals[i]);
+            Object value = msgCtx.getVariable(varNames[i]);
+            if (value instanceof String) {
+                sb.append((String) value);
+            }
+        }
+        sb.append(literals[varNames.length]);
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers recently rejected request bodies, so that a client retrying the same invalid request gets the same
+ * rejection without the body being parsed and validated again.
+ * <p>
+ * Entries are keyed by a 64-bit hash of the raw body, and confirmed with a second, independent hash and the body
+ * length, so the bodies themselves are not retained. Each entry counts how many times it was seen, and expires
+ * after a fixed time, so that a schema or policy fix is picked up.
+ */
+public class RejectionCache {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long SECOND_SEED = 0x9e3779b97f4a7c15L;
+
+    private final BoundedCache<Long, Rejection> entries;
+    private final long ttlMillis;
+
+    public RejectionCache(int maxSize, long ttlMillis) {
+        this.entries = new BoundedCache<>(maxSize);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * A cached rejection, with what the policy produced for it.
+     */
+    public static final class Rejection {
+        private final long key;
+        private final long check;
+        private final int length;
+        private final Object scope;
+        private final Map<String, Object> flowVars;
+        private final String errorResponse;
+        private final long expiresAt;
+        private final AtomicLong count = new AtomicLong(1);
+
+        Rejection(long key, long check, int length, Object scope, Map<String, Object> flowVars, String errorResponse, long expiresAt) {
+            this.key = key;
+            this.check = check;
+            this.length = length;
+            this.scope = scope;
+            this.flowVars = flowVars;
+            this.errorResponse = errorResponse;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the hash of the body as 16 hex digits
+         */
+        public String getKey() {
+            return String.format("%016x", key);
+        }
+
+        /**
+         * @return how many times the body was rejected while cached, including the first time
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        public Map<String, Object> getFlowVars() {
+            return flowVars;
+        }
+
+        /**
+         * @return the error response body, or null if the rejection only set flow variables
+         */
+        public String getErrorResponse() {
+            return errorResponse;
+        }
+    }
+
+    /**
+     * Counts a repeat of a cached rejection.
+     *
+     * @param scope what else the rejection depends on (e.g. the schema), compared by identity
+     * @return the cached rejection of the body, or null
+     */
+    public Rejection get(String content, Object scope) {
+        Rejection rejection = entries.get(hash(content, FNV_OFFSET_BASIS));
+        if (rejection == null || rejection.length != content.length() || rejection.scope != scope
+                || rejection.check != hash(content, SECOND_SEED)) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= rejection.expiresAt) {
+            entries.remove(rejection.key);
+            return null;
+        }
+        rejection.count.incrementAndGet();
+        return rejection;
+    }
+
+    /**
+     * @param flowVars      the flow variables set for the rejection, copied
+     * @param errorResponse the error response body, or null
+     */
+    public Rejection put(String content, Object scope, Map<String, Object> flowVars, String errorResponse) {
+        long key = hash(content, FNV_OFFSET_BASIS);
+        Rejection rejection = new Rejection(key, hash(content, SECOND_SEED), content.length(), scope,
+                Collections.unmodifiableMap(new HashMap<>(flowVars)), errorResponse, System.currentTimeMillis() + ttlMillis);
+        entries.put(key, rejection);
+        return rejection;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units, with a final mix so that the low bits spread well.
+     */
+    private static long hash(String content, long seed) {
+        long hash = seed;
+        for (int i = 0; i < content.length(); i++) {
+            hash ^= content.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -18,17 +18,20 @@ import com.apigee.flow.message.MessageContext;
 
 import java.util.Map;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class VarResolver {
     MessageContext msgCtx;
-    Map properties;
+    CompiledProperties properties;
 
-    public VarResolver(MessageContext msgCtx, Map properties) {
+    public VarResolver(MessageContext msgCtx, CompiledProperties properties) {
         this.msgCtx = msgCtx;
         this.properties = properties;
     }
 
+    public VarResolver(MessageContext msgCtx, Map<?, ?> properties) {
+        this(msgCtx, CompiledProperties.compile(properties));
+    }
+
     public String eval(String text) {
         if (isVarRef(text)) {
             return getVar(trimFirstAndLast(text));
@@ -37,11 +40,11 @@ public class VarResolver {
         return text;
     }
 
-    private boolean isVarRef(String varName) {
+    static boolean isVarRef(String varName) {
         return varName.startsWith("{") && varName.endsWith("}");
     }
 
-    private String trimFirstAndLast(String str) {
+    static String trimFirstAndLast(String str) {
         if (str == null || str.length() < 2) {
             return str;
         }
@@ -59,61 +62,106 @@ public class VarResolver {
         return tryConvert(varValue, clz, defaultValue);
     }
 
-    private <T> T tryConvert(Object value, Class<T> clz, T defaultValue) {
+    static <T> T tryConvert(Object value, Class<T> clz, T defaultValue) {
         if (value == null) {
             return defaultValue;
         }
 
         if (clz.isAssignableFrom(value.getClass())) {
-            return (T) value;
+            return clz.cast(value);
         }
 
-        if (clz.equals(Boolean.class) &&  (value instanceof String) &&
-                ("true".equalsIgnoreCase((String) value)) ||
-                ("false".equalsIgnoreCase((String) value))) {
-            return (T) Boolean.valueOf((String) value);
+        if (!(value instanceof String)) {
+            return defaultValue;
         }
 
-        if (clz.equals(Integer.class) && (value instanceof String) &&
-                ((String) value).matches("^[+-]?\\d+")) {
-            return (T) Integer.valueOf((String) value);
-        }
+        String str = (String) value;
 
-        if ((clz.equals(Float.class) || clz.equals(Double.class)) && (value instanceof String) &&
-                ((String) value).matches("^[+-]?\\d+(.\\d+)?")) {
-            return (T) Float.valueOf((String) value);
+        if (clz.equals(Boolean.class)) {
+            if ("true".equalsIgnoreCase(str)) {
+                return clz.cast(Boolean.TRUE);
+            } else if ("false".equalsIgnoreCase(str)) {
+                return clz.cast(Boolean.FALSE);
+            }
+        } else if (clz.equals(Integer.class) || clz.equals(Long.class)) {
+            if (isInteger(str)) {
+                try {
+                    long longValue = Long.parseLong(str);
+                    if (clz.equals(Long.class)) {
+                        return clz.cast(Long.valueOf(longValue));
+                    }
+                    if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                        return clz.cast(Integer.valueOf((int) longValue));
+                    }
+                } catch (NumberFormatException ex) {
+                    //out of range
+                }
+            }
+        } else if (clz.equals(Float.class) || clz.equals(Double.class)) {
+            if (isDecimal(str)) {
+                if (clz.equals(Double.class)) {
+                    return clz.cast(Double.valueOf(str));
+                }
+                return clz.cast(Float.valueOf(str));
+            }
         }
 
         return defaultValue;
     }
 
-    public <T> T getProp(String propertyName, Class<T> clz, T defaultValue) {
-        Object propValue = properties.get(propertyName);
-        if (propValue == null) {
-            return defaultValue;
-        }
+    /**
+     * Equivalent to matching ^[+-]?\d+ without using a regular expression.
+     */
+    static boolean isInteger(String str) {
+        int start = signLength(str);
+        return isDigits(str, start, str.length());
+    }
 
-        if (propValue instanceof String && isVarRef((String) propValue)) {
-            String varName = trimFirstAndLast((String) propValue);
-            return getVar(varName, clz, defaultValue);
+    /**
+     * Equivalent to matching ^[+-]?\d+(\.\d+)? without using a regular expression.
+     */
+    static boolean isDecimal(String str) {
+        int start = signLength(str);
+        int dot = str.indexOf('.', start);
+        if (dot < 0) {
+            return isDigits(str, start, str.length());
         }
 
-        if (propValue instanceof String) {
-            String varValue = replaceAllRefs((String)propValue);
-
-            return tryConvert(varValue, clz, defaultValue);
+        return isDigits(str, start, dot) && isDigits(str, dot + 1, str.length());
+    }
 
+    private static int signLength(String str) {
+        if (!str.isEmpty() && (str.charAt(0) == '+' || str.charAt(0) == '-')) {
+            return 1;
         }
+        return 0;
+    }
 
-        return tryConvert(propValue, clz, defaultValue);
+    private static boolean isDigits(String str, int from, int to) {
+        if (from >= to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public  String replaceAllRefs(String propValue) {
-        String rx = "(\\{[a-zA-Z0-9-.]+\\})";
+    public <T> T getProp(String propertyName, Class<T> clz, T defaultValue) {
+        PropertyTemplate template = properties.get(propertyName);
+        if (template == null) {
+            return defaultValue;
+        }
+
+        return tryConvert(template.resolve(msgCtx), clz, defaultValue);
+    }
 
-        StringBuffer sb = new StringBuffer();
-        Pattern p = Pattern.compile(rx);
-        Matcher m = p.matcher(propValue);
+    public String replaceAllRefs(String propValue) {
+        StringBuilder sb = new StringBuilder();
+        Matcher m = PropertyTemplate.VAR_REF_PATTERN.matcher(propValue);
 
         while (m.find())
         {
@@ -121,7 +169,7 @@ public class VarResolver {
 
             String replacement = getVar(varName, String.class, "");
             if (replacement != null){
-                m.appendReplacement(sb, replacement);
+                m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
             }
         }
         m.appendTail(sb);
@@ -0,0 +1,141 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-ins for the Apigee message flow interfaces.
+ * <p>
+ * Only the methods used by the callout are backed by state (flow variables, message content
+ * and headers), everything else returns a default value.
+ */
+public class ApigeeStubs {
+
+    /**
+     * @param vars flow variables, read and written in place by the returned message context
+     */
+    public static MessageContext newMessageContext(Map<String, Object> vars) {
+        return proxy(MessageContext.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getVariable":
+                    return vars.get((String) args[0]);
+                case "setVariable":
+                    vars.put((String) args[0], args[1]);
+                    return true;
+                case "removeVariable":
+                    return vars.remove((String) args[0]) != null;
+                case "getMessage":
+                case "getRequestMessage":
+                    return vars.get("request");
+                case "getResponseMessage":
+                    return vars.get("response");
+                case "toString":
+                    return "MessageContext" + vars.keySet();
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    public static Message newMessage(String content) {
+        Map<String, Object> state = new HashMap<>();
+        state.put("content", content);
+        Map<String, Object> headers = new HashMap<>();
+        Map<String, Object> vars = new HashMap<>();
+        return proxy(Message.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getContent":
+                    return state.get("content");
+                case "setContent":
+                    state.put("content", args[0] instanceof String ? args[0] : String.valueOf(args[0]));
+                    return null;
+                case "getHeader":
+                    return headers.get((String) args[0]);
+                case "setHeader":
+                    headers.put((String) args[0], args[1]);
+                    return true;
+                case "getVariable":
+                    return vars.get((String) args[0]);
+                case "setVariable":
+                    vars.put((String) args[0], args[1]);
+                    return true;
+                case "toString":
+                    return "Message";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    public static ExecutionContext newExecutionContext() {
+        return proxy(ExecutionContext.class, (proxy, method, args) -> {
+            if (method.getName().equals("isRequestFlow")) {
+                return true;
+            }
+            if (method.getName().equals("toString")) {
+                return "ExecutionContext";
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ApigeeStubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getName().equals("hashCode") && method.getParameterCount() == 0) {
+                return System.identityHashCode(proxy);
+            }
+            if (method.getName().equals("equals") && method.getParameterCount() == 1) {
+                return proxy == args[0];
+            }
+            return handler.invoke(proxy, method, args);
+        }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
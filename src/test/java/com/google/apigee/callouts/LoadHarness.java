@@ -0,0 +1,373 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.SchemaRegistry;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link GraphQLCallout#execute} from several threads at once using in-memory stand-ins for the
+ * Apigee message flow objects.
+ * <p>
+ * Requests come from a JSONL corpus, one request per line. A line is either the request body itself
+ * (e.g. {"query": "..."}) or an object with a "body" string holding the request body.
+ * <p>
+ * Every concurrent outcome (execution result, flow variables and rewritten content) is compared with
+ * the outcome of the same request processed on a single thread. Any difference, or any exception
+ * reported by the callout, is recorded as a failure since it means state shared between requests
+ * (e.g. the schema cache) is not thread-safe.
+ * <p>
+ * Usage: LoadHarness [--threads N] [--iterations N] [--warmup N] [--corpus file.jsonl] [--schema file.graphql] [--property name=value ...]
+ */
+public class LoadHarness {
+    public static final String SCHEMA_VARIABLE = "propertyset.graphql.schema";
+    public static final String MESSAGE_VARIABLE = "request";
+    private static final int MAX_REPORTED_FAILURES = 20;
+    private static final Gson GSON = new Gson();
+
+    public static class Config {
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int iterations = 2000;
+        public int warmup = 500;
+        public Map<String, String> properties = new HashMap<>();
+        //flow variables whose value legitimately differs between runs
+        public List<String> ignoredVariablePrefixes = new ArrayList<>(Collections.singletonList(GraphQLCallout.CALLOUT_VAR_PREFIX + ".info."));
+
+        public Config() {
+            properties.put(GraphQLCallout.PROP_MESSAGE_REF, MESSAGE_VARIABLE);
+            properties.put(GraphQLCallout.PROP_SCHEMA_BASE64_REF, SCHEMA_VARIABLE);
+        }
+    }
+
+    public static class Report {
+        public int threads;
+        public long requests;
+        public long elapsedNanos;
+        public long[] latencies;
+        public long allocatedBytes;
+        public long gcCount;
+        public long gcMillis;
+        public final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        public final AtomicLong failureCount = new AtomicLong();
+
+        public boolean passed() {
+            return failureCount.get() == 0;
+        }
+
+        public double throughput() {
+            return requests / (elapsedNanos / 1e9);
+        }
+
+        public double percentileMicros(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+        }
+
+        public double allocationRateMBs() {
+            return allocatedBytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("threads:           %d%n", threads));
+            sb.append(String.format("requests:          %d%n", requests));
+            sb.append(String.format("elapsed:           %.1f ms%n", elapsedNanos / 1e6));
+            sb.append(String.format("throughput:        %.1f req/s%n", throughput()));
+            sb.append(String.format("latency p50:       %.1f us%n", percentileMicros(50)));
+            sb.append(String.format("latency p90:       %.1f us%n", percentileMicros(90)));
+            sb.append(String.format("latency p99:       %.1f us%n", percentileMicros(99)));
+            sb.append(String.format("latency max:       %.1f us%n", percentileMicros(100)));
+            if (allocatedBytes >= 0) {
+                sb.append(String.format("allocation rate:   %.1f MB/s (%d bytes/request)%n", allocationRateMBs(), requests == 0 ? 0 : allocatedBytes / requests));
+            } else {
+                sb.append(String.format("allocation rate:   n/a%n"));
+            }
+            sb.append(String.format("gc:                %d collections, %d ms%n", gcCount, gcMillis));
+            for (SchemaRegistry.Stats stats : SchemaRegistry.getDefault().getAllStats()) {
+                sb.append(String.format("schema cache:      %s%n", stats));
+            }
+            sb.append(String.format("failures:          %d%n", failureCount.get()));
+            for (String failure : failures) {
+                sb.append("  ").append(failure).append(String.format("%n"));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static List<String> loadCorpus(Reader reader) throws IOException {
+        List<String> corpus = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            corpus.add(requestBody(line));
+        }
+        return corpus;
+    }
+
+    static String requestBody(String line) {
+        JsonElement element = JsonParser.parseString(line);
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            JsonElement body = object.get("body");
+            if (body != null && body.isJsonPrimitive() && body.getAsJsonPrimitive().isString()
+                    && !object.has(GraphQLCallout.QUERY_FIELD) && !object.has(GraphQLCallout.MUTATION_FIELD)) {
+                return body.getAsString();
+            }
+        }
+        return line;
+    }
+
+    public static Report run(Config config, List<String> corpus, String schemaText) throws InterruptedException, IOException {
+        String schemaBase64 = Base64.getEncoder().encodeToString(schemaText.getBytes(StandardCharsets.UTF_8));
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>(config.properties));
+
+        //start cold, so that threads race on the schema cache too
+        GraphQLProcessor.clearSchemaCache();
+
+        Map<Integer, String> concurrentOutcomes = new ConcurrentHashMap<>();
+        Report report = new Report();
+        report.threads = config.threads;
+
+        long[][] latencies = new long[config.threads][config.iterations];
+        long[] allocated = new long[config.threads];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(config.threads);
+        Thread[] workers = new Thread[config.threads];
+
+        for (int t = 0; t < config.threads; t++) {
+            int threadIndex = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < config.warmup; i++) {
+                        int entry = (threadIndex + i) % corpus.size();
+                        checkOutcome(report, concurrentOutcomes, entry, execute(config, callout, corpus.get(entry), schemaBase64));
+                    }
+
+                    long allocatedBefore = allocatedBytes();
+                    for (int i = 0; i < config.iterations; i++) {
+                        int entry = (threadIndex + i) % corpus.size();
+                        long begin = System.nanoTime();
+                        Outcome outcome = execute(config, callout, corpus.get(entry), schemaBase64);
+                        latencies[threadIndex][i] = System.nanoTime() - begin;
+                        checkOutcome(report, concurrentOutcomes, entry, outcome);
+                    }
+                    long allocatedAfter = allocatedBytes();
+                    allocated[threadIndex] = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+                } catch (Throwable e) {
+                    fail(report, "worker " + threadIndex + " failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-harness-" + t);
+            workers[t].start();
+        }
+
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcMillis();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        report.elapsedNanos = System.nanoTime() - begin;
+        report.gcCount = gcCount() - gcCountBefore;
+        report.gcMillis = gcMillis() - gcTimeBefore;
+
+        report.requests = (long) config.threads * config.iterations;
+        report.latencies = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        report.allocatedBytes = Arrays.stream(allocated).anyMatch(a -> a < 0) ? -1 : Arrays.stream(allocated).sum();
+
+        //every request must have produced the same outcome as when processed alone
+        for (Map.Entry<Integer, String> entry : concurrentOutcomes.entrySet()) {
+            String expected = execute(config, callout, corpus.get(entry.getKey()), schemaBase64).key;
+            if (!expected.equals(entry.getValue())) {
+                fail(report, "request #" + entry.getKey() + " concurrent outcome " + entry.getValue() + " differs from single-threaded outcome " + expected);
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * Runs one request through the callout.
+     *
+     * @return the execution result, callout flow variables and message content
+     */
+    static Outcome execute(Config config, GraphQLCallout callout, String body, String schemaBase64) {
+        Message message = ApigeeStubs.newMessage(body);
+        Map<String, Object> variables = new HashMap<>();
+        variables.put(MESSAGE_VARIABLE, message);
+        variables.put(SCHEMA_VARIABLE, schemaBase64);
+        MessageContext messageContext = ApigeeStubs.newMessageContext(variables);
+        ExecutionContext executionContext = ApigeeStubs.newExecutionContext();
+
+        ExecutionResult result = callout.execute(messageContext, executionContext);
+
+        Map<String, Object> flowVars = new TreeMap<>();
+        for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            String name = variable.getKey();
+            if (!name.startsWith(GraphQLCallout.CALLOUT_VAR_PREFIX + ".") || isIgnored(config, name)) {
+                continue;
+            }
+            flowVars.put(name, String.valueOf(variable.getValue()));
+        }
+
+        Outcome outcome = new Outcome();
+        outcome.key = GSON.toJson(Arrays.asList(result.isSuccess(), flowVars, message.getContent()));
+        outcome.stderr = (String) variables.get(GraphQLCallout.CALLOUT_VAR_PREFIX + ".info.stderr");
+        return outcome;
+    }
+
+    static class Outcome {
+        String key;
+        String stderr;
+    }
+
+    private static boolean isIgnored(Config config, String name) {
+        for (String prefix : config.ignoredVariablePrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkOutcome(Report report, Map<Integer, String> outcomes, int entry, Outcome outcome) {
+        if (outcome.stderr != null && !outcome.stderr.isEmpty()) {
+            fail(report, "request #" + entry + " raised an exception: " + outcome.stderr);
+        }
+        String previous = outcomes.putIfAbsent(entry, outcome.key);
+        if (previous != null && !previous.equals(outcome.key)) {
+            fail(report, "request #" + entry + " produced different outcomes: " + previous + " vs " + outcome.key);
+        }
+    }
+
+    private static void fail(Report report, String message) {
+        if (report.failureCount.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+            report.failures.add(message);
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+            if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        String corpusPath = null;
+        String schemaPath = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    config.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    config.iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    config.warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--corpus":
+                    corpusPath = args[++i];
+                    break;
+                case "--schema":
+                    schemaPath = args[++i];
+                    break;
+                case "--property":
+                    String[] property = args[++i].split("=", 2);
+                    config.properties.put(property[0], property.length > 1 ? property[1] : "");
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        List<String> corpus;
+        try (Reader reader = corpusPath == null ? resourceReader("/load_corpus.jsonl") : Files.newBufferedReader(Paths.get(corpusPath), StandardCharsets.UTF_8)) {
+            corpus = loadCorpus(reader);
+        }
+
+        String schemaText;
+        try (Reader reader = schemaPath == null ? resourceReader("/schema.graphql") : Files.newBufferedReader(Paths.get(schemaPath), StandardCharsets.UTF_8)) {
+            StringWriter writer = new StringWriter();
+            char[] buffer = new char[8192];
+            for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+                writer.write(buffer, 0, read);
+            }
+            schemaText = writer.toString();
+        }
+
+        Report report = run(config, corpus, schemaText);
+        System.out.print(report.format());
+        System.exit(report.passed() ? 0 : 1);
+    }
+
+    static Reader resourceReader(String resourcePath) {
+        InputStream stream = LoadHarness.class.getResourceAsStream(resourcePath);
+        if (stream == null) {
+            throw new IllegalArgumentException("resource " + resourcePath + " not found");
+        }
+        return new InputStreamReader(stream, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.OverlappingFieldsCheck;
+import graphql.ParseAndValidate;
+import graphql.language.Document;
+import graphql.parser.Parser;
+import graphql.parser.ParserEnvironment;
+import graphql.parser.ParserOptions;
+import graphql.validation.rules.OverlappingFieldsCanBeMerged;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import graphql.validation.ValidationError;
+
+import java.util.*;
+
+/**
+ * Compares the time the OverlappingFieldsCanBeMerged rule of graphql-java takes on wide synthetic operations with
+ * the time {@link OverlappingFieldsCheck} takes on the same operations. The other spec rules are not timed, they run
+ * the same way with either implementation.
+ * <p>
+ * A wide operation selects the same field, under the same response name, as many times as its width, each
+ * selection with its own sub-selections repeating the field again, e.g.
+ * { node { f: child(first: 1) { id f: child { name f: child { id } } } f: child(first: 1) { ... } } }.
+ * Every level merges the sub-selections of all the fields above it.
+ * <p>
+ * Exits with status 1 when the check is not faster than the graphql-java rule at every width.
+ * <p>
+ * Usage: OverlappingFieldsBenchmark [--widths N,N,...] [--iterations N] [--warmup N]
+ */
+public class OverlappingFieldsBenchmark {
+    //wide operations are larger than the parser accepts by default
+    private static final ParserOptions PARSER_OPTIONS = ParserOptions.newParserOptions()
+            .maxTokens(Integer.MAX_VALUE)
+            .maxWhitespaceTokens(Integer.MAX_VALUE)
+            .maxCharacters(Integer.MAX_VALUE)
+            .build();
+
+    public static final String SCHEMA = "type Query { node: Node }\n"
+            + "type Node { id: ID! name: String child(first: Int): Node children: [Node] }\n";
+
+    public static class Result {
+        public int width;
+        public long specNanos;
+        public long checkNanos;
+
+        public double speedup() {
+            return checkNanos == 0 ? 0 : (double) specNanos / checkNanos;
+        }
+
+        public String format() {
+            return String.format("width %6d: graphql-java %10.3f ms, check %10.3f ms, speedup %8.1fx%n",
+                    width, specNanos / 1e6, checkNanos / 1e6, speedup());
+        }
+    }
+
+    public static GraphQLSchema schema() {
+        return new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(SCHEMA), RuntimeWiring.newRuntimeWiring().build());
+    }
+
+    /**
+     * @return an operation selecting the same field width times under the same response name
+     */
+    public static String wideQuery(int width) {
+        StringBuilder sb = new StringBuilder("{ node { ");
+        for (int i = 0; i < width; i++) {
+            sb.append("f: child(first: 1) { id f: child { name f: child { id } } } ");
+        }
+        return sb.append("} }").toString();
+    }
+
+    public static Document parse(String query) {
+        return Parser.parse(ParserEnvironment.newParserEnvironment().document(query).parserOptions(PARSER_OPTIONS).build());
+    }
+
+    /**
+     * @return the average time, over iterations, taken to check the operation with the graphql-java rule and with
+     * {@link OverlappingFieldsCheck}
+     */
+    public static Result run(GraphQLSchema schema, int width, int iterations, int warmup) {
+        CompiledSchema compiledSchema = CompiledSchema.compile(schema);
+        Document document = parse(wideQuery(width));
+
+        for (int i = 0; i < warmup; i++) {
+            validateSpec(schema, document);
+            validateCheck(compiledSchema, document);
+        }
+
+        Result result = new Result();
+        result.width = width;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            validateSpec(schema, document);
+        }
+        result.specNanos = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            validateCheck(compiledSchema, document);
+        }
+        result.checkNanos = (System.nanoTime() - start) / iterations;
+        return result;
+    }
+
+    static List<ValidationError> validateSpec(GraphQLSchema schema, Document document) {
+        return ParseAndValidate.validate(schema, document, rule -> rule == OverlappingFieldsCanBeMerged.class);
+    }
+
+    static List<ValidationError> validateCheck(CompiledSchema compiledSchema, Document document) {
+        return OverlappingFieldsCheck.check(document, compiledSchema);
+    }
+
+    public static void main(String[] args) {
+        int[] widths = {100, 200, 400, 800, 1600};
+        int iterations = 5;
+        int warmup = 2;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--widths":
+                    widths = Arrays.stream(args[++i].split(",")).mapToInt(width -> Integer.parseInt(width.trim())).toArray();
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        GraphQLSchema schema = schema();
+        boolean faster = true;
+        for (int width : widths) {
+            Result result = run(schema, width, iterations, warmup);
+            System.out.print(result.format());
+            faster &= result.checkNanos < result.specNanos;
+        }
+        if (!faster) {
+            System.out.println("the check is slower than the graphql-java rule");
+            System.exit(1);
+        }
+    }
+}
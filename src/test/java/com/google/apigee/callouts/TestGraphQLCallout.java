@@ -15,24 +15,61 @@
 package com.google.apigee.callouts;
 
 import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.callouts.graphql.BackendRouter;
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import com.google.apigee.callouts.graphql.GraphQLContextVisitor;
+import com.google.apigee.callouts.graphql.GraphQLDirectiveValidator;
+import com.google.apigee.callouts.graphql.GraphQLErrorResponse;
 import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import com.google.apigee.callouts.graphql.GraphQLUtil;
+import com.google.apigee.callouts.graphql.OperationCost;
+import com.google.apigee.callouts.graphql.ScalarFormat;
+import com.google.apigee.callouts.graphql.SchemaDiff;
+import com.google.apigee.callouts.graphql.SchemaRegistry;
+import com.google.apigee.callouts.graphql.GraphQLVisitorContext;
+import com.google.apigee.callouts.graphql.OverlappingFieldsCheck;
+import com.google.apigee.callouts.graphql.ValidationBudget;
+import com.google.apigee.callouts.graphql.ValidationOptions;
+import com.google.apigee.callouts.graphql.ValidationRules;
+import com.google.apigee.callouts.graphql.VariableCoercion;
+import com.google.apigee.callouts.util.HeavyHitters;
+import com.google.apigee.callouts.util.LoadShedder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import graphql.GraphQLException;
+import graphql.ParseAndValidate;
 import graphql.ParseAndValidateResult;
 import graphql.language.AstPrinter;
+import graphql.language.Document;
+import graphql.execution.ValuesResolver;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
 import graphql.parser.Parser;
+import graphql.schema.GraphQLDirective;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLSchema;
 import graphql.validation.ValidationError;
+import graphql.validation.rules.OverlappingFieldsCanBeMerged;
 import org.javatuples.Triplet;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
 
 public class TestGraphQLCallout {
 
@@ -62,6 +99,46 @@ public class TestGraphQLCallout {
         Assert.assertEquals("output query must match", expectedQuery, outputQuery);
     }
 
+    @Test
+    public void testVisibilityDirectiveOnWrappedTypes() throws IOException {
+        ParseAndValidateResult result = callParseAndValidate("/wrapped_types_query.graphql", "/schema.graphql");
+        Assert.assertFalse(result.isFailure());
+
+        String expectedQuery = AstPrinter.printAst(Parser.parse(readResourceFile("/wrapped_types_query_expected.graphql")));
+        String outputQuery = AstPrinter.printAst(result.getDocument());
+        Assert.assertEquals("output query must match", expectedQuery, outputQuery);
+    }
+
+    @Test
+    public void testDeeplyNestedQuery() throws Exception {
+        int depth = 100;
+        StringBuilder query = new StringBuilder("query Deep { resorts { ");
+        StringBuilder expected = new StringBuilder("query Deep { resorts { ");
+        for (int i = 0; i < depth; i++) {
+            query.append("nearby { ");
+            expected.append("nearby { ");
+        }
+        query.append("name snow_condition");
+        expected.append("name");
+        for (int i = 0; i <= depth; i++) {
+            query.append(" }");
+            expected.append(" }");
+        }
+        query.append(" }");
+        expected.append(" }");
+
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schema = gql.loadResourceAsString("/schema.graphql");
+        DirectivesValidator validator = new DirectivesValidator();
+        validator.addValidator(new VisibilityValidator());
+
+        ParseAndValidateResult result = gql.validateInputWithSchema(query.toString(), new HashMap<>(), schema, validator);
+        Assert.assertFalse(String.valueOf(result.getValidationErrors()), result.isFailure());
+        Assert.assertEquals("output query must match",
+                AstPrinter.printAst(Parser.parse(expected.toString())),
+                AstPrinter.printAst(result.getDocument()));
+    }
+
     @Test
     public void testPatternDirective() throws IOException {
         ParseAndValidateResult result = callParseAndValidate("/bad_mutation.graphql", "/schema.graphql");
@@ -74,6 +151,18 @@ public class TestGraphQLCallout {
         Assert.assertEquals("error string must match", expected, errors.get(0).getMessage());
     }
 
+    @Test
+    public void testPatternDirectiveErrorPaths() throws IOException {
+        ParseAndValidateResult result = callParseAndValidate("/bad_mutation_multiple.graphql", "/schema.graphql");
+        Assert.assertTrue(result.isFailure());
+
+        List<ValidationError> errors = result.getValidationErrors();
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals(Arrays.asList("resorts", "create", "input", "name"), errors.get(0).getQueryPath());
+        Assert.assertEquals(Arrays.asList("resorts", "update", "trails", "create", "input", "name"), errors.get(1).getQueryPath());
+        Assert.assertEquals(4, errors.get(0).getLocations().get(0).getLine());
+    }
+
     @Test
     public void testQueryFromJSON() throws IOException {
         String queryResourcePath = "/simple_query.json";
@@ -85,7 +174,7 @@ public class TestGraphQLCallout {
 
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-        Map jsonMap = gson.fromJson((String) result.getValue2(), Map.class);
+        Map<?, ?> jsonMap = gson.fromJson(result.getValue2(), Map.class);
         String outputQuery = gson.toJson(jsonMap);
         String expectedQuery = readResourceFile(queryResourcePath);
         Assert.assertEquals("output query must match", expectedQuery, outputQuery);
@@ -99,7 +188,7 @@ public class TestGraphQLCallout {
         Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
 
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        Map jsonMap = gson.fromJson((String) result.getValue2(), Map.class);
+        Map<?, ?> jsonMap = gson.fromJson(result.getValue2(), Map.class);
 
         String expectedQueryJSON = readResourceFile(inputQueryJSONPath);
         String outputQueryJSON = gson.toJson(jsonMap);
@@ -107,8 +196,1109 @@ public class TestGraphQLCallout {
         Assert.assertEquals("output query JSON must match", expectedQueryJSON, outputQueryJSON);
     }
 
+    @Test
+    public void testOperationNameSelectsOperation() throws IOException {
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callValidateGraphQLMessage("/multi_operation.json", "/schema.graphql");
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+
+        Map<?, ?> jsonMap = new Gson().fromJson(result.getValue2(), Map.class);
+        String expectedQuery = AstPrinter.printAst(Parser.parse(
+                "query ResortNames { resorts { ...ResortName } } fragment ResortName on Resort { id name }"));
+        Assert.assertEquals("only the selected operation must be forwarded", expectedQuery, jsonMap.get("query"));
+    }
+
+    @Test
+    public void testAmbiguousOperation() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        Map<?, ?> jsonMap = new Gson().fromJson(gql.loadResourceAsString("/multi_operation.json"), Map.class);
+        jsonMap.remove("operationName");
+
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(jsonMap), gql.loadResourceAsString("/schema.graphql"));
+        Assert.assertTrue((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals("Must provide operation name if query contains multiple operations.", result.getValue1().get("graphql.error.0.message"));
+    }
+
+    @Test
+    public void testPatchOutputMode() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        //the client's formatting is kept, only the other operation and its fragment are cut out
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, gql.loadResourceAsString("/multi_operation.json"), schemaText, GraphQLCallout.OUTPUT_MODE_PATCH);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Map<?, ?> jsonMap = new Gson().fromJson(result.getValue2(), Map.class);
+        Assert.assertEquals("query ResortNames {\n  resorts {\n    ...ResortName\n  }\n}\n\nfragment ResortName on Resort {\n  id\n  name\n}\n\n", jsonMap.get("query"));
+
+        //fields hidden by @visibility are cut out, emptied selection sets get a placeholder
+        String query = "{ resorts { snow_condition, name # keep\n snow_condition } resort(id: \"1\") { snow_condition } }";
+        result = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", query)), schemaText, GraphQLCallout.OUTPUT_MODE_PATCH);
+        jsonMap = new Gson().fromJson(result.getValue2(), Map.class);
+        Assert.assertEquals("{ resorts { name # keep\n } resort(id: \"1\") {__typename} }", jsonMap.get("query"));
+
+        //patched and printed outputs are the same document
+        String inputQuery = readResourceFile("/wrapped_types_query.graphql");
+        String printed = (String) new Gson().fromJson(callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", inputQuery)), schemaText).getValue2(), Map.class).get("query");
+        String patched = (String) new Gson().fromJson(callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", inputQuery)), schemaText, GraphQLCallout.OUTPUT_MODE_PATCH).getValue2(), Map.class).get("query");
+        Assert.assertNotEquals(printed, patched);
+        Assert.assertEquals(printed, AstPrinter.printAst(Parser.parse(patched)));
+    }
+
+    @Test
+    public void testMinimizeOutputMode() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        //the variable is only used by a field hidden by @visibility
+        String query = "query Resorts($id: String!, $internal: Boolean!) {\n" +
+                "  resorts { id name: name ...ResortFields id trails { name } trails { id } snow_condition @include(if: $internal) }\n" +
+                "  resort(id: $id) { ...Named ... on Resort { status } }\n" +
+                "  node(id: $id) { ...Named }\n" +
+                "}\n" +
+                "fragment ResortFields on Resort { name status }\n" +
+                "fragment Named on Node { id }\n";
+        Map<String, Object> content = new HashMap<>();
+        content.put("query", query);
+        content.put("variables", new HashMap<>(Map.of("id", "1", "internal", true)));
+
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText, GraphQLCallout.OUTPUT_MODE_MINIMIZE);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Map<?, ?> jsonMap = new Gson().fromJson(result.getValue2(), Map.class);
+        Assert.assertEquals("query Resorts($id:String!){resorts{id name status trails{name id}}resort(id:$id){...Named status}node(id:$id){...Named}} fragment Named on Node {id}", jsonMap.get("query"));
+        Assert.assertEquals(Collections.singletonMap("id", "1"), jsonMap.get("variables"));
+
+        //selections that differ in arguments or directives are not merged
+        query = "{ resort(id: \"1\") { name } resort(id: \"1\") { id } a: resort(id: \"2\") { name @include(if: true) name } }";
+        result = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", query)), schemaText, GraphQLCallout.OUTPUT_MODE_MINIMIZE);
+        jsonMap = new Gson().fromJson(result.getValue2(), Map.class);
+        Assert.assertEquals("{resort(id:\"1\"){name id}a:resort(id:\"2\"){name @include(if:true) name}}", jsonMap.get("query"));
+    }
+
+    @Test
+    public void testSkipInclude() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        //excluded selections are cut from the client's text, with the variables and fragments only they used
+        String query = "query Resort($id: String!, $withStatus: Boolean!, $extra: Boolean = false) {\n" +
+                "  resort(id: $id) {\n" +
+                "    id\n" +
+                "    status @include(if: $withStatus)\n" +
+                "    ...Extra @include(if: $extra)\n" +
+                "    ... on Resort @skip(if: true) { trails { name } }\n" +
+                "  }\n" +
+                "}\n" +
+                "fragment Extra on Resort { name }\n";
+        Map<String, Object> content = new HashMap<>();
+        content.put("query", query);
+        content.put("variables", new HashMap<>(Map.of("id", "1", "withStatus", false)));
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText, GraphQLCallout.OUTPUT_MODE_PATCH);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals("query Resort($id: String!) {\n" +
+                "  resort(id: $id) {\n" +
+                "    id\n" +
+                "  }\n" +
+                "}\n", new Gson().fromJson(result.getValue2(), Map.class).get("query"));
+
+        //conditions that are met, or not known, keep the selection
+        content.put("variables", new HashMap<>(Map.of("id", "1", "withStatus", true, "extra", true)));
+        result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText, GraphQLCallout.OUTPUT_MODE_MINIMIZE);
+        Assert.assertEquals("query Resort($id:String!,$withStatus:Boolean!,$extra:Boolean=false){resort(id:$id){id status @include(if:$withStatus) ...on Resort @include(if:$extra){name}}}",
+                new Gson().fromJson(result.getValue2(), Map.class).get("query"));
+
+        //directive validators do not run on excluded selections
+        String mutation = "mutation { resorts { create(input: {name: \"lowercase\", summit_elevation: 8000, base_elevation: 6000}) @skip(if: true) { id } } }";
+        result = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("mutation", mutation)), schemaText, GraphQLCallout.OUTPUT_MODE_PRINT);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals(AstPrinter.printAst(Parser.parse("mutation { resorts { __typename } }")), new Gson().fromJson(result.getValue2(), Map.class).get("mutation"));
+        result = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("mutation", mutation.replace("true", "false"))), schemaText, GraphQLCallout.OUTPUT_MODE_PRINT);
+        Assert.assertTrue((Boolean) result.getValue1().get("graphql.failed"));
+    }
+
+    @Test
+    public void testBackendRouting() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+        Gson gson = new Gson();
+
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, gson.toJson(Collections.singletonMap("query", "{ resorts { id } __typename }")), schemaText);
+        Assert.assertEquals("resorts", result.getValue1().get(GraphQLCallout.BACKEND_VAR));
+        result = callout.validateGraphQLMessage(gql, gson.toJson(Collections.singletonMap("mutation", "mutation { resorts { __typename } }")), schemaText);
+        Assert.assertEquals(BackendRouter.DEFAULT_BACKEND, result.getValue1().get(GraphQLCallout.BACKEND_VAR));
+
+        //operations spanning several backends are rejected by default
+        String query = "query Q($id: String!, $first: Int) { resort(id: $id) { id } trails(first: $first) { name } __typename }";
+        Map<String, Object> content = new HashMap<>();
+        content.put("query", query);
+        content.put("variables", new HashMap<>(Map.of("id", "1", "first", 5)));
+        result = callout.validateGraphQLMessage(gql, gson.toJson(content), schemaText);
+        Assert.assertTrue((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals("operation spans multiple backends: resorts, trails", result.getValue1().get("graphql.error.0.message"));
+
+        //or split into one request per backend
+        GraphQLCallout splitCallout = new GraphQLCallout(new HashMap<>(Map.of(GraphQLCallout.PROP_BACKEND_ROUTING, GraphQLCallout.BACKEND_ROUTING_SPLIT)));
+        result = splitCallout.validateGraphQLMessage(gql, gson.toJson(content), schemaText);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals(2, result.getValue1().get(GraphQLCallout.BACKEND_COUNT_VAR));
+        Assert.assertEquals("resorts", result.getValue1().get("graphql.backend.0.name"));
+        Map<?, ?> resorts = gson.fromJson((String) result.getValue1().get("graphql.backend.0.content"), Map.class);
+        Assert.assertEquals(AstPrinter.printAst(Parser.parse("query Q($id: String!) { resort(id: $id) { id } __typename }")), resorts.get("query"));
+        Assert.assertEquals(Collections.singletonMap("id", "1"), resorts.get("variables"));
+        Assert.assertEquals("trails", result.getValue1().get("graphql.backend.1.name"));
+        Map<?, ?> trails = gson.fromJson((String) result.getValue1().get("graphql.backend.1.content"), Map.class);
+        Assert.assertEquals(AstPrinter.printAst(Parser.parse("query Q($first: Int) { trails(first: $first) { name } }")), trails.get("query"));
+        Assert.assertEquals(Collections.singletonMap("first", 5.0), trails.get("variables"));
+
+        //root fragments are split too
+        query = "{ ...Root } fragment Root on Query { resorts { id } lifts { name } }";
+        result = splitCallout.validateGraphQLMessage(gql, gson.toJson(Collections.singletonMap("query", query)), schemaText, GraphQLCallout.OUTPUT_MODE_MINIMIZE);
+        Assert.assertEquals("{\"query\":\"{resorts{id}}\"}", result.getValue1().get("graphql.backend.0.content"));
+        Assert.assertEquals("lifts", result.getValue1().get("graphql.backend.1.name"));
+        Assert.assertEquals("{\"query\":\"{lifts{name}}\"}", result.getValue1().get("graphql.backend.1.content"));
+
+        //mutations are never split, their root fields must run serially on one backend
+        String mutationSchema = "directive @backend(name: String!) on FIELD_DEFINITION | OBJECT\n" +
+                "type Query { hello: String }\n" +
+                "type Mutation { book: String @backend(name: \"bookings\") pay: String @backend(name: \"payments\") }";
+        String mutation = gson.toJson(Collections.singletonMap("mutation", "mutation { book pay }"));
+        for (GraphQLCallout mutationCallout : Arrays.asList(callout, splitCallout)) {
+            result = mutationCallout.validateGraphQLMessage(gql, mutation, mutationSchema);
+            Assert.assertTrue((Boolean) result.getValue1().get("graphql.failed"));
+            Assert.assertEquals("mutation spans multiple backends: bookings, payments, its root fields must all belong to one backend",
+                    result.getValue1().get("graphql.error.0.message"));
+            Assert.assertNull(result.getValue1().get(GraphQLCallout.BACKEND_COUNT_VAR));
+        }
+        result = splitCallout.validateGraphQLMessage(gql, gson.toJson(Collections.singletonMap("mutation", "mutation { book }")), mutationSchema);
+        Assert.assertFalse((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals("bookings", result.getValue1().get(GraphQLCallout.BACKEND_VAR));
+    }
+
+    @Test
+    public void testConstraintDirectives() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        String mutation = "%s { resorts { update { lifts { create(input: %s) { id } } } } }";
+        Assert.assertNull(liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", seats: 4, tags: [\"quad\", \"new\"], location: {resort: \"1\"}}"));
+        Assert.assertEquals("field \"name\" is shorter than 2 characters", liftError(callout, gql, schemaText, mutation, "{name: \"S\"}"));
+        Assert.assertEquals("field \"name\" is longer than 20 characters", liftError(callout, gql, schemaText, mutation, "{name: \"Summit Express High Speed Quad\"}"));
+        Assert.assertEquals("field \"seats\" with value 12 is greater than the maximum of 8", liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", seats: 12}"));
+        Assert.assertEquals("field \"seats\" with value 0 is less than the minimum of 1", liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", seats: $seats}"));
+        Assert.assertEquals("field \"tags\" has 4 items, more than the maximum of 3", liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", tags: [\"a\", \"b\", \"c\", \"d\"]}"));
+        Assert.assertEquals("field \"tags\" is longer than 10 characters", liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", tags: \"high-speed-quad\"}"));
+        Assert.assertEquals("field \"location\" must set exactly one field, but sets 2", liftError(callout, gql, schemaText, mutation, "{name: \"Summit\", location: {resort: \"1\", trail: \"2\"}}"));
+
+        //input objects given through a variable are checked against its value
+        Assert.assertNull(liftVariableError(callout, gql, schemaText, Map.of("name", "Summit", "seats", 4, "tags", List.of("quad", "new"), "location", Map.of("resort", "1"))));
+        Assert.assertEquals("field \"name\" is shorter than 2 characters", liftVariableError(callout, gql, schemaText, Map.of("name", "S")));
+        Assert.assertEquals("field \"name\" is longer than 20 characters", liftVariableError(callout, gql, schemaText, Map.of("name", "Summit Express High Speed Quad")));
+        Assert.assertEquals("field \"seats\" with value 12 is greater than the maximum of 8", liftVariableError(callout, gql, schemaText, Map.of("name", "Summit", "seats", 12)));
+        Assert.assertEquals("field \"tags\" has 4 items, more than the maximum of 3", liftVariableError(callout, gql, schemaText, Map.of("name", "Summit", "tags", List.of("a", "b", "c", "d"))));
+        Assert.assertEquals("field \"tags\" is longer than 10 characters", liftVariableError(callout, gql, schemaText, Map.of("name", "Summit", "tags", "high-speed-quad")));
+        Assert.assertEquals("field \"location\" must set exactly one field, but sets 0", liftVariableError(callout, gql, schemaText, Map.of("name", "Summit", "location", Map.of())));
+
+        //arguments
+        String query = "{ search(text: \"" + String.join("", Collections.nCopies(101, "a")) + "\") { __typename } }";
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", query)), schemaText);
+        Assert.assertEquals("argument \"text\" is longer than 100 characters", result.getValue1().get("graphql.error.0.message"));
+
+        //validators named by the directive-validators property replace the built-in ones
+        GraphQLCallout custom = new GraphQLCallout(new HashMap<>(Map.of(GraphQLCallout.PROP_DIRECTIVE_VALIDATORS, NoPatternValidator.class.getName())));
+        String lowercase = "mutation { resorts { create(input: {name: \"lowercase\", summit_elevation: 8000, base_elevation: 6000}) { id } } }";
+        Assert.assertTrue((Boolean) callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("mutation", lowercase)), schemaText).getValue1().get("graphql.failed"));
+        Assert.assertFalse((Boolean) custom.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("mutation", lowercase)), schemaText).getValue1().get("graphql.failed"));
+        Map<String, Object> content = new HashMap<>();
+        content.put("mutation", "mutation($in: CreateResortInput) { resorts { create(input: $in) { id } } }");
+        content.put("variables", Collections.singletonMap("in", Map.of("name", "lowercase", "summit_elevation", 8000, "base_elevation", 6000)));
+        Assert.assertEquals("field \"name\" with value \"lowercase\" does not match pattern ^[A-Z].*$",
+                callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText).getValue1().get("graphql.error.0.message"));
+
+        //compiled pipelines cannot be modified
+        DirectivesValidator pipeline = DirectivesValidator.compile(GraphQLCallout.loadDirectiveValidators(null), gql.compileSchema(schemaText).getValue0());
+        try {
+            pipeline.addValidator(new PatternValidator());
+            Assert.fail("compiled pipeline accepted a validator");
+        } catch (UnsupportedOperationException expected) {
+            //expected
+        }
+
+        //callouts loading the same validators share one pipeline per schema
+        CompiledSchema compiledSchema = gql.compileSchema(schemaText).getValue0();
+        DirectivesValidator shared = callout.getDirectivesValidator(compiledSchema);
+        Assert.assertSame(shared, new GraphQLCallout(new HashMap<>()).getDirectivesValidator(compiledSchema));
+        Assert.assertSame(shared, new GraphQLCallout(new HashMap<>()).getDirectivesValidator(compiledSchema));
+        Assert.assertFalse(shared == custom.getDirectivesValidator(compiledSchema));
+    }
+
+    public static class NoPatternValidator implements GraphQLDirectiveValidator {
+        @Override
+        public String getName() {
+            return "pattern";
+        }
+    }
+
+    private String liftError(GraphQLCallout callout, GraphQLProcessor gql, String schemaText, String mutation, String input) {
+        Map<String, Object> content = new HashMap<>();
+        content.put("mutation", String.format(mutation, input.contains("$seats") ? "mutation($seats: Int)" : "mutation", input));
+        content.put("variables", Collections.singletonMap("seats", 0));
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText);
+        return (String) result.getValue1().get("graphql.error.0.message");
+    }
+
+    private String liftVariableError(GraphQLCallout callout, GraphQLProcessor gql, String schemaText, Map<String, Object> input) {
+        Map<String, Object> content = new HashMap<>();
+        content.put("mutation", "mutation($in: CreateLiftInput) { resorts { update { lifts { create(input: $in) { id } } } } }");
+        content.put("variables", Collections.singletonMap("in", input));
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText);
+        return (String) result.getValue1().get("graphql.error.0.message");
+    }
+
+    @Test
+    public void testListSize() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        //missing slicing arguments get the default size
+        Assert.assertEquals("{trails(first:10){name}}", minimizedQuery(callout, gql, schemaText, "{ trails { name } }", null));
+        Assert.assertEquals("{trails(offset:5,first:10){name}}", minimizedQuery(callout, gql, schemaText, "{ trails(offset: 5) { name } }", null));
+        Assert.assertEquals("{trails(first:20,offset:5){name}}", minimizedQuery(callout, gql, schemaText, "{ trails(first: 20, offset: 5) { name } }", null));
+        Assert.assertEquals("{lifts{name}}", minimizedQuery(callout, gql, schemaText, "{ lifts { name } }", null));
+
+        //sizes above the maximum are clamped or rejected
+        Assert.assertEquals("{lifts(limit:20){name}}", minimizedQuery(callout, gql, schemaText, "{ lifts(limit: 500) { name } }", null));
+        String content = new Gson().toJson(Collections.singletonMap("query", "{ trails(first: 100) { name } }"));
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, content, schemaText);
+        Assert.assertTrue((Boolean) result.getValue1().get("graphql.failed"));
+        Assert.assertEquals("argument \"first\" of field \"trails\" with value 100 exceeds the maximum list size of 50", result.getValue1().get("graphql.error.0.message"));
+
+        //variables are clamped like literals, or rejected
+        Assert.assertEquals("query Q{lifts(limit:20){name}}", minimizedQuery(callout, gql, schemaText, "query Q($l: Int) { lifts(limit: $l) { name } }", Collections.singletonMap("l", 100)));
+        Assert.assertEquals("{lifts(limit:20){name}}", minimizedQuery(callout, gql, schemaText, "query($l: Int = 100) { lifts(limit: $l) { name } }", null));
+        Assert.assertEquals("query Q($l:Int){lifts(limit:$l){name}}", minimizedQuery(callout, gql, schemaText, "query Q($l: Int) { lifts(limit: $l) { name } }", Collections.singletonMap("l", 20)));
+
+        //variables within the maximum are kept, null ones replaced with the default size
+        String query = "query Trails($first: Int) { trails(first: $first) { name } }";
+        Assert.assertEquals("query Trails($first:Int){trails(first:$first){name}}", minimizedQuery(callout, gql, schemaText, query, Collections.singletonMap("first", 50)));
+        Assert.assertEquals("query Trails{trails(first:10){name}}", minimizedQuery(callout, gql, schemaText, query, null));
+        Assert.assertEquals("query Trails{trails(first:10){name}}", minimizedQuery(callout, gql, schemaText, query, Collections.singletonMap("first", null)));
+        Assert.assertNull(minimizedQuery(callout, gql, schemaText, query, Collections.singletonMap("first", 51)));
+
+        //default values of variables are checked too
+        Assert.assertNull(minimizedQuery(callout, gql, schemaText, "query($n: Int = 100000) { trails(first: $n) { name } }", null));
+        Assert.assertEquals("query ($n:Int=20){trails(first:$n){name}}", minimizedQuery(callout, gql, schemaText, "query($n: Int = 20) { trails(first: $n) { name } }", null));
+        String longText = String.join("", Collections.nCopies(150, "a"));
+        Assert.assertNull(minimizedQuery(callout, gql, schemaText, "query($t: String! = \"" + longText + "\") { search(text: $t) { __typename } }", null));
+    }
+
+    private String minimizedQuery(GraphQLCallout callout, GraphQLProcessor gql, String schemaText, String query, Map<String, Object> variables) {
+        Map<String, Object> content = new HashMap<>();
+        content.put("query", query);
+        if (variables != null) {
+            content.put("variables", variables);
+        }
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText, GraphQLCallout.OUTPUT_MODE_MINIMIZE);
+        if ((Boolean) result.getValue1().get("graphql.failed")) {
+            return null;
+        }
+        return (String) new Gson().fromJson(result.getValue2(), Map.class).get("query");
+    }
+
+    @Test
+    public void testValidationBudget() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        CompiledSchema compiledSchema = gql.compileSchema(schemaText).getValue0();
+
+        StringBuilder query = new StringBuilder("{ resorts { ");
+        for (int i = 0; i < 100; i++) {
+            query.append("nearby { ");
+        }
+        query.append("name");
+        for (int i = 0; i <= 101; i++) {
+            query.append(" }");
+        }
+
+        //node count
+        ParseAndValidateResult result = gql.parseAndValidate(query.toString(), null, new HashMap<>(), compiledSchema, null, ValidationOptions.newOptions().budget(ValidationBudget.of(0, 1000)).build());
+        Assert.assertFalse(String.valueOf(result.getValidationErrors()), result.isFailure());
+        result = gql.parseAndValidate(query.toString(), null, new HashMap<>(), compiledSchema, null, ValidationOptions.newOptions().budget(ValidationBudget.of(0, 50)).build());
+        Assert.assertTrue(result.isFailure());
+        Assert.assertEquals(GraphQLErrorResponse.CODE_BUDGET_EXCEEDED, GraphQLErrorResponse.getCode(result.getValidationErrors().get(0)));
+        Assert.assertEquals("validation budget exceeded: more than 50 nodes visited", result.getValidationErrors().get(0).getMessage());
+
+        //deadline, with a slow visitor
+        GraphQLContextVisitor slowVisitor = new GraphQLContextVisitor() {
+            @Override
+            public Field enterOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return field;
+            }
+        };
+        result = gql.parseAndValidate(query.toString(), null, new HashMap<>(), compiledSchema, slowVisitor, ValidationOptions.newOptions().budget(ValidationBudget.of(10, 0)).build());
+        Assert.assertTrue(result.isFailure());
+        Assert.assertEquals("validation budget exceeded: took longer than 10 ms", result.getValidationErrors().get(0).getMessage());
+
+        //deadline, in the overlapping fields check: every fragment spreads the next one under two fields
+        StringBuilder fragments = new StringBuilder("{ node { ...F24 } } fragment F0 on Node { id }");
+        for (int i = 1; i <= 24; i++) {
+            fragments.append(String.format(" fragment F%d on Node { a: child { ...F%d } b: child { ...F%d } }", i, i - 1, i - 1));
+        }
+        boolean[] traversed = new boolean[1];
+        GraphQLContextVisitor recordingVisitor = new GraphQLContextVisitor() {
+            @Override
+            public Field enterOutputField(Field field, GraphQLFieldDefinition definition, GraphQLVisitorContext ctx) {
+                traversed[0] = true;
+                return field;
+            }
+        };
+        long start = System.nanoTime();
+        result = gql.parseAndValidate(fragments.toString(), null, new HashMap<>(), CompiledSchema.compile(OverlappingFieldsBenchmark.schema()), recordingVisitor, ValidationOptions.newOptions().budget(ValidationBudget.of(50, 0)).build());
+        Assert.assertTrue(result.isFailure());
+        Assert.assertEquals("validation budget exceeded: took longer than 50 ms", result.getValidationErrors().get(0).getMessage());
+        Assert.assertFalse("the traversal must not have started", traversed[0]);
+        Assert.assertTrue("the check must stop at the deadline", System.nanoTime() - start < 2_000_000_000L);
+
+        //fail-open forwards the request unchanged, unless that would skip directive validators
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+        String content = new Gson().toJson(Collections.singletonMap("query", query.toString()));
+        Triplet<ExecutionResult, Map<String, Object>, String> calloutResult = callout.validateGraphQLMessage(gql, content, gql.compileSchema(schemaText), GraphQLCallout.OUTPUT_MODE_PRINT, false, ValidationBudget.of(0, 50), true);
+        Assert.assertTrue((Boolean) calloutResult.getValue1().get("graphql.failed"));
+        Assert.assertEquals(true, calloutResult.getValue1().get(GraphQLCallout.BUDGET_EXCEEDED_VAR));
+
+        String plainSchema = "type Query { resorts: [Resort] } type Resort { name: String nearby: [Resort] }";
+        calloutResult = callout.validateGraphQLMessage(gql, content, gql.compileSchema(plainSchema), GraphQLCallout.OUTPUT_MODE_PRINT, false, ValidationBudget.of(0, 50), true);
+        Assert.assertFalse((Boolean) calloutResult.getValue1().get("graphql.failed"));
+        Assert.assertEquals(true, calloutResult.getValue1().get(GraphQLCallout.BUDGET_EXCEEDED_VAR));
+        Assert.assertNull(calloutResult.getValue2());
+
+        calloutResult = callout.validateGraphQLMessage(gql, content, gql.compileSchema(plainSchema), GraphQLCallout.OUTPUT_MODE_PRINT, false, ValidationBudget.of(0, 50), false);
+        Assert.assertTrue((Boolean) calloutResult.getValue1().get("graphql.failed"));
+        Assert.assertEquals(true, calloutResult.getValue1().get(GraphQLCallout.BUDGET_EXCEEDED_VAR));
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        CompiledSchema compiledSchema = gql.compileSchema(SchemaRegistry.DEFAULT_SCHEMA_NAME, schemaText).getValue0();
+
+        //synthetic queries are valid GraphQL for the schema
+        List<String> corpus = WarmUp.syntheticCorpus(compiledSchema);
+        Assert.assertFalse(corpus.isEmpty());
+        for (String content : corpus) {
+            Map<?, ?> json = new Gson().fromJson(content, Map.class);
+            String query = (String) (json.containsKey("query") ? json.get("query") : json.get("mutation"));
+            ParseAndValidateResult result = gql.parseAndValidate(query, null, new HashMap<>(), compiledSchema, null);
+            for (ValidationError error : result.getValidationErrors()) {
+                Assert.assertEquals(query + "\n" + error.getMessage(), GraphQLErrorResponse.CODE_BAD_USER_INPUT, GraphQLErrorResponse.getCode(error));
+            }
+        }
+
+        int trailsIndex = compiledSchema.getCompositeType("Query").getField("trails").getIndex();
+        long trailsCount = compiledSchema.getUsage().getCount(trailsIndex);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("message-ref", "request");
+        properties.put("schema-resource", "/schema.graphql");
+        properties.put("warm-up", "true");
+        properties.put("warm-up-iterations", "300");
+        properties.put("operation-stats", "true");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        Map<String, Object> vars = executeQuery(callout, null, "{ resorts { name } }", schemaText);
+        long requests = 1;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!Boolean.TRUE.equals(vars.get(GraphQLCallout.WARM_UP_COMPLETE_VAR)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            vars = executeQuery(callout, null, "{ resorts { name } }", schemaText);
+            requests++;
+        }
+        Assert.assertEquals(true, vars.get(GraphQLCallout.WARM_UP_COMPLETE_VAR));
+        long iterations = (Long) vars.get(GraphQLCallout.WARM_UP_ITERATIONS_VAR);
+        Assert.assertTrue(iterations > 0 && iterations <= 300);
+        Assert.assertEquals(false, vars.get("graphql.failed"));
+
+        //warm-up requests are not counted as field usage, or in the operation stats
+        Assert.assertEquals(trailsCount, compiledSchema.getUsage().getCount(trailsIndex));
+        Assert.assertEquals(requests, callout.getOperationStats().snapshot().getTotal());
+    }
+
+    @Test
+    public void testCachePolicy() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        //type hint, field hint, leaf field hint
+        assertCachePolicy(callout, gql, schemaText, "{ resort(id: \"1\") { name } }", 300, "PUBLIC");
+        assertCachePolicy(callout, gql, schemaText, "{ resorts { name } }", 60, "PUBLIC");
+        assertCachePolicy(callout, gql, schemaText, "{ resorts { name status } }", 10, "PUBLIC");
+        assertCachePolicy(callout, gql, schemaText, "{ resort(id: \"1\") { lifts { name } } }", 30, "PRIVATE");
+
+        //no hint on a composite or root field, fields hidden by @visibility do not count
+        assertCachePolicy(callout, gql, schemaText, "{ resort(id: \"1\") { trails { name } } }", 0, "PUBLIC");
+        assertCachePolicy(callout, gql, schemaText, "{ search(text: \"a\") { __typename } }", 0, "PUBLIC");
+        assertCachePolicy(callout, gql, schemaText, "{ resort(id: \"1\") { name snow_condition } }", 300, "PUBLIC");
+
+        //mutations are never cacheable
+        String content = new Gson().toJson(Collections.singletonMap("mutation", "mutation { resorts { update(input: {}) { resort(input: {}) { name } } } }"));
+        Assert.assertEquals(0, callout.validateGraphQLMessage(gql, content, schemaText).getValue1().get(GraphQLCallout.CACHE_MAX_AGE_VAR));
+
+        //the key ignores formatting and variables not used by the operation
+        String key = cacheKey(callout, gql, schemaText, "query R($id: String!) { resort(id: $id) { name } }", Map.of("id", "1"));
+        Assert.assertEquals(64, key.length());
+        Assert.assertEquals(key, cacheKey(callout, gql, schemaText, "query R($id:String!){\n  resort(id:$id){name}}", Map.of("id", "1", "other", 2)));
+        Assert.assertNotEquals(key, cacheKey(callout, gql, schemaText, "query R($id: String!) { resort(id: $id) { name } }", Map.of("id", "2")));
+        Assert.assertNotEquals(key, cacheKey(callout, gql, schemaText, "query R($id: String!) { resort(id: $id) { id } }", Map.of("id", "1")));
+    }
+
+    private void assertCachePolicy(GraphQLCallout callout, GraphQLProcessor gql, String schemaText, String query, int maxAge, String scope) {
+        Map<String, Object> flowVars = callout.validateGraphQLMessage(gql, new Gson().toJson(Collections.singletonMap("query", query)), schemaText).getValue1();
+        Assert.assertEquals(query, false, flowVars.get("graphql.failed"));
+        Assert.assertEquals(query, maxAge, flowVars.get(GraphQLCallout.CACHE_MAX_AGE_VAR));
+        Assert.assertEquals(query, scope, flowVars.get(GraphQLCallout.CACHE_SCOPE_VAR));
+        //PRIVATE responses get no key, so they are never stored in a shared cache
+        Assert.assertEquals(query, maxAge > 0 && scope.equals("PUBLIC"), flowVars.containsKey(GraphQLCallout.CACHE_KEY_VAR));
+    }
+
+    private String cacheKey(GraphQLCallout callout, GraphQLProcessor gql, String schemaText, String query, Map<String, Object> variables) {
+        Map<String, Object> content = new HashMap<>();
+        content.put("query", query);
+        content.put("variables", variables);
+        return (String) callout.validateGraphQLMessage(gql, new Gson().toJson(content), schemaText).getValue1().get(GraphQLCallout.CACHE_KEY_VAR);
+    }
+
+    @Test
+    public void testOperationStats() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("message-ref", "request");
+        properties.put("schema-resource", "/schema.graphql");
+        properties.put("operation-stats", "true");
+        properties.put("operation-stats-size", "3");
+        properties.put("operation-stats-snapshot", "{operations.snapshot}");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        //operations that only differ in literals, aliases or formatting have the same signature
+        for (int i = 0; i < 50; i++) {
+            executeQuery(callout, null, "{ resort(id: \"" + i + "\") { " + (i % 2 == 0 ? "name" : "n: name") + " } }", schemaText);
+        }
+        for (int i = 0; i < 20; i++) {
+            executeQuery(callout, null, "{ resorts { id } }", schemaText);
+        }
+        for (int i = 0; i < 5; i++) {
+            executeQuery(callout, null, "{ resorts { unknown } }", schemaText);
+        }
+        String[] fields = {"id", "name", "status", "summit_depth", "base_depth", "last_snow_amount"};
+        for (int i = 1; i < 1 << fields.length; i++) {
+            StringBuilder query = new StringBuilder("{ resorts {");
+            for (int field = 0; field < fields.length; field++) {
+                if ((i & (1 << field)) != 0) {
+                    query.append(' ').append(fields[field]);
+                }
+            }
+            executeQuery(callout, null, query.append(" } }").toString(), schemaText);
+        }
+
+        HeavyHitters.Snapshot snapshot = callout.getOperationStats().snapshot();
+        Assert.assertEquals(50 + 20 + 5 + 63, snapshot.getTotal());
+        Assert.assertEquals(3, snapshot.getEntries().size());
+        Assert.assertEquals("{resort(id:\"\"){name}}", snapshot.getEntries().get(0).getKey());
+        Assert.assertEquals(50, snapshot.getEntries().get(0).getCount());
+        Assert.assertEquals("{resorts{id}}", snapshot.getEntries().get(1).getKey());
+        Assert.assertEquals(21, snapshot.getEntries().get(1).getCount());
+        Assert.assertEquals(GraphQLCallout.REJECTED_OPERATION_SIGNATURE, snapshot.getEntries().get(2).getKey());
+        Assert.assertEquals(5, snapshot.getEntries().get(2).getCount());
+        Assert.assertTrue(snapshot.getEntries().get(0).getCost() > 0);
+        Assert.assertTrue(snapshot.getEntries().get(0).getSize() > 50 * "{ resort(id: \"0\") { name } }".length());
+
+        //exported on demand, without a field usage snapshot
+        Map<String, Object> vars = executeQuery(callout, null, "{ resorts { id } }", schemaText);
+        Assert.assertNull(vars.get(GraphQLCallout.OPERATION_STATS_VAR));
+        vars = new HashMap<>();
+        vars.put("operations.snapshot", "true");
+        vars.put("request", ApigeeStubs.newMessage(new Gson().toJson(Collections.singletonMap("query", "{ resorts { id } }"))));
+        callout.execute(ApigeeStubs.newMessageContext(vars), ApigeeStubs.newExecutionContext());
+        Assert.assertNull(vars.get(GraphQLCallout.USAGE_SNAPSHOT_VAR));
+        Map<?, ?> json = new Gson().fromJson((String) vars.get(GraphQLCallout.OPERATION_STATS_VAR), Map.class);
+        Assert.assertEquals(140.0, json.get("total"));
+        Assert.assertEquals(23.0, ((Map<?, ?>) ((List<?>) json.get("top")).get(1)).get("count"));
+    }
+
+    @Test
+    public void testTrafficAudit() throws IOException, InterruptedException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        Gson gson = new Gson();
+
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append(gson.toJson(Collections.singletonMap("query", "{ resorts { id } }"))).append('\n');
+        }
+        //hidden fields are removed from the query
+        log.append(gson.toJson(Collections.singletonMap("query", "{ resorts { id snow_condition } }"))).append('\n');
+        //logged as an object holding the body
+        log.append(gson.toJson(Collections.singletonMap("body", gson.toJson(Collections.singletonMap("query", "{ resorts { name } }"))))).append("\n\n");
+        log.append(gson.toJson(Collections.singletonMap("query", "{ resorts { unknown } }"))).append('\n');
+        log.append(gson.toJson(Collections.singletonMap("query", "{ resorts {"))).append('\n');
+        //the last line has no line terminator
+        log.append("not json");
+
+        Path file = Files.createTempFile("traffic", ".jsonl");
+        try {
+            Files.write(file, log.toString().getBytes(StandardCharsets.UTF_8));
+            TrafficAudit.Config config = new TrafficAudit.Config();
+            config.threads = 4;
+            TrafficAudit.Report report = TrafficAudit.run(config, file, schemaText);
+
+            Assert.assertEquals(1005, report.requests.sum());
+            Assert.assertEquals(1002, report.passed.sum());
+            Assert.assertEquals(3, report.failed.sum());
+            Assert.assertEquals(1, report.changed.sum());
+            Map<String, Long> expectedCodes = new HashMap<>();
+            expectedCodes.put(GraphQLErrorResponse.CODE_VALIDATION_FAILED, 1L);
+            expectedCodes.put(GraphQLErrorResponse.CODE_PARSE_FAILED, 1L);
+            expectedCodes.put(TrafficAudit.INVALID_JSON, 1L);
+            Assert.assertEquals(expectedCodes, report.getErrorCodes());
+            Assert.assertTrue(report.format().contains("rewritten:         1"));
+
+            //a request the policy throws on is counted, and the audit goes on
+            log = new StringBuilder();
+            log.append(gson.toJson(Collections.singletonMap("query", "{ resorts { id snow_condition } }"))).append('\n');
+            log.append(gson.toJson(Collections.singletonMap("query", "{ resorts { id } }"))).append('\n');
+            Files.write(file, log.toString().getBytes(StandardCharsets.UTF_8));
+            config.properties.put(GraphQLCallout.PROP_DIRECTIVE_VALIDATORS, FailingVisibilityValidator.class.getName());
+            report = TrafficAudit.run(config, file, schemaText);
+            Assert.assertEquals(2, report.requests.sum());
+            Assert.assertEquals(1, report.passed.sum());
+            Assert.assertEquals(1, report.failed.sum());
+            Assert.assertEquals(Collections.singletonMap(TrafficAudit.INTERNAL_ERROR, 1L), report.getErrorCodes());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public static class FailingVisibilityValidator implements GraphQLDirectiveValidator {
+        @Override
+        public Field validateOutputField(Field field, GraphQLDirective directive, GraphQLVisitorContext ctx) {
+            throw new IllegalStateException("validator bug");
+        }
+
+        @Override
+        public String getName() {
+            return "visibility";
+        }
+    }
+
+    @Test
+    public void testErrorResponse() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        String content = new Gson().toJson(Collections.singletonMap("mutation", readResourceFile("/bad_mutation_multiple.graphql")));
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
+
+        Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+        Assert.assertFalse(result.getValue0().isSuccess());
+        Assert.assertEquals(GraphQLErrorResponse.CONTENT_TYPE, result.getValue0().getErrorResponseHeaders().get("Content-Type"));
+        Assert.assertEquals(result.getValue0().getErrorResponse(), result.getValue1().get(GraphQLCallout.ERROR_RESPONSE_VAR));
+
+        List<Map<String, Object>> errors = getErrors(result.getValue0().getErrorResponse());
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals(result.getValue1().get("graphql.error.1.message"), errors.get(1).get("message"));
+        Assert.assertEquals(Arrays.asList("resorts", "update", "trails", "create", "input", "name"), errors.get(1).get("path"));
+        Assert.assertEquals(4.0, ((Map<?, ?>) ((List<?>) errors.get(0).get("locations")).get(0)).get("line"));
+        Assert.assertEquals(GraphQLErrorResponse.CODE_BAD_USER_INPUT, ((Map<?, ?>) errors.get(0).get("extensions")).get("code"));
+
+        //the same errors get the same cached body
+        Triplet<ExecutionResult, Map<String, Object>, String> repeated = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+        Assert.assertSame(result.getValue0().getErrorResponse(), repeated.getValue0().getErrorResponse());
+
+        //syntax errors
+        content = new Gson().toJson(Collections.singletonMap("query", "query { resorts {"));
+        result = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+        errors = getErrors(result.getValue0().getErrorResponse());
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals(GraphQLErrorResponse.CODE_PARSE_FAILED, ((Map<?, ?>) errors.get(0).get("extensions")).get("code"));
+        Assert.assertNotNull(errors.get(0).get("locations"));
+
+        //without the error response, the flow continues
+        result = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, false);
+        Assert.assertTrue(result.getValue0().isSuccess());
+        Assert.assertNull(result.getValue1().get(GraphQLCallout.ERROR_RESPONSE_VAR));
+
+        //bodies that are not JSON objects are bad requests
+        for (String body : Arrays.asList("{\"query\": ", "[1,2]", "\"str\"", "")) {
+            result = callout.validateGraphQLMessage(gql, body, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+            Assert.assertFalse(body, result.getValue0().isSuccess());
+            errors = getErrors(result.getValue0().getErrorResponse());
+            Assert.assertEquals(GraphQLErrorResponse.CODE_BAD_REQUEST, ((Map<?, ?>) errors.get(0).get("extensions")).get("code"));
+
+            result = callout.validateGraphQLMessage(gql, body, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, false);
+            Assert.assertTrue(body, (Boolean) result.getValue1().get("graphql.failed"));
+            Assert.assertEquals("message body is not a JSON object", result.getValue1().get("graphql.error.0.message"));
+        }
+    }
+
+    @Test
+    public void testRejectionCache() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        String content = new Gson().toJson(Collections.singletonMap("mutation", readResourceFile("/bad_mutation_multiple.graphql")));
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_REJECTION_CACHE, "true");
+        properties.put(GraphQLCallout.PROP_REJECTION_CACHE_SIZE, "2");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        Triplet<ExecutionResult, Map<String, Object>, String> first = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+        Assert.assertFalse(first.getValue0().isSuccess());
+        Assert.assertEquals(false, first.getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+        Assert.assertEquals(1L, first.getValue1().get(GraphQLCallout.REJECTION_COUNT_VAR));
+        String key = (String) first.getValue1().get(GraphQLCallout.REJECTION_KEY_VAR);
+        Assert.assertEquals(16, key.length());
+
+        //repeats are answered from the cache, with the same output and a growing counter
+        Triplet<ExecutionResult, Map<String, Object>, String> repeated = null;
+        for (int i = 0; i < 3; i++) {
+            repeated = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+        }
+        Assert.assertFalse(repeated.getValue0().isSuccess());
+        Assert.assertEquals(first.getValue0().getErrorResponse(), repeated.getValue0().getErrorResponse());
+        Assert.assertEquals(GraphQLErrorResponse.CONTENT_TYPE, repeated.getValue0().getErrorResponseHeaders().get("Content-Type"));
+        Assert.assertEquals(true, repeated.getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+        Assert.assertEquals(4L, repeated.getValue1().get(GraphQLCallout.REJECTION_COUNT_VAR));
+        Assert.assertEquals(key, repeated.getValue1().get(GraphQLCallout.REJECTION_KEY_VAR));
+        Assert.assertEquals(first.getValue1().get("graphql.error.1.message"), repeated.getValue1().get("graphql.error.1.message"));
+
+        //without the error response, the request is validated again and continues with the error flow variables
+        Triplet<ExecutionResult, Map<String, Object>, String> continued = callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, false);
+        Assert.assertTrue(continued.getValue0().isSuccess());
+        Assert.assertEquals(false, continued.getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+        Assert.assertEquals(true, callout.validateGraphQLMessage(gql, content, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, false).getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+
+        //valid requests are never remembered
+        String valid = new Gson().toJson(Collections.singletonMap("query", "query { resorts { name } }"));
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> flowVars = callout.validateGraphQLMessage(gql, valid, schemaText).getValue1();
+            Assert.assertEquals(false, flowVars.get("graphql.failed"));
+            Assert.assertNull(flowVars.get(GraphQLCallout.REJECTION_KEY_VAR));
+        }
+
+        //a different body, or the same body against another schema, is validated
+        String other = new Gson().toJson(Collections.singletonMap("query", "query { resorts {"));
+        Assert.assertEquals(false, callout.validateGraphQLMessage(gql, other, schemaText).getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+        Assert.assertNotEquals(key, callout.validateGraphQLMessage(gql, other, schemaText).getValue1().get(GraphQLCallout.REJECTION_KEY_VAR));
+        Assert.assertEquals(false, callout.validateGraphQLMessage(gql, other, schemaText + "\nscalar Other\n").getValue1().get(GraphQLCallout.REJECTION_CACHED_VAR));
+
+        //disabled by default
+        Assert.assertNull(new GraphQLCallout(new HashMap<>()).validateGraphQLMessage(gql, content, schemaText).getValue1().get(GraphQLCallout.REJECTION_KEY_VAR));
+    }
+
+    @Test
+    public void testLoadShedding() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_LOAD_SHEDDING, "true");
+        properties.put(GraphQLCallout.PROP_LOAD_SHEDDING_MAX_IN_FLIGHT, "1");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+        LoadShedder shedder = callout.getLoadShedder();
+
+        //fragments count once per spread, and their depth starts where they are spread
+        String expensive = new Gson().toJson(Collections.singletonMap("query",
+                "query { resorts { ...R nearby { ...R nearby { ...R } } } }\n" +
+                "fragment R on Resort { id name trails { name status } }"));
+        String cheap = new Gson().toJson(Collections.singletonMap("query", "query { resorts { name } }"));
+
+        Map<String, Object> flowVars = callout.validateGraphQLMessage(gql, expensive, schemaText).getValue1();
+        Assert.assertEquals(false, flowVars.get("graphql.failed"));
+        Assert.assertEquals(18L, flowVars.get(GraphQLCallout.COST_FIELDS_VAR));
+        Assert.assertEquals(5, flowVars.get(GraphQLCallout.COST_DEPTH_VAR));
+        Assert.assertNull(flowVars.get(GraphQLCallout.LOAD_SHED_VAR));
+
+        //the estimate made before validation counts the same way
+        OperationCost estimate = new OperationCost();
+        Document document = Parser.parse((String) new Gson().fromJson(expensive, Map.class).get("query"));
+        estimate.estimate(document, GraphQLUtil.getOperation(document, null));
+        Assert.assertEquals(18L, estimate.getFields());
+        Assert.assertEquals(5, estimate.getDepth());
+
+        //with another request in flight, the policy is at twice its limit and sheds the most expensive half of the
+        //recent cost, here the expensive operation, as cheap ones hold more than half of it
+        for (int i = 0; i < 40; i++) {
+            Assert.assertEquals(false, callout.validateGraphQLMessage(gql, cheap, schemaText).getValue1().get("graphql.failed"));
+        }
+        shedder.enter();
+        try {
+            Triplet<ExecutionResult, Map<String, Object>, String> result = callout.validateGraphQLMessage(gql, expensive, schemaText, GraphQLCallout.OUTPUT_MODE_PRINT, true);
+            Assert.assertFalse(result.getValue0().isSuccess());
+            Assert.assertEquals(true, result.getValue1().get(GraphQLCallout.LOAD_SHED_VAR));
+            Assert.assertEquals(18L, result.getValue1().get(GraphQLCallout.COST_FIELDS_VAR));
+            Assert.assertEquals("1", result.getValue0().getErrorResponseHeaders().get("Retry-After"));
+            List<Map<String, Object>> errors = getErrors(result.getValue0().getErrorResponse());
+            Assert.assertEquals(GraphQLErrorResponse.CODE_OVERLOADED, ((Map<?, ?>) errors.get(0).get("extensions")).get("code"));
+
+            flowVars = callout.validateGraphQLMessage(gql, cheap, schemaText).getValue1();
+            Assert.assertEquals(false, flowVars.get("graphql.failed"));
+            Assert.assertEquals(4L, (long) (Long) flowVars.get(GraphQLCallout.COST_FIELDS_VAR) * (Integer) flowVars.get(GraphQLCallout.COST_DEPTH_VAR));
+        } finally {
+            shedder.exit(System.nanoTime());
+        }
+        Assert.assertEquals(false, callout.validateGraphQLMessage(gql, expensive, schemaText).getValue1().get("graphql.failed"));
+        Assert.assertEquals(1, shedder.getShed());
+        Assert.assertEquals(0, shedder.getInFlight());
+
+        //at 1.5 times the limit, the most expensive third of the recent cost is shed
+        LoadShedder third = new LoadShedder(2, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(third.admit(100));
+        }
+        Assert.assertTrue(third.admit(1000));
+        third.enter();
+        third.enter();
+        third.enter();
+        Assert.assertEquals(1.5, third.getOverload(), 0.001);
+        Assert.assertFalse(third.admit(1000));
+        Assert.assertTrue(third.admit(4));
+
+        //when the traffic is in a single bucket, only the fraction to shed is, not the whole bucket
+        LoadShedder single = new LoadShedder(2, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(single.admit(1000));
+        }
+        single.enter();
+        single.enter();
+        single.enter();
+        int shed = 0;
+        for (int i = 0; i < 3000; i++) {
+            if (!single.admit(1000)) {
+                shed++;
+            }
+        }
+        Assert.assertTrue(String.valueOf(shed), shed > 750 && shed < 1250);
+    }
+
+    @Test
+    public void testSchemaSelection() throws IOException {
+        String publicSchema = "type Query { hello: String }";
+        GraphQLProcessor.clearSchemaCache();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_MESSAGE_REF, "request");
+        properties.put(GraphQLCallout.PROP_SCHEMA_NAME, "{client.schema}");
+        properties.put(GraphQLCallout.PROP_SCHEMA_RESOURCE + ".internal", "/schema.graphql");
+        properties.put(GraphQLCallout.PROP_SCHEMA_BASE64_REF + ".public", "propertyset.graphql.public");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        //resource schemas are compiled when the callout is loaded
+        SchemaRegistry.Stats internalStats = SchemaRegistry.getDefault().getStats("internal");
+        Assert.assertEquals(1, internalStats.getCompilations());
+
+        Map<String, Object> vars = executeQuery(callout, "internal", "{ resorts { name } }", publicSchema);
+        Assert.assertEquals("internal", vars.get("graphql.schema.name"));
+        Assert.assertEquals(false, vars.get("graphql.failed"));
+
+        vars = executeQuery(callout, "public", "{ hello }", publicSchema);
+        Assert.assertEquals("public", vars.get("graphql.schema.name"));
+        Assert.assertEquals(false, vars.get("graphql.failed"));
+
+        vars = executeQuery(callout, "public", "{ resorts { name } }", publicSchema);
+        Assert.assertEquals(true, vars.get("graphql.failed"));
+
+        //unknown names fall back to the default schema, which is not configured here
+        vars = executeQuery(callout, "partner", "{ hello }", publicSchema);
+        Assert.assertEquals(SchemaRegistry.DEFAULT_SCHEMA_NAME, vars.get("graphql.schema.name"));
+        Assert.assertEquals(true, vars.get("graphql.failed"));
+        Assert.assertEquals("schema default not found", vars.get("graphql.error.0.message"));
+
+        Assert.assertEquals(1, internalStats.getCompilations());
+        Assert.assertTrue(internalStats.getHits() >= 1);
+        Assert.assertEquals(2, internalStats.getLookups());
+        Assert.assertEquals(2, SchemaRegistry.getDefault().getStats("public").getLookups());
+        Assert.assertEquals(1, SchemaRegistry.getDefault().getStats("public").getCompilations());
+
+        //schemas no name resolves to any more are evicted first
+        SchemaRegistry registry = new SchemaRegistry(2);
+        GraphQLProcessor gql = new GraphQLProcessor();
+        CompiledSchema v1 = registry.get("public", "type Query { v1: String }", gql::buildSchema).getValue0();
+        CompiledSchema internal = registry.get("internal", "type Query { internal: String }", gql::buildSchema).getValue0();
+        CompiledSchema v2 = registry.get("public", "type Query { v2: String }", gql::buildSchema).getValue0();
+        Assert.assertEquals(2, registry.size());
+        Assert.assertEquals(1, registry.getEvictions());
+        Assert.assertSame(internal, registry.get("internal", "type Query { internal: String }", gql::buildSchema).getValue0());
+        Assert.assertSame(v2, registry.get("public", "type Query { v2: String }", gql::buildSchema).getValue0());
+        Assert.assertFalse(v1 == registry.get("public", "type Query { v1: String }", gql::buildSchema).getValue0());
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testFieldUsage() throws IOException {
+        String publicSchema = "type Query { hello: String, world: String }";
+        GraphQLProcessor.clearSchemaCache();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_MESSAGE_REF, "request");
+        properties.put(GraphQLCallout.PROP_SCHEMA_NAME, "public");
+        properties.put(GraphQLCallout.PROP_SCHEMA_BASE64_REF + ".public", "propertyset.graphql.public");
+        properties.put(GraphQLCallout.PROP_USAGE_SNAPSHOT, "{usage.snapshot}");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        Map<String, Object> vars = executeQuery(callout, "public", "{ hello }", publicSchema);
+        Assert.assertNull(vars.get(GraphQLCallout.USAGE_SNAPSHOT_VAR));
+        executeQuery(callout, "public", "{ hello, world }", publicSchema);
+
+        vars = new HashMap<>();
+        vars.put("usage.snapshot", "true");
+        vars.put("propertyset.graphql.public", Base64.getEncoder().encodeToString(publicSchema.getBytes(StandardCharsets.UTF_8)));
+        vars.put("request", ApigeeStubs.newMessage(new Gson().toJson(Collections.singletonMap("query", "{ world }"))));
+        callout.execute(ApigeeStubs.newMessageContext(vars), ApigeeStubs.newExecutionContext());
+
+        Map<?, ?> snapshot = new Gson().fromJson((String) vars.get(GraphQLCallout.USAGE_SNAPSHOT_VAR), Map.class);
+        Assert.assertEquals("public", snapshot.get("schema"));
+        Map<?, ?> counts = (Map<?, ?>) snapshot.get("counts");
+        Assert.assertEquals(2.0, counts.get("Query.hello"));
+        Assert.assertEquals(2.0, counts.get("Query.world"));
+
+        //schema cache statistics are exported along with the usage
+        Map<?, ?> schemas = new Gson().fromJson((String) vars.get(GraphQLCallout.SCHEMAS_SNAPSHOT_VAR), Map.class);
+        Assert.assertEquals(1.0, schemas.get("size"));
+        Map<?, ?> publicStats = (Map<?, ?>) ((List<?>) schemas.get("schemas")).get(0);
+        Assert.assertEquals("public", publicStats.get("name"));
+        Assert.assertEquals(3.0, publicStats.get("lookups"));
+        Assert.assertEquals(1.0, publicStats.get("compilations"));
+
+        //snapshots only report what was requested since the previous one
+        CompiledSchema compiledSchema = new GraphQLProcessor().compileSchema(publicSchema).getValue0();
+        Assert.assertTrue(compiledSchema.getUsage().snapshot().getCounts().isEmpty());
+        executeQuery(callout, "public", "{ hello }", publicSchema);
+        Assert.assertEquals(Collections.singletonMap("Query.hello", 1L), compiledSchema.getUsage().snapshot().getCounts());
+
+        //callers holding only a GraphQLSchema share the schema compiled for it
+        GraphQLSchema schema = compiledSchema.getSchema();
+        Assert.assertSame(CompiledSchema.of(schema), CompiledSchema.of(schema));
+        GraphQLProcessor gql = new GraphQLProcessor();
+        gql.parseAndValidate("{ world }", new HashMap<>(), schema, null);
+        gql.parseAndValidate("{ world }", new HashMap<>(), schema, null);
+        Assert.assertEquals(Collections.singletonMap("Query.world", 2L), CompiledSchema.of(schema).getUsage().snapshot().getCounts());
+    }
+
+    @Test
+    public void testOperationCarryOver() throws IOException, InterruptedException {
+        String oldSchema = "type Query { hello: String, world: String, greet(name: String): String }";
+        String newSchema = "type Query { hello: String, world: Int, extra: String }";
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_MESSAGE_REF, "request");
+        properties.put(GraphQLCallout.PROP_SCHEMA_NAME, "public");
+        properties.put(GraphQLCallout.PROP_SCHEMA_BASE64_REF + ".public", "propertyset.graphql.public");
+        properties.put(GraphQLCallout.PROP_OPERATION_CACHE, "true");
+        properties.put(GraphQLCallout.PROP_OPERATION_STATS, "true");
+        GraphQLCallout callout = new GraphQLCallout(properties);
+
+        for (String query : Arrays.asList("{ hello }", "{ world }", "{ greet(name: \"a\") }")) {
+            Assert.assertEquals(false, executeQuery(callout, "public", query, oldSchema).get(GraphQLCallout.OPERATION_CACHED_VAR));
+        }
+        Map<String, Object> vars = executeQuery(callout, "public", "{ hello }", oldSchema);
+        Assert.assertEquals(true, vars.get(GraphQLCallout.OPERATION_CACHED_VAR));
+        Assert.assertEquals(false, vars.get("graphql.failed"));
+        Assert.assertNull(callout.getCarryOver());
+
+        GraphQLProcessor gql = new GraphQLProcessor();
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("Query.greet", "Query.world")),
+                SchemaDiff.changedCoordinates(gql.compileSchema(oldSchema).getValue0(), gql.compileSchema(newSchema).getValue0()));
+
+        //the first request with the new schema starts the carry-over
+        executeQuery(callout, "public", "{ extra }", newSchema);
+        CarryOver carryOver = callout.getCarryOver();
+        Assert.assertTrue(carryOver.await(10000));
+        Assert.assertEquals(1, carryOver.getCarried());
+        Assert.assertEquals(1, carryOver.getRevalidated());
+        Assert.assertEquals(1, carryOver.getDropped());
+
+        //revalidation is not traffic, it is counted neither in the operation stats nor in the field usage
+        CompiledSchema compiledSchema = gql.compileSchema(newSchema).getValue0();
+        int worldIndex = compiledSchema.getCompositeType("Query").getField("world").getIndex();
+        Assert.assertEquals(0, compiledSchema.getUsage().getCount(worldIndex));
+        Assert.assertEquals(5, callout.getOperationStats().snapshot().getTotal());
+
+        Assert.assertEquals(true, executeQuery(callout, "public", "{ hello }", newSchema).get(GraphQLCallout.OPERATION_CACHED_VAR));
+        Assert.assertEquals(true, executeQuery(callout, "public", "{ world }", newSchema).get(GraphQLCallout.OPERATION_CACHED_VAR));
+        vars = executeQuery(callout, "public", "{ greet(name: \"a\") }", newSchema);
+        Assert.assertEquals(true, vars.get("graphql.failed"));
+        Assert.assertNull(vars.get(GraphQLCallout.OPERATION_CACHED_VAR));
+
+        //cached operations are counted in the field usage of the schema they are forwarded with
+        compiledSchema.getUsage().snapshot();
+        executeQuery(callout, "public", "{ hello }", newSchema);
+        Assert.assertEquals(Collections.singletonMap("Query.hello", 1L), compiledSchema.getUsage().snapshot().getCounts());
+    }
+
+    @Test
+    public void testScalarFormats() throws IOException {
+        String mutation = "mutation %s { resorts { update(input: {}) { resort(input: {last_snow_date: %s, last_snow_amount: %s}) { id } } } }";
+
+        Assert.assertFalse(validateQuery(String.format(mutation, "", "\"2024-02-29\"", "1.5"), null).isFailure());
+        Assert.assertFalse(validateQuery(String.format(mutation, "($date: Date)", "$date", "0"), Collections.singletonMap("date", "2023-12-31")).isFailure());
+
+        //literals
+        ParseAndValidateResult result = validateQuery(String.format(mutation, "", "\"2023-02-29\"", "1"), null);
+        Assert.assertTrue(result.isFailure());
+        Assert.assertTrue(result.getValidationErrors().get(0).getMessage().contains("Expected a value of scalar 'Date' in format 'date' but was '2023-02-29'"));
+        Assert.assertTrue(validateQuery(String.format(mutation, "", "\"2024-01-01\"", "-1"), null).isFailure());
+
+        //variables
+        result = validateQuery(String.format(mutation, "($date: Date)", "$date", "1"), Collections.singletonMap("date", "yesterday"));
+        Assert.assertTrue(result.isFailure());
+        Assert.assertEquals(GraphQLErrorResponse.CODE_BAD_USER_INPUT, GraphQLErrorResponse.getCode(result.getValidationErrors().get(0)));
+
+        ScalarFormat dateTime = ScalarFormat.forName("date-time");
+        Assert.assertTrue(dateTime.isValid("2024-01-01T10:00:00.25+01:00"));
+        Assert.assertTrue(dateTime.isValid("2024-01-01T10:00:00Z"));
+        Assert.assertFalse(dateTime.isValid("2024-01-01T24:00:00Z"));
+        Assert.assertFalse(dateTime.isValid("2024-01-01 10:00:00Z"));
+        Assert.assertSame(ScalarFormat.forName("uuid"), ScalarFormat.forSpecifiedByUrl("https://tools.ietf.org/html/rfc4122"));
+        Assert.assertTrue(ScalarFormat.forName("uuid").isValid("123e4567-e89b-12d3-a456-426614174000"));
+        Assert.assertFalse(ScalarFormat.forName("positive-int").isValid(0.0));
+        //the same pattern twice, the second time from the cache
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(ScalarFormat.forName("regex").isValid("^[a-z]+$"));
+            Assert.assertFalse(ScalarFormat.forName("regex").isValid("[a-z"));
+        }
+    }
+
+    @Test
+    public void testVariableCoercion() throws Exception {
+        //the coercion relies on an internal graphql-java API, an upgrade must check it again
+        URL location = ValuesResolver.class.getProtectionDomain().getCodeSource().getLocation();
+        if (location.getPath().endsWith(".jar")) {
+            try (JarFile jar = new JarFile(new File(location.toURI()))) {
+                String version = jar.getManifest().getMainAttributes().getValue("Bundle-Version");
+                Assert.assertTrue("graphql-java " + version + " is not the version VariableCoercion was verified against",
+                        version.equals(VariableCoercion.VERIFIED_VERSION) || version.startsWith(VariableCoercion.VERIFIED_VERSION + "."));
+            }
+        }
+
+        GraphQLProcessor gql = new GraphQLProcessor();
+        GraphQLSchema schema = gql.compileSchema(gql.loadResourceAsString("/schema.graphql")).getValue0().getSchema();
+        OperationDefinition operation = (OperationDefinition) Parser.parse("query($first: Int = 5, $offset: Int, $text: String) { trails(first: $first, offset: $offset) { name } }").getDefinitions().get(0);
+        Map<String, Object> coerced = VariableCoercion.coerce(schema, operation.getVariableDefinitions(), Collections.singletonMap("offset", 7L));
+        //default values are applied, unset variables without one are left out
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("first", 5);
+        expected.put("offset", 7);
+        Assert.assertEquals(expected, coerced);
+        try {
+            VariableCoercion.coerce(schema, operation.getVariableDefinitions(), Collections.singletonMap("first", "five"));
+            Assert.fail("invalid variables were coerced");
+        } catch (GraphQLException expectedException) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testValidationRules() throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        String schemaText = gql.loadResourceAsString("/schema.graphql");
+        CompiledSchema schema = gql.compileSchema(schemaText).getValue0();
+
+        String[][] conflicts = {
+                {"{ resorts { x: name x: id } }", "'x' : 'name' and 'id' are different fields"},
+                {"{ resorts { trails(input: {name: \"a\"}) { name } trails(input: {name: \"b\"}) { name } } }", "'trails' : fields have different arguments"},
+                //different leaf types conflict even on parent types that cannot be the same object
+                {"{ search(text: \"x\") { ... on Trail { s: status } ... on Lift { s: status } } }", "'s' : returns different types 'TrailStatus' and 'LiftStatus'"},
+                //fields of an abstract parent type may be selected on any of its implementations
+                {"{ node(id: \"1\") { x: id ... on Trail { x: name } } }", "'x' : 'id' and 'name' are different fields"},
+                {"{ resorts { ...A ...B } } fragment A on Resort { nearby { n: name } } fragment B on Resort { nearby { n: id } }", "FieldsConflict@[resorts/nearby]"},
+                {"{ resorts { n: nearby { id } n: trails { id } } }", "'n' : fields have different nullability shapes"},
+        };
+        for (String[] conflict : conflicts) {
+            List<ValidationError> errors = OverlappingFieldsCheck.check(Parser.parse(conflict[0]), schema);
+            Assert.assertEquals(conflict[0], 1, errors.size());
+            Assert.assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().contains(conflict[1]));
+            Assert.assertEquals(2, errors.get(0).getLocations().size());
+            assertSameAsSpecRule(schema, conflict[0]);
+            Assert.assertTrue(validateQuery(conflict[0], null).isFailure());
+        }
+
+        String[] merged = {
+                "{ resorts { name name ...A } } fragment A on Resort { name }",
+                "{ search(text: \"x\") { ... on Trail { x: name } ... on Lift { x: id } } }",
+                "{ resorts { nearby { id } nearby { name } ...A } } fragment A on Resort { nearby { id ...B } } fragment B on Resort { id name }",
+        };
+        for (String query : merged) {
+            Assert.assertTrue(query, OverlappingFieldsCheck.check(Parser.parse(query), schema).isEmpty());
+            assertSameAsSpecRule(schema, query);
+            Assert.assertFalse(query, validateQuery(query, null).isFailure());
+        }
+
+        //rule sets
+        Assert.assertEquals(ValidationRules.DEFAULT.getRules(), ValidationRules.parse("all").getRules());
+        Assert.assertFalse(ValidationRules.parse("-" + ValidationRules.OVERLAPPING_FIELDS).checksOverlappingFields());
+        //a list of rules only chooses among the optional ones, the others always run
+        TreeSet<String> required = new TreeSet<>(ValidationRules.DEFAULT.getRules());
+        required.removeAll(ValidationRules.OPTIONAL_RULES);
+        Assert.assertEquals(required, ValidationRules.parse("KnownArgumentNames, ScalarLeaves").getRules());
+        Assert.assertEquals(required, ValidationRules.parse("-all").getRules());
+        Assert.assertTrue(ValidationRules.parse("NoUnusedVariables").checksUnusedVariables());
+        Assert.assertFalse(ValidationRules.parse("ScalarLeaves").checksUnusedVariables());
+        Assert.assertFalse(ValidationRules.parse("ScalarLeaves").getPredicate().test(OverlappingFieldsCanBeMerged.class));
+        for (String ruleSet : Arrays.asList("all,-NoSuchRule", "-" + ValidationRules.FRAGMENT_CYCLES, "-FieldsOnCorrectType", "-ProvidedNonNullArguments,-NoUnusedFragments")) {
+            try {
+                ValidationRules.parse(ruleSet);
+                Assert.fail(ruleSet + " must be rejected");
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains(ruleSet.startsWith("all") ? "NoSuchRule" : ruleSet.split(",")[0].substring(1)));
+            }
+        }
+
+        String unusedFragment = new Gson().toJson(Collections.singletonMap("query", "query { resorts { name } } fragment U on Resort { id }"));
+        Assert.assertEquals(true, new GraphQLCallout(new HashMap<>()).validateGraphQLMessage(gql, unusedFragment, schemaText).getValue1().get("graphql.failed"));
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GraphQLCallout.PROP_VALIDATION_RULES, "-NoUnusedFragments");
+        Assert.assertEquals(false, new GraphQLCallout(properties).validateGraphQLMessage(gql, unusedFragment, schemaText).getValue1().get("graphql.failed"));
+
+        //unused variable definitions are not forwarded when NoUnusedVariables does not run
+        properties.put(GraphQLCallout.PROP_VALIDATION_RULES, "-NoUnusedVariables");
+        String unusedVariable = new Gson().toJson(Collections.singletonMap("query", "query ($u: Int) { resorts { name } }"));
+        Triplet<ExecutionResult, Map<String, Object>, String> calloutResult = new GraphQLCallout(properties).validateGraphQLMessage(gql, unusedVariable, schemaText);
+        Assert.assertEquals(false, calloutResult.getValue1().get("graphql.failed"));
+        Assert.assertFalse(calloutResult.getValue2().contains("$u"));
+    }
+
+    private void assertSameAsSpecRule(CompiledSchema schema, String query) {
+        List<ValidationError> spec = ParseAndValidate.validate(schema.getSchema(), Parser.parse(query), rule -> rule == OverlappingFieldsCanBeMerged.class);
+        Assert.assertEquals(query, spec.isEmpty(), OverlappingFieldsCheck.check(Parser.parse(query), schema).isEmpty());
+    }
+
+    private ParseAndValidateResult validateQuery(String query, Map<String, Object> variables) throws IOException {
+        GraphQLProcessor gql = new GraphQLProcessor();
+        DirectivesValidator validator = new DirectivesValidator();
+        validator.addValidator(new VisibilityValidator());
+        validator.addValidator(new PatternValidator());
+        return gql.validateInputWithSchema(query, variables == null ? new HashMap<>() : variables, gql.loadResourceAsString("/schema.graphql"), validator);
+    }
+
+    private Map<String, Object> executeQuery(GraphQLCallout callout, String schemaName, String query, String publicSchema) {
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("client.schema", schemaName);
+        vars.put("propertyset.graphql.public", Base64.getEncoder().encodeToString(publicSchema.getBytes(StandardCharsets.UTF_8)));
+        vars.put("request", ApigeeStubs.newMessage(new Gson().toJson(Collections.singletonMap("query", query))));
+        callout.execute(ApigeeStubs.newMessageContext(vars), ApigeeStubs.newExecutionContext());
+        return vars;
+    }
+
     public Triplet<ExecutionResult, Map<String, Object>, String> callValidateGraphQLMessage(String inputPath, String schemaPath) throws IOException {
-        GraphQLCallout callout = new GraphQLCallout(new HashMap());
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
 
         GraphQLProcessor gql = new GraphQLProcessor();
         String schemaText = gql.loadResourceAsString(schemaPath);
@@ -119,7 +1309,7 @@ public class TestGraphQLCallout {
     }
 
     private ParseAndValidateResult callParseAndValidate(String inputPath, String schemaPath) throws IOException {
-        GraphQLCallout callout = new GraphQLCallout(new HashMap());
+        GraphQLCallout callout = new GraphQLCallout(new HashMap<>());
 
         GraphQLProcessor gql = new GraphQLProcessor();
         String query = gql.loadResourceAsString(inputPath);
@@ -132,6 +1322,11 @@ public class TestGraphQLCallout {
         return gql.validateInputWithSchema(query, new HashMap<>(), schema, validator);
     }
 
+    private static List<Map<String, Object>> getErrors(String errorResponse) {
+        Map<String, List<Map<String, Object>>> response = new Gson().fromJson(errorResponse, new TypeToken<Map<String, List<Map<String, Object>>>>() {}.getType());
+        return response.get("errors");
+    }
+
     private String readResourceFile(String resourcePath) throws IOException {
         URL url = GraphQLCallout.class.getResource(resourcePath);
         String data = new String(Files.readAllBytes(Paths.get(url.getPath())));
@@ -0,0 +1,45 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.GraphQLProcessor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+public class TestLoadHarness {
+
+    @Test
+    public void testConcurrentExecution() throws IOException, InterruptedException {
+        List<String> corpus;
+        try (Reader reader = LoadHarness.resourceReader("/load_corpus.jsonl")) {
+            corpus = LoadHarness.loadCorpus(reader);
+        }
+        String schemaText = new GraphQLProcessor().loadResourceAsString("/schema.graphql");
+
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.threads = 8;
+        config.warmup = 50;
+        config.iterations = 200;
+
+        LoadHarness.Report report = LoadHarness.run(config, corpus, schemaText);
+
+        Assert.assertEquals(8 * 200, report.requests);
+        Assert.assertTrue(report.format(), report.passed());
+    }
+}
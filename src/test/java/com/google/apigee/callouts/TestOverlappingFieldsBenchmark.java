@@ -0,0 +1,38 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.callouts.graphql.CompiledSchema;
+import graphql.language.Document;
+import graphql.schema.GraphQLSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestOverlappingFieldsBenchmark {
+
+    @Test
+    public void testWideOperations() {
+        GraphQLSchema schema = OverlappingFieldsBenchmark.schema();
+        CompiledSchema compiledSchema = CompiledSchema.compile(schema);
+
+        //both implementations must agree, including on a conflict after every other field
+        String query = OverlappingFieldsBenchmark.wideQuery(800);
+        Document conflicting = OverlappingFieldsBenchmark.parse(query.substring(0, query.length() - 3) + "f: child(first: 2) { id } } }");
+        Assert.assertTrue(OverlappingFieldsBenchmark.validateSpec(schema, OverlappingFieldsBenchmark.parse(query)).isEmpty());
+        Assert.assertTrue(OverlappingFieldsBenchmark.validateCheck(compiledSchema, OverlappingFieldsBenchmark.parse(query)).isEmpty());
+        Assert.assertEquals(1, OverlappingFieldsBenchmark.validateSpec(schema, conflicting).size());
+        Assert.assertEquals(1, OverlappingFieldsBenchmark.validateCheck(compiledSchema, conflicting).size());
+    }
+}
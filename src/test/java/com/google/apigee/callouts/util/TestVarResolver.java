@@ -0,0 +1,155 @@
+// Copyright 2024 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.apigee.callouts.util;
+
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.callouts.ApigeeStubs;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestVarResolver {
+
+    @Test
+    public void testLiteralTemplate() {
+        PropertyTemplate template = PropertyTemplate.compile("request.content");
+        Assert.assertTrue(template.isConstant());
+        Assert.assertFalse(template.isVarRef());
+        Assert.assertEquals("request.content", template.resolve(context()));
+
+        //values that are not strings are used as configured
+        PropertyTemplate number = PropertyTemplate.compile(42);
+        Assert.assertTrue(number.isConstant());
+        Assert.assertEquals(42, number.resolve(context()));
+    }
+
+    @Test
+    public void testSingleReference() {
+        PropertyTemplate template = PropertyTemplate.compile("{client.schema}");
+        Assert.assertTrue(template.isVarRef());
+        Assert.assertFalse(template.isConstant());
+        Assert.assertEquals("client.schema", template.getVarRef());
+
+        //the raw variable value, not its string form
+        Object value = new Object();
+        Assert.assertSame(value, template.resolve(context("client.schema", value)));
+        Assert.assertNull(template.resolve(context()));
+    }
+
+    @Test
+    public void testMixedTemplate() {
+        PropertyTemplate template = PropertyTemplate.compile("propertyset.{env}.schema-{version}");
+        Assert.assertFalse(template.isConstant());
+        Assert.assertFalse(template.isVarRef());
+        Assert.assertEquals("propertyset.prod.schema-2", template.resolve(context("env", "prod", "version", "2")));
+
+        //missing variables and variables that are not strings render as empty
+        Assert.assertEquals("propertyset..schema-", template.resolve(context("version", 2)));
+        Assert.assertEquals("{a}b", PropertyTemplate.compile("{a}b").resolve(context("a", "{a}")));
+    }
+
+    @Test
+    public void testMissingVariable() {
+        VarResolver resolver = resolver(context(), "schema-ref", "{missing}", "template", "x-{missing}-y");
+        Assert.assertNull(resolver.getProp("schema-ref"));
+        Assert.assertEquals("fallback", resolver.getProp("schema-ref", String.class, "fallback"));
+        Assert.assertEquals("x--y", resolver.getProp("template"));
+        Assert.assertNull(resolver.getProp("not-configured"));
+        Assert.assertEquals(Long.valueOf(7), resolver.getProp("not-configured", Long.class, 7L));
+        Assert.assertEquals("x--y", resolver.replaceAllRefs("x-{missing}-y"));
+
+        try {
+            resolver.getRequiredProp("schema-ref", " Set it to the schema variable.");
+            Assert.fail("missing required properties must be rejected");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().startsWith("schema-ref is required."));
+        }
+
+        Assert.assertSame(CompiledProperties.EMPTY, CompiledProperties.compile(null));
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("unset", null);
+        Assert.assertFalse(CompiledProperties.compile(properties).contains("unset"));
+    }
+
+    @Test
+    public void testBooleanConversion() {
+        VarResolver resolver = resolver(context("on", "true", "off", "FALSE", "yes", "yes", "typed", Boolean.TRUE),
+                "on", "{on}", "off", "{off}", "yes", "{yes}", "typed", "{typed}", "literal", "True");
+        Assert.assertEquals(Boolean.TRUE, resolver.getProp("on", Boolean.class, false));
+        Assert.assertEquals(Boolean.FALSE, resolver.getProp("off", Boolean.class, true));
+        Assert.assertEquals(Boolean.TRUE, resolver.getProp("typed", Boolean.class, false));
+        Assert.assertEquals(Boolean.TRUE, resolver.getProp("literal", Boolean.class, false));
+        //anything else is the default
+        Assert.assertNull(resolver.getProp("yes", Boolean.class, null));
+    }
+
+    @Test
+    public void testIntegerConversion() {
+        VarResolver resolver = resolver(context("n", "42", "plus", "+7", "minus", "-3", "decimal", "1.5",
+                        "text", "4x", "empty", "", "sign", "-", "big", "99999999999", "huge", "9223372036854775808", "typed", 5),
+                "n", "{n}", "plus", "{plus}", "minus", "{minus}", "decimal", "{decimal}", "text", "{text}",
+                "empty", "{empty}", "sign", "{sign}", "big", "{big}", "huge", "{huge}", "typed", "{typed}");
+        Assert.assertEquals(Integer.valueOf(42), resolver.getProp("n", Integer.class, 0));
+        Assert.assertEquals(Integer.valueOf(7), resolver.getProp("plus", Integer.class, 0));
+        Assert.assertEquals(Integer.valueOf(-3), resolver.getProp("minus", Integer.class, 0));
+        Assert.assertEquals(Integer.valueOf(5), resolver.getProp("typed", Integer.class, 0));
+        for (String malformed : new String[]{"decimal", "text", "empty", "sign", "big", "huge"}) {
+            Assert.assertEquals(malformed, Integer.valueOf(-1), resolver.getProp(malformed, Integer.class, -1));
+        }
+
+        Assert.assertEquals(Long.valueOf(99999999999L), resolver.getProp("big", Long.class, 0L));
+        Assert.assertEquals(Long.valueOf(-3), resolver.getProp("minus", Long.class, 0L));
+        //out of range, and typed values of another class
+        Assert.assertEquals(Long.valueOf(-1), resolver.getProp("huge", Long.class, -1L));
+        Assert.assertEquals(Long.valueOf(-1), resolver.getProp("typed", Long.class, -1L));
+        Assert.assertEquals(Long.valueOf(-1), resolver.getProp("decimal", Long.class, -1L));
+    }
+
+    @Test
+    public void testDecimalConversion() {
+        VarResolver resolver = resolver(context("d", "1.25", "whole", "-2", "leading", ".5", "trailing", "5.",
+                        "exponent", "1e3", "text", "one", "typed", 0.5d),
+                "d", "{d}", "whole", "{whole}", "leading", "{leading}", "trailing", "{trailing}",
+                "exponent", "{exponent}", "text", "{text}", "typed", "{typed}", "literal", "2.5");
+        Assert.assertEquals(Double.valueOf(1.25), resolver.getProp("d", Double.class, 0d));
+        Assert.assertEquals(Double.valueOf(-2), resolver.getProp("whole", Double.class, 0d));
+        Assert.assertEquals(Double.valueOf(2.5), resolver.getProp("literal", Double.class, 0d));
+        Assert.assertEquals(Double.valueOf(0.5), resolver.getProp("typed", Double.class, 0d));
+        Assert.assertEquals(Float.valueOf(1.25f), resolver.getProp("d", Float.class, 0f));
+        for (String malformed : new String[]{"leading", "trailing", "exponent", "text"}) {
+            Assert.assertEquals(malformed, Double.valueOf(-1), resolver.getProp(malformed, Double.class, -1d));
+            Assert.assertEquals(malformed, Float.valueOf(-1), resolver.getProp(malformed, Float.class, -1f));
+        }
+        Assert.assertEquals(Float.valueOf(-1), resolver.getProp("typed", Float.class, -1f));
+    }
+
+    private static MessageContext context(Object... vars) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < vars.length; i += 2) {
+            map.put((String) vars[i], vars[i + 1]);
+        }
+        return ApigeeStubs.newMessageContext(map);
+    }
+
+    private static VarResolver resolver(MessageContext msgCtx, String... properties) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        return new VarResolver(msgCtx, map);
+    }
+}